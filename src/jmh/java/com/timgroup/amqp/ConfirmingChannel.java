@@ -0,0 +1,61 @@
+package com.timgroup.amqp;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.Consumer;
+
+/**
+ * A stand-in for a channel which confirms every publish as soon as it is
+ * made, and remembers the consumer it was given, so that deliveries can be
+ * fed straight into it. Everything else does nothing.
+ */
+public class ConfirmingChannel implements InvocationHandler {
+    
+    public final Channel channel = (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(), new Class<?>[] {Channel.class}, this);
+    public final AtomicLong published = new AtomicLong();
+    private volatile ConfirmListener confirmListener;
+    private volatile Consumer consumer;
+    private long nextPublishSeqNo = 1;
+    
+    public Consumer getConsumer() {
+        return consumer;
+    }
+    
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String name = method.getName();
+        if (name.equals("getNextPublishSeqNo")) {
+            return nextPublishSeqNo;
+        } else if (name.equals("addConfirmListener")) {
+            confirmListener = (ConfirmListener) args[0];
+        } else if (name.equals("basicConsume")) {
+            consumer = (Consumer) args[args.length - 1];
+            return "consumer";
+        } else if (name.equals("basicCancel")) {
+            consumer.handleCancelOk((String) args[0]);
+        } else if (name.equals("basicPublish")) {
+            confirm(nextPublishSeqNo++);
+        }
+        Class<?> returnType = method.getReturnType();
+        if (returnType == boolean.class) {
+            return false;
+        } else if (returnType == int.class) {
+            return 0;
+        } else if (returnType == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+    
+    private void confirm(long sequenceNumber) throws IOException {
+        confirmListener.handleAck(sequenceNumber, false);
+        published.incrementAndGet();
+    }
+    
+}
@@ -0,0 +1,65 @@
+package com.timgroup.amqp;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * Decoding the scheduled delivery time from a message's headers, with the
+ * headers a typical producer sends, whether the time is a number or a
+ * string, and undoing the marking on a message coming back from a holding
+ * queue.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class HeaderBenchmark {
+    
+    private BasicProperties properties;
+    private Map<String, Object> stringHeaders;
+    private Map<String, Object> isoHeaders;
+    
+    @Setup
+    public void createProperties() {
+        Map<String, Object> headers = new HashMap<String, Object>();
+        headers.put("correlation", "a7d1c8e0-5b43-4f4e-9e0b-6d2f3f0c1a9b");
+        headers.put("attempt", 3);
+        headers.put(Receiver.SCHEDULED_DELIVERY_HEADER, System.currentTimeMillis());
+        properties = new BasicProperties.Builder().contentType("application/json").headers(headers).build();
+        stringHeaders = new HashMap<String, Object>(headers);
+        stringHeaders.put(Receiver.SCHEDULED_DELIVERY_HEADER, String.valueOf(System.currentTimeMillis()));
+        isoHeaders = new HashMap<String, Object>(headers);
+        isoHeaders.put(Receiver.SCHEDULED_DELIVERY_HEADER, "2014-03-01T09:30:00.250+01:00");
+    }
+    
+    @Benchmark
+    public long decodeNumeric() {
+        return DeliveryTimes.decode(properties.getHeaders(), 0);
+    }
+    
+    @Benchmark
+    public long decodeString() {
+        return DeliveryTimes.decode(stringHeaders, 0);
+    }
+    
+    @Benchmark
+    public long decodeIso8601() {
+        return DeliveryTimes.decode(isoHeaders, 0);
+    }
+    
+    @Benchmark
+    public BasicProperties unparkUnmarked() {
+        return HoldingQueues.unpark(properties);
+    }
+    
+}
@@ -0,0 +1,87 @@
+package com.timgroup.amqp;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.Envelope;
+
+/**
+ * The whole daemon loop for messages which are already due: delivery to the
+ * receiver, storing and scheduling, expiry, publishing, confirming and
+ * acknowledging, against channels which confirm instantly. Each invocation
+ * delivers a batch and waits for all of it to be published, so the score is
+ * messages per second through the pipeline.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PipelineBenchmark {
+    
+    private static final int BATCH = 1000;
+    private static final String[] ROUTING_KEYS = new String[16];
+    
+    static {
+        for (int i = 0; i < ROUTING_KEYS.length; i++) {
+            ROUTING_KEYS[i] = "key-" + i;
+        }
+    }
+    
+    private ConfirmingChannel inbound;
+    private ConfirmingChannel outbound;
+    private Transmitter transmitter;
+    private Receiver receiver;
+    private Consumer consumer;
+    private BasicProperties properties;
+    private final byte[] body = new byte[256];
+    private long deliveryTag;
+    
+    @Setup
+    public void start() throws IOException {
+        inbound = new ConfirmingChannel();
+        outbound = new ConfirmingChannel();
+        Acknowledger acknowledger = new Acknowledger(inbound.channel);
+        PublisherPool publishers = new PublisherPool(acknowledger, Collections.singletonList(new Publisher(outbound.channel, acknowledger)));
+        transmitter = new Transmitter(publishers, "outbound", new TimingWheelScheduler<PendingMessage>(), new SlabStore(Transmitter.DEFAULT_STORE_BUDGET));
+        receiver = new Receiver(inbound.channel, "inbound", transmitter);
+        receiver.start();
+        consumer = inbound.getConsumer();
+        
+        Map<String, Object> headers = new HashMap<String, Object>();
+        headers.put(Receiver.SCHEDULED_DELIVERY_HEADER, 0L);
+        properties = new BasicProperties.Builder().contentType("application/octet-stream").headers(headers).build();
+    }
+    
+    @TearDown
+    public void stop() throws IOException {
+        receiver.close();
+        transmitter.close();
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void receiveScheduleAndPublish() throws IOException {
+        for (int i = 0; i < BATCH; i++) {
+            ++deliveryTag;
+            consumer.handleDelivery("consumer", new Envelope(deliveryTag, false, "", ROUTING_KEYS[i & 15]), properties, body);
+        }
+        while (outbound.published.get() < deliveryTag) {
+            Thread.yield();
+        }
+    }
+    
+}
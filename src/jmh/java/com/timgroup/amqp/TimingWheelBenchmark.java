@@ -0,0 +1,63 @@
+package com.timgroup.amqp;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Schedule insert and expiry on a wheel holding a steady number of pending
+ * entries. Each operation adds one entry and moves the wheel on by a
+ * millisecond; lifetimes are spread evenly over twice the pending count in
+ * milliseconds, so on average one entry expires per operation and the
+ * population stays where it started. The longer populations reach the upper
+ * levels of the wheel, so cascading is included in the cost.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TimingWheelBenchmark {
+    
+    private static final Object ITEM = new Object();
+    private static final int OFFSETS = 1 << 16;
+    
+    @Param({"1000", "10000", "100000", "1000000", "10000000"})
+    public int pending;
+    
+    private TimingWheel<Object> wheel;
+    private final long[] offsets = new long[OFFSETS];
+    private final Object[] expired = new Object[256];
+    private long now;
+    private int next;
+    
+    @Setup
+    public void fill() {
+        Random random = new Random(0);
+        for (int i = 0; i < OFFSETS; i++) {
+            offsets[i] = 1 + random.nextInt(2 * pending);
+        }
+        wheel = new TimingWheel<Object>(now, pending);
+        for (int i = 0; i < pending; i++) {
+            wheel.add(ITEM, now + 1 + random.nextInt(2 * pending));
+        }
+    }
+    
+    @Benchmark
+    public int insertAndExpire() {
+        wheel.add(ITEM, now + offsets[next++ & (OFFSETS - 1)]);
+        return wheel.advance(++now, expired);
+    }
+    
+    @Benchmark
+    public Object insertAndCancel() {
+        return wheel.cancel(wheel.add(ITEM, now + offsets[next++ & (OFFSETS - 1)]));
+    }
+    
+}
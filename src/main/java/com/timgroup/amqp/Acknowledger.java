@@ -0,0 +1,271 @@
+package com.timgroup.amqp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.rabbitmq.client.Channel;
+
+/**
+ * Settles inbound deliveries on the channel they arrived on, coalescing
+ * acknowledgements.
+ *
+ * Deliveries which are ready to be acknowledged are held back until a batch
+ * has built up or the linger time has passed. Then the unbroken run of
+ * settled tags above the low watermark is acknowledged with a single
+ * multiple ack; a multiple ack also covers every lower tag, so it cannot
+ * reach past a delivery which is still pending. Ready deliveries stranded
+ * above a pending one are acknowledged individually.
+ *
+ * Settled deliveries above the watermark are held as runs of consecutive
+ * tags, so memory grows with the number of gaps left by pending deliveries,
+ * not with how far the highest tag has got past the oldest of them.
+ *
+ * Every ack and nack for the channel must go through here, or the watermark
+ * will stall at the first tag settled behind its back.
+ */
+public class Acknowledger implements Closeable, Publisher.Settler {
+    
+    public static final int DEFAULT_BATCH_SIZE = 256;
+    public static final long DEFAULT_LINGER_MILLIS = 5;
+    
+    private final Channel channel;
+    private final int batchSize;
+    private final ScheduledExecutorService flusher;
+    private final ScheduledFuture<?> flushing;
+    private final boolean ownsFlusher;
+    private final TreeMap<Long, Long> settledRuns = new TreeMap<Long, Long>();
+    private long watermark;
+    private long highestTag;
+    private long highestDeliveredTag;
+    private long settledCount;
+    private long[] readyTags = new long[DEFAULT_BATCH_SIZE];
+    private int readyCount;
+    private boolean handedBack;
+    
+    public Acknowledger(Channel channel) {
+        this(channel, DEFAULT_BATCH_SIZE, DEFAULT_LINGER_MILLIS);
+    }
+    
+    public Acknowledger(Channel channel, int batchSize, long lingerMillis) {
+        this(channel, batchSize, lingerMillis, Executors.newSingleThreadScheduledExecutor(), true);
+    }
+    
+    /**
+     * @param flusher
+     *            to flush lingering acks on, which may be shared with other
+     *            acknowledgers; it is left running on close
+     */
+    public Acknowledger(Channel channel, int batchSize, long lingerMillis, ScheduledExecutorService flusher) {
+        this(channel, batchSize, lingerMillis, flusher, false);
+    }
+    
+    private Acknowledger(Channel channel, int batchSize, long lingerMillis, ScheduledExecutorService flusher, boolean ownsFlusher) {
+        this.channel = channel;
+        this.batchSize = batchSize;
+        this.flusher = flusher;
+        this.ownsFlusher = ownsFlusher;
+        this.flushing = flusher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flush();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, lingerMillis, lingerMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    public Channel getChannel() {
+        return channel;
+    }
+    
+    /**
+     * Notes a delivery as it arrives, so that {@link #getUnsettledCount()}
+     * can count it.
+     */
+    public synchronized void delivered(long deliveryTag) {
+        highestDeliveredTag = Math.max(highestDeliveredTag, deliveryTag);
+    }
+    
+    /**
+     * Marks the delivery as ready to be acknowledged.
+     */
+    public synchronized void ack(long deliveryTag) throws IOException {
+        if (handedBack) {
+            return;
+        }
+        settle(deliveryTag);
+        if (readyCount == readyTags.length) {
+            readyTags = Arrays.copyOf(readyTags, readyCount * 2);
+        }
+        readyTags[readyCount++] = deliveryTag;
+        if (readyCount >= batchSize) {
+            flush();
+        }
+    }
+    
+    /**
+     * Acknowledges a delivery whose repeat has been confirmed.
+     */
+    @Override
+    public void confirmed(long deliveryTag) throws IOException {
+        ack(deliveryTag);
+    }
+    
+    /**
+     * Requeues a delivery whose repeat was rejected, so that it will be tried
+     * again.
+     */
+    @Override
+    public void rejected(long deliveryTag) throws IOException {
+        requeue(deliveryTag);
+    }
+    
+    /**
+     * Hands the delivery back to the broker to be redelivered, straight away.
+     */
+    public synchronized void requeue(long deliveryTag) throws IOException {
+        if (handedBack) {
+            return;
+        }
+        channel.basicNack(deliveryTag, false, true);
+        settle(deliveryTag);
+        if (readyCount == 0) {
+            // with nothing ready, every settled delivery is done with, so the watermark can move over them
+            advanceWatermark();
+        }
+    }
+    
+    /**
+     * Hands the delivery back to the broker without requeueing it, so that it
+     * goes to the queue's dead-letter exchange, if it has one, rather than
+     * being lost.
+     */
+    public synchronized void reject(long deliveryTag) throws IOException {
+        if (handedBack) {
+            return;
+        }
+        channel.basicReject(deliveryTag, false);
+        settle(deliveryTag);
+        if (readyCount == 0) {
+            advanceWatermark();
+        }
+    }
+    
+    /**
+     * Sends any acks still held back, and then hands every unsettled delivery
+     * up to the given tag back to the broker with a single multiple nack.
+     * Deliveries settled after this are ignored, since the broker already has
+     * them back.
+     */
+    public synchronized void requeueAll(long highestDeliveryTag) throws IOException {
+        flush();
+        handedBack = true;
+        long tag = highestDeliveryTag;
+        while (tag > watermark) {
+            Map.Entry<Long, Long> run = settledRuns.floorEntry(tag);
+            if (run == null || run.getValue() < tag) {
+                channel.basicNack(tag, true, true);
+                break;
+            }
+            tag = run.getKey() - 1;
+        }
+    }
+    
+    public synchronized void flush() throws IOException {
+        if (readyCount == 0) {
+            return;
+        }
+        Long runEnd = settledRuns.get(watermark + 1);
+        long newWatermark = runEnd != null ? runEnd : watermark;
+        long lastReady = 0;
+        for (int i = 0; i < readyCount; i++) {
+            if (readyTags[i] <= newWatermark) {
+                lastReady = Math.max(lastReady, readyTags[i]);
+            }
+        }
+        if (lastReady != 0) {
+            channel.basicAck(lastReady, true);
+        }
+        for (int i = 0; i < readyCount; i++) {
+            if (readyTags[i] > newWatermark) {
+                channel.basicAck(readyTags[i], false);
+            }
+        }
+        readyCount = 0;
+        advanceWatermark();
+    }
+    
+    /**
+     * @return the number of deliveries between the watermark and the highest
+     *         delivery settled so far
+     */
+    public synchronized long getWindow() {
+        return highestTag - watermark;
+    }
+    
+    /**
+     * @return the number of deliveries on the channel which have arrived but
+     *         not yet been settled; delivery tags count up from one, so this
+     *         is the highest one delivered less the number settled
+     */
+    public synchronized long getUnsettledCount() {
+        return Math.max(0, Math.max(highestDeliveredTag, highestTag) - settledCount);
+    }
+    
+    /**
+     * @return the number of runs of settled deliveries held above the
+     *         watermark, which is what the memory used grows with
+     */
+    public synchronized int getSettledRunCount() {
+        return settledRuns.size();
+    }
+    
+    /**
+     * Moves the watermark over the run of settled deliveries just above it,
+     * which must all have been acknowledged or requeued by now.
+     */
+    private void advanceWatermark() {
+        Long runEnd = settledRuns.remove(watermark + 1);
+        if (runEnd != null) {
+            watermark = runEnd;
+        }
+    }
+    
+    /**
+     * Adds the delivery to the runs of settled ones, joining it to the runs
+     * either side.
+     */
+    private void settle(long tag) {
+        if (tag <= watermark) {
+            throw new IllegalStateException("delivery " + tag + " has already been settled");
+        }
+        Map.Entry<Long, Long> below = settledRuns.floorEntry(tag);
+        if (below != null && below.getValue() >= tag) {
+            return;
+        }
+        long start = below != null && below.getValue() == tag - 1 ? below.getKey() : tag;
+        Long aboveEnd = settledRuns.remove(tag + 1);
+        settledRuns.put(start, aboveEnd != null ? aboveEnd : tag);
+        highestTag = Math.max(highestTag, tag);
+        settledCount++;
+    }
+    
+    @Override
+    public void close() throws IOException {
+        flushing.cancel(false);
+        if (ownsFlusher) {
+            flusher.shutdown();
+        }
+        flush();
+    }
+    
+}
@@ -0,0 +1,135 @@
+package com.timgroup.amqp;
+
+import java.io.IOException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps adjusting a receiver's prefetch to suit the load, so that it takes in
+ * as much as the scheduler can cope with in a burst without taking in so
+ * much that the store fills or messages go out late.
+ *
+ * Every so often, it looks at what has happened since last time: the mean
+ * lateness of the messages published, counted from when each was both due
+ * and received, so that a backlog of messages which were overdue before they
+ * got here doesn't count against the prefetch; the publish backlog; and how
+ * full the store is. If any of them is over its limit, the prefetch is halved;
+ * otherwise it grows, doubling at first, and, once it has had to be cut, by
+ * a tenth at a time from then on, so that it settles just under the point
+ * where trouble starts, as TCP's congestion window does. It never leaves the
+ * given bounds. The {@link Throttle} still lowers it further, or stops
+ * consumption, when the backlog gets out of hand between checks.
+ */
+public class AdaptivePrefetch {
+    
+    public static final int DEFAULT_MIN_PREFETCH_COUNT = 10;
+    public static final int DEFAULT_MAX_PREFETCH_COUNT = 10000;
+    public static final long DEFAULT_LATENESS_LIMIT_MILLIS = 50;
+    public static final int DEFAULT_BACKLOG_LIMIT = Throttle.DEFAULT_SLOW_BACKLOG / 4;
+    public static final long DEFAULT_CHECK_MILLIS = 1000;
+    
+    /**
+     * How full the store may get, as a fraction of its budget, before the
+     * prefetch is cut.
+     */
+    public static final double STORE_LIMIT = 0.75;
+    
+    private final Receiver receiver;
+    private final Transmitter transmitter;
+    private final int minPrefetchCount;
+    private final int maxPrefetchCount;
+    private final long latenessLimitMicros;
+    private final int backlogLimit;
+    private int prefetchCount;
+    private int threshold;
+    private long lastPublishedCount;
+    private long lastLatenessSum;
+    private long decreaseCount;
+    
+    /**
+     * Sets the receiver's prefetch to the minimum to begin with.
+     *
+     * @param latenessLimitMillis
+     *            the mean lateness over a check above which to cut the
+     *            prefetch
+     * @param backlogLimit
+     *            the publish backlog above which to cut the prefetch
+     */
+    public AdaptivePrefetch(Receiver receiver, Transmitter transmitter, int minPrefetchCount, int maxPrefetchCount, long latenessLimitMillis, int backlogLimit) throws IOException {
+        if (minPrefetchCount < 1 || minPrefetchCount > maxPrefetchCount) {
+            throw new IllegalArgumentException("prefetch bounds must be positive and in order: " + minPrefetchCount + ", " + maxPrefetchCount);
+        }
+        this.receiver = receiver;
+        this.transmitter = transmitter;
+        this.minPrefetchCount = minPrefetchCount;
+        this.maxPrefetchCount = maxPrefetchCount;
+        this.latenessLimitMicros = latenessLimitMillis * 1000;
+        this.backlogLimit = backlogLimit;
+        this.prefetchCount = minPrefetchCount;
+        this.threshold = maxPrefetchCount;
+        Histogram lateness = transmitter.getMetrics().getAddedLateness();
+        this.lastPublishedCount = lateness.getCount();
+        this.lastLatenessSum = lateness.getSum();
+        receiver.setPrefetchCount(prefetchCount);
+    }
+    
+    /**
+     * Checks every so often on the given executor.
+     */
+    public void start(ScheduledExecutorService executor, long checkMillis) {
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    check();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, checkMillis, checkMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    public synchronized int getPrefetchCount() {
+        return prefetchCount;
+    }
+    
+    /**
+     * @return how many times the prefetch has been cut
+     */
+    public synchronized long getDecreaseCount() {
+        return decreaseCount;
+    }
+    
+    /**
+     * Measures how things have gone since the last check, and grows or cuts
+     * the prefetch to suit.
+     */
+    public synchronized void check() throws IOException {
+        Histogram lateness = transmitter.getMetrics().getAddedLateness();
+        long publishedCount = lateness.getCount();
+        long latenessSum = lateness.getSum();
+        long published = publishedCount - lastPublishedCount;
+        long meanLatenessMicros = published > 0 ? (latenessSum - lastLatenessSum) / published : 0;
+        lastPublishedCount = publishedCount;
+        lastLatenessSum = latenessSum;
+        
+        SlabStore store = transmitter.getStore();
+        int newPrefetchCount;
+        if (meanLatenessMicros > latenessLimitMicros || transmitter.getPublishers().getBacklog() > backlogLimit || store.getUsedBytes() > store.getBudgetBytes() * STORE_LIMIT) {
+            newPrefetchCount = Math.max(minPrefetchCount, prefetchCount / 2);
+            threshold = newPrefetchCount;
+            decreaseCount++;
+        } else if (prefetchCount < threshold) {
+            newPrefetchCount = (int) Math.min(threshold, 2L * prefetchCount);
+        } else {
+            newPrefetchCount = (int) Math.min(maxPrefetchCount, prefetchCount + Math.max(1L, prefetchCount / 10));
+        }
+        if (newPrefetchCount != prefetchCount) {
+            prefetchCount = newPrefetchCount;
+            receiver.setPrefetchCount(newPrefetchCount);
+        }
+    }
+    
+}
@@ -1,11 +1,18 @@
 package com.timgroup.amqp;
 
 import java.io.Closeable;
-import java.io.FileReader;
 import java.io.IOException;
-import java.util.Properties;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
 
-import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
 
@@ -16,58 +23,303 @@ public class Application implements Closeable {
     }
     
     public static Application create(String configFilePath) throws Exception {
-        Properties properties = loadProperties(configFilePath);
-        
-        String uri = properties.getProperty("uri");
-        String inboundQueueName = properties.getProperty("inboundQueueName");
-        String outboundQueueName = properties.getProperty("outboundQueueName");
+        Configuration configuration = Configuration.load(configFilePath);
         
         ConnectionFactory factory = new ConnectionFactory();
-        factory.setUri(uri);
-        Connection connection = factory.newConnection();
-        Channel channel = connection.createChannel();
+        factory.setUri(configuration.getString("uri"));
+        
+        return create(factory, configuration);
+    }
+    
+    /**
+     * Sets up the shards described by the configuration, with connections
+     * from the given factory; the uri setting is not used. If routes lists
+     * any route names, they all share a single shard; otherwise there is a
+     * shard for each inbound partition.
+     */
+    public static Application create(ConnectionFactory factory, Configuration configuration) throws IOException {
+        if (configuration.getString("clusterExchange") != null) {
+            return createClustered(factory, configuration);
+        }
+        String outboundQueueName = configuration.getString("outboundQueueName");
+        List<String> inboundQueueNames = inboundQueueNames(configuration);
+        List<String> routeNames = configuration.getList("routes");
+        
+        List<Shard> shards = new ArrayList<Shard>();
+        try {
+            if (!routeNames.isEmpty()) {
+                shards.add(Shard.openRoutes(factory, configuration, routeNames));
+            } else {
+                for (String inboundQueueName : inboundQueueNames) {
+                    shards.add(Shard.open(factory, configuration, inboundQueueName, outboundQueueName, inboundQueueNames.size()));
+                }
+            }
+        } catch (IOException e) {
+            for (Shard shard : shards) {
+                closeQuietly(shard);
+            }
+            throw e;
+        }
+        
+        MetricsServer metricsServer = null;
+        if (configuration.getString("metricsPort") != null) {
+            List<ShardMonitor> monitors = new ArrayList<ShardMonitor>();
+            for (Shard shard : shards) {
+                for (Route route : shard.getRoutes()) {
+                    monitors.add(route.getMonitor());
+                }
+            }
+            metricsServer = new MetricsServer(configuration.getInt("metricsPort", 0), monitors);
+        }
         
-        Transmitter transmitter = new Transmitter(channel, outboundQueueName);
-        Receiver receiver = new Receiver(channel, inboundQueueName, transmitter);
+        return new Application(shards, metricsServer);
+    }
+    
+    /**
+     * Sets up an instance which shares the inbound partitions with the other
+     * members of the cluster named by clusterExchange, and opens a shard for
+     * each partition as it is assigned one. Each shard gets the share of the
+     * store budget and publishers it would get if the partitions were spread
+     * evenly over clusterSize instances. The instance holds no more
+     * partitions than that while the other members have room, and up to
+     * clusterOvercommit more, by default as many again, when they don't, so
+     * that the partitions of a member which has gone are still repeated.
+     */
+    private static Application createClustered(final ConnectionFactory factory, final Configuration configuration) throws IOException {
+        if (configuration.getString("journalDirectory") != null || !configuration.getList("routes").isEmpty()) {
+            throw new IllegalArgumentException("cluster mode can't be combined with custody mode, whose journals would stay behind when partitions moved, or with routes");
+        }
+        final String outboundQueueName = configuration.getString("outboundQueueName");
+        List<String> partitions = inboundQueueNames(configuration);
+        int clusterSize = Math.max(1, configuration.getInt("clusterSize", 1));
+        final int shardCount = (partitions.size() + clusterSize - 1) / clusterSize;
         
-        return new Application(connection, receiver, transmitter);
+        MetricsServer metricsServer = null;
+        if (configuration.getString("metricsPort") != null) {
+            metricsServer = new MetricsServer(configuration.getInt("metricsPort", 0), Collections.<ShardMonitor> emptyList());
+        }
+        final Application application = new Application(Collections.<Shard> emptyList(), metricsServer);
+        String nodeId = configuration.getString("clusterNodeId") != null ? configuration.getString("clusterNodeId") : ManagementFactory.getRuntimeMXBean().getName();
+        application.cluster = new Cluster(factory.newConnection(), configuration.getString("clusterExchange"), nodeId, partitions, shardCount, configuration.getInt("clusterOvercommit", shardCount),
+                configuration.getLong("clusterHeartbeatMillis", Cluster.DEFAULT_HEARTBEAT_MILLIS), configuration.getLong("clusterMemberTimeoutMillis", Cluster.DEFAULT_MEMBER_TIMEOUT_MILLIS), new Cluster.Listener() {
+                    @Override
+                    public void assigned(String partition) throws IOException {
+                        application.open(Shard.open(factory, configuration, partition, outboundQueueName, shardCount));
+                    }
+                    
+                    @Override
+                    public void unassigned(String partition) {
+                        application.close(partition);
+                    }
+                });
+        if (metricsServer != null) {
+            metricsServer.setCluster(application.cluster);
+        }
+        return application;
     }
     
-    private static Properties loadProperties(String configFilePath) throws IOException {
-        Properties properties = new Properties();
-        FileReader configFileReader = new FileReader(configFilePath);
-        properties.load(configFileReader);
-        configFileReader.close();
-        return properties;
+    /**
+     * The inbound partitions come from, in order of preference: a list in
+     * inboundQueueNames; a pattern in inboundQueuePattern, with %d standing for
+     * the partition number, and a count in shardCount; or the single queue in
+     * inboundQueueName.
+     */
+    static List<String> inboundQueueNames(Configuration configuration) {
+        List<String> inboundQueueNames = configuration.getList("inboundQueueNames");
+        if (inboundQueueNames.isEmpty() && configuration.getString("inboundQueuePattern") != null) {
+            String pattern = configuration.getString("inboundQueuePattern");
+            int shardCount = configuration.getInt("shardCount", 1);
+            for (int partition = 0; partition < shardCount; partition++) {
+                inboundQueueNames.add(String.format(pattern, partition));
+            }
+        }
+        if (inboundQueueNames.isEmpty()) {
+            inboundQueueNames.add(configuration.getString("inboundQueueName"));
+        }
+        return inboundQueueNames;
     }
     
-    private final Connection connection;
-    private final Receiver receiver;
-    private final Transmitter transmitter;
+    private static final AtomicInteger applicationCount = new AtomicInteger();
+    
+    private final int number = applicationCount.incrementAndGet();
+    private final List<Shard> shards;
+    private final MetricsServer metricsServer;
+    private Cluster cluster;
+    private ScheduledExecutorService clusterExecutor;
+    
+    public Application(List<Shard> shards) {
+        this(shards, null);
+    }
+    
+    /**
+     * @param metricsServer
+     *            to serve the shards' metrics over HTTP, or null not to
+     */
+    public Application(List<Shard> shards, MetricsServer metricsServer) {
+        this.shards = new CopyOnWriteArrayList<Shard>(shards);
+        this.metricsServer = metricsServer;
+    }
+    
+    /**
+     * @return the order in which the application was created in this JVM,
+     *         counting from 1, which tells its shards' MBeans apart from
+     *         those of any other
+     */
+    public int getNumber() {
+        return number;
+    }
     
-    public Application(Connection connection, Receiver receiver, Transmitter transmitter) {
-        this.connection = connection;
-        this.receiver = receiver;
-        this.transmitter = transmitter;
+    /**
+     * @return the shards, which, in cluster mode, are those of the
+     *         partitions assigned to this instance at the moment
+     */
+    public List<Shard> getShards() {
+        return Collections.unmodifiableList(shards);
     }
     
+    /**
+     * @return the cluster this instance is a member of, or null if
+     *         clusterExchange wasn't set
+     */
+    public Cluster getCluster() {
+        return cluster;
+    }
+    
+    /**
+     * @return the metrics server, or null if metricsPort wasn't set
+     */
+    public MetricsServer getMetricsServer() {
+        return metricsServer;
+    }
+    
+    /**
+     * @return the receiver of the first shard
+     */
     public Receiver getReceiver() {
-        return receiver;
+        return shards.get(0).getReceiver();
     }
     
+    /**
+     * @return the transmitter of the first shard
+     */
     public Transmitter getTransmitter() {
-        return transmitter;
+        return shards.get(0).getTransmitter();
     }
     
-    private void start() throws IOException {
-        receiver.start();
+    public void start() throws IOException {
+        for (Shard shard : shards) {
+            for (Route route : shard.getRoutes()) {
+                try {
+                    route.getMonitor().register(number);
+                } catch (JMException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        if (metricsServer != null) {
+            metricsServer.start();
+        }
+        for (Shard shard : shards) {
+            shard.start();
+        }
+        if (cluster != null) {
+            clusterExecutor = Executors.newScheduledThreadPool(2);
+            cluster.start(clusterExecutor);
+        }
     }
     
+    /**
+     * Starts a shard for a partition which has been assigned to this
+     * instance.
+     */
+    private void open(Shard shard) throws IOException {
+        for (Route route : shard.getRoutes()) {
+            try {
+                route.getMonitor().register(number);
+            } catch (JMException e) {
+                e.printStackTrace();
+            }
+            if (metricsServer != null) {
+                metricsServer.add(route.getMonitor());
+            }
+        }
+        shards.add(shard);
+        try {
+            shard.start();
+        } catch (IOException e) {
+            close(shard.getReceiver().getQueueName());
+            throw e;
+        }
+    }
+    
+    /**
+     * Stops the shard for a partition which is going to another instance,
+     * handing what it has pending back to the broker.
+     */
+    private void close(String partition) {
+        for (Shard shard : shards) {
+            if (shard.getReceiver().getQueueName().equals(partition)) {
+                shards.remove(shard);
+                closeQuietly(shard);
+                for (Route route : shard.getRoutes()) {
+                    if (metricsServer != null) {
+                        metricsServer.remove(route.getMonitor());
+                    }
+                    try {
+                        route.getMonitor().unregister();
+                    } catch (JMException e) {
+                        // it was never registered
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Closes the shards side by side, so that shutting down takes one grace
+     * period rather than one per shard. In cluster mode, partitions stop
+     * moving first, and their leases are given up once the shards are
+     * closed.
+     */
     @Override
     public void close() throws IOException {
-        closeQuietly(receiver);
-        closeQuietly(transmitter);
-        closeQuietly(closeable(connection));
+        if (cluster != null) {
+            cluster.stop();
+        }
+        if (metricsServer != null) {
+            metricsServer.close();
+        }
+        List<Thread> closers = new ArrayList<Thread>();
+        for (final Shard shard : shards) {
+            Thread closer = new Thread("close-" + shard.getReceiver().getQueueName()) {
+                @Override
+                public void run() {
+                    closeQuietly(shard);
+                    for (Route route : shard.getRoutes()) {
+                        try {
+                            route.getMonitor().unregister();
+                        } catch (JMException e) {
+                            // it was never registered, because start failed or wasn't called
+                        }
+                    }
+                }
+            };
+            closer.start();
+            closers.add(closer);
+        }
+        try {
+            for (Thread closer : closers) {
+                closer.join();
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted while closing shards", e);
+        }
+        if (cluster != null) {
+            closeQuietly(cluster);
+            if (clusterExecutor != null) {
+                clusterExecutor.shutdown();
+            }
+        }
     }
     
     public static void closeQuietly(Closeable closeable) {
@@ -0,0 +1,41 @@
+package com.timgroup.amqp;
+
+/**
+ * A breakdown of the items waiting in a {@link Scheduler} by how soon they are
+ * due: each band covers items due within its horizon but not within the
+ * horizon of the band before, and carries their number and total weight.
+ */
+public final class Backlog {
+    
+    private final long[] horizons;
+    private final long[] counts;
+    private final long[] weights;
+    
+    /**
+     * @param horizons
+     *            in milliseconds from now, in increasing order; the last
+     *            should be {@link Long#MAX_VALUE}
+     */
+    public Backlog(long[] horizons, long[] counts, long[] weights) {
+        this.horizons = horizons;
+        this.counts = counts;
+        this.weights = weights;
+    }
+    
+    public int getBandCount() {
+        return horizons.length;
+    }
+    
+    public long getHorizonMillis(int band) {
+        return horizons[band];
+    }
+    
+    public long getCount(int band) {
+        return counts[band];
+    }
+    
+    public long getWeight(int band) {
+        return weights[band];
+    }
+    
+}
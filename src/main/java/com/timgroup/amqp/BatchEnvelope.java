@@ -0,0 +1,103 @@
+package com.timgroup.amqp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * Many messages to be scheduled, carried in the body of one, so that a
+ * producer scheduling thousands at once pays for one enqueue, one delivery
+ * and one ack rather than thousands. An envelope is marked by its content
+ * type, and its body is a version byte, then the number of entries as an
+ * int, then each entry: its delivery time in milliseconds since the epoch as
+ * a long, its routing key as modified UTF-8 with a two-byte length, its
+ * properties as the tail of an AMQP content header (weight, body size, then
+ * property flags and values), and its body. Everything is big-endian, as
+ * {@link DataOutputStream} writes it. The envelope's own properties and
+ * routing key are ignored.
+ */
+public final class BatchEnvelope {
+    
+    public static final String CONTENT_TYPE = "application/x-wai7-batch";
+    
+    private static final int VERSION = 1;
+    
+    private BatchEnvelope() {}
+    
+    public static final class Entry {
+        public final long deliveryTime;
+        public final String routingKey;
+        public final BasicProperties properties;
+        public final byte[] body;
+        
+        public Entry(long deliveryTime, String routingKey, BasicProperties properties, byte[] body) {
+            this.deliveryTime = deliveryTime;
+            this.routingKey = routingKey;
+            this.properties = properties;
+            this.body = body;
+        }
+    }
+    
+    public static boolean isBatch(BasicProperties properties) {
+        return CONTENT_TYPE.equals(properties.getContentType());
+    }
+    
+    public static byte[] encode(List<Entry> entries) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(VERSION);
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                out.writeLong(entry.deliveryTime);
+                out.writeUTF(entry.routingKey);
+                MessageCodec.writeProperties(out, entry.properties != null ? entry.properties : new BasicProperties(), entry.body.length);
+                out.write(entry.body);
+            }
+            out.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException("could not encode batch", e);
+        }
+        return bytes.toByteArray();
+    }
+    
+    /**
+     * @throws IOException
+     *             if the body isn't a whole envelope of a version we know
+     */
+    public static List<Entry> decode(byte[] body) throws IOException {
+        ByteArrayInputStream bytes = new ByteArrayInputStream(body);
+        DataInputStream in = new DataInputStream(bytes);
+        int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("unknown batch envelope version " + version);
+        }
+        int count = in.readInt();
+        if (count < 0 || count > body.length) {
+            throw new IOException("implausible batch envelope entry count " + count);
+        }
+        List<Entry> entries = new ArrayList<Entry>(count);
+        for (int i = 0; i < count; i++) {
+            long deliveryTime = in.readLong();
+            String routingKey = in.readUTF();
+            BasicProperties properties = MessageCodec.readProperties(in);
+            if (properties.getBodySize() < 0 || properties.getBodySize() > bytes.available()) {
+                throw new IOException("batch envelope entry " + i + " is cut short");
+            }
+            byte[] entryBody = new byte[(int) properties.getBodySize()];
+            in.readFully(entryBody);
+            entries.add(new Entry(deliveryTime, routingKey, properties, entryBody));
+        }
+        if (bytes.available() != 0) {
+            throw new IOException("batch envelope has " + bytes.available() + " bytes left over");
+        }
+        return entries;
+    }
+    
+}
@@ -0,0 +1,13 @@
+package com.timgroup.amqp;
+
+/**
+ * Told when the {@link Transmitter} can no longer hold more pending messages,
+ * and again when it can.
+ */
+public interface CapacityListener {
+    
+    public void capacityExhausted();
+    
+    public void capacityRestored();
+    
+}
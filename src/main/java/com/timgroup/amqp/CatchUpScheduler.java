@@ -0,0 +1,380 @@
+package com.timgroup.amqp;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps a backlog of overdue items, such as the flood redelivered after a
+ * restart, away from the items which are still on time.
+ *
+ * Items which are overdue by more than a threshold when they are scheduled
+ * go into a separate lane, which releases them in order of due time, oldest
+ * first, at no more than a fixed rate. Everything else goes to the underlying
+ * scheduler as usual, so that messages due now keep their precision, and the
+ * downstream exchange isn't hit by the whole backlog at once.
+ *
+ * Items in the lane are released in order of due time among the items in the
+ * lane at the time; an item which turns up later but is more overdue goes to
+ * the front. The lane is a binary heap, and each item's handle names an entry
+ * which points back at the item's place in it, as in {@link TimingWheel}, so
+ * an item can be cancelled in O(log n) however long the backlog.
+ */
+public class CatchUpScheduler<T> implements Scheduler<T>, Runnable {
+    
+    public static final long DEFAULT_THRESHOLD_MILLIS = 1000;
+    
+    private static final long LANE_HANDLE = Long.MIN_VALUE;
+    private static final int NIL = -1;
+    private static final int INITIAL_CAPACITY = 1024;
+    
+    private final Scheduler<T> scheduler;
+    private final double ratePerSecond;
+    private final double burst;
+    private final long thresholdMillis;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Thread thread;
+    private Handler<? super T> handler;
+    private long[] deliveryTimes = new long[0];
+    private long[] sequences = new long[0];
+    private int[] weights = new int[0];
+    private Object[] items = new Object[0];
+    private int[] entries = new int[0];
+    private int[] positions = new int[0];
+    private int[] generations = new int[0];
+    private int[] next = new int[0];
+    private int free = NIL;
+    private int size;
+    private long weight;
+    private long nextSequence;
+    private boolean shutdown;
+    
+    /**
+     * @param ratePerSecond
+     *            how many overdue items to release a second
+     * @param thresholdMillis
+     *            how overdue an item must be to go into the lane
+     */
+    public CatchUpScheduler(Scheduler<T> scheduler, double ratePerSecond, long thresholdMillis) {
+        if (ratePerSecond <= 0) {
+            throw new IllegalArgumentException("catch-up rate must be positive: " + ratePerSecond);
+        }
+        this.scheduler = scheduler;
+        this.ratePerSecond = ratePerSecond;
+        this.burst = Math.max(1, ratePerSecond / 100);
+        this.thresholdMillis = thresholdMillis;
+        this.thread = new Thread(this, "catch-up");
+        grow(INITIAL_CAPACITY);
+    }
+    
+    @Override
+    public void start(Handler<? super T> handler) {
+        this.handler = handler;
+        scheduler.start(handler);
+        thread.start();
+    }
+    
+    /**
+     * @return a handle from the underlying scheduler, or, for an item put in
+     *         the lane, a negative one
+     */
+    @Override
+    public long schedule(T item, long deliveryTime, int weight) {
+        if (deliveryTime >= System.currentTimeMillis() - thresholdMillis) {
+            return scheduler.schedule(item, deliveryTime, weight);
+        }
+        lock.lock();
+        try {
+            if (shutdown) {
+                throw new RejectedExecutionException("scheduler has been shut down");
+            }
+            long handle = push(item, deliveryTime, nextSequence++, weight);
+            notEmpty.signal();
+            return handle;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Takes back an item from the underlying scheduler, or from the lane.
+     *
+     * @return the cancelled item, or null if the handle is stale
+     */
+    @Override
+    public T cancel(long handle) {
+        if (handle >= 0) {
+            return scheduler.cancel(handle);
+        }
+        int entry = (int) handle;
+        int generation = (int) ((handle & ~LANE_HANDLE) >>> 32);
+        lock.lock();
+        try {
+            if (entry < 0 || entry >= positions.length || positions[entry] == NIL || generations[entry] != generation) {
+                return null;
+            }
+            return removeAt(positions[entry]);
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    @Override
+    public int size() {
+        return scheduler.size() + getOverdueCount();
+    }
+    
+    /**
+     * @return the backlog of the underlying scheduler; the lane is not
+     *         included
+     */
+    @Override
+    public Backlog getBacklog() {
+        return scheduler.getBacklog();
+    }
+    
+    /**
+     * @return the number of items waiting in the lane
+     */
+    public int getOverdueCount() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public long getOverdueWeight() {
+        lock.lock();
+        try {
+            return weight;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * @return how long the lane will take to empty at its rate, if nothing
+     *         more is added to it
+     */
+    public long getEstimatedDrainMillis() {
+        return (long) Math.ceil(getOverdueCount() * 1000 / ratePerSecond);
+    }
+    
+    public double getRatePerSecond() {
+        return ratePerSecond;
+    }
+    
+    @Override
+    public void run() {
+        double tokens = burst;
+        long lastRefill = System.nanoTime();
+        while (true) {
+            T item;
+            lock.lock();
+            try {
+                while (size == 0) {
+                    if (shutdown) {
+                        return;
+                    }
+                    notEmpty.await();
+                }
+                long now = System.nanoTime();
+                tokens = Math.min(burst, tokens + (now - lastRefill) * ratePerSecond / 1e9);
+                lastRefill = now;
+                if (tokens < 1) {
+                    notEmpty.awaitNanos((long) ((1 - tokens) * 1e9 / ratePerSecond));
+                    continue;
+                }
+                tokens -= 1;
+                item = removeAt(0);
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                handler.expired(item);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+    
+    /**
+     * Stops accepting new items. Items already in the lane are still released
+     * at the lane's rate.
+     */
+    @Override
+    public void shutdown() {
+        scheduler.shutdown();
+        lock.lock();
+        try {
+            shutdown = true;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Takes back the items in the lane as well as those in the underlying
+     * scheduler.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<T> shutdownNow() {
+        List<T> remaining = scheduler.shutdownNow();
+        lock.lock();
+        try {
+            shutdown = true;
+            for (int i = 0; i < size; i++) {
+                remaining.add((T) items[i]);
+                items[i] = null;
+                release(entries[i]);
+            }
+            size = 0;
+            weight = 0;
+            notEmpty.signal();
+            return remaining;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        if (!scheduler.awaitTermination(timeout, unit)) {
+            return false;
+        }
+        if (thread.getState() == Thread.State.NEW) {
+            return true;
+        }
+        long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        if (remaining > 0) {
+            thread.join(remaining);
+        }
+        return !thread.isAlive();
+    }
+    
+    /**
+     * @return a handle for the item, which stays valid until it is released
+     *         or cancelled
+     */
+    private long push(T item, long deliveryTime, long sequence, int itemWeight) {
+        if (free == NIL) {
+            grow(items.length * 2);
+        }
+        int entry = free;
+        free = next[entry];
+        int index = size++;
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (!before(deliveryTime, sequence, parent)) {
+                break;
+            }
+            move(parent, index);
+            index = parent;
+        }
+        set(index, item, deliveryTime, sequence, itemWeight, entry);
+        weight += itemWeight;
+        return LANE_HANDLE | ((long) generations[entry] << 32) | entry;
+    }
+    
+    /**
+     * Takes the item out of the heap, and fills the gap with the last one,
+     * sifting it up or down to where it belongs.
+     */
+    @SuppressWarnings("unchecked")
+    private T removeAt(int index) {
+        T removed = (T) items[index];
+        weight -= weights[index];
+        release(entries[index]);
+        int last = --size;
+        Object item = items[last];
+        long deliveryTime = deliveryTimes[last];
+        long sequence = sequences[last];
+        int itemWeight = weights[last];
+        int entry = entries[last];
+        items[last] = null;
+        if (index == last) {
+            return removed;
+        }
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (!before(deliveryTime, sequence, parent)) {
+                break;
+            }
+            move(parent, index);
+            index = parent;
+        }
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && before(deliveryTimes[child + 1], sequences[child + 1], child)) {
+                child++;
+            }
+            if (!before(deliveryTimes[child], sequences[child], deliveryTime, sequence)) {
+                break;
+            }
+            move(child, index);
+            index = child;
+        }
+        set(index, item, deliveryTime, sequence, itemWeight, entry);
+        return removed;
+    }
+    
+    private boolean before(long deliveryTime, long sequence, int index) {
+        return before(deliveryTime, sequence, deliveryTimes[index], sequences[index]);
+    }
+    
+    private static boolean before(long deliveryTime, long sequence, long otherDeliveryTime, long otherSequence) {
+        return deliveryTime < otherDeliveryTime || (deliveryTime == otherDeliveryTime && sequence < otherSequence);
+    }
+    
+    private void move(int from, int to) {
+        set(to, items[from], deliveryTimes[from], sequences[from], weights[from], entries[from]);
+    }
+    
+    private void set(int index, Object item, long deliveryTime, long sequence, int itemWeight, int entry) {
+        items[index] = item;
+        deliveryTimes[index] = deliveryTime;
+        sequences[index] = sequence;
+        weights[index] = itemWeight;
+        entries[index] = entry;
+        positions[entry] = index;
+    }
+    
+    private void release(int entry) {
+        positions[entry] = NIL;
+        generations[entry] = (generations[entry] + 1) & Integer.MAX_VALUE;
+        next[entry] = free;
+        free = entry;
+    }
+    
+    private void grow(int capacity) {
+        int oldCapacity = items.length;
+        deliveryTimes = Arrays.copyOf(deliveryTimes, capacity);
+        sequences = Arrays.copyOf(sequences, capacity);
+        weights = Arrays.copyOf(weights, capacity);
+        items = Arrays.copyOf(items, capacity);
+        entries = Arrays.copyOf(entries, capacity);
+        positions = Arrays.copyOf(positions, capacity);
+        generations = Arrays.copyOf(generations, capacity);
+        next = Arrays.copyOf(next, capacity);
+        for (int entry = capacity - 1; entry >= oldCapacity; entry--) {
+            positions[entry] = NIL;
+            next[entry] = free;
+            free = entry;
+        }
+    }
+    
+}
@@ -0,0 +1,98 @@
+package com.timgroup.amqp;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The wall clock, read through {@link System#nanoTime()} so that it has
+ * sub-millisecond resolution and doesn't jitter.
+ *
+ * The clock is anchored once, to the instant the wall clock ticks over to a
+ * new millisecond, and from then on runs on the monotonic clock. Scheduled
+ * delivery times are wall-clock times, though, so every reading is checked
+ * against the wall clock; if they have come apart by more than a millisecond,
+ * because the wall clock has been stepped or has slewed a long way, the clock
+ * is anchored afresh and the correction counted. Anchoring spins for up to a
+ * millisecond, waiting for the tick, which is cheap enough as long as it's
+ * rare.
+ */
+public class Clock {
+    
+    public static final Clock SYSTEM = new Clock();
+    
+    private static final long TOLERANCE_MILLIS = 1;
+    
+    private static final class Anchor {
+        final long millis;
+        final long nanos;
+        
+        Anchor(long millis, long nanos) {
+            this.millis = millis;
+            this.nanos = nanos;
+        }
+    }
+    
+    private final AtomicLong corrections = new AtomicLong();
+    private volatile Anchor anchor;
+    
+    Clock() {
+        this.anchor = align();
+    }
+    
+    /**
+     * @return the time since the epoch, in microseconds
+     */
+    public long currentTimeMicros() {
+        while (true) {
+            Anchor anchor = this.anchor;
+            long micros = anchor.millis * 1000 + (System.nanoTime() - anchor.nanos) / 1000;
+            if (Math.abs(wallTimeMillis() - micros / 1000) <= TOLERANCE_MILLIS) {
+                return micros;
+            }
+            correct(anchor);
+        }
+    }
+    
+    public long currentTimeMillis() {
+        return currentTimeMicros() / 1000;
+    }
+    
+    /**
+     * @return the value {@link System#nanoTime()} will have at the given
+     *         wall-clock time, as things stand
+     */
+    public long nanoTimeAt(long timeMillis) {
+        Anchor anchor = this.anchor;
+        return anchor.nanos + (timeMillis - anchor.millis) * 1000000;
+    }
+    
+    /**
+     * @return how many times the clock has had to be anchored afresh because
+     *         the wall clock jumped or drifted
+     */
+    public long getCorrectionCount() {
+        return corrections.get();
+    }
+    
+    long wallTimeMillis() {
+        return System.currentTimeMillis();
+    }
+    
+    private synchronized void correct(Anchor stale) {
+        if (anchor == stale) {
+            anchor = align();
+            corrections.incrementAndGet();
+        }
+    }
+    
+    private Anchor align() {
+        long start = wallTimeMillis();
+        long millis;
+        long nanos;
+        do {
+            millis = wallTimeMillis();
+            nanos = System.nanoTime();
+        } while (millis == start);
+        return new Anchor(millis, nanos);
+    }
+    
+}
@@ -0,0 +1,459 @@
+package com.timgroup.amqp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+
+/**
+ * Shares the inbound partitions out between several instances of the
+ * daemon, using nothing but the broker, so that each partition is repeated
+ * by exactly one of them, and adding an instance adds capacity.
+ *
+ * Instances find each other by heartbeats on a fanout exchange: each one
+ * sends its node ID every so often, and counts as a member until nothing has
+ * been heard from it for the member timeout, or it says it is leaving. Every
+ * member works out the same assignment from the same membership by
+ * rendezvous hashing: a partition goes to the member for which a hash of the
+ * two is highest. So when a member joins or leaves, only the partitions it
+ * gains or loses move, and the rest stay where they are.
+ *
+ * A member only has the budget for so many partitions, though, so it takes
+ * no more than that while the others have room: partitions are assigned in
+ * order, each to the member with the highest hash which has room for it, so
+ * a member which is full passes on the rest to the next in line. If the
+ * members between them don't have room for every partition, as when one has
+ * gone and the rest were sized to share the partitions with it, the ones
+ * left over are assigned the same way again, to members with room for a few
+ * more beyond their budget, the overcommit, so that they are still repeated,
+ * only with less memory to spare. Any still left over aren't repeated until
+ * another member joins; they are logged and counted.
+ *
+ * Working out the assignment is not enough to make ownership exclusive,
+ * since members can disagree about the membership for a while. So an
+ * instance only repeats a partition while it holds the partition's lease: an
+ * exclusive consumer on a lease queue named after it, which the broker lets
+ * only one connection have at a time, and takes away if that connection
+ * drops. An instance gives up a partition by stopping its shard, which hands
+ * whatever is pending back to the inbound queue, and only then cancelling
+ * its lease, so the next owner can't start until the last one has finished.
+ * Leases are held on a connection of the cluster's own, so if that drops
+ * while the shards' connections don't, the partitions are given up at the
+ * next check; until then, the next owner may be repeating them too.
+ */
+public class Cluster implements Closeable {
+    
+    public interface Listener {
+        /**
+         * The partition's lease is now held; start repeating it.
+         */
+        void assigned(String partition) throws IOException;
+        
+        /**
+         * The partition is going elsewhere; stop repeating it, and hand back
+         * what is pending. The lease is given up once this returns.
+         */
+        void unassigned(String partition);
+    }
+    
+    public static final String NODE_HEADER = "cluster_node";
+    public static final String OP_HEADER = "cluster_op";
+    public static final String HEARTBEAT = "heartbeat";
+    public static final String LEAVE = "leave";
+    
+    public static final long DEFAULT_HEARTBEAT_MILLIS = 500;
+    public static final long DEFAULT_MEMBER_TIMEOUT_MILLIS = 3000;
+    
+    private final Connection connection;
+    private final String exchangeName;
+    private final String nodeId;
+    private final List<String> partitions;
+    private final int maxHeld;
+    private final int overcommit;
+    private final long heartbeatMillis;
+    private final long memberTimeoutMillis;
+    private final Listener listener;
+    private final ConcurrentMap<String, Long> lastHeard = new ConcurrentHashMap<String, Long>();
+    private final Set<String> lost = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Map<String, Channel> leases = new HashMap<String, Channel>();
+    private volatile Channel channel;
+    private ScheduledFuture<?> heartbeats;
+    private ScheduledFuture<?> checks;
+    private long startTime;
+    private boolean closed;
+    private volatile int unassignedCount;
+    
+    /**
+     * @param connection
+     *            to hold leases and exchange heartbeats on, which should be
+     *            one of the cluster's own
+     * @param exchangeName
+     *            the fanout exchange to exchange heartbeats on, which lease
+     *            queues are named after too
+     * @param nodeId
+     *            what to call this instance, which must be unique in the
+     *            cluster
+     * @param partitions
+     *            the inbound queues to share out
+     * @param maxHeld
+     *            the most partitions this instance has the budget to hold,
+     *            which should be the same for every member
+     * @param overcommit
+     *            how many partitions beyond that it may take on when the
+     *            members between them have no room for them, which should
+     *            also be the same for every member
+     * @param memberTimeoutMillis
+     *            how long to go without hearing from a member before
+     *            counting it as gone
+     */
+    public Cluster(Connection connection, String exchangeName, String nodeId, List<String> partitions, int maxHeld, int overcommit, long heartbeatMillis, long memberTimeoutMillis, Listener listener) {
+        this.connection = connection;
+        this.exchangeName = exchangeName;
+        this.nodeId = nodeId;
+        this.partitions = new ArrayList<String>(new TreeSet<String>(partitions));
+        this.maxHeld = maxHeld;
+        this.overcommit = overcommit;
+        this.heartbeatMillis = heartbeatMillis;
+        this.memberTimeoutMillis = memberTimeoutMillis;
+        this.listener = listener;
+    }
+    
+    public Connection getConnection() {
+        return connection;
+    }
+    
+    public String getNodeId() {
+        return nodeId;
+    }
+    
+    /**
+     * Joins the cluster, and sends heartbeats and checks the assignment
+     * every heartbeat from then on, on the given executor, which should have
+     * a thread for each, so that heartbeats aren't held up while a shard is
+     * stopping. Nothing is taken on for the first two heartbeats, so as to
+     * hear from the other members before grabbing partitions which belong to
+     * them.
+     */
+    public synchronized void start(ScheduledExecutorService executor) throws IOException {
+        channel = connection.createChannel();
+        channel.exchangeDeclare(exchangeName, "fanout", true);
+        String queueName = channel.queueDeclare().getQueue();
+        channel.queueBind(queueName, exchangeName, "");
+        channel.basicConsume(queueName, true, new DefaultConsumer(channel) {
+            @Override
+            public void handleDelivery(String consumerTag, Envelope envelope, BasicProperties properties, byte[] body) {
+                heard(properties);
+            }
+        });
+        startTime = System.currentTimeMillis();
+        send(HEARTBEAT);
+        heartbeats = executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    send(HEARTBEAT);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+        checks = executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    check();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    private void heard(BasicProperties properties) {
+        Map<String, Object> headers = properties.getHeaders();
+        Object node = headers != null ? headers.get(NODE_HEADER) : null;
+        if (node == null) {
+            return;
+        }
+        if (LEAVE.equals(String.valueOf(headers.get(OP_HEADER)))) {
+            lastHeard.remove(node.toString());
+        } else {
+            lastHeard.put(node.toString(), System.currentTimeMillis());
+        }
+    }
+    
+    private void send(String op) {
+        Channel channel = this.channel;
+        if (!channel.isOpen()) {
+            return;
+        }
+        Map<String, Object> headers = new HashMap<String, Object>();
+        headers.put(NODE_HEADER, nodeId);
+        headers.put(OP_HEADER, op);
+        try {
+            channel.basicPublish(exchangeName, "", new BasicProperties.Builder().headers(headers).build(), new byte[0]);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+    
+    /**
+     * @return the IDs of the members heard from within the member timeout,
+     *         including this one, in order
+     */
+    public List<String> getMembers() {
+        long cutoff = System.currentTimeMillis() - memberTimeoutMillis;
+        Set<String> members = new TreeSet<String>();
+        members.add(nodeId);
+        for (Iterator<Map.Entry<String, Long>> entries = lastHeard.entrySet().iterator(); entries.hasNext();) {
+            Map.Entry<String, Long> entry = entries.next();
+            if (entry.getValue() < cutoff) {
+                entries.remove();
+            } else {
+                members.add(entry.getKey());
+            }
+        }
+        return new ArrayList<String>(members);
+    }
+    
+    /**
+     * @return the partitions whose lease this instance holds
+     */
+    public synchronized Set<String> getHeldPartitions() {
+        return new TreeSet<String>(leases.keySet());
+    }
+    
+    /**
+     * @return how many partitions no member had room for, even with the
+     *         overcommit, at the last check, and so aren't being repeated
+     */
+    public int getUnassignedCount() {
+        return unassignedCount;
+    }
+    
+    /**
+     * @return the member the partition belongs to, if every member has room
+     *         for every partition
+     */
+    public static String ownerOf(String partition, Collection<String> members) {
+        String owner = null;
+        long highest = Long.MIN_VALUE;
+        for (String member : members) {
+            long weight = weight(member, partition);
+            if (owner == null || weight > highest || (weight == highest && member.compareTo(owner) < 0)) {
+                owner = member;
+                highest = weight;
+            }
+        }
+        return owner;
+    }
+    
+    /**
+     * @return the member each partition belongs to, when no member may hold
+     *         more than the given number; a partition no member has room for
+     *         is left out
+     */
+    public static Map<String, String> assign(Collection<String> partitions, Collection<String> members, int maxPerMember) {
+        return assign(partitions, members, maxPerMember, 0);
+    }
+    
+    /**
+     * @return the member each partition belongs to, when no member may hold
+     *         more than the given number unless the members between them
+     *         have no room for a partition, in which case it goes to a member
+     *         with room for it with the overcommit; a partition no member has
+     *         room for even then is left out
+     */
+    public static Map<String, String> assign(Collection<String> partitions, Collection<String> members, int maxPerMember, int overcommit) {
+        Map<String, String> owners = new HashMap<String, String>();
+        Map<String, Integer> loads = new HashMap<String, Integer>();
+        Set<String> left = new TreeSet<String>(partitions);
+        assign(left, members, maxPerMember, owners, loads);
+        left.removeAll(owners.keySet());
+        if (overcommit > 0 && !left.isEmpty()) {
+            assign(left, members, maxPerMember + overcommit, owners, loads);
+        }
+        return owners;
+    }
+    
+    private static void assign(Set<String> partitions, Collection<String> members, int maxPerMember, Map<String, String> owners, Map<String, Integer> loads) {
+        for (String partition : partitions) {
+            String owner = null;
+            long highest = Long.MIN_VALUE;
+            for (String member : members) {
+                Integer load = loads.get(member);
+                if (load != null && load >= maxPerMember) {
+                    continue;
+                }
+                long weight = weight(member, partition);
+                if (owner == null || weight > highest || (weight == highest && member.compareTo(owner) < 0)) {
+                    owner = member;
+                    highest = weight;
+                }
+            }
+            if (owner != null) {
+                owners.put(partition, owner);
+                Integer load = loads.get(owner);
+                loads.put(owner, load != null ? load + 1 : 1);
+            }
+        }
+    }
+    
+    private static long weight(String member, String partition) {
+        return mix(member.hashCode() * 0x9e3779b97f4a7c15L + partition.hashCode());
+    }
+    
+    /**
+     * The finaliser of SplitMix64, so that similar names get unrelated
+     * weights.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+    
+    /**
+     * Gives up the partitions which belong to another member now, or whose
+     * lease has been lost, and tries to take the lease of each partition
+     * which belongs to this one but isn't held yet; one still held by its
+     * last owner is tried again next time.
+     */
+    public synchronized void check() {
+        if (closed) {
+            return;
+        }
+        Map<String, String> owners = assign(partitions, getMembers(), maxHeld, overcommit);
+        int unassigned = partitions.size() - owners.size();
+        if (unassigned > 0 && unassigned != unassignedCount) {
+            List<String> left = new ArrayList<String>(partitions);
+            left.removeAll(owners.keySet());
+            System.err.println("no member of " + exchangeName + " has room for " + unassigned + " partitions, which are not being repeated: " + left);
+        }
+        unassignedCount = unassigned;
+        for (String partition : new ArrayList<String>(leases.keySet())) {
+            if (lost.remove(partition) || !nodeId.equals(owners.get(partition))) {
+                release(partition);
+            }
+        }
+        if (System.currentTimeMillis() - startTime < 2 * heartbeatMillis) {
+            return;
+        }
+        for (String partition : partitions) {
+            if (!leases.containsKey(partition) && nodeId.equals(owners.get(partition))) {
+                acquire(partition);
+            }
+        }
+    }
+    
+    private String leaseQueueName(String partition) {
+        return exchangeName + ".lease." + partition;
+    }
+    
+    private void acquire(final String partition) {
+        Channel leaseChannel;
+        try {
+            leaseChannel = connection.createChannel();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        try {
+            leaseChannel.queueDeclare(leaseQueueName(partition), true, false, false, null);
+            leaseChannel.basicConsume(leaseQueueName(partition), false, "", false, true, null, new DefaultConsumer(leaseChannel) {
+                @Override
+                public void handleCancel(String consumerTag) {
+                    lost.add(partition);
+                }
+                
+                @Override
+                public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+                    lost.add(partition);
+                }
+            });
+        } catch (IOException e) {
+            // the last owner hasn't let go yet, which, on a real broker, has closed the channel
+            closeQuietly(leaseChannel);
+            return;
+        }
+        lost.remove(partition);
+        leases.put(partition, leaseChannel);
+        try {
+            listener.assigned(partition);
+        } catch (IOException e) {
+            e.printStackTrace();
+            closeQuietly(leases.remove(partition));
+        }
+    }
+    
+    private void release(String partition) {
+        listener.unassigned(partition);
+        closeQuietly(leases.remove(partition));
+    }
+    
+    private static void closeQuietly(Channel channel) {
+        try {
+            if (channel.isOpen()) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (ShutdownSignalException e) {
+            // it closed under us
+        }
+    }
+    
+    /**
+     * Stops taking on or giving up partitions, waiting for a check which is
+     * under way, but keeps the leases, and keeps sending heartbeats, so that
+     * the partitions held can be stopped before they are let go.
+     */
+    public synchronized void stop() {
+        closed = true;
+        if (checks != null) {
+            checks.cancel(false);
+        }
+    }
+    
+    /**
+     * Gives up every lease, without telling the listener, so the partitions
+     * should have been stopped already; tells the other members this one is
+     * leaving, so they can take them on straight away; and closes the
+     * connection.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        stop();
+        if (heartbeats != null) {
+            heartbeats.cancel(false);
+        }
+        for (Channel leaseChannel : leases.values()) {
+            closeQuietly(leaseChannel);
+        }
+        leases.clear();
+        if (channel != null) {
+            send(LEAVE);
+        }
+        Application.closeQuietly(Application.closeable(connection));
+    }
+    
+}
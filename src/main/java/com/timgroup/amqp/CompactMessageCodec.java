@@ -0,0 +1,319 @@
+package com.timgroup.amqp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * Turns messages into compact records for the {@link SlabStore}, and back.
+ *
+ * Messages from one producer tend to share a routing key and properties,
+ * apart from the scheduled delivery header. So the routing key and the
+ * properties, less a numeric scheduled delivery header, make up a template,
+ * and identical templates are interned: a record refers to its template by
+ * number, and carries the header value itself. Templates are counted by the
+ * records using them, and forgotten when the last one is released; once
+ * there are as many as the limit, further templates are written out in
+ * full in each record. Bodies of at least the threshold size are deflated,
+ * if that makes them smaller.
+ *
+ * A record reads back as a message equal to the one which was written, so
+ * the repeated message is the same as the one received.
+ */
+final class CompactMessageCodec {
+    
+    public static final int NO_COMPRESSION = Integer.MAX_VALUE;
+    public static final int DEFAULT_MAX_TEMPLATES = 4096;
+    
+    /**
+     * A record starts with flags, the template number, and the size the
+     * record would have been in the plain {@link MessageCodec} encoding.
+     */
+    public static final int HEADER_BYTES = 9;
+    
+    private static final int NO_TEMPLATE = -1;
+    private static final int COMPRESSED = 1;
+    private static final int SCHEDULED = 2;
+    private static final int SCHEDULED_HEADER_BYTES = 1 + Receiver.SCHEDULED_DELIVERY_HEADER.length() + 1 + 8;
+    
+    private final int compressionThreshold;
+    private final int maxTemplates;
+    private final Map<TemplateKey, Template> templatesByKey = new HashMap<TemplateKey, Template>();
+    private final List<Template> templates = new ArrayList<Template>();
+    private final List<Integer> freeTemplateNumbers = new ArrayList<Integer>();
+    private final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_SPEED, true);
+        }
+    };
+    private final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater(true);
+        }
+    };
+    
+    /**
+     * @param compressionThreshold
+     *            the smallest body to deflate, or {@link #NO_COMPRESSION}
+     */
+    public CompactMessageCodec(int compressionThreshold, int maxTemplates) {
+        this.compressionThreshold = compressionThreshold;
+        this.maxTemplates = maxTemplates;
+    }
+    
+    public byte[] encode(String routingKey, BasicProperties properties, byte[] body) {
+        if (properties == null) {
+            properties = new BasicProperties();
+        }
+        Long scheduledDeliveryTime = null;
+        Map<String, Object> headers = properties.getHeaders();
+        if (headers != null && headers.get(Receiver.SCHEDULED_DELIVERY_HEADER) instanceof Long) {
+            headers = new HashMap<String, Object>(headers);
+            scheduledDeliveryTime = (Long) headers.remove(Receiver.SCHEDULED_DELIVERY_HEADER);
+            properties = properties.builder().headers(headers).build();
+        }
+        byte[] template = encodeTemplate(routingKey, properties);
+        int plainSize = template.length + (scheduledDeliveryTime != null ? SCHEDULED_HEADER_BYTES : 0) + body.length;
+        int templateNumber = intern(template, routingKey, properties);
+        byte[] content = body;
+        int flags = scheduledDeliveryTime != null ? SCHEDULED : 0;
+        if (body.length >= compressionThreshold) {
+            byte[] deflated = deflate(body);
+            if (deflated.length + 4 < body.length) {
+                content = deflated;
+                flags |= COMPRESSED;
+            }
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_BYTES + 12 + content.length + (templateNumber == NO_TEMPLATE ? template.length : 0));
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(flags);
+            out.writeInt(templateNumber);
+            out.writeInt(plainSize);
+            if (templateNumber == NO_TEMPLATE) {
+                out.write(template);
+            }
+            if (scheduledDeliveryTime != null) {
+                out.writeLong(scheduledDeliveryTime);
+            }
+            if ((flags & COMPRESSED) != 0) {
+                out.writeInt(body.length);
+            }
+            out.write(content);
+            out.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException("could not encode message", e);
+        }
+        return bytes.toByteArray();
+    }
+    
+    public Message decode(byte[] record) {
+        ByteArrayInputStream bytes = new ByteArrayInputStream(record);
+        DataInputStream in = new DataInputStream(bytes);
+        try {
+            int flags = in.readByte();
+            int templateNumber = in.readInt();
+            in.readInt();
+            String routingKey;
+            BasicProperties properties;
+            if (templateNumber == NO_TEMPLATE) {
+                routingKey = in.readUTF();
+                properties = MessageCodec.readProperties(in);
+            } else {
+                Template template = template(templateNumber);
+                routingKey = template.routingKey;
+                properties = template.properties;
+            }
+            if ((flags & SCHEDULED) != 0) {
+                Map<String, Object> headers = new HashMap<String, Object>(properties.getHeaders());
+                headers.put(Receiver.SCHEDULED_DELIVERY_HEADER, in.readLong());
+                properties = properties.builder().headers(headers).build();
+            }
+            byte[] body;
+            if ((flags & COMPRESSED) != 0) {
+                body = new byte[in.readInt()];
+                inflate(record, record.length - bytes.available(), bytes.available(), body);
+            } else {
+                body = new byte[bytes.available()];
+                in.readFully(body);
+            }
+            return new Message(routingKey, properties, body);
+        } catch (IOException e) {
+            throw new IllegalStateException("could not decode message", e);
+        }
+    }
+    
+    /**
+     * @return the number of the template of the record at the offset, for
+     *         {@link #release}
+     */
+    public static int templateNumber(ByteBuffer buffer, int offset) {
+        return buffer.getInt(offset + 1);
+    }
+    
+    /**
+     * @return the size the record at the offset would have been in the plain
+     *         {@link MessageCodec} encoding
+     */
+    public static int plainSize(ByteBuffer buffer, int offset) {
+        return buffer.getInt(offset + 5);
+    }
+    
+    public static int templateNumber(byte[] record) {
+        return templateNumber(ByteBuffer.wrap(record), 0);
+    }
+    
+    public static int plainSize(byte[] record) {
+        return plainSize(ByteBuffer.wrap(record), 0);
+    }
+    
+    /**
+     * Lets go of a template when a record using it goes.
+     */
+    public void release(int templateNumber) {
+        if (templateNumber != NO_TEMPLATE) {
+            forget(templateNumber);
+        }
+    }
+    
+    public synchronized int getTemplateCount() {
+        return templatesByKey.size();
+    }
+    
+    private synchronized int intern(byte[] bytes, String routingKey, BasicProperties properties) {
+        TemplateKey key = new TemplateKey(bytes);
+        Template template = templatesByKey.get(key);
+        if (template == null) {
+            if (templatesByKey.size() >= maxTemplates) {
+                return NO_TEMPLATE;
+            }
+            int number;
+            if (freeTemplateNumbers.isEmpty()) {
+                number = templates.size();
+                templates.add(null);
+            } else {
+                number = freeTemplateNumbers.remove(freeTemplateNumbers.size() - 1);
+            }
+            template = new Template(key, number, routingKey, properties);
+            templates.set(number, template);
+            templatesByKey.put(key, template);
+        }
+        template.references++;
+        return template.number;
+    }
+    
+    private synchronized Template template(int number) {
+        return templates.get(number);
+    }
+    
+    private synchronized void forget(int number) {
+        Template template = templates.get(number);
+        if (--template.references == 0) {
+            templatesByKey.remove(template.key);
+            templates.set(number, null);
+            freeTemplateNumbers.add(number);
+        }
+    }
+    
+    private static byte[] encodeTemplate(String routingKey, BasicProperties properties) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeUTF(routingKey);
+            MessageCodec.writeProperties(out, properties, 0);
+            out.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException("could not encode message", e);
+        }
+        return bytes.toByteArray();
+    }
+    
+    private byte[] deflate(byte[] body) {
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(body);
+        deflater.finish();
+        byte[] buffer = new byte[body.length];
+        int length = 0;
+        while (!deflater.finished() && length < buffer.length) {
+            length += deflater.deflate(buffer, length, buffer.length - length);
+        }
+        return deflater.finished() ? Arrays.copyOf(buffer, length) : body;
+    }
+    
+    private void inflate(byte[] record, int offset, int length, byte[] body) throws IOException {
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(record, offset, length);
+        try {
+            int inflated = 0;
+            while (inflated < body.length && !inflater.finished()) {
+                int count = inflater.inflate(body, inflated, body.length - inflated);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += count;
+            }
+            if (inflated != body.length) {
+                throw new IOException("compressed body is truncated");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("compressed body is corrupt", e);
+        }
+    }
+    
+    private static final class TemplateKey {
+        
+        private final byte[] bytes;
+        private final int hash;
+        
+        TemplateKey(byte[] bytes) {
+            this.bytes = bytes;
+            this.hash = Arrays.hashCode(bytes);
+        }
+        
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+        
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof TemplateKey && Arrays.equals(bytes, ((TemplateKey) obj).bytes);
+        }
+        
+    }
+    
+    private static final class Template {
+        
+        final TemplateKey key;
+        final int number;
+        final String routingKey;
+        final BasicProperties properties;
+        int references;
+        
+        Template(TemplateKey key, int number, String routingKey, BasicProperties properties) {
+            this.key = key;
+            this.number = number;
+            this.routingKey = routingKey;
+            this.properties = properties;
+        }
+        
+    }
+    
+}
@@ -0,0 +1,97 @@
+package com.timgroup.amqp;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Typed access to the daemon's properties file.
+ */
+public class Configuration {
+    
+    public static Configuration load(String configFilePath) throws IOException {
+        Properties properties = new Properties();
+        FileReader configFileReader = new FileReader(configFilePath);
+        properties.load(configFileReader);
+        configFileReader.close();
+        return new Configuration(properties);
+    }
+    
+    private final Properties properties;
+    
+    public Configuration(Properties properties) {
+        this.properties = properties;
+    }
+    
+    /**
+     * @return a view in which a property with the given prefix, such as
+     *         route.orders.prefetchCount, overrides the property of the same
+     *         name without it, which is still there as a default
+     */
+    public Configuration withPrefix(String prefix) {
+        Properties scoped = new Properties(properties);
+        for (String name : properties.stringPropertyNames()) {
+            if (name.startsWith(prefix)) {
+                scoped.setProperty(name.substring(prefix.length()), properties.getProperty(name));
+            }
+        }
+        return new Configuration(scoped);
+    }
+    
+    public String getString(String name) {
+        return properties.getProperty(name);
+    }
+    
+    public String getString(String name, String defaultValue) {
+        return properties.getProperty(name, defaultValue);
+    }
+    
+    public int getInt(String name, int defaultValue) {
+        String value = properties.getProperty(name);
+        return value != null ? Integer.parseInt(value.trim()) : defaultValue;
+    }
+    
+    public long getLong(String name, long defaultValue) {
+        String value = properties.getProperty(name);
+        return value != null ? Long.parseLong(value.trim()) : defaultValue;
+    }
+    
+    public double getDouble(String name, double defaultValue) {
+        String value = properties.getProperty(name);
+        return value != null ? Double.parseDouble(value.trim()) : defaultValue;
+    }
+    
+    public boolean getBoolean(String name, boolean defaultValue) {
+        String value = properties.getProperty(name);
+        return value != null ? Boolean.parseBoolean(value.trim()) : defaultValue;
+    }
+    
+    /**
+     * @return the comma-separated values of the property, or an empty list if
+     *         it is not set
+     */
+    public List<String> getList(String name) {
+        List<String> values = new ArrayList<String>();
+        String value = properties.getProperty(name);
+        if (value != null) {
+            for (String element : value.split(",")) {
+                if (!element.trim().isEmpty()) {
+                    values.add(element.trim());
+                }
+            }
+        }
+        return values;
+    }
+    
+    public long[] getLongs(String name, String defaultValue) {
+        String[] values = properties.getProperty(name, defaultValue).split(",");
+        long[] longs = new long[values.length];
+        for (int i = 0; i < values.length; i++) {
+            longs[i] = Long.parseLong(values[i].trim());
+        }
+        return longs;
+    }
+    
+}
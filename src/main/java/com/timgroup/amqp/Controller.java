@@ -0,0 +1,149 @@
+package com.timgroup.amqp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+
+/**
+ * Takes commands to cancel or replace pending messages from a control queue.
+ * A command names the message it applies to by its own message ID, and says
+ * what to do in the control header: "cancel" drops the pending message,
+ * settling its delivery without publishing it; "replace" does the same, and
+ * then schedules the command itself, without the control header, in its
+ * place, so that a reminder can be moved by sending it again with a new
+ * delivery time.
+ *
+ * Commands are consumed on the same channel as the inbound queue of the
+ * {@link Transmitter} they apply to, so that a replacement's delivery can be
+ * settled along with the others. A command only affects messages which have
+ * already been received; one which overtakes the message it names finds
+ * nothing, and is counted as a miss.
+ */
+public class Controller implements Closeable {
+    
+    public static final String CONTROL_HEADER = "scheduled_control";
+    public static final String CANCEL = "cancel";
+    public static final String REPLACE = "replace";
+    
+    private static final long CANCEL_TIMEOUT_MILLIS = 5000;
+    
+    private final Channel channel;
+    private final String queueName;
+    private final Transmitter transmitter;
+    private String consumerTag;
+    private boolean cancelling;
+    private volatile long highestDeliveryTag;
+    
+    public Controller(Channel channel, String queueName, Transmitter transmitter) {
+        this.channel = channel;
+        this.queueName = queueName;
+        this.transmitter = transmitter;
+    }
+    
+    public String getQueueName() {
+        return queueName;
+    }
+    
+    /**
+     * @return the highest delivery tag seen so far; once {@link #close()} has
+     *         returned, no higher one will turn up
+     */
+    public long getHighestDeliveryTag() {
+        return highestDeliveryTag;
+    }
+    
+    public synchronized void start() throws IOException {
+        if (consumerTag != null) {
+            return;
+        }
+        consumerTag = channel.basicConsume(queueName, false, new DefaultConsumer(channel) {
+            @Override
+            public void handleDelivery(String consumerTag, Envelope envelope, BasicProperties properties, byte[] body) throws IOException {
+                highestDeliveryTag = envelope.getDeliveryTag();
+                transmitter.getAcknowledger().delivered(envelope.getDeliveryTag());
+                handle(envelope, properties, body);
+            }
+            
+            @Override
+            public void handleCancelOk(String consumerTag) {
+                cancelled();
+            }
+        });
+    }
+    
+    private void handle(Envelope envelope, BasicProperties properties, byte[] body) throws IOException {
+        Map<String, Object> headers = properties.getHeaders();
+        Object command = headers != null ? headers.get(CONTROL_HEADER) : null;
+        String messageId = properties.getMessageId();
+        if (messageId == null || command == null) {
+            System.err.println("rejecting control message without a message ID or command from " + queueName);
+            transmitter.getAcknowledger().reject(envelope.getDeliveryTag());
+        } else if (CANCEL.equals(command.toString())) {
+            transmitter.cancel(messageId);
+            transmitter.getAcknowledger().ack(envelope.getDeliveryTag());
+        } else if (REPLACE.equals(command.toString())) {
+            Map<String, Object> replacementHeaders = new HashMap<String, Object>(headers);
+            replacementHeaders.remove(CONTROL_HEADER);
+            BasicProperties replacement = properties.builder().headers(replacementHeaders).build();
+            long deliveryTime = DeliveryTimes.decode(replacementHeaders, System.currentTimeMillis());
+            if (deliveryTime == DeliveryTimes.UNDECODABLE) {
+                System.err.println("rejecting replacement with an undecodable delivery time from " + queueName);
+                transmitter.getMetrics().quarantined();
+                transmitter.getAcknowledger().reject(envelope.getDeliveryTag());
+            } else {
+                replace(envelope, replacement, body, deliveryTime);
+            }
+        } else {
+            System.err.println("rejecting control message with unknown command " + command + " from " + queueName);
+            transmitter.getAcknowledger().reject(envelope.getDeliveryTag());
+        }
+    }
+    
+    private void replace(Envelope envelope, BasicProperties replacement, byte[] body, long deliveryTime) throws IOException {
+        try {
+            if (!transmitter.replace(envelope.getRoutingKey(), envelope.getDeliveryTag(), replacement, body, deliveryTime)) {
+                transmitter.getMetrics().refused();
+                transmitter.getAcknowledger().requeue(envelope.getDeliveryTag());
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("rejecting replacement from " + queueName + ": " + e.getMessage());
+            transmitter.getMetrics().quarantined();
+            transmitter.getAcknowledger().reject(envelope.getDeliveryTag());
+        }
+    }
+    
+    private synchronized void cancelled() {
+        cancelling = false;
+        notifyAll();
+    }
+    
+    /**
+     * Stops taking commands, and waits until the ones already on their way
+     * have been handled.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (consumerTag == null) {
+            return;
+        }
+        cancelling = true;
+        channel.basicCancel(consumerTag);
+        consumerTag = null;
+        long deadline = System.currentTimeMillis() + CANCEL_TIMEOUT_MILLIS;
+        long remaining;
+        try {
+            while (cancelling && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                wait(remaining);
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted while waiting for the consumer to be cancelled", e);
+        }
+    }
+    
+}
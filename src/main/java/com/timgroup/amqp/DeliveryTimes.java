@@ -0,0 +1,210 @@
+package com.timgroup.amqp;
+
+import java.util.Date;
+import java.util.Map;
+
+import com.rabbitmq.client.LongString;
+
+/**
+ * Works out when a message is due from its headers, however the producer
+ * chose to write them. The scheduled delivery header may be a number of
+ * milliseconds since the epoch, in any numeric type, an AMQP timestamp, or a
+ * string, short or long, holding either the same number in decimal or an
+ * ISO-8601 date and time with a zone offset, such as
+ * 2014-03-01T09:30:00.250Z. Failing that, the scheduled delay header may
+ * give a number of milliseconds from now. A message with neither is due
+ * straight away.
+ *
+ * Nothing here throws or allocates for a numeric header; a header which
+ * can't be decoded gives {@link #UNDECODABLE}.
+ */
+final class DeliveryTimes {
+    
+    static final long UNDECODABLE = Long.MIN_VALUE;
+    
+    private static final int MAX_DIGITS = 18;
+    
+    private DeliveryTimes() {
+    }
+    
+    /**
+     * @return when the message is due, or {@link #UNDECODABLE}
+     */
+    static long decode(Map<String, Object> headers, long now) {
+        if (headers == null) {
+            return now;
+        }
+        Object deliveryTime = headers.get(Receiver.SCHEDULED_DELIVERY_HEADER);
+        if (deliveryTime != null) {
+            return decodeTime(deliveryTime);
+        }
+        Object delay = headers.get(Receiver.SCHEDULED_DELAY_HEADER);
+        if (delay != null) {
+            long delayMillis = decodeMillis(delay);
+            return delayMillis != UNDECODABLE ? now + delayMillis : UNDECODABLE;
+        }
+        return now;
+    }
+    
+    static long decodeTime(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        if (value instanceof Date) {
+            return ((Date) value).getTime();
+        }
+        if (value instanceof String || value instanceof LongString) {
+            String text = value.toString();
+            long time = parseMillis(text);
+            return time != UNDECODABLE ? time : parseIso8601(text);
+        }
+        return UNDECODABLE;
+    }
+    
+    static long decodeMillis(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        if (value instanceof String || value instanceof LongString) {
+            return parseMillis(value.toString());
+        }
+        return UNDECODABLE;
+    }
+    
+    /**
+     * @return the whole number the text holds, give or take surrounding
+     *         spaces, or {@link #UNDECODABLE}
+     */
+    static long parseMillis(String text) {
+        int start = 0;
+        int end = text.length();
+        while (start < end && text.charAt(start) == ' ') {
+            start++;
+        }
+        while (end > start && text.charAt(end - 1) == ' ') {
+            end--;
+        }
+        boolean negative = start < end && text.charAt(start) == '-';
+        if (negative) {
+            start++;
+        }
+        if (start == end || end - start > MAX_DIGITS) {
+            return UNDECODABLE;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = text.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return UNDECODABLE;
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+    
+    /**
+     * Parses yyyy-MM-ddTHH:mm:ss, with an optional fraction of a second, to
+     * the millisecond, and then either Z or an offset of +HH:mm,
+     * -HH:mm, +HHmm or -HHmm.
+     *
+     * @return the time in milliseconds since the epoch, or
+     *         {@link #UNDECODABLE}
+     */
+    static long parseIso8601(String text) {
+        int length = text.length();
+        int year = digits(text, 0, 4);
+        int month = digits(text, 5, 2);
+        int day = digits(text, 8, 2);
+        int hour = digits(text, 11, 2);
+        int minute = digits(text, 14, 2);
+        int second = digits(text, 17, 2);
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month) || hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59) {
+            return UNDECODABLE;
+        }
+        char separator = text.charAt(10);
+        if (text.charAt(4) != '-' || text.charAt(7) != '-' || (separator != 'T' && separator != 't' && separator != ' ') || text.charAt(13) != ':' || text.charAt(16) != ':') {
+            return UNDECODABLE;
+        }
+        int position = 19;
+        int millis = 0;
+        if (position < length && (text.charAt(position) == '.' || text.charAt(position) == ',')) {
+            position++;
+            int fractionStart = position;
+            int scale = 100;
+            while (position < length && text.charAt(position) >= '0' && text.charAt(position) <= '9') {
+                millis += (text.charAt(position) - '0') * scale;
+                scale /= 10;
+                position++;
+            }
+            if (position == fractionStart) {
+                return UNDECODABLE;
+            }
+        }
+        if (position >= length) {
+            return UNDECODABLE;
+        }
+        int offsetMinutes;
+        char zone = text.charAt(position);
+        if (zone == 'Z' || zone == 'z') {
+            offsetMinutes = 0;
+            position++;
+        } else if (zone == '+' || zone == '-') {
+            int offsetHours = digits(text, position + 1, 2);
+            boolean colon = position + 3 < length && text.charAt(position + 3) == ':';
+            int offsetMinutesPart = digits(text, position + (colon ? 4 : 3), 2);
+            if (offsetHours < 0 || offsetHours > 23 || offsetMinutesPart < 0 || offsetMinutesPart > 59) {
+                return UNDECODABLE;
+            }
+            offsetMinutes = (offsetHours * 60 + offsetMinutesPart) * (zone == '-' ? -1 : 1);
+            position += colon ? 6 : 5;
+        } else {
+            return UNDECODABLE;
+        }
+        if (position != length) {
+            return UNDECODABLE;
+        }
+        long minutes = (daysFromCivil(year, month, day) * 24 + hour) * 60 + minute - offsetMinutes;
+        return (minutes * 60 + second) * 1000 + millis;
+    }
+    
+    /**
+     * @return the number in the given number of decimal digits at the given
+     *         position, or -1 if they aren't all there, or aren't all digits
+     */
+    private static int digits(String text, int position, int count) {
+        if (position + count > text.length()) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = position; i < position + count; i++) {
+            int digit = text.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+    
+    private static int daysInMonth(int year, int month) {
+        if (month == 2) {
+            return (year % 4 == 0 && year % 100 != 0) || year % 400 == 0 ? 29 : 28;
+        }
+        return month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
+    }
+    
+    /**
+     * Days since 1970-01-01 in the proleptic Gregorian calendar, counting in
+     * 400-year eras, which all have the same number of days, from a year
+     * which starts in March, so that the leap day comes last.
+     */
+    private static long daysFromCivil(int year, int month, int day) {
+        int marchYear = month <= 2 ? year - 1 : year;
+        int era = (marchYear >= 0 ? marchYear : marchYear - 399) / 400;
+        int yearOfEra = marchYear - era * 400;
+        int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
+    
+}
@@ -0,0 +1,87 @@
+package com.timgroup.amqp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The threads which do the repeating: a scheduler, and a pool of publishers
+ * to hand messages to as they fall due. Any number of {@link Transmitter}s
+ * can share one engine; each pending message knows which transmitter it
+ * belongs to, and is read from that transmitter's store and settled on that
+ * transmitter's inbound channel.
+ */
+public class Engine implements Closeable {
+    
+    public static final long DEFAULT_SHUTDOWN_GRACE_MILLIS = 250;
+    
+    private final Scheduler<PendingMessage> scheduler;
+    private final PublisherPool publishers;
+    private volatile long shutdownGraceMillis = DEFAULT_SHUTDOWN_GRACE_MILLIS;
+    
+    public Engine(Scheduler<PendingMessage> scheduler, PublisherPool publishers) {
+        this.scheduler = scheduler;
+        this.publishers = publishers;
+    }
+    
+    public Scheduler<PendingMessage> getScheduler() {
+        return scheduler;
+    }
+    
+    public PublisherPool getPublishers() {
+        return publishers;
+    }
+    
+    /**
+     * @param shutdownGraceMillis
+     *            how long {@link #close()} keeps publishing messages as they
+     *            fall due, before giving up on the rest
+     */
+    public void setShutdownGraceMillis(long shutdownGraceMillis) {
+        this.shutdownGraceMillis = shutdownGraceMillis;
+    }
+    
+    public void start() {
+        publishers.start(new PublisherPool.Handler() {
+            @Override
+            public void publish(PendingMessage message, Publisher publisher) throws IOException {
+                message.transmitter.publish(message, publisher);
+            }
+        });
+        scheduler.start(new Scheduler.Handler<PendingMessage>() {
+            @Override
+            public void expired(PendingMessage message) {
+                if (message.transmitter.shape(message)) {
+                    return;
+                }
+                message.transmitter.dequeued(message);
+                try {
+                    publishers.dispatch(message);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+    }
+    
+    /**
+     * Publishes messages as they fall due for the grace period, and then drops
+     * the rest, and waits for the confirms of what was published. The dropped
+     * messages are left for their transmitters to hand back.
+     */
+    @Override
+    public void close() throws IOException {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(shutdownGraceMillis, TimeUnit.MILLISECONDS);
+            for (PendingMessage message : scheduler.shutdownNow()) {
+                message.transmitter.abandon(message);
+            }
+            scheduler.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted while waiting for scheduler to terminate", e);
+        }
+        publishers.close();
+    }
+    
+}
@@ -0,0 +1,101 @@
+package com.timgroup.amqp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram with fixed bucket bounds, which can be recorded into from any
+ * number of threads without locking. Values are counted in the first bucket
+ * whose upper bound they don't exceed, or in an overflow bucket.
+ */
+public final class Histogram {
+    
+    private final long[] bounds;
+    private final AtomicLongArray counts;
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+    
+    /**
+     * @param bounds
+     *            the inclusive upper bounds of the buckets, in increasing order
+     */
+    public Histogram(long... bounds) {
+        this.bounds = bounds.clone();
+        this.counts = new AtomicLongArray(bounds.length + 1);
+    }
+    
+    /**
+     * Records the value, or zero if it is negative.
+     */
+    public void record(long value) {
+        value = Math.max(value, 0);
+        int bucket = 0;
+        while (bucket < bounds.length && value > bounds[bucket]) {
+            bucket++;
+        }
+        counts.incrementAndGet(bucket);
+        sum.addAndGet(value);
+        long oldMax = max.get();
+        while (value > oldMax && !max.compareAndSet(oldMax, value)) {
+            oldMax = max.get();
+        }
+    }
+    
+    /**
+     * @return the number of bounded buckets; there is one more bucket, for
+     *         overflow
+     */
+    public int getBucketCount() {
+        return bounds.length;
+    }
+    
+    public long getBound(int bucket) {
+        return bounds[bucket];
+    }
+    
+    /**
+     * @return how many values have been counted in the bucket, or in the
+     *         overflow bucket if it is {@link #getBucketCount()}
+     */
+    public long getCount(int bucket) {
+        return counts.get(bucket);
+    }
+    
+    public long getCount() {
+        long count = 0;
+        for (int bucket = 0; bucket <= bounds.length; bucket++) {
+            count += counts.get(bucket);
+        }
+        return count;
+    }
+    
+    public long getSum() {
+        return sum.get();
+    }
+    
+    public long getMax() {
+        return max.get();
+    }
+    
+    /**
+     * @return the upper bound of the bucket the percentile falls in, or the
+     *         maximum if it falls in the overflow bucket; zero if nothing has
+     *         been recorded
+     */
+    public long getPercentile(double percentile) {
+        long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int bucket = 0; bucket < bounds.length; bucket++) {
+            seen += counts.get(bucket);
+            if (seen >= rank) {
+                return bounds[bucket];
+            }
+        }
+        return getMax();
+    }
+    
+}
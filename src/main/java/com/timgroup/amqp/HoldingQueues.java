@@ -0,0 +1,159 @@
+package com.timgroup.amqp;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+
+/**
+ * A ladder of broker-side holding queues for messages due beyond the
+ * scheduling horizon, so that we only hold messages locally once they are
+ * nearly due.
+ *
+ * Each rung is a queue with a fixed message TTL, fed by a fanout exchange of
+ * its own so that the message's routing key survives the trip. When the TTL
+ * runs out, the broker dead-letters the message to a fanout exchange bound to
+ * the inbound queue, and we see it again. A message is parked on the longest
+ * rung which will still bring it back at least a horizon before it is due;
+ * if no rung is that short, it is held locally.
+ *
+ * Dead-lettering adds an x-death header, which we strip off again when the
+ * message comes back, along with our own marker header, so that the message
+ * is eventually repeated exactly as it was sent. Messages with a per-message
+ * expiration are never parked, because the broker would drop the expiration
+ * when dead-lettering them.
+ */
+public class HoldingQueues {
+    
+    public static final String PARKED_HEADER = "x-wai7-parked";
+    
+    private static final String DEATH_HEADER = "x-death";
+    private static final String ORIGINAL_DEATH_HEADER = "x-wai7-original-death";
+    
+    private final PublisherPool publishers;
+    private final Publisher.Settler settler;
+    private final Channel channel;
+    private final String inboundQueueName;
+    private final long horizon;
+    private final long[] ttls;
+    
+    /**
+     * @param channel
+     *            the channel to declare the holding queues on
+     * @param publishers
+     *            the publishers to park messages with
+     * @param horizon
+     *            how far ahead, in milliseconds, messages are held locally
+     * @param ttls
+     *            how long, in milliseconds, each rung holds messages for
+     */
+    public HoldingQueues(Channel channel, PublisherPool publishers, String inboundQueueName, long horizon, long... ttls) {
+        this(channel, publishers, publishers.getAcknowledger(), inboundQueueName, horizon, ttls);
+    }
+    
+    /**
+     * @param settler
+     *            to settle deliveries with once they are parked, where the
+     *            publishers are shared with other inbound queues
+     */
+    public HoldingQueues(Channel channel, PublisherPool publishers, Publisher.Settler settler, String inboundQueueName, long horizon, long... ttls) {
+        this.publishers = publishers;
+        this.settler = settler;
+        this.channel = channel;
+        this.inboundQueueName = inboundQueueName;
+        this.horizon = horizon;
+        this.ttls = ttls.clone();
+        Arrays.sort(this.ttls);
+    }
+    
+    public long getHorizon() {
+        return horizon;
+    }
+    
+    public void declare() throws IOException {
+        channel.exchangeDeclare(returnExchangeName(), "fanout", true, false, null);
+        channel.queueBind(inboundQueueName, returnExchangeName(), "");
+        for (long ttl : ttls) {
+            Map<String, Object> arguments = new HashMap<String, Object>();
+            arguments.put("x-message-ttl", ttl);
+            arguments.put("x-dead-letter-exchange", returnExchangeName());
+            channel.exchangeDeclare(holdingName(ttl), "fanout", true, false, null);
+            channel.queueDeclare(holdingName(ttl), true, false, false, arguments);
+            channel.queueBind(holdingName(ttl), holdingName(ttl), "");
+        }
+    }
+    
+    public void delete() throws IOException {
+        for (long ttl : ttls) {
+            channel.queueDelete(holdingName(ttl));
+            channel.exchangeDelete(holdingName(ttl));
+        }
+        channel.exchangeDelete(returnExchangeName());
+    }
+    
+    /**
+     * Republishes the message to a holding queue, if it is due far enough in
+     * the future. The original is acknowledged once the broker has confirmed
+     * the copy.
+     *
+     * @return whether the message was parked
+     */
+    public boolean park(String routingKey, long deliveryTag, BasicProperties properties, byte[] body, long delay) throws IOException {
+        long ttl = rungFor(delay);
+        if (ttl == 0 || properties.getExpiration() != null) {
+            return false;
+        }
+        publishers.publisherFor(routingKey).publish(holdingName(ttl), routingKey, markParked(properties), body, settler, deliveryTag);
+        return true;
+    }
+    
+    private long rungFor(long delay) {
+        for (int i = ttls.length - 1; i >= 0; i--) {
+            if (ttls[i] <= delay - horizon) {
+                return ttls[i];
+            }
+        }
+        return 0;
+    }
+    
+    private static BasicProperties markParked(BasicProperties properties) {
+        boolean hadHeaders = properties.getHeaders() != null;
+        Map<String, Object> headers = hadHeaders ? new HashMap<String, Object>(properties.getHeaders()) : new HashMap<String, Object>();
+        Object death = headers.remove(DEATH_HEADER);
+        if (death != null) {
+            headers.put(ORIGINAL_DEATH_HEADER, death);
+        }
+        headers.put(PARKED_HEADER, hadHeaders);
+        return properties.builder().headers(headers).build();
+    }
+    
+    /**
+     * @return the properties the message had before it was parked
+     */
+    public static BasicProperties unpark(BasicProperties properties) {
+        Map<String, Object> headers = properties.getHeaders();
+        if (headers == null || !headers.containsKey(PARKED_HEADER)) {
+            return properties;
+        }
+        headers = new HashMap<String, Object>(headers);
+        boolean hadHeaders = Boolean.TRUE.equals(headers.remove(PARKED_HEADER));
+        headers.remove(DEATH_HEADER);
+        Object death = headers.remove(ORIGINAL_DEATH_HEADER);
+        if (death != null) {
+            headers.put(DEATH_HEADER, death);
+        }
+        return properties.builder().headers(hadHeaders ? headers : null).build();
+    }
+    
+    private String returnExchangeName() {
+        return inboundQueueName + ".return";
+    }
+    
+    private String holdingName(long ttl) {
+        return inboundQueueName + ".hold." + ttl;
+    }
+    
+}
@@ -0,0 +1,385 @@
+package com.timgroup.amqp;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * An append-only journal of pending messages, in memory-mapped segment files,
+ * which lets us take custody of messages: an inbound delivery is
+ * acknowledged as soon as its entry is safely on disk, rather than being
+ * held unacknowledged until the message falls due.
+ *
+ * An entry is a header of length, checksum and due time, followed by the
+ * encoded message. The length is written last, and a committer thread
+ * forces the segments to disk in groups, acknowledging the deliveries whose
+ * entries they hold, so a crash can only tear entries which were never
+ * acknowledged, and the checksum, which covers the due time and the message,
+ * catches them. Once a message has been published and confirmed, its length
+ * is negated in place. A segment with no live entries left is deleted,
+ * unless it is still being appended to.
+ *
+ * On opening, new entries go into a fresh segment, and the live entries of
+ * the old ones can be {@link #replay}ed.
+ */
+public class Journal implements Closeable {
+    
+    public interface Visitor {
+        public void replayed(long handle, String routingKey, long deliveryTime, int size);
+    }
+    
+    public static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+    public static final long DEFAULT_COMMIT_MILLIS = 2;
+    
+    /**
+     * The delivery tag to append an entry with when there is no delivery to
+     * acknowledge once it is on disk, such as all but the last entry from a
+     * {@link BatchEnvelope}.
+     */
+    public static final long NO_DELIVERY = -1;
+    
+    private static final String SUFFIX = ".journal";
+    private static final int HEADER_BYTES = 16;
+    private static final int CHECKSUM_OFFSET = 4;
+    private static final int DELIVERY_TIME_OFFSET = 8;
+    
+    private final File directory;
+    private final int segmentSize;
+    private final Acknowledger acknowledger;
+    private final ScheduledExecutorService committer;
+    private final Map<Integer, Segment> segments = new ConcurrentHashMap<Integer, Segment>();
+    private final List<Segment> replayable = new ArrayList<Segment>();
+    private Segment current;
+    private long[] uncommittedTags = new long[1024];
+    private int uncommittedCount;
+    
+    /**
+     * @param acknowledger
+     *            to acknowledge deliveries with once their entries are on
+     *            disk
+     */
+    public Journal(File directory, int segmentSize, long commitMillis, Acknowledger acknowledger) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("could not create journal directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.acknowledger = acknowledger;
+        TreeMap<Integer, File> files = new TreeMap<Integer, File>();
+        for (File file : directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SUFFIX);
+            }
+        })) {
+            files.put(Integer.valueOf(file.getName().substring(0, file.getName().length() - SUFFIX.length())), file);
+        }
+        for (Map.Entry<Integer, File> file : files.entrySet()) {
+            Segment segment = map(file.getKey(), file.getValue(), file.getValue().length());
+            segments.put(segment.id, segment);
+            replayable.add(segment);
+        }
+        current = newSegment(files.isEmpty() ? 0 : files.lastKey() + 1, segmentSize);
+        this.committer = Executors.newSingleThreadScheduledExecutor();
+        committer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    commit();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, commitMillis, commitMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    public File getDirectory() {
+        return directory;
+    }
+    
+    /**
+     * Hands the live entries left by an earlier run to the visitor, oldest
+     * segment first, and then lets their segments go once they are
+     * delivered. Only the first call does anything.
+     */
+    public void replay(Visitor visitor) {
+        List<Segment> toReplay;
+        synchronized (this) {
+            toReplay = new ArrayList<Segment>(replayable);
+            replayable.clear();
+        }
+        RoutingKeyReader routingKeys = new RoutingKeyReader();
+        for (Segment segment : toReplay) {
+            ByteBuffer buffer = segment.buffer;
+            CRC32 checksum = new CRC32();
+            int offset = 0;
+            while (offset + HEADER_BYTES <= buffer.capacity()) {
+                int length = buffer.getInt(offset);
+                if (length == 0) {
+                    break;
+                }
+                if (length > 0) {
+                    if (offset + HEADER_BYTES + length > buffer.capacity() || !checksumMatches(checksum, buffer, offset, length)) {
+                        break;
+                    }
+                    synchronized (this) {
+                        segment.live++;
+                    }
+                    visitor.replayed(handle(segment.id, offset), routingKeys.read(buffer, offset + HEADER_BYTES), buffer.getLong(offset + DELIVERY_TIME_OFFSET), entrySize(length));
+                }
+                offset += entrySize(Math.abs(length));
+            }
+            synchronized (this) {
+                segment.sealed = true;
+                deleteIfDone(segment);
+            }
+        }
+    }
+    
+    /**
+     * Appends the message, and arranges for the delivery to be acknowledged
+     * once the entry has been forced to disk.
+     *
+     * @return a handle for the entry
+     */
+    public synchronized long append(String routingKey, BasicProperties properties, byte[] body, long deliveryTime, long deliveryTag) throws IOException {
+        byte[] record = MessageCodec.encode(routingKey, properties, body);
+        int size = entrySize(record.length);
+        if (current.position + size > current.buffer.capacity()) {
+            current.sealed = true;
+            deleteIfDone(current);
+            current = newSegment(current.id + 1, Math.max(segmentSize, size));
+        }
+        int offset = current.position;
+        ByteBuffer buffer = current.buffer;
+        CRC32 checksum = new CRC32();
+        checksum.update(record, 0, record.length);
+        update(checksum, deliveryTime);
+        buffer.putInt(offset + CHECKSUM_OFFSET, (int) checksum.getValue());
+        buffer.putLong(offset + DELIVERY_TIME_OFFSET, deliveryTime);
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset + HEADER_BYTES);
+        view.put(record);
+        buffer.putInt(offset, record.length);
+        current.position += size;
+        current.live++;
+        current.dirty = true;
+        if (uncommittedCount == uncommittedTags.length) {
+            uncommittedTags = Arrays.copyOf(uncommittedTags, uncommittedCount * 2);
+        }
+        uncommittedTags[uncommittedCount++] = deliveryTag;
+        return handle(current.id, offset);
+    }
+    
+    public Message read(long handle) {
+        ByteBuffer view = segment(handle).buffer.duplicate();
+        view.position(offset(handle));
+        byte[] record = new byte[view.getInt()];
+        view.position(offset(handle) + HEADER_BYTES);
+        view.get(record);
+        return MessageCodec.decode(record);
+    }
+    
+    /**
+     * Marks the entry as delivered, so that it won't be replayed, and deletes
+     * its segment if that was the last live entry in it.
+     */
+    public synchronized void delivered(long handle) {
+        Segment segment = segment(handle);
+        int offset = offset(handle);
+        segment.buffer.putInt(offset, -Math.abs(segment.buffer.getInt(offset)));
+        segment.dirty = true;
+        segment.live--;
+        deleteIfDone(segment);
+    }
+    
+    /**
+     * @return the bytes the entry takes up in its segment
+     */
+    public int getSize(long handle) {
+        return entrySize(segment(handle).buffer.getInt(offset(handle)));
+    }
+    
+    public int getSegmentCount() {
+        return segments.size();
+    }
+    
+    /**
+     * @return the number of entries appended or replayed, and not yet
+     *         delivered
+     */
+    public synchronized long getLiveCount() {
+        long live = 0;
+        for (Segment segment : segments.values()) {
+            live += segment.live;
+        }
+        return live;
+    }
+    
+    /**
+     * Forces everything written so far to disk, and then acknowledges the
+     * deliveries whose entries have been appended since the last commit.
+     */
+    public void commit() throws IOException {
+        long[] tags;
+        List<Segment> dirty = new ArrayList<Segment>();
+        synchronized (this) {
+            tags = Arrays.copyOf(uncommittedTags, uncommittedCount);
+            uncommittedCount = 0;
+            for (Segment segment : segments.values()) {
+                if (segment.dirty) {
+                    segment.dirty = false;
+                    dirty.add(segment);
+                }
+            }
+        }
+        for (Segment segment : dirty) {
+            segment.buffer.force();
+        }
+        for (long tag : tags) {
+            if (tag != NO_DELIVERY) {
+                acknowledger.ack(tag);
+            }
+        }
+    }
+    
+    private void deleteIfDone(Segment segment) {
+        if (segment.sealed && segment.live == 0 && segments.remove(segment.id) != null) {
+            if (!segment.file.delete()) {
+                System.err.println("could not delete journal segment " + segment.file);
+            }
+        }
+    }
+    
+    private Segment newSegment(int id, int size) throws IOException {
+        Segment segment = map(id, new File(directory, String.format("%010d", id) + SUFFIX), size);
+        segments.put(id, segment);
+        return segment;
+    }
+    
+    private static Segment map(int id, File file, long size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(size);
+            return new Segment(id, file, raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size));
+        } finally {
+            raf.close();
+        }
+    }
+    
+    private Segment segment(long handle) {
+        return segments.get((int) (handle >>> 32));
+    }
+    
+    private static long handle(int segmentId, int offset) {
+        return ((long) segmentId << 32) | offset;
+    }
+    
+    private static int offset(long handle) {
+        return (int) handle;
+    }
+    
+    private static int entrySize(int length) {
+        return (HEADER_BYTES + length + 7) & ~7;
+    }
+    
+    private static boolean checksumMatches(CRC32 checksum, ByteBuffer buffer, int offset, int length) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset + HEADER_BYTES);
+        view.limit(offset + HEADER_BYTES + length);
+        checksum.reset();
+        checksum.update(view);
+        update(checksum, buffer.getLong(offset + DELIVERY_TIME_OFFSET));
+        return (int) checksum.getValue() == buffer.getInt(offset + CHECKSUM_OFFSET);
+    }
+    
+    private static void update(CRC32 checksum, long value) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            checksum.update((int) (value >>> shift));
+        }
+    }
+    
+    /**
+     * Waits for the committer to finish, and commits whatever is left.
+     */
+    @Override
+    public void close() throws IOException {
+        committer.shutdown();
+        try {
+            committer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted while waiting for the committer to finish", e);
+        }
+        commit();
+    }
+    
+    /**
+     * Reads the routing key at the start of an encoded message, without
+     * decoding the rest of it. Runs of entries tend to share a routing key, so
+     * the last one read is reused if the bytes match.
+     */
+    private static final class RoutingKeyReader {
+        
+        private final byte[] bytes = new byte[2 + 65535];
+        private int length;
+        private String routingKey;
+        
+        String read(ByteBuffer buffer, int offset) {
+            int newLength = 2 + (buffer.getShort(offset) & 0xffff);
+            boolean same = newLength == length;
+            for (int i = 0; i < newLength; i++) {
+                byte b = buffer.get(offset + i);
+                same &= bytes[i] == b;
+                bytes[i] = b;
+            }
+            if (!same) {
+                length = newLength;
+                try {
+                    routingKey = new DataInputStream(new ByteArrayInputStream(bytes, 0, length)).readUTF();
+                } catch (IOException e) {
+                    throw new IllegalStateException("could not decode routing key", e);
+                }
+            }
+            return routingKey;
+        }
+        
+    }
+    
+    private static final class Segment {
+        
+        final int id;
+        final File file;
+        final MappedByteBuffer buffer;
+        int position;
+        int live;
+        boolean sealed;
+        boolean dirty;
+        
+        Segment(int id, File file, MappedByteBuffer buffer) {
+            this.id = id;
+            this.file = file;
+            this.buffer = buffer;
+        }
+        
+    }
+    
+}
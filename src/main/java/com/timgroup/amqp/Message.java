@@ -0,0 +1,20 @@
+package com.timgroup.amqp;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * A message as it will be published: its routing key, properties and body.
+ */
+final class Message {
+    
+    final String routingKey;
+    final BasicProperties properties;
+    final byte[] body;
+    
+    Message(String routingKey, BasicProperties properties, byte[] body) {
+        this.routingKey = routingKey;
+        this.properties = properties;
+        this.body = body;
+    }
+    
+}
@@ -0,0 +1,63 @@
+package com.timgroup.amqp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.impl.ContentHeaderPropertyWriter;
+
+/**
+ * Turns messages into flat byte records and back. Properties are written in
+ * the AMQP content header encoding, so a message read back is identical on
+ * the wire to the one that was written.
+ */
+final class MessageCodec {
+    
+    private MessageCodec() {}
+    
+    public static byte[] encode(String routingKey, BasicProperties properties, byte[] body) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + body.length);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeUTF(routingKey);
+            writeProperties(out, properties != null ? properties : new BasicProperties(), body.length);
+            out.write(body);
+            out.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException("could not encode message", e);
+        }
+        return bytes.toByteArray();
+    }
+    
+    public static Message decode(byte[] record) {
+        ByteArrayInputStream bytes = new ByteArrayInputStream(record);
+        DataInputStream in = new DataInputStream(bytes);
+        try {
+            String routingKey = in.readUTF();
+            BasicProperties properties = readProperties(in);
+            byte[] body = new byte[bytes.available()];
+            in.readFully(body);
+            return new Message(routingKey, properties, body);
+        } catch (IOException e) {
+            throw new IllegalStateException("could not decode message", e);
+        }
+    }
+    
+    /**
+     * Writes properties as the tail of an AMQP content header frame: weight,
+     * body size, then the property flags and values.
+     */
+    public static void writeProperties(DataOutputStream out, BasicProperties properties, long bodySize) throws IOException {
+        out.writeShort(0);
+        out.writeLong(bodySize);
+        properties.writePropertiesTo(new ContentHeaderPropertyWriter(out));
+    }
+    
+    public static BasicProperties readProperties(DataInputStream in) throws IOException {
+        return new BasicProperties(in);
+    }
+    
+}
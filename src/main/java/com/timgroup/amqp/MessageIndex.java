@@ -0,0 +1,173 @@
+package com.timgroup.amqp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds a pending message, and its scheduler handle, by message ID.
+ *
+ * This is an open-addressed hash table in parallel arrays, probed linearly,
+ * with deletions shifting later entries back rather than leaving tombstones,
+ * so an entry costs three array slots and nothing else, and looking one up,
+ * adding it and removing it are all O(1). The table doubles when it is half
+ * full.
+ *
+ * Not thread-safe; {@link Transmitter} serialises access to it.
+ */
+final class MessageIndex<T> {
+    
+    private static final int INITIAL_CAPACITY = 1024;
+    
+    private String[] keys;
+    private Object[] items;
+    private long[] handles;
+    private int size;
+    
+    MessageIndex() {
+        this(INITIAL_CAPACITY);
+    }
+    
+    MessageIndex(int initialCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(initialCapacity, 2) - 1) << 1;
+        this.keys = new String[capacity];
+        this.items = new Object[capacity];
+        this.handles = new long[capacity];
+    }
+    
+    /**
+     * @return the item indexed under the key, or null if there isn't one
+     */
+    @SuppressWarnings("unchecked")
+    T get(String key) {
+        int slot = find(key);
+        return slot >= 0 ? (T) items[slot] : null;
+    }
+    
+    /**
+     * @return the handle of the item indexed under the key, which must be
+     *         there
+     */
+    long getHandle(String key) {
+        int slot = find(key);
+        if (slot < 0) {
+            throw new IllegalArgumentException("nothing indexed under " + key);
+        }
+        return handles[slot];
+    }
+    
+    /**
+     * Indexes the item under the key, in place of whatever was there.
+     */
+    void put(String key, T item, long handle) {
+        if (size * 2 >= keys.length) {
+            resize(keys.length * 2);
+        }
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (keys[slot] != null && !keys[slot].equals(key)) {
+            slot = (slot + 1) & mask;
+        }
+        if (keys[slot] == null) {
+            keys[slot] = key;
+            size++;
+        }
+        items[slot] = item;
+        handles[slot] = handle;
+    }
+    
+    /**
+     * Removes the key, if it is indexed to the given item, and not to one
+     * which has since replaced it.
+     *
+     * @return whether it was removed
+     */
+    boolean remove(String key, T item) {
+        int slot = find(key);
+        if (slot < 0 || items[slot] != item) {
+            return false;
+        }
+        int mask = keys.length - 1;
+        int gap = slot;
+        int next = (gap + 1) & mask;
+        while (keys[next] != null) {
+            int home = hash(keys[next]) & mask;
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                keys[gap] = keys[next];
+                items[gap] = items[next];
+                handles[gap] = handles[next];
+                gap = next;
+            }
+            next = (next + 1) & mask;
+        }
+        keys[gap] = null;
+        items[gap] = null;
+        size--;
+        return true;
+    }
+    
+    int size() {
+        return size;
+    }
+    
+    /**
+     * Removes everything.
+     *
+     * @return the items which were indexed
+     */
+    @SuppressWarnings("unchecked")
+    List<T> clear() {
+        List<T> cleared = new ArrayList<T>(size);
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null) {
+                cleared.add((T) items[i]);
+                keys[i] = null;
+                items[i] = null;
+            }
+        }
+        size = 0;
+        return cleared;
+    }
+    
+    private int find(String key) {
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (keys[slot] != null) {
+            if (keys[slot].equals(key)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+    
+    private void resize(int capacity) {
+        String[] oldKeys = keys;
+        Object[] oldItems = items;
+        long[] oldHandles = handles;
+        keys = new String[capacity];
+        items = new Object[capacity];
+        handles = new long[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                int slot = hash(oldKeys[i]) & mask;
+                while (keys[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                items[slot] = oldItems[i];
+                handles[slot] = oldHandles[i];
+            }
+        }
+    }
+    
+    /**
+     * Spreads the string hash, whose low bits are poor for short keys which
+     * differ only in their last characters.
+     */
+    private static int hash(String key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+    
+}
@@ -0,0 +1,212 @@
+package com.timgroup.amqp;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and timings for the hot paths of one pipeline. Recording never
+ * locks, so it is cheap enough to do for every message.
+ *
+ * The counters only ever go up; rates are for whoever reads them to work out,
+ * as Prometheus does with rate().
+ */
+public class Metrics {
+    
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong parked = new AtomicLong();
+    private final AtomicLong scheduled = new AtomicLong();
+    private final AtomicLong refused = new AtomicLong();
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong confirmed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+    private final AtomicLong cancelMisses = new AtomicLong();
+    private final AtomicLong deduplicated = new AtomicLong();
+    private final AtomicLong replicaDuplicates = new AtomicLong();
+    private final AtomicLong quarantined = new AtomicLong();
+    private final AtomicLong batchEntries = new AtomicLong();
+    
+    /**
+     * How late messages are published, in microseconds after their scheduled
+     * delivery time.
+     */
+    private final Histogram lateness = new Histogram(50, 100, 200, 500, 1000, 2000, 5000, 10000, 20000, 50000, 100000, 200000, 500000, 1000000, 2000000, 5000000, 10000000, 60000000);
+    
+    /**
+     * How late messages are published, in microseconds after they were both
+     * due and received, so leaving out how overdue they already were when
+     * they arrived; this is the lateness the daemon itself adds.
+     */
+    private final Histogram addedLateness = new Histogram(50, 100, 200, 500, 1000, 2000, 5000, 10000, 20000, 50000, 100000, 200000, 500000, 1000000, 2000000, 5000000, 10000000, 60000000);
+    
+    /**
+     * How long the shaper held messages back, in milliseconds after they fell
+     * due.
+     */
+    private final Histogram spread = new Histogram(1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 60000);
+    
+    /**
+     * How long basicPublish takes, in microseconds.
+     */
+    private final Histogram publishDuration = new Histogram(10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 50000, 100000, 1000000);
+    
+    public void received() {
+        received.incrementAndGet();
+    }
+    
+    public void parked() {
+        parked.incrementAndGet();
+    }
+    
+    public void scheduled() {
+        scheduled.incrementAndGet();
+    }
+    
+    /**
+     * A message was quarantined, or dropped, because its delivery time
+     * couldn't be made out, or it was a batch envelope which couldn't be
+     * unpacked.
+     */
+    public void quarantined() {
+        quarantined.incrementAndGet();
+    }
+    
+    /**
+     * A batch envelope was unpacked into this many entries.
+     */
+    public void batched(int entries) {
+        batchEntries.addAndGet(entries);
+    }
+    
+    /**
+     * A message was handed back because there was no room to hold it.
+     */
+    public void refused() {
+        refused.incrementAndGet();
+    }
+    
+    /**
+     * A message which was received before it was due was published.
+     */
+    public void published(long lateMicros) {
+        published(lateMicros, lateMicros);
+    }
+    
+    public void published(long lateMicros, long addedLateMicros) {
+        published.incrementAndGet();
+        lateness.record(lateMicros);
+        addedLateness.record(addedLateMicros);
+    }
+    
+    public void spread(long millis) {
+        spread.record(millis);
+    }
+    
+    public void publishTook(long nanos) {
+        publishDuration.record(nanos / 1000);
+    }
+    
+    public void confirmed() {
+        confirmed.incrementAndGet();
+    }
+    
+    public void rejected() {
+        rejected.incrementAndGet();
+    }
+    
+    public void cancelled() {
+        cancelled.incrementAndGet();
+    }
+    
+    /**
+     * A cancel came for a message which wasn't pending, or was already being
+     * published.
+     */
+    public void cancelMissed() {
+        cancelMisses.incrementAndGet();
+    }
+    
+    /**
+     * A message was dropped because one with the same message ID was already
+     * pending.
+     */
+    public void deduplicated() {
+        deduplicated.incrementAndGet();
+    }
+    
+    /**
+     * A message redelivered after a takeover was dropped because its replica
+     * had already been published.
+     */
+    public void replicaDuplicate() {
+        replicaDuplicates.incrementAndGet();
+    }
+    
+    public long getReceivedCount() {
+        return received.get();
+    }
+    
+    public long getParkedCount() {
+        return parked.get();
+    }
+    
+    public long getScheduledCount() {
+        return scheduled.get();
+    }
+    
+    public long getQuarantinedCount() {
+        return quarantined.get();
+    }
+    
+    public long getBatchEntryCount() {
+        return batchEntries.get();
+    }
+    
+    public long getRefusedCount() {
+        return refused.get();
+    }
+    
+    public long getPublishedCount() {
+        return published.get();
+    }
+    
+    public long getConfirmedCount() {
+        return confirmed.get();
+    }
+    
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+    
+    public long getCancelledCount() {
+        return cancelled.get();
+    }
+    
+    public long getCancelMissCount() {
+        return cancelMisses.get();
+    }
+    
+    public long getDeduplicatedCount() {
+        return deduplicated.get();
+    }
+    
+    public long getReplicaDuplicateCount() {
+        return replicaDuplicates.get();
+    }
+    
+    public Histogram getLateness() {
+        return lateness;
+    }
+    
+    public Histogram getAddedLateness() {
+        return addedLateness;
+    }
+    
+    public Histogram getSpread() {
+        return spread;
+    }
+    
+    public Histogram getPublishDuration() {
+        return publishDuration;
+    }
+    
+}
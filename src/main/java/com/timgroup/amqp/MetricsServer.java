@@ -0,0 +1,278 @@
+package com.timgroup.amqp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the metrics of every shard at /metrics, in the Prometheus text
+ * format, with the shard's name as a label. Where routes share a shard, the
+ * figures of its engine are served once, under the first route's name.
+ */
+public class MetricsServer implements Closeable {
+    
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    
+    private final HttpServer server;
+    private final List<ShardMonitor> monitors;
+    private volatile Cluster cluster;
+    
+    public MetricsServer(int port, List<ShardMonitor> monitors) throws IOException {
+        this.monitors = new CopyOnWriteArrayList<ShardMonitor>(monitors);
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = render().getBytes("UTF-8");
+                exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                try {
+                    out.write(body);
+                } finally {
+                    out.close();
+                }
+            }
+        });
+    }
+    
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+    
+    public void start() {
+        server.start();
+    }
+    
+    /**
+     * Serves the metrics of a shard opened since the server was created.
+     */
+    public void add(ShardMonitor monitor) {
+        monitors.add(monitor);
+    }
+    
+    public void remove(ShardMonitor monitor) {
+        monitors.remove(monitor);
+    }
+    
+    /**
+     * Serves the membership of the cluster the instance is in, too.
+     */
+    public void setCluster(Cluster cluster) {
+        this.cluster = cluster;
+    }
+    
+    public String render() {
+        List<ShardMonitor> monitors = new ArrayList<ShardMonitor>(this.monitors);
+        StringBuilder out = new StringBuilder();
+        counter(out, "wai7_received_total", "Deliveries taken from the inbound queue.");
+        for (ShardMonitor monitor : monitors) {
+            sample(out, "wai7_received_total", monitor, null, monitor.getReceivedCount());
+        }
+        counter(out, "wai7_parked_total", "Deliveries parked on a holding queue.");
+        for (ShardMonitor monitor : monitors) {
+            sample(out, "wai7_parked_total", monitor, null, monitor.getParkedCount());
+        }
+        counter(out, "wai7_scheduled_total", "Deliveries scheduled for publishing.");
+        for (ShardMonitor monitor : monitors) {
+            sample(out, "wai7_scheduled_total", monitor, null, monitor.getScheduledCount());
+        }
+        counter(out, "wai7_quarantined_total", "Deliveries quarantined, or dropped, because their delivery time could not be decoded, or they were malformed batch envelopes.");
+        for (ShardMonitor monitor : monitors) {
+            sample(out, "wai7_quarantined_total", monitor, null, monitor.getQuarantinedCount());
+        }
+        counter(out, "wai7_batch_entries_total", "Entries unpacked from batch envelopes.");
+        for (ShardMonitor monitor : monitors) {
+            sample(out, "wai7_batch_entries_total", monitor, null, monitor.getBatchEntryCount());
+        }
+        counter(out, "wai7_refused_total", "Deliveries handed back because the store was full.");
+        for (ShardMonitor monitor : monitors) {
+            sample(out, "wai7_refused_total", monitor, null, monitor.getRefusedCount());
+        }
+        counter(out, "wai7_published_total", "Messages published to the outbound exchange.");
+        for (ShardMonitor monitor : monitors) {
+            sample(out, "wai7_published_total", monitor, null, monitor.getPublishedCount());
+        }
+        counter(out, "wai7_confirmed_total", "Publishes confirmed by the broker, and so acknowledged.");
+        for (ShardMonitor monitor : monitors) {
+            sample(out, "wai7_confirmed_total", monitor, null, monitor.getConfirmedCount());
+        }
+        counter(out, "wai7_rejected_total", "Publishes rejected by the broker, and so requeued.");
+        for (ShardMonitor monitor : monitors) {
+            sample(out, "wai7_rejected_total", monitor, null, monitor.getRejectedCount());
+        }
+        counter(out, "wai7_cancelled_total", "Pending messages cancelled or replaced through the control queue.");
+        for (ShardMonitor monitor : monitors) {
+            sample(out, "wai7_cancelled_total", monitor, null, monitor.getCancelledCount());
+        }
+        counter(out, "wai7_cancel_misses_total", "Cancels and replacements which found no pending message to apply to.");
+        for (ShardMonitor monitor : monitors) {
+            sample(out, "wai7_cancel_misses_total", monitor, null, monitor.getCancelMissCount());
+        }
+        counter(out, "wai7_deduplicated_total", "Deliveries dropped because a message with the same message ID was already pending.");
+        for (ShardMonitor monitor : monitors) {
+            sample(out, "wai7_deduplicated_total", monitor, null, monitor.getDeduplicatedCount());
+        }
+        gauge(out, "wai7_indexed_messages", "Pending messages which can be cancelled by message ID.");
+        for (ShardMonitor monitor : monitors) {
+            sample(out, "wai7_indexed_messages", monitor, null, monitor.getIndexedCount());
+        }
+        counter(out, "wai7_replica_duplicates_total", "Deliveries dropped after a takeover because their replica had already been published.");
+        for (ShardMonitor monitor : monitors) {
+            sample(out, "wai7_replica_duplicates_total", monitor, null, monitor.getReplicaDuplicateCount());
+        }
+        gauge(out, "wai7_staged_replicas", "Replicas of messages pending on the active instance, held by a standby.");
+        for (ShardMonitor monitor : monitors) {
+            sample(out, "wai7_staged_replicas", monitor, null, monitor.getStagedCount());
+        }
+        gauge(out, "wai7_pending_messages", "Messages waiting for their delivery time, by how soon they are due.");
+        for (ShardMonitor monitor : monitors) {
+            Backlog backlog = monitor.getBacklog();
+            for (int band = 0; band < backlog.getBandCount(); band++) {
+                sample(out, "wai7_pending_messages", monitor, "due_within=\"" + ShardMonitor.horizonSeconds(backlog.getHorizonMillis(band)) + "\"", backlog.getCount(band));
+            }
+        }
+        gauge(out, "wai7_pending_bytes", "Store memory held by messages waiting for their delivery time, by how soon they are due.");
+        for (ShardMonitor monitor : monitors) {
+            Backlog backlog = monitor.getBacklog();
+            for (int band = 0; band < backlog.getBandCount(); band++) {
+                sample(out, "wai7_pending_bytes", monitor, "due_within=\"" + ShardMonitor.horizonSeconds(backlog.getHorizonMillis(band)) + "\"", backlog.getWeight(band));
+            }
+        }
+        gauge(out, "wai7_pending_plain_bytes", "Store memory pending messages would hold if their properties weren't shared and their bodies weren't compressed.");
+        for (ShardMonitor monitor : monitors) {
+            sample(out, "wai7_pending_plain_bytes", monitor, null, monitor.getPendingPlainBytes());
+        }
+        gauge(out, "wai7_overdue_messages", "Overdue messages waiting in the catch-up lane.");
+        for (ShardMonitor monitor : monitors) {
+            if (!monitor.reportsEngine()) {
+                continue;
+            }
+            sample(out, "wai7_overdue_messages", monitor, null, monitor.getOverdueCount());
+        }
+        gauge(out, "wai7_overdue_bytes", "Store memory held by overdue messages waiting in the catch-up lane.");
+        for (ShardMonitor monitor : monitors) {
+            if (!monitor.reportsEngine()) {
+                continue;
+            }
+            sample(out, "wai7_overdue_bytes", monitor, null, monitor.getOverdueBytes());
+        }
+        gauge(out, "wai7_catch_up_seconds", "How long the catch-up lane will take to empty at its rate.");
+        for (ShardMonitor monitor : monitors) {
+            if (!monitor.reportsEngine()) {
+                continue;
+            }
+            out.append("wai7_catch_up_seconds{shard=\"").append(escape(monitor.getName())).append("\"} ").append(ShardMonitor.seconds(monitor.getEstimatedCatchUpMillis(), 1000)).append('\n');
+        }
+        gauge(out, "wai7_store_allocated_bytes", "Direct memory taken by the store.");
+        for (ShardMonitor monitor : monitors) {
+            sample(out, "wai7_store_allocated_bytes", monitor, null, monitor.getStoreAllocatedBytes());
+        }
+        gauge(out, "wai7_publish_backlog", "Messages due and waiting for a publisher.");
+        for (ShardMonitor monitor : monitors) {
+            if (!monitor.reportsEngine()) {
+                continue;
+            }
+            sample(out, "wai7_publish_backlog", monitor, null, monitor.getPublishBacklog());
+        }
+        gauge(out, "wai7_prefetch_count", "The prefetch the receiver is consuming with; zero for unlimited.");
+        for (ShardMonitor monitor : monitors) {
+            sample(out, "wai7_prefetch_count", monitor, null, monitor.getPrefetchCount());
+        }
+        gauge(out, "wai7_throttle_state", "Whether consumption is open, slowed or stopped because the outbound side can't keep up.");
+        for (ShardMonitor monitor : monitors) {
+            for (Throttle.State state : Throttle.State.values()) {
+                sample(out, "wai7_throttle_state", monitor, "state=\"" + state.name().toLowerCase() + "\"", state.name().equals(monitor.getThrottleState()) ? 1 : 0);
+            }
+        }
+        gauge(out, "wai7_connection_blocked", "Whether the broker has blocked the connection because of a resource alarm.");
+        for (ShardMonitor monitor : monitors) {
+            sample(out, "wai7_connection_blocked", monitor, null, monitor.isConnectionBlocked() ? 1 : 0);
+        }
+        counter(out, "wai7_throttle_changes_total", "Times consumption has been throttled or unthrottled.");
+        for (ShardMonitor monitor : monitors) {
+            sample(out, "wai7_throttle_changes_total", monitor, null, monitor.getThrottleChangeCount());
+        }
+        counter(out, "wai7_clock_corrections_total", "Times the monotonic clock has been re-anchored because the wall clock jumped or drifted.");
+        for (ShardMonitor monitor : monitors) {
+            sample(out, "wai7_clock_corrections_total", monitor, null, monitor.getClockCorrectionCount());
+        }
+        histogram(out, "wai7_lateness_seconds", "How long after its scheduled delivery time each message was published.");
+        for (ShardMonitor monitor : monitors) {
+            histogramSamples(out, "wai7_lateness_seconds", monitor, monitor.getMetrics().getLateness(), 1000000);
+        }
+        histogram(out, "wai7_spread_seconds", "How long the shaper held each message back after it fell due.");
+        for (ShardMonitor monitor : monitors) {
+            histogramSamples(out, "wai7_spread_seconds", monitor, monitor.getMetrics().getSpread(), 1000);
+        }
+        histogram(out, "wai7_publish_duration_seconds", "How long each basicPublish took.");
+        for (ShardMonitor monitor : monitors) {
+            histogramSamples(out, "wai7_publish_duration_seconds", monitor, monitor.getMetrics().getPublishDuration(), 1000000);
+        }
+        Cluster cluster = this.cluster;
+        if (cluster != null) {
+            gauge(out, "wai7_cluster_members", "Members of the cluster this instance has heard from, itself included.");
+            out.append("wai7_cluster_members ").append(cluster.getMembers().size()).append('\n');
+            gauge(out, "wai7_cluster_held_partitions", "Partitions whose lease this instance holds.");
+            out.append("wai7_cluster_held_partitions ").append(cluster.getHeldPartitions().size()).append('\n');
+            gauge(out, "wai7_cluster_unassigned_partitions", "Partitions no member has room for, even with the overcommit, and so not repeated.");
+            out.append("wai7_cluster_unassigned_partitions ").append(cluster.getUnassignedCount()).append('\n');
+        }
+        return out.toString();
+    }
+    
+    private static void counter(StringBuilder out, String name, String help) {
+        family(out, name, "counter", help);
+    }
+    
+    private static void gauge(StringBuilder out, String name, String help) {
+        family(out, name, "gauge", help);
+    }
+    
+    private static void histogram(StringBuilder out, String name, String help) {
+        family(out, name, "histogram", help);
+    }
+    
+    private static void family(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+    
+    private static void histogramSamples(StringBuilder out, String name, ShardMonitor monitor, Histogram histogram, long unitsPerSecond) {
+        long cumulativeCount = 0;
+        for (int bucket = 0; bucket < histogram.getBucketCount(); bucket++) {
+            cumulativeCount += histogram.getCount(bucket);
+            sample(out, name + "_bucket", monitor, "le=\"" + ShardMonitor.seconds(histogram.getBound(bucket), unitsPerSecond) + "\"", cumulativeCount);
+        }
+        cumulativeCount += histogram.getCount(histogram.getBucketCount());
+        sample(out, name + "_bucket", monitor, "le=\"+Inf\"", cumulativeCount);
+        out.append(name).append("_sum{shard=\"").append(escape(monitor.getName())).append("\"} ").append(ShardMonitor.seconds(histogram.getSum(), unitsPerSecond)).append('\n');
+        sample(out, name + "_count", monitor, null, cumulativeCount);
+    }
+    
+    private static void sample(StringBuilder out, String name, ShardMonitor monitor, String extraLabel, long value) {
+        out.append(name).append("{shard=\"").append(escape(monitor.getName())).append('"');
+        if (extraLabel != null) {
+            out.append(',').append(extraLabel);
+        }
+        out.append("} ").append(value).append('\n');
+    }
+    
+    private static String escape(String labelValue) {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+    
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+    
+}
@@ -0,0 +1,57 @@
+package com.timgroup.amqp;
+
+/**
+ * What stays on the heap for a message waiting to be repeated: the
+ * transmitter it belongs to, the delivery tag to acknowledge, the handle of
+ * its content in the transmitter's {@link SlabStore}, the
+ * {@link PublisherPool} stripe it will be published on, when it is due, and
+ * when it was ready to go, which is when it was received if it was already
+ * due by then.
+ * For a message in custody, the handle is in the {@link Journal}, and the
+ * delivery tag is its complement. The flags say whether the message must
+ * skip the {@link Shaper}, or has already been through it, and whether it is
+ * a replica taken over from another instance, with no delivery of its own to
+ * settle, and whether it is being traced by a {@link Tracer}. The message ID is
+ * only kept if the message can be cancelled by it, and is then what it is
+ * found by in the transmitter's {@link MessageIndex}.
+ */
+final class PendingMessage {
+    
+    static final int STRICT = 1;
+    static final int SHAPED = 2;
+    static final int REPLICA = 4;
+    static final int TRACED = 8;
+    
+    final Transmitter transmitter;
+    final long deliveryTag;
+    final long handle;
+    final int stripe;
+    final long deliveryTime;
+    final long readyTime;
+    final int flags;
+    final String messageId;
+    
+    PendingMessage(Transmitter transmitter, long deliveryTag, long handle, int stripe, long deliveryTime) {
+        this(transmitter, deliveryTag, handle, stripe, deliveryTime, 0, null);
+    }
+    
+    PendingMessage(Transmitter transmitter, long deliveryTag, long handle, int stripe, long deliveryTime, int flags, String messageId) {
+        this(transmitter, deliveryTag, handle, stripe, deliveryTime, Math.max(deliveryTime, System.currentTimeMillis()), flags, messageId);
+    }
+    
+    private PendingMessage(Transmitter transmitter, long deliveryTag, long handle, int stripe, long deliveryTime, long readyTime, int flags, String messageId) {
+        this.transmitter = transmitter;
+        this.deliveryTag = deliveryTag;
+        this.handle = handle;
+        this.stripe = stripe;
+        this.deliveryTime = deliveryTime;
+        this.readyTime = readyTime;
+        this.flags = flags;
+        this.messageId = messageId;
+    }
+    
+    PendingMessage shaped() {
+        return new PendingMessage(transmitter, deliveryTag, handle, stripe, deliveryTime, readyTime, flags | SHAPED, messageId);
+    }
+    
+}
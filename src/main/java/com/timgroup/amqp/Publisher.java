@@ -0,0 +1,204 @@
+package com.timgroup.amqp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+
+/**
+ * Publishes repeated messages on a channel in confirm mode, and only settles
+ * the inbound delivery each one came from once the broker has confirmed it:
+ * a confirmed publish is acknowledged, and a rejected one is requeued so that
+ * it will be tried again.
+ *
+ * Publishes are pipelined: we don't wait for each confirm before sending the
+ * next message. The number of unconfirmed publishes is bounded, though, and
+ * publishing blocks when the window is full.
+ *
+ * Once the channel has shut down, no more confirms will come, so the
+ * publishes still waiting for one are rejected, and publishing fails from
+ * then on, rather than waiting for room in the window for good.
+ */
+public class Publisher implements Closeable, ConfirmListener, ShutdownListener {
+    
+    /**
+     * Settles the inbound delivery a publish was made for, once the broker
+     * has confirmed or rejected the publish. Called on the connection's reader
+     * thread, so it mustn't block.
+     */
+    public interface Settler {
+        public void confirmed(long deliveryTag) throws IOException;
+        
+        public void rejected(long deliveryTag) throws IOException;
+    }
+    
+    public static final int DEFAULT_MAX_IN_FLIGHT = 1024;
+    
+    private static final long CONFIRMED = Long.MIN_VALUE;
+    
+    private final Channel channel;
+    private final Acknowledger acknowledger;
+    private final Object publishLock = new Object();
+    private final long[] deliveryTags;
+    private final Settler[] settlers;
+    private long firstSequenceNumber;
+    private long nextSequenceNumber;
+    private ShutdownSignalException shutdown;
+    
+    public Publisher(Channel channel, Acknowledger acknowledger) throws IOException {
+        this(channel, acknowledger, DEFAULT_MAX_IN_FLIGHT);
+    }
+    
+    /**
+     * @param acknowledger
+     *            to settle deliveries with when no settler is given, or null
+     *            if one always is
+     */
+    public Publisher(Channel channel, Acknowledger acknowledger, int maxInFlight) throws IOException {
+        this.channel = channel;
+        this.acknowledger = acknowledger;
+        this.deliveryTags = new long[maxInFlight];
+        this.settlers = new Settler[maxInFlight];
+        channel.confirmSelect();
+        channel.addConfirmListener(this);
+        channel.addShutdownListener(this);
+        firstSequenceNumber = nextSequenceNumber = channel.getNextPublishSeqNo();
+    }
+    
+    public Channel getChannel() {
+        return channel;
+    }
+    
+    public Acknowledger getAcknowledger() {
+        return acknowledger;
+    }
+    
+    public synchronized int getInFlightCount() {
+        return (int) (nextSequenceNumber - firstSequenceNumber);
+    }
+    
+    /**
+     * Publishes the message, and arranges for the given inbound delivery to be
+     * settled with the acknowledger once the broker has confirmed it.
+     *
+     * @return how long the message took to send, in nanoseconds
+     */
+    public long publish(String exchange, String routingKey, BasicProperties properties, byte[] body, long deliveryTag) throws IOException {
+        return publish(exchange, routingKey, properties, body, acknowledger, deliveryTag);
+    }
+    
+    /**
+     * Publishes the message, and hands the given delivery tag to the settler
+     * once the broker has confirmed or rejected it. Blocks while the window of
+     * unconfirmed publishes is full.
+     *
+     * The confirm bookkeeping is not locked while the message is actually
+     * sent, because confirms arrive on the connection's reader thread, and
+     * that must never wait behind a publish held up by the broker.
+     *
+     * @return how long the message took to send, in nanoseconds, not counting
+     *         any wait for room in the window
+     */
+    public long publish(String exchange, String routingKey, BasicProperties properties, byte[] body, Settler settler, long deliveryTag) throws IOException {
+        synchronized (publishLock) {
+            reserve(settler, deliveryTag);
+            long start = System.nanoTime();
+            channel.basicPublish(exchange, routingKey, properties, body);
+            return System.nanoTime() - start;
+        }
+    }
+    
+    private synchronized void reserve(Settler settler, long deliveryTag) throws IOException {
+        try {
+            while (nextSequenceNumber - firstSequenceNumber == deliveryTags.length && shutdown == null) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for confirms", e);
+        }
+        if (shutdown != null) {
+            throw new IOException("the publishing channel has shut down", shutdown);
+        }
+        deliveryTags[index(nextSequenceNumber)] = deliveryTag;
+        settlers[index(nextSequenceNumber)] = settler;
+        ++nextSequenceNumber;
+    }
+    
+    @Override
+    public synchronized void handleAck(long sequenceNumber, boolean multiple) throws IOException {
+        settle(sequenceNumber, multiple, true);
+    }
+    
+    @Override
+    public synchronized void handleNack(long sequenceNumber, boolean multiple) throws IOException {
+        settle(sequenceNumber, multiple, false);
+    }
+    
+    private void settle(long sequenceNumber, boolean multiple, boolean confirmed) throws IOException {
+        long from = multiple ? firstSequenceNumber : sequenceNumber;
+        for (long n = from; n <= sequenceNumber && n < nextSequenceNumber; n++) {
+            long deliveryTag = deliveryTags[index(n)];
+            if (n >= firstSequenceNumber && deliveryTag != CONFIRMED) {
+                Settler settler = settlers[index(n)];
+                deliveryTags[index(n)] = CONFIRMED;
+                settlers[index(n)] = null;
+                if (confirmed) {
+                    settler.confirmed(deliveryTag);
+                } else {
+                    settler.rejected(deliveryTag);
+                }
+            }
+        }
+        while (firstSequenceNumber < nextSequenceNumber && deliveryTags[index(firstSequenceNumber)] == CONFIRMED) {
+            ++firstSequenceNumber;
+        }
+        notifyAll();
+    }
+    
+    @Override
+    public synchronized void shutdownCompleted(ShutdownSignalException cause) {
+        shutdown = cause;
+        try {
+            if (firstSequenceNumber < nextSequenceNumber) {
+                settle(nextSequenceNumber - 1, true, false);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+        notifyAll();
+    }
+    
+    private int index(long sequenceNumber) {
+        return (int) (sequenceNumber % deliveryTags.length);
+    }
+    
+    /**
+     * Waits a while for outstanding confirms, so that as many deliveries as
+     * possible are settled before the channel goes away.
+     */
+    public synchronized void awaitConfirms(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+        long remaining;
+        while (firstSequenceNumber < nextSequenceNumber && (remaining = deadline - System.currentTimeMillis()) > 0) {
+            wait(remaining);
+        }
+    }
+    
+    @Override
+    public void close() throws IOException {
+        try {
+            awaitConfirms(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted while waiting for confirms", e);
+        }
+    }
+    
+}
@@ -0,0 +1,156 @@
+package com.timgroup.amqp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import com.rabbitmq.client.Connection;
+
+/**
+ * A pool of {@link Publisher}s, each with a channel and a dispatch thread of
+ * its own, so that one slow publish only holds up the messages behind it on
+ * the same stripe.
+ *
+ * Messages are striped by routing key, so messages with the same routing key
+ * are still published in the order they fell due.
+ */
+public class PublisherPool implements Closeable {
+    
+    public interface Handler {
+        public void publish(PendingMessage message, Publisher publisher) throws IOException;
+    }
+    
+    public static final int DEFAULT_QUEUE_CAPACITY = 4096;
+    
+    private static final PendingMessage STOP = new PendingMessage(null, -1, -1, -1, -1);
+    
+    private final Acknowledger acknowledger;
+    private final List<Publisher> publishers;
+    private final List<BlockingQueue<PendingMessage>> queues = new ArrayList<BlockingQueue<PendingMessage>>();
+    private final List<Thread> threads = new ArrayList<Thread>();
+    
+    /**
+     * Opens a channel for each publisher. Each publish says how its delivery
+     * is to be settled, so the pool can be shared by several inbound queues.
+     */
+    public static PublisherPool open(Connection connection, int size, int maxInFlight) throws IOException {
+        List<Publisher> publishers = new ArrayList<Publisher>();
+        for (int i = 0; i < size; i++) {
+            publishers.add(new Publisher(connection.createChannel(), null, maxInFlight));
+        }
+        return new PublisherPool(publishers);
+    }
+    
+    public PublisherPool(List<Publisher> publishers) {
+        this(null, publishers);
+    }
+    
+    /**
+     * @param acknowledger
+     *            the publishers' acknowledger, which the pool closes once they
+     *            are done, or null if they have none
+     */
+    public PublisherPool(Acknowledger acknowledger, List<Publisher> publishers) {
+        this.acknowledger = acknowledger;
+        this.publishers = Collections.unmodifiableList(new ArrayList<Publisher>(publishers));
+        for (int i = 0; i < publishers.size(); i++) {
+            queues.add(new ArrayBlockingQueue<PendingMessage>(DEFAULT_QUEUE_CAPACITY));
+        }
+    }
+    
+    public Acknowledger getAcknowledger() {
+        return acknowledger;
+    }
+    
+    public List<Publisher> getPublishers() {
+        return publishers;
+    }
+    
+    public int size() {
+        return publishers.size();
+    }
+    
+    public int stripeFor(String routingKey) {
+        return (routingKey.hashCode() & Integer.MAX_VALUE) % publishers.size();
+    }
+    
+    public Publisher publisherFor(String routingKey) {
+        return publishers.get(stripeFor(routingKey));
+    }
+    
+    /**
+     * @return the number of messages waiting to be published
+     */
+    public int getBacklog() {
+        int backlog = 0;
+        for (BlockingQueue<PendingMessage> queue : queues) {
+            backlog += queue.size();
+        }
+        return backlog;
+    }
+    
+    public void start(final Handler handler) {
+        for (int i = 0; i < publishers.size(); i++) {
+            final Publisher publisher = publishers.get(i);
+            final BlockingQueue<PendingMessage> queue = queues.get(i);
+            Thread thread = new Thread("publisher-" + i) {
+                @Override
+                public void run() {
+                    try {
+                        PendingMessage message;
+                        while ((message = queue.take()) != STOP) {
+                            try {
+                                handler.publish(message, publisher);
+                            } catch (IOException e) {
+                                e.printStackTrace();
+                            } catch (RuntimeException e) {
+                                e.printStackTrace();
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+    }
+    
+    /**
+     * Queues the message for publishing on its stripe, waiting for room if
+     * the stripe is backed up.
+     */
+    public void dispatch(PendingMessage message) throws InterruptedException {
+        queues.get(message.stripe).put(message);
+    }
+    
+    /**
+     * Publishes everything already dispatched, then waits for outstanding
+     * confirms and settles what it can.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            for (BlockingQueue<PendingMessage> queue : queues) {
+                queue.put(STOP);
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted while waiting for publishers to finish", e);
+        }
+        for (Publisher publisher : publishers) {
+            publisher.close();
+        }
+        if (acknowledger != null) {
+            acknowledger.close();
+        }
+    }
+    
+}
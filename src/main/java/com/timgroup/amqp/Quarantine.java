@@ -0,0 +1,67 @@
+package com.timgroup.amqp;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+
+/**
+ * Where messages go which can't be scheduled, because there is no making
+ * out when they are due: a fanout exchange, for whoever looks into them to
+ * bind a queue to. Each one is republished there as it was received, with
+ * its original routing key and a header saying what was wrong with it, and
+ * its delivery is acknowledged once the broker has confirmed the copy, or
+ * refused it, since trying it again would go no better.
+ */
+public class Quarantine {
+    
+    public static final String REASON_HEADER = "x-wai7-quarantine-reason";
+    
+    private final Channel channel;
+    private final PublisherPool publishers;
+    private final String exchangeName;
+    private final Publisher.Settler settler;
+    
+    /**
+     * @param channel
+     *            the channel to declare the exchange on
+     * @param publishers
+     *            the publishers to republish messages with
+     * @param acknowledger
+     *            to acknowledge their deliveries with
+     */
+    public Quarantine(Channel channel, PublisherPool publishers, final Acknowledger acknowledger, String exchangeName) {
+        this.channel = channel;
+        this.publishers = publishers;
+        this.exchangeName = exchangeName;
+        this.settler = new Publisher.Settler() {
+            @Override
+            public void confirmed(long deliveryTag) throws IOException {
+                acknowledger.ack(deliveryTag);
+            }
+            
+            @Override
+            public void rejected(long deliveryTag) throws IOException {
+                System.err.println("dropping message the broker would not take into quarantine at " + Quarantine.this.exchangeName);
+                acknowledger.ack(deliveryTag);
+            }
+        };
+    }
+    
+    public String getExchangeName() {
+        return exchangeName;
+    }
+    
+    public void declare() throws IOException {
+        channel.exchangeDeclare(exchangeName, "fanout", true, false, null);
+    }
+    
+    public void quarantine(String routingKey, long deliveryTag, BasicProperties properties, byte[] body, String reason) throws IOException {
+        Map<String, Object> headers = properties.getHeaders() != null ? new HashMap<String, Object>(properties.getHeaders()) : new HashMap<String, Object>();
+        headers.put(REASON_HEADER, reason);
+        publishers.publisherFor(routingKey).publish(exchangeName, routingKey, properties.builder().headers(headers).build(), body, settler, deliveryTag);
+    }
+    
+}
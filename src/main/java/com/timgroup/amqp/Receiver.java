@@ -2,7 +2,7 @@ package com.timgroup.amqp;
 
 import java.io.Closeable;
 import java.io.IOException;
-import java.util.Map;
+import java.util.List;
 
 import com.rabbitmq.client.AMQP.BasicProperties;
 import com.rabbitmq.client.Channel;
@@ -12,16 +12,61 @@ import com.rabbitmq.client.Envelope;
 public class Receiver implements Closeable {
     
     public static final String SCHEDULED_DELIVERY_HEADER = "scheduled_delivery";
+    public static final String SCHEDULED_DELAY_HEADER = "scheduled_delay";
+    
+    public static final int DEFAULT_THROTTLED_PREFETCH_COUNT = 100;
+    
+    private static final long CANCEL_TIMEOUT_MILLIS = 5000;
     
     private final Channel channel;
     private final String queueName;
     private final Transmitter transmitter;
+    private final HoldingQueues holdingQueues;
+    private volatile Quarantine quarantine;
+    private int prefetchCount;
+    private int throttledPrefetchCount = DEFAULT_THROTTLED_PREFETCH_COUNT;
+    private Throttle.State throttleState = Throttle.State.OPEN;
     private String consumerTag;
+    private int consumedPrefetchCount;
+    private int consumedWindow;
+    private boolean started;
+    private boolean paused;
+    private int pendingCancels;
+    private volatile long highestDeliveryTag;
     
     public Receiver(Channel channel, String queueName, Transmitter transmitter) {
+        this(channel, queueName, transmitter, null);
+    }
+    
+    /**
+     * @param holdingQueues
+     *            where to park messages due beyond the scheduling horizon, or
+     *            null to hold every message locally
+     */
+    public Receiver(Channel channel, String queueName, Transmitter transmitter, HoldingQueues holdingQueues) {
         this.channel = channel;
         this.queueName = queueName;
         this.transmitter = transmitter;
+        this.holdingQueues = holdingQueues;
+        transmitter.setCapacityListener(new CapacityListener() {
+            @Override
+            public void capacityExhausted() {
+                try {
+                    pause();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            
+            @Override
+            public void capacityRestored() {
+                try {
+                    resume();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
     }
     
     public Channel getChannel() {
@@ -32,35 +77,302 @@ public class Receiver implements Closeable {
         return queueName;
     }
     
-    public void start() throws IOException {
+    /**
+     * @param quarantine
+     *            where to send messages whose delivery time can't be made
+     *            out, or null to reject them, to the inbound queue's
+     *            dead-letter exchange if it has one
+     */
+    public void setQuarantine(Quarantine quarantine) {
+        this.quarantine = quarantine;
+    }
+    
+    public synchronized int getPrefetchCount() {
+        return prefetchCount;
+    }
+    
+    /**
+     * @param prefetchCount
+     *            the most unacknowledged messages the broker will let us
+     *            hold, or zero for no limit
+     */
+    public synchronized void setPrefetchCount(int prefetchCount) throws IOException {
+        this.prefetchCount = prefetchCount;
+        prefetchChanged();
+    }
+    
+    /**
+     * @param throttledPrefetchCount
+     *            the prefetch to use instead while the {@link Throttle} has
+     *            us slowed, if it is lower
+     */
+    public synchronized void setThrottledPrefetchCount(int throttledPrefetchCount) throws IOException {
+        this.throttledPrefetchCount = throttledPrefetchCount;
+        prefetchChanged();
+    }
+    
+    public synchronized Throttle.State getThrottleState() {
+        return throttleState;
+    }
+    
+    /**
+     * Lowers the prefetch, or stops consuming, while the outbound side can't
+     * keep up. This is independent of {@link #pause()}; we only consume when
+     * we are neither paused nor stopped.
+     */
+    public synchronized void setThrottleState(Throttle.State throttleState) {
+        this.throttleState = throttleState;
+        try {
+            update();
+            prefetchChanged();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+    
+    /**
+     * @return the prefetch in effect, which the throttle may have lowered;
+     *         zero for unlimited
+     */
+    public synchronized int getEffectivePrefetchCount() {
+        return effectivePrefetchCount();
+    }
+    
+    private int effectivePrefetchCount() {
+        if (throttleState == Throttle.State.SLOWED && (prefetchCount == 0 || prefetchCount > throttledPrefetchCount)) {
+            return throttledPrefetchCount;
+        }
+        return prefetchCount;
+    }
+    
+    /**
+     * @return the highest delivery tag seen so far; once {@link #close()} has
+     *         returned, no higher one will turn up
+     */
+    public long getHighestDeliveryTag() {
+        return highestDeliveryTag;
+    }
+    
+    public synchronized boolean isPaused() {
+        return paused;
+    }
+    
+    public synchronized void start() throws IOException {
+        started = true;
+        update();
+    }
+    
+    /**
+     * Stops taking deliveries until {@link #resume()} is called. Messages
+     * already delivered are unaffected.
+     */
+    public synchronized void pause() throws IOException {
+        paused = true;
+        update();
+    }
+    
+    public synchronized void resume() throws IOException {
+        paused = false;
+        update();
+    }
+    
+    private boolean consuming() {
+        return started && !paused && throttleState != Throttle.State.STOPPED;
+    }
+    
+    private void update() throws IOException {
+        if (consuming()) {
+            if (consumerTag == null) {
+                consume();
+            }
+        } else {
+            cancel();
+        }
+    }
+    
+    /**
+     * Since RabbitMQ 3.3, basic.qos only sets the prefetch of consumers
+     * started after it, so a new one is started in place of the old one for a
+     * new prefetch to take effect. Deliveries already on their way to the
+     * old one are handled as usual, and count against the new one.
+     */
+    private void prefetchChanged() throws IOException {
+        if (consumerTag != null && effectivePrefetchCount() != consumedPrefetchCount) {
+            cancel();
+            consume();
+        }
+    }
+    
+    /**
+     * Starts consuming if a cut in the prefetch has held it off until enough
+     * of the deliveries taken before the cut have been settled, or starts a
+     * new consumer with a bigger window if settling them has made more room
+     * than the current one can use. The {@link Throttle} calls this on every
+     * check.
+     */
+    public synchronized void checkRoom() throws IOException {
+        if (!consuming()) {
+            return;
+        }
+        if (consumerTag == null) {
+            consume();
+        } else {
+            int prefetchCount = effectivePrefetchCount();
+            if (prefetchCount > 0 && prefetchCount - transmitter.getAcknowledger().getUnsettledCount() > consumedWindow) {
+                cancel();
+                consume();
+            }
+        }
+    }
+    
+    /**
+     * The consumer's own prefetch is only what is left of the effective one
+     * after the deliveries still unsettled from earlier consumers, so that
+     * between them they never hold more than the effective prefetch. If
+     * there is no room left, or an earlier consumer's cancel-ok hasn't come
+     * back, so that some of its deliveries may still be on their way
+     * uncounted, consuming waits for {@link #checkRoom()}.
+     */
+    private void consume() throws IOException {
+        int prefetchCount = effectivePrefetchCount();
+        int window = prefetchCount;
+        if (prefetchCount > 0) {
+            long unsettled = transmitter.getAcknowledger().getUnsettledCount();
+            if (pendingCancels > 0 || unsettled >= prefetchCount) {
+                return;
+            }
+            window = (int) (prefetchCount - unsettled);
+        }
+        consumedPrefetchCount = prefetchCount;
+        consumedWindow = window;
+        channel.basicQos(window);
         consumerTag = channel.basicConsume(queueName, false, new DefaultConsumer(channel) {
             @Override
             public void handleDelivery(String consumerTag, Envelope envelope, BasicProperties properties, byte[] body) throws IOException {
-                Long scheduledDeliveryTime = getNumericHeader(properties, SCHEDULED_DELIVERY_HEADER);
-                long delay = scheduledDeliveryTime != null ? scheduledDeliveryTime - System.currentTimeMillis() : 0;
+                highestDeliveryTag = envelope.getDeliveryTag();
+                transmitter.getAcknowledger().delivered(envelope.getDeliveryTag());
+                transmitter.getMetrics().received();
+                properties = HoldingQueues.unpark(properties);
+                if (BatchEnvelope.isBatch(properties)) {
+                    receiveBatch(envelope, properties, body);
+                    return;
+                }
+                long now = System.currentTimeMillis();
+                long deliveryTime = DeliveryTimes.decode(properties.getHeaders(), now);
+                if (deliveryTime == DeliveryTimes.UNDECODABLE) {
+                    quarantine(envelope, properties, body, "undecodable delivery time");
+                    return;
+                }
                 
-                transmitter.transmit(envelope.getRoutingKey(), envelope.getDeliveryTag(), properties, body, delay);
+                if (holdingQueues != null && holdingQueues.park(envelope.getRoutingKey(), envelope.getDeliveryTag(), properties, body, deliveryTime - now)) {
+                    transmitter.getMetrics().parked();
+                    return;
+                }
+                try {
+                    if (!transmitter.transmit(envelope.getRoutingKey(), envelope.getDeliveryTag(), properties, body, deliveryTime)) {
+                        transmitter.getMetrics().refused();
+                        transmitter.getAcknowledger().requeue(envelope.getDeliveryTag());
+                    }
+                } catch (IllegalArgumentException e) {
+                    quarantine(envelope, properties, body, e.getMessage());
+                }
+            }
+            
+            @Override
+            public void handleCancelOk(String consumerTag) {
+                cancelled();
             }
         });
     }
     
-    private static Long getNumericHeader(BasicProperties properties, String headerName) {
-        Map<String, Object> headers = properties.getHeaders();
-        if (headers != null) {
-            Number headerValue = (Number) headers.get(headerName);
-            if (headerValue != null) {
-                return headerValue.longValue();
+    /**
+     * Schedules each entry of a {@link BatchEnvelope} in its own right. The
+     * envelope is never parked, since its entries may be due at quite
+     * different times.
+     */
+    private void receiveBatch(Envelope envelope, BasicProperties properties, byte[] body) throws IOException {
+        List<BatchEnvelope.Entry> entries;
+        try {
+            entries = BatchEnvelope.decode(body);
+        } catch (IOException e) {
+            quarantine(envelope, properties, body, "malformed batch envelope: " + e.getMessage());
+            return;
+        } catch (RuntimeException e) {
+            quarantine(envelope, properties, body, "malformed batch envelope: " + e);
+            return;
+        }
+        try {
+            if (!transmitter.transmitBatch(envelope.getDeliveryTag(), entries)) {
+                transmitter.getMetrics().refused();
+                transmitter.getAcknowledger().requeue(envelope.getDeliveryTag());
             }
+        } catch (IllegalArgumentException e) {
+            quarantine(envelope, properties, body, e.getMessage());
         }
-        return null;
     }
     
-    @Override
-    public void close() throws IOException {
+    /**
+     * Settles the delivery of a message which can't be scheduled straight
+     * away, rather than leaving it unacknowledged, to be redelivered and
+     * fail again whenever the connection drops.
+     */
+    private void quarantine(Envelope envelope, BasicProperties properties, byte[] body, String reason) throws IOException {
+        transmitter.getMetrics().quarantined();
+        Quarantine quarantine = this.quarantine;
+        if (quarantine != null) {
+            quarantine.quarantine(envelope.getRoutingKey(), envelope.getDeliveryTag(), properties, body, reason);
+        } else {
+            System.err.println("rejecting message from " + queueName + ", for want of a quarantine: " + reason);
+            transmitter.getAcknowledger().reject(envelope.getDeliveryTag());
+        }
+    }
+    
+    private void cancel() throws IOException {
         if (consumerTag != null) {
+            pendingCancels++;
             channel.basicCancel(consumerTag);
             consumerTag = null;
         }
     }
     
+    private synchronized void cancelled() {
+        pendingCancels--;
+        notifyAll();
+        if (pendingCancels == 0) {
+            try {
+                checkRoom();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+    
+    /**
+     * The broker may already have sent deliveries when it gets a cancel; the
+     * client hands them to the consumer before the cancel-ok, so once every
+     * cancel-ok has come back, there are no more deliveries on the way.
+     */
+    private void awaitCancellation() throws IOException {
+        long deadline = System.currentTimeMillis() + CANCEL_TIMEOUT_MILLIS;
+        long remaining;
+        try {
+            while (pendingCancels > 0 && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                wait(remaining);
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted while waiting for the consumer to be cancelled", e);
+        }
+    }
+    
+    /**
+     * Stops taking deliveries, and waits until the ones already on their way
+     * have been handled.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        started = false;
+        cancel();
+        awaitCancellation();
+    }
+    
 }
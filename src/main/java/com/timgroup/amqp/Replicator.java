@@ -0,0 +1,141 @@
+package com.timgroup.amqp;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+
+/**
+ * Keeps a {@link Standby} up to date with what an active instance has
+ * pending on one route, by publishing a record to the replication exchange
+ * whenever a message is scheduled or settled, and a heartbeat every so
+ * often.
+ *
+ * A scheduled record is the message itself, with its routing key and
+ * delivery time added as headers, so that the standby can publish it without
+ * waiting for the broker to redeliver it. A settled record is just the
+ * message ID. Only messages with a message ID are replicated, since that is
+ * what the standby matches them up with redeliveries by.
+ *
+ * A message's scheduled record is always sent before it can be settled, so
+ * the standby sees them in that order.
+ *
+ * Replication is best-effort: records are published without confirms, and
+ * one which can't be published is dropped. A standby which misses a
+ * scheduled record is only colder, since the broker redelivers whatever it
+ * doesn't know about anyway. But one which misses a settled record keeps the
+ * replica, and publishes it again if it takes over, so a message may then be
+ * published twice.
+ */
+public class Replicator {
+    
+    public static final String OP_HEADER = "replica_op";
+    public static final String ROUTING_KEY_HEADER = "replica_routing_key";
+    public static final String DELIVERY_TIME_HEADER = "replica_delivery_time";
+    public static final String SCHEDULED = "scheduled";
+    public static final String SETTLED = "settled";
+    public static final String HEARTBEAT = "heartbeat";
+    public static final String HANDOVER = "handover";
+    
+    public static final long DEFAULT_HEARTBEAT_MILLIS = 500;
+    
+    private final Channel channel;
+    private final String exchangeName;
+    private final String routeName;
+    private final long heartbeatMillis;
+    private ScheduledFuture<?> heartbeats;
+    
+    /**
+     * @param routeName
+     *            the inbound queue of the route, which records are routed by
+     * @param heartbeatMillis
+     *            how often to send a heartbeat once started
+     */
+    public Replicator(Channel channel, String exchangeName, String routeName, long heartbeatMillis) {
+        this.channel = channel;
+        this.exchangeName = exchangeName;
+        this.routeName = routeName;
+        this.heartbeatMillis = heartbeatMillis;
+    }
+    
+    public Channel getChannel() {
+        return channel;
+    }
+    
+    public String getExchangeName() {
+        return exchangeName;
+    }
+    
+    public String getRouteName() {
+        return routeName;
+    }
+    
+    public void declare() throws IOException {
+        channel.exchangeDeclare(exchangeName, "direct", true);
+    }
+    
+    /**
+     * Sends a heartbeat every so often on the given executor.
+     */
+    public synchronized void start(ScheduledExecutorService executor) {
+        if (heartbeats != null) {
+            return;
+        }
+        heartbeats = executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                send(HEARTBEAT, new BasicProperties.Builder(), new byte[0]);
+            }
+        }, 0, heartbeatMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    public void scheduled(String routingKey, BasicProperties properties, byte[] body, long deliveryTime) {
+        Map<String, Object> headers = properties.getHeaders() != null ? new HashMap<String, Object>(properties.getHeaders()) : new HashMap<String, Object>();
+        headers.put(ROUTING_KEY_HEADER, routingKey);
+        headers.put(DELIVERY_TIME_HEADER, deliveryTime);
+        send(SCHEDULED, properties.builder().headers(headers), body);
+    }
+    
+    public void settled(String messageId) {
+        send(SETTLED, new BasicProperties.Builder().messageId(messageId), new byte[0]);
+    }
+    
+    /**
+     * Stops the heartbeats, and tells the standby to take over now, rather
+     * than waiting for the heartbeats to time out. Call this once everything
+     * pending has been handed back to the broker.
+     */
+    public synchronized void handover() {
+        if (heartbeats == null) {
+            return;
+        }
+        heartbeats.cancel(false);
+        heartbeats = null;
+        send(HANDOVER, new BasicProperties.Builder(), new byte[0]);
+    }
+    
+    private void send(String op, BasicProperties.Builder properties, byte[] body) {
+        if (!channel.isOpen()) {
+            // the connection has gone, and the standby will hear the silence
+            return;
+        }
+        BasicProperties record = properties.build();
+        Map<String, Object> headers = record.getHeaders() != null ? new HashMap<String, Object>(record.getHeaders()) : new HashMap<String, Object>();
+        headers.put(OP_HEADER, op);
+        try {
+            synchronized (channel) {
+                channel.basicPublish(exchangeName, routeName, record.builder().headers(headers).build(), body);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+    
+}
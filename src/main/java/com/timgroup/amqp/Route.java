@@ -0,0 +1,116 @@
+package com.timgroup.amqp;
+
+/**
+ * One inbound queue and the exchange its messages are repeated to: a
+ * {@link Receiver} on a channel of its own, and a {@link Transmitter} with a
+ * store, acknowledger and metrics of its own, running on the engine of the
+ * {@link Shard} it belongs to. There may also be a {@link Controller}, taking
+ * commands to cancel and replace pending messages on the same channel, and a
+ * {@link Replicator} keeping a standby instance warm, or a {@link Standby}
+ * holding the route in reserve for an active one.
+ */
+public class Route {
+    
+    private final Receiver receiver;
+    private final Controller controller;
+    private final Replicator replicator;
+    private final Standby standby;
+    private final Transmitter transmitter;
+    private final ShardMonitor monitor;
+    
+    public Route(Receiver receiver, Transmitter transmitter, CatchUpScheduler<?> catchUp, Throttle throttle) {
+        this(receiver, null, transmitter, catchUp, throttle);
+    }
+    
+    /**
+     * @param controller
+     *            taking commands for the route's pending messages, or null if
+     *            they can't be cancelled
+     * @param catchUp
+     *            the engine's scheduler, if it has a catch-up lane, for
+     *            monitoring
+     * @param throttle
+     *            the receiver is throttled by, or null if none, for
+     *            monitoring
+     */
+    public Route(Receiver receiver, Controller controller, Transmitter transmitter, CatchUpScheduler<?> catchUp, Throttle throttle) {
+        this(receiver, controller, null, null, transmitter, catchUp, throttle);
+    }
+    
+    /**
+     * @param replicator
+     *            replicating the route's pending messages, or null if they
+     *            aren't
+     * @param standby
+     *            holding the route in reserve, or null if it is active
+     */
+    public Route(Receiver receiver, Controller controller, Replicator replicator, Standby standby, Transmitter transmitter, CatchUpScheduler<?> catchUp, Throttle throttle) {
+        this(receiver, controller, replicator, standby, transmitter, catchUp, throttle, true);
+    }
+    
+    /**
+     * @param first
+     *            whether this is the first route of its shard, whose monitor
+     *            reports the figures of the engine the routes share
+     */
+    public Route(Receiver receiver, Controller controller, Replicator replicator, Standby standby, Transmitter transmitter, CatchUpScheduler<?> catchUp, Throttle throttle, boolean first) {
+        this.receiver = receiver;
+        this.controller = controller;
+        this.replicator = replicator;
+        this.standby = standby;
+        this.transmitter = transmitter;
+        this.monitor = new ShardMonitor(receiver.getQueueName(), transmitter, catchUp, throttle, receiver, first);
+    }
+    
+    /**
+     * @return the name of the inbound queue
+     */
+    public String getName() {
+        return receiver.getQueueName();
+    }
+    
+    public Receiver getReceiver() {
+        return receiver;
+    }
+    
+    /**
+     * @return the controller, or null if there isn't one
+     */
+    public Controller getController() {
+        return controller;
+    }
+    
+    /**
+     * @return the replicator, or null if there isn't one
+     */
+    public Replicator getReplicator() {
+        return replicator;
+    }
+    
+    /**
+     * @return the standby, or null if the route started out active
+     */
+    public Standby getStandby() {
+        return standby;
+    }
+    
+    /**
+     * @return the highest delivery tag seen so far on the route's channel, by
+     *         the receiver or the controller
+     */
+    public long getHighestDeliveryTag() {
+        return controller != null ? Math.max(receiver.getHighestDeliveryTag(), controller.getHighestDeliveryTag()) : receiver.getHighestDeliveryTag();
+    }
+    
+    public Transmitter getTransmitter() {
+        return transmitter;
+    }
+    
+    /**
+     * @return the route's metrics, named after its inbound queue
+     */
+    public ShardMonitor getMonitor() {
+        return monitor;
+    }
+    
+}
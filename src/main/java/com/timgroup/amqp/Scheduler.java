@@ -0,0 +1,60 @@
+package com.timgroup.amqp;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An engine which holds items until an absolute time, and then hands them to
+ * a {@link Handler}. Items due at the same millisecond are handed over in the
+ * order they were scheduled; an item is never handed over before its time,
+ * and a far item never holds up a near one.
+ */
+public interface Scheduler<T> {
+    
+    public interface Handler<T> {
+        public void expired(T item);
+    }
+    
+    public void start(Handler<? super T> handler);
+    
+    /**
+     * @param deliveryTime
+     *            milliseconds since the epoch; times in the past are due
+     *            immediately
+     * @param weight
+     *            what the item counts for in the {@link #getBacklog()}, such
+     *            as its size in bytes
+     * @return a handle identifying the scheduled item
+     */
+    public long schedule(T item, long deliveryTime, int weight);
+    
+    /**
+     * Takes back an item which hasn't been handed over yet.
+     *
+     * @param handle
+     *            as returned by {@link #schedule}
+     * @return the item, or null if it has already been handed over, or
+     *         taken back
+     */
+    public T cancel(long handle);
+    
+    public int size();
+    
+    public Backlog getBacklog();
+    
+    /**
+     * Stops accepting new items. Items already scheduled are still handed
+     * over at their appointed times.
+     */
+    public void shutdown();
+    
+    /**
+     * Stops accepting new items, and takes back the items which haven't been
+     * handed over yet, in no particular order. A batch already being handed
+     * over is finished; {@link #awaitTermination} waits for it.
+     */
+    public List<T> shutdownNow();
+    
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException;
+    
+}
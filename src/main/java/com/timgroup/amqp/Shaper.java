@@ -0,0 +1,73 @@
+package com.timgroup.amqp;
+
+import java.util.Map;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * Spreads out bursts of messages which fall due at the same instant, such as
+ * everything a producer scheduled for the top of the hour, so that the
+ * outbound exchange sees a steady stream rather than a spike.
+ *
+ * This is a token bucket, kept as a theoretical release time: each message
+ * which falls due takes the next free slot, one every 1/rate seconds, and up
+ * to a burst of messages may go at once when the bucket is full. Because
+ * messages fall due in order of due time, and take slots in the order they
+ * fall due, a burst is released in due-time order, the same way every time.
+ * No message is held back more than the maximum spread past the time it
+ * fell due; one which would be still takes its slot, so the messages behind
+ * it are not bunched up any more than they would be anyway. But the release
+ * time never runs more than a slot past the maximum spread, so that a burst
+ * too big to spread out doesn't hold up the traffic which comes after it.
+ *
+ * A message with the strict delivery header set to true skips the shaper
+ * altogether, and neither waits for nor takes a slot.
+ */
+public class Shaper {
+    
+    public static final String STRICT_DELIVERY_HEADER = "scheduled_delivery_strict";
+    public static final long DEFAULT_MAX_SPREAD_MILLIS = 60000;
+    
+    private final double intervalMillis;
+    private final double toleranceMillis;
+    private final long maxSpreadMillis;
+    private double releaseTime = Double.NEGATIVE_INFINITY;
+    
+    /**
+     * @param ratePerSecond
+     *            how many messages to release a second, once the burst is
+     *            used up
+     * @param burst
+     *            how many messages may be released at once
+     * @param maxSpreadMillis
+     *            the longest any message may be held back
+     */
+    public Shaper(double ratePerSecond, int burst, long maxSpreadMillis) {
+        if (ratePerSecond <= 0) {
+            throw new IllegalArgumentException("shaping rate must be positive: " + ratePerSecond);
+        }
+        if (burst < 1) {
+            throw new IllegalArgumentException("shaping burst must be at least one: " + burst);
+        }
+        this.intervalMillis = 1000 / ratePerSecond;
+        this.toleranceMillis = (burst - 1) * intervalMillis;
+        this.maxSpreadMillis = maxSpreadMillis;
+    }
+    
+    public static boolean isStrict(BasicProperties properties) {
+        Map<String, Object> headers = properties != null ? properties.getHeaders() : null;
+        return headers != null && Boolean.TRUE.equals(headers.get(STRICT_DELIVERY_HEADER));
+    }
+    
+    /**
+     * Takes the next slot for a message which has just fallen due.
+     *
+     * @return when to release the message, which is never before now
+     */
+    public synchronized long release(long now) {
+        double earliest = Math.max(now, releaseTime - toleranceMillis);
+        releaseTime = Math.min(Math.max(releaseTime, now) + intervalMillis, now + maxSpreadMillis + intervalMillis);
+        return Math.min((long) Math.ceil(earliest), now + maxSpreadMillis);
+    }
+    
+}
@@ -0,0 +1,304 @@
+package com.timgroup.amqp;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+
+/**
+ * One complete scheduling pipeline: a connection with its own consumer
+ * thread, and an {@link Engine} with its own scheduler thread and publishers,
+ * serving one or more {@link Route}s from inbound queues to outbound
+ * exchanges.
+ *
+ * Shards share nothing, not even a connection, so several of them in one
+ * process scale with the number of cores rather than contending with one
+ * another. Because each shard works alone, it doesn't matter to correctness
+ * how producers spread messages across the inbound partitions; for an even
+ * load they should spread them evenly, and if the relative order of messages
+ * due at the same millisecond matters, they should send related messages to
+ * the same partition, for instance with {@link #partitionFor}.
+ *
+ * Routes within a shard, on the other hand, share its threads, so that a
+ * process serving many small inbound queues needs no more threads than one
+ * serving a single queue. Each route still has its own store budget and
+ * prefetch, so one which backs up can't take the others down with it.
+ */
+public class Shard implements Closeable {
+    
+    /**
+     * The partition a producer should send messages with the given key to,
+     * to keep them together.
+     */
+    public static int partitionFor(String key, int partitionCount) {
+        return (key.hashCode() & Integer.MAX_VALUE) % partitionCount;
+    }
+    
+    /**
+     * Opens a shard with a single route, which is one of shardCount
+     * partitions sharing out the store budget and cores.
+     */
+    public static Shard open(ConnectionFactory factory, Configuration configuration, String inboundQueueName, String outboundQueueName, int shardCount) throws IOException {
+        Shard shard = openEngine(factory, configuration, shardCount);
+        try {
+            shard.addRoute(configuration, inboundQueueName, outboundQueueName, configuration.getLong("storeBudgetBytes", Transmitter.DEFAULT_STORE_BUDGET) / shardCount);
+        } catch (IOException e) {
+            Application.closeQuietly(shard);
+            throw e;
+        }
+        return shard;
+    }
+    
+    /**
+     * Opens a single shard for all of the named routes. Each route is
+     * configured by the properties starting with route.<i>name</i>., which
+     * must include inboundQueueName, and otherwise default to the global
+     * ones, except that unless it has a storeBudgetBytes of its own, a route
+     * gets an even share of the global budget.
+     */
+    public static Shard openRoutes(ConnectionFactory factory, Configuration configuration, List<String> routeNames) throws IOException {
+        Shard shard = openEngine(factory, configuration, 1);
+        try {
+            for (String routeName : routeNames) {
+                String prefix = "route." + routeName + ".";
+                Configuration routeConfiguration = configuration.withPrefix(prefix);
+                long storeBudgetBytes = configuration.getString(prefix + "storeBudgetBytes") != null
+                        ? routeConfiguration.getLong("storeBudgetBytes", 0)
+                        : configuration.getLong("storeBudgetBytes", Transmitter.DEFAULT_STORE_BUDGET) / routeNames.size();
+                shard.addRoute(routeConfiguration, configuration.getString(prefix + "inboundQueueName"), routeConfiguration.getString("outboundQueueName"), storeBudgetBytes);
+            }
+        } catch (IOException e) {
+            Application.closeQuietly(shard);
+            throw e;
+        }
+        return shard;
+    }
+    
+    private static Shard openEngine(ConnectionFactory factory, Configuration configuration, int shardCount) throws IOException {
+        int publisherCount = configuration.getInt("publisherCount", Math.max(1, Runtime.getRuntime().availableProcessors() / shardCount));
+        
+        ExecutorService consumerThread = Executors.newSingleThreadExecutor();
+        Connection connection = factory.newConnection(consumerThread);
+        
+        PublisherPool publishers = PublisherPool.open(connection, publisherCount, configuration.getInt("maxInFlight", Publisher.DEFAULT_MAX_IN_FLIGHT));
+        Scheduler<PendingMessage> scheduler;
+        if (configuration.getBoolean("precisionRelease", false)) {
+            scheduler = new TimingWheelScheduler<PendingMessage>(Clock.SYSTEM, configuration.getLong("precisionMaxSpinMicros", TimingWheelScheduler.DEFAULT_MAX_SPIN_MICROS));
+        } else {
+            scheduler = new TimingWheelScheduler<PendingMessage>();
+        }
+        CatchUpScheduler<PendingMessage> catchUp = null;
+        if (configuration.getString("catchUpRate") != null) {
+            scheduler = catchUp = new CatchUpScheduler<PendingMessage>(scheduler, configuration.getDouble("catchUpRate", 0) / shardCount, configuration.getLong("catchUpThresholdMillis", CatchUpScheduler.DEFAULT_THRESHOLD_MILLIS));
+        }
+        Engine engine = new Engine(scheduler, publishers);
+        engine.setShutdownGraceMillis(configuration.getLong("shutdownGraceMillis", Engine.DEFAULT_SHUTDOWN_GRACE_MILLIS));
+        engine.start();
+        
+        ScheduledExecutorService housekeeping = Executors.newSingleThreadScheduledExecutor();
+        Throttle throttle = new Throttle(publishers, configuration.getInt("throttleSlowBacklog", Throttle.DEFAULT_SLOW_BACKLOG), configuration.getInt("throttleStopBacklog", Throttle.DEFAULT_STOP_BACKLOG));
+        connection.addBlockedListener(throttle);
+        throttle.start(housekeeping, configuration.getLong("throttleCheckMillis", Throttle.DEFAULT_CHECK_MILLIS));
+        
+        return new Shard(connection, consumerThread, housekeeping, engine, catchUp, throttle);
+    }
+    
+    private final Connection connection;
+    private final ExecutorService consumerThread;
+    private final ScheduledExecutorService housekeeping;
+    private final Engine engine;
+    private final CatchUpScheduler<?> catchUp;
+    private final Throttle throttle;
+    private final List<Route> routes = new CopyOnWriteArrayList<Route>();
+    
+    /**
+     * @param housekeeping
+     *            to flush acks and check the throttle on
+     * @param catchUp
+     *            the engine's scheduler, if it has a catch-up lane, for
+     *            monitoring
+     * @param throttle
+     *            to throttle the routes' receivers with
+     */
+    public Shard(Connection connection, ExecutorService consumerThread, ScheduledExecutorService housekeeping, Engine engine, CatchUpScheduler<?> catchUp, Throttle throttle) {
+        this.connection = connection;
+        this.consumerThread = consumerThread;
+        this.housekeeping = housekeeping;
+        this.engine = engine;
+        this.catchUp = catchUp;
+        this.throttle = throttle;
+    }
+    
+    /**
+     * Consumes from the inbound queue on a channel of its own, and repeats
+     * its messages to the outbound exchange on the shard's engine.
+     */
+    public Route addRoute(Configuration configuration, String inboundQueueName, String outboundQueueName, long storeBudgetBytes) throws IOException {
+        Channel consumerChannel = connection.createChannel();
+        Acknowledger acknowledger = new Acknowledger(consumerChannel, configuration.getInt("confirmBatchSize", Acknowledger.DEFAULT_BATCH_SIZE), configuration.getLong("confirmLingerMillis", Acknowledger.DEFAULT_LINGER_MILLIS), housekeeping);
+        Journal journal = null;
+        if (configuration.getString("journalDirectory") != null) {
+            journal = new Journal(new File(configuration.getString("journalDirectory"), inboundQueueName), configuration.getInt("journalSegmentBytes", Journal.DEFAULT_SEGMENT_SIZE), configuration.getLong("journalCommitMillis", Journal.DEFAULT_COMMIT_MILLIS), acknowledger);
+        }
+        SlabStore store = new SlabStore(storeBudgetBytes, SlabStore.DEFAULT_SLAB_SIZE, configuration.getInt("compressionThresholdBytes", SlabStore.DEFAULT_COMPRESSION_THRESHOLD));
+        String controlQueueName = configuration.getString("controlQueueName");
+        if (controlQueueName != null && configuration.getString("horizonMillis") != null) {
+            throw new IllegalArgumentException("controlQueueName can't be combined with horizonMillis, since messages parked on the holding queues can't be cancelled or replaced");
+        }
+        String replicationExchange = configuration.getString("replicationExchange");
+        Transmitter transmitter = new Transmitter(engine, acknowledger, outboundQueueName, store, new Metrics(), journal, controlQueueName != null || replicationExchange != null);
+        transmitter.setDeduplicating(configuration.getBoolean("deduplicateMessageIds", false));
+        if (configuration.getString("shapingRate") != null) {
+            transmitter.setShaper(new Shaper(configuration.getDouble("shapingRate", 0), configuration.getInt("shapingBurst", 1), configuration.getLong("shapingMaxSpreadMillis", Shaper.DEFAULT_MAX_SPREAD_MILLIS)));
+        }
+        if (configuration.getString("traceSampleRate") != null) {
+            transmitter.setTracer(new Tracer(configuration.getDouble("traceSampleRate", 0), inboundQueueName, configuration.getString("instanceId") != null ? configuration.getString("instanceId") : defaultInstanceId()));
+        }
+        HoldingQueues holdingQueues = null;
+        if (configuration.getString("horizonMillis") != null) {
+            holdingQueues = new HoldingQueues(consumerChannel, engine.getPublishers(), transmitter.getSettler(), inboundQueueName, configuration.getLong("horizonMillis", 0), configuration.getLongs("holdingQueueTtls", "60000,600000,3600000,86400000"));
+            holdingQueues.declare();
+        }
+        Receiver receiver = new Receiver(consumerChannel, inboundQueueName, transmitter, holdingQueues);
+        receiver.setPrefetchCount(configuration.getInt("prefetchCount", 0));
+        receiver.setThrottledPrefetchCount(configuration.getInt("throttledPrefetchCount", Receiver.DEFAULT_THROTTLED_PREFETCH_COUNT));
+        if (configuration.getBoolean("adaptivePrefetch", false)) {
+            AdaptivePrefetch adaptivePrefetch = new AdaptivePrefetch(receiver, transmitter, configuration.getInt("minPrefetchCount", AdaptivePrefetch.DEFAULT_MIN_PREFETCH_COUNT), configuration.getInt("maxPrefetchCount", AdaptivePrefetch.DEFAULT_MAX_PREFETCH_COUNT),
+                    configuration.getLong("prefetchLatenessLimitMillis", AdaptivePrefetch.DEFAULT_LATENESS_LIMIT_MILLIS), configuration.getInt("prefetchBacklogLimit", AdaptivePrefetch.DEFAULT_BACKLOG_LIMIT));
+            adaptivePrefetch.start(housekeeping, configuration.getLong("prefetchCheckMillis", AdaptivePrefetch.DEFAULT_CHECK_MILLIS));
+        }
+        throttle.add(receiver);
+        if (configuration.getString("quarantineExchange") != null) {
+            Quarantine quarantine = new Quarantine(consumerChannel, engine.getPublishers(), acknowledger, configuration.getString("quarantineExchange"));
+            quarantine.declare();
+            receiver.setQuarantine(quarantine);
+        }
+        Controller controller = controlQueueName != null ? new Controller(consumerChannel, controlQueueName, transmitter) : null;
+        Replicator replicator = null;
+        Standby standby = null;
+        if (replicationExchange != null) {
+            replicator = new Replicator(connection.createChannel(), replicationExchange, inboundQueueName, configuration.getLong("replicationHeartbeatMillis", Replicator.DEFAULT_HEARTBEAT_MILLIS));
+            replicator.declare();
+            if (configuration.getBoolean("standby", false)) {
+                standby = new Standby(replicator, receiver, controller, transmitter, configuration.getLong("failoverTimeoutMillis", Standby.DEFAULT_FAILOVER_TIMEOUT_MILLIS));
+            } else {
+                transmitter.setReplicator(replicator);
+            }
+        }
+        
+        Route route = new Route(receiver, controller, replicator, standby, transmitter, catchUp, throttle, routes.isEmpty());
+        routes.add(route);
+        return route;
+    }
+    
+    private static String defaultInstanceId() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return "unknown";
+        }
+    }
+    
+    public Connection getConnection() {
+        return connection;
+    }
+    
+    public Engine getEngine() {
+        return engine;
+    }
+    
+    public Throttle getThrottle() {
+        return throttle;
+    }
+    
+    public List<Route> getRoutes() {
+        return Collections.unmodifiableList(routes);
+    }
+    
+    /**
+     * @return the receiver of the first route
+     */
+    public Receiver getReceiver() {
+        return routes.get(0).getReceiver();
+    }
+    
+    /**
+     * @return the transmitter of the first route
+     */
+    public Transmitter getTransmitter() {
+        return routes.get(0).getTransmitter();
+    }
+    
+    /**
+     * @return the metrics of the first route
+     */
+    public ShardMonitor getMonitor() {
+        return routes.get(0).getMonitor();
+    }
+    
+    /**
+     * Starts consuming on every route, except those held in reserve by a
+     * standby, which start when it takes over.
+     */
+    public void start() throws IOException {
+        for (Route route : routes) {
+            if (route.getStandby() != null) {
+                route.getStandby().start(housekeeping);
+                continue;
+            }
+            if (route.getController() != null) {
+                route.getController().start();
+            }
+            route.getReceiver().start();
+            if (route.getReplicator() != null) {
+                route.getReplicator().start(housekeeping);
+            }
+        }
+    }
+    
+    /**
+     * Stops consuming, publishes whatever falls due within the grace period,
+     * and hands everything else back to the inbound queues with a single nack
+     * each, so that another instance can pick it up straight away; a standby
+     * is told to take over as soon as that is done.
+     */
+    @Override
+    public void close() throws IOException {
+        for (Route route : routes) {
+            if (route.getStandby() != null) {
+                Application.closeQuietly(route.getStandby());
+            }
+            Application.closeQuietly(route.getReceiver());
+            if (route.getController() != null) {
+                Application.closeQuietly(route.getController());
+            }
+        }
+        Application.closeQuietly(engine);
+        for (Route route : routes) {
+            Application.closeQuietly(route.getTransmitter());
+            try {
+                route.getTransmitter().getAcknowledger().requeueAll(route.getHighestDeliveryTag());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (route.getReplicator() != null) {
+                route.getReplicator().handover();
+            }
+        }
+        housekeeping.shutdown();
+        Application.closeQuietly(Application.closeable(connection));
+        consumerThread.shutdown();
+    }
+    
+}
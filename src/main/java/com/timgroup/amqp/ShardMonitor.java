@@ -0,0 +1,333 @@
+package com.timgroup.amqp;
+
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * A view of the metrics and state of one shard, for JMX and for the
+ * {@link MetricsServer}.
+ */
+public class ShardMonitor implements ShardMonitorMXBean {
+    
+    private final String name;
+    private final Transmitter transmitter;
+    private final Metrics metrics;
+    private final CatchUpScheduler<?> catchUp;
+    private final Throttle throttle;
+    private final Receiver receiver;
+    private final boolean reportsEngine;
+    private ObjectName objectName;
+    
+    public ShardMonitor(String name, Transmitter transmitter) {
+        this(name, transmitter, null);
+    }
+    
+    /**
+     * @param catchUp
+     *            the transmitter's catch-up lane, or null if it has none
+     */
+    public ShardMonitor(String name, Transmitter transmitter, CatchUpScheduler<?> catchUp) {
+        this(name, transmitter, catchUp, null);
+    }
+    
+    /**
+     * @param throttle
+     *            the shard's throttle, or null if it has none
+     */
+    public ShardMonitor(String name, Transmitter transmitter, CatchUpScheduler<?> catchUp, Throttle throttle) {
+        this(name, transmitter, catchUp, throttle, null);
+    }
+    
+    /**
+     * @param receiver
+     *            the shard's receiver, or null, for its prefetch
+     */
+    public ShardMonitor(String name, Transmitter transmitter, CatchUpScheduler<?> catchUp, Throttle throttle, Receiver receiver) {
+        this(name, transmitter, catchUp, throttle, receiver, true);
+    }
+    
+    /**
+     * @param reportsEngine
+     *            whether to report the figures of the engine: pending
+     *            messages by how soon they are due, the catch-up lane and
+     *            the publish backlog. Routes share their shard's engine, so
+     *            only one of them should, or they would be counted once per
+     *            route.
+     */
+    public ShardMonitor(String name, Transmitter transmitter, CatchUpScheduler<?> catchUp, Throttle throttle, Receiver receiver, boolean reportsEngine) {
+        this.name = name;
+        this.transmitter = transmitter;
+        this.metrics = transmitter.getMetrics();
+        this.catchUp = catchUp;
+        this.throttle = throttle;
+        this.receiver = receiver;
+        this.reportsEngine = reportsEngine;
+    }
+    
+    public String getName() {
+        return name;
+    }
+    
+    public Metrics getMetrics() {
+        return metrics;
+    }
+    
+    /**
+     * @return whether this monitor reports the figures of the engine its
+     *         shard's routes share; if not, they are reported as empty
+     */
+    public boolean reportsEngine() {
+        return reportsEngine;
+    }
+    
+    public Backlog getBacklog() {
+        return reportsEngine ? transmitter.getBacklog() : new Backlog(new long[0], new long[0], new long[0]);
+    }
+    
+    /**
+     * @param application
+     *            the number of the application the shard belongs to, which
+     *            tells its MBean apart from those of other applications in
+     *            the same JVM repeating the same queue
+     */
+    public synchronized void register(int application) throws JMException {
+        ObjectName objectName = new ObjectName("com.timgroup.amqp:type=Shard,application=" + application + ",name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        this.objectName = objectName;
+    }
+    
+    public synchronized void unregister() throws JMException {
+        if (objectName == null) {
+            throw new InstanceNotFoundException("shard " + name + " is not registered");
+        }
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        objectName = null;
+    }
+    
+    @Override
+    public long getReceivedCount() {
+        return metrics.getReceivedCount();
+    }
+    
+    @Override
+    public long getParkedCount() {
+        return metrics.getParkedCount();
+    }
+    
+    @Override
+    public long getScheduledCount() {
+        return metrics.getScheduledCount();
+    }
+    
+    @Override
+    public long getQuarantinedCount() {
+        return metrics.getQuarantinedCount();
+    }
+    
+    @Override
+    public long getBatchEntryCount() {
+        return metrics.getBatchEntryCount();
+    }
+    
+    @Override
+    public long getRefusedCount() {
+        return metrics.getRefusedCount();
+    }
+    
+    @Override
+    public long getPublishedCount() {
+        return metrics.getPublishedCount();
+    }
+    
+    @Override
+    public long getConfirmedCount() {
+        return metrics.getConfirmedCount();
+    }
+    
+    @Override
+    public long getRejectedCount() {
+        return metrics.getRejectedCount();
+    }
+    
+    @Override
+    public long getCancelledCount() {
+        return metrics.getCancelledCount();
+    }
+    
+    @Override
+    public long getCancelMissCount() {
+        return metrics.getCancelMissCount();
+    }
+    
+    @Override
+    public long getDeduplicatedCount() {
+        return metrics.getDeduplicatedCount();
+    }
+    
+    @Override
+    public int getIndexedCount() {
+        return transmitter.getIndexedCount();
+    }
+    
+    @Override
+    public long getReplicaDuplicateCount() {
+        return metrics.getReplicaDuplicateCount();
+    }
+    
+    @Override
+    public int getStagedCount() {
+        return transmitter.getStagedCount();
+    }
+    
+    @Override
+    public int getPendingCount() {
+        return transmitter.getPendingCount();
+    }
+    
+    @Override
+    public long getPendingBytes() {
+        return transmitter.getStore().getUsedBytes();
+    }
+    
+    @Override
+    public long getPendingPlainBytes() {
+        return transmitter.getStore().getPlainBytes();
+    }
+    
+    @Override
+    public double getStoreCompactionRatio() {
+        SlabStore store = transmitter.getStore();
+        long usedBytes = store.getUsedBytes();
+        return usedBytes > 0 ? (double) store.getPlainBytes() / usedBytes : 1;
+    }
+    
+    @Override
+    public Map<String, Long> getPendingCountByHorizon() {
+        Backlog backlog = getBacklog();
+        Map<String, Long> counts = new LinkedHashMap<String, Long>();
+        for (int band = 0; band < backlog.getBandCount(); band++) {
+            counts.put(horizonSeconds(backlog.getHorizonMillis(band)), backlog.getCount(band));
+        }
+        return counts;
+    }
+    
+    @Override
+    public Map<String, Long> getPendingBytesByHorizon() {
+        Backlog backlog = getBacklog();
+        Map<String, Long> bytes = new LinkedHashMap<String, Long>();
+        for (int band = 0; band < backlog.getBandCount(); band++) {
+            bytes.put(horizonSeconds(backlog.getHorizonMillis(band)), backlog.getWeight(band));
+        }
+        return bytes;
+    }
+    
+    @Override
+    public int getOverdueCount() {
+        return reportsEngine && catchUp != null ? catchUp.getOverdueCount() : 0;
+    }
+    
+    @Override
+    public long getOverdueBytes() {
+        return reportsEngine && catchUp != null ? catchUp.getOverdueWeight() : 0;
+    }
+    
+    @Override
+    public long getEstimatedCatchUpMillis() {
+        return reportsEngine && catchUp != null ? catchUp.getEstimatedDrainMillis() : 0;
+    }
+    
+    @Override
+    public long getStoreAllocatedBytes() {
+        return transmitter.getStore().getAllocatedBytes();
+    }
+    
+    @Override
+    public int getPublishBacklog() {
+        return reportsEngine ? transmitter.getPublishers().getBacklog() : 0;
+    }
+    
+    @Override
+    public int getPrefetchCount() {
+        return receiver != null ? receiver.getEffectivePrefetchCount() : 0;
+    }
+    
+    @Override
+    public String getThrottleState() {
+        return throttle != null ? throttle.getState().name() : Throttle.State.OPEN.name();
+    }
+    
+    @Override
+    public boolean isConnectionBlocked() {
+        return throttle != null && throttle.isBlocked();
+    }
+    
+    @Override
+    public long getThrottleChangeCount() {
+        return throttle != null ? throttle.getStateChangeCount() : 0;
+    }
+    
+    @Override
+    public long getClockCorrectionCount() {
+        return Clock.SYSTEM.getCorrectionCount();
+    }
+    
+    @Override
+    public long getLatenessMicrosMedian() {
+        return metrics.getLateness().getPercentile(50);
+    }
+    
+    @Override
+    public long getLatenessMicros99thPercentile() {
+        return metrics.getLateness().getPercentile(99);
+    }
+    
+    @Override
+    public long getLatenessMicrosMax() {
+        return metrics.getLateness().getMax();
+    }
+    
+    @Override
+    public long getSpreadMillisMedian() {
+        return metrics.getSpread().getPercentile(50);
+    }
+    
+    @Override
+    public long getSpreadMillis99thPercentile() {
+        return metrics.getSpread().getPercentile(99);
+    }
+    
+    @Override
+    public long getSpreadMillisMax() {
+        return metrics.getSpread().getMax();
+    }
+    
+    @Override
+    public long getPublishMicrosMedian() {
+        return metrics.getPublishDuration().getPercentile(50);
+    }
+    
+    @Override
+    public long getPublishMicros99thPercentile() {
+        return metrics.getPublishDuration().getPercentile(99);
+    }
+    
+    @Override
+    public long getPublishMicrosMax() {
+        return metrics.getPublishDuration().getMax();
+    }
+    
+    static String horizonSeconds(long horizonMillis) {
+        return horizonMillis == Long.MAX_VALUE ? "+Inf" : seconds(horizonMillis, 1000);
+    }
+    
+    static String seconds(long value, long unitsPerSecond) {
+        return new BigDecimal(value).divide(new BigDecimal(unitsPerSecond)).stripTrailingZeros().toPlainString();
+    }
+    
+}
@@ -0,0 +1,160 @@
+package com.timgroup.amqp;
+
+import java.util.Map;
+
+/**
+ * What a {@link ShardMonitor} shows over JMX. Counts only ever go up;
+ * percentiles are the upper bounds of the histogram buckets they fall in.
+ */
+public interface ShardMonitorMXBean {
+    
+    public long getReceivedCount();
+    
+    public long getParkedCount();
+    
+    public long getScheduledCount();
+    
+    /**
+     * @return how many messages were quarantined, or dropped, because their
+     *         delivery time couldn't be made out, or they were batch
+     *         envelopes which couldn't be unpacked
+     */
+    public long getQuarantinedCount();
+    
+    /**
+     * @return how many entries have been unpacked from batch envelopes
+     */
+    public long getBatchEntryCount();
+    
+    public long getRefusedCount();
+    
+    public long getPublishedCount();
+    
+    public long getConfirmedCount();
+    
+    public long getRejectedCount();
+    
+    /**
+     * @return how many pending messages have been cancelled or replaced
+     */
+    public long getCancelledCount();
+    
+    /**
+     * @return how many cancels and replacements found no pending message to
+     *         apply to, because it had already been published or hadn't been
+     *         received yet
+     */
+    public long getCancelMissCount();
+    
+    public long getDeduplicatedCount();
+    
+    /**
+     * @return how many pending messages can be cancelled by message ID
+     */
+    public int getIndexedCount();
+    
+    /**
+     * @return how many redelivered messages have been dropped because their
+     *         replica had already been published after a takeover
+     */
+    public long getReplicaDuplicateCount();
+    
+    /**
+     * @return how many replicas of messages pending on the active instance
+     *         are held here, waiting for a takeover
+     */
+    public int getStagedCount();
+    
+    public int getPendingCount();
+    
+    public long getPendingBytes();
+    
+    /**
+     * @return the store memory the pending messages would hold if their
+     *         properties weren't shared and their bodies weren't compressed
+     */
+    public long getPendingPlainBytes();
+    
+    /**
+     * @return the plain bytes over the bytes actually held, or 1 if nothing
+     *         is pending
+     */
+    public double getStoreCompactionRatio();
+    
+    /**
+     * @return the number of pending messages due within each horizon, keyed
+     *         by the horizon in seconds
+     */
+    public Map<String, Long> getPendingCountByHorizon();
+    
+    public Map<String, Long> getPendingBytesByHorizon();
+    
+    /**
+     * @return the number of overdue messages waiting in the catch-up lane,
+     *         which aren't counted by horizon
+     */
+    public int getOverdueCount();
+    
+    public long getOverdueBytes();
+    
+    /**
+     * @return how long the catch-up lane will take to empty at its rate
+     */
+    public long getEstimatedCatchUpMillis();
+    
+    public long getStoreAllocatedBytes();
+    
+    public int getPublishBacklog();
+    
+    /**
+     * @return the prefetch the receiver is consuming with, as adjusted by
+     *         {@link AdaptivePrefetch} and the {@link Throttle}; zero for
+     *         unlimited
+     */
+    public int getPrefetchCount();
+    
+    /**
+     * @return OPEN, SLOWED or STOPPED; see {@link Throttle}
+     */
+    public String getThrottleState();
+    
+    /**
+     * @return whether the broker has blocked the connection, because of a
+     *         memory or disk alarm
+     */
+    public boolean isConnectionBlocked();
+    
+    /**
+     * @return how many times consumption has been throttled or unthrottled
+     */
+    public long getThrottleChangeCount();
+    
+    /**
+     * @return how many times the clock has been anchored afresh because the
+     *         wall clock jumped or drifted
+     */
+    public long getClockCorrectionCount();
+    
+    public long getLatenessMicrosMedian();
+    
+    public long getLatenessMicros99thPercentile();
+    
+    public long getLatenessMicrosMax();
+    
+    /**
+     * @return how long the shaper held messages back, at the median; only
+     *         messages which went through the shaper count
+     */
+    public long getSpreadMillisMedian();
+    
+    public long getSpreadMillis99thPercentile();
+    
+    public long getSpreadMillisMax();
+    
+    public long getPublishMicrosMedian();
+    
+    public long getPublishMicros99thPercentile();
+    
+    public long getPublishMicrosMax();
+    
+}
@@ -0,0 +1,341 @@
+package com.timgroup.amqp;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * Off-heap storage for the content of pending messages, so that the heap only
+ * holds a small handle for each one.
+ *
+ * Memory comes from direct buffers carved into slabs. Each slab serves a
+ * single power-of-two chunk size, as in memcached; chunks are handed out from
+ * the newest slab for their size, and freed chunks go onto a free list for
+ * their size to be reused first. Records too big for a slab get a direct
+ * buffer of their own. No more than the budget is ever allocated; once it has
+ * all been handed out, {@link #store} refuses further records until some are
+ * released, or, if nothing else is in it, refuses it as {@link #TOO_LARGE}
+ * for good. A slab stays with its chunk size while it holds any records, but
+ * once it is empty, it is given back to the budget when a record doesn't
+ * otherwise fit, so that memory which served one size can serve another.
+ *
+ * Records are written with a {@link CompactMessageCodec}, which shares the
+ * routing key and properties between messages which have them in common,
+ * and can deflate large bodies.
+ */
+public class SlabStore {
+    
+    public static final long NO_SPACE = -1;
+    public static final long TOO_LARGE = -2;
+    public static final int DEFAULT_SLAB_SIZE = 1 << 20;
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 256;
+    
+    private static final int MIN_CHUNK_BITS = 6;
+    private static final int DEDICATED = -1;
+    private static final int LENGTH_BYTES = 4;
+    
+    private final long budget;
+    private final int slabSize;
+    private final int maxChunkBits;
+    private final CompactMessageCodec codec;
+    private final List<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+    private final LongStack freeSlabIndices = new LongStack();
+    private final LongStack[] freeChunks;
+    private final int[] fillingSlabs;
+    private final int[] fillingOffsets;
+    private int[] slabChunkBits = new int[16];
+    private int[] slabCounts = new int[16];
+    private long allocatedBytes;
+    private long usedBytes;
+    private long plainBytes;
+    private int count;
+    
+    public SlabStore(long budget) {
+        this(budget, DEFAULT_SLAB_SIZE);
+    }
+    
+    /**
+     * Makes a store which doesn't compress bodies.
+     */
+    public SlabStore(long budget, int slabSize) {
+        this(budget, slabSize, CompactMessageCodec.NO_COMPRESSION);
+    }
+    
+    /**
+     * @param compressionThreshold
+     *            the smallest body to deflate
+     */
+    public SlabStore(long budget, int slabSize, int compressionThreshold) {
+        if (Integer.bitCount(slabSize) != 1 || slabSize < (1 << MIN_CHUNK_BITS)) {
+            throw new IllegalArgumentException("slab size must be a power of two no smaller than " + (1 << MIN_CHUNK_BITS) + ": " + slabSize);
+        }
+        this.budget = budget;
+        this.slabSize = slabSize;
+        this.maxChunkBits = Integer.numberOfTrailingZeros(slabSize);
+        this.codec = new CompactMessageCodec(compressionThreshold, CompactMessageCodec.DEFAULT_MAX_TEMPLATES);
+        this.freeChunks = new LongStack[maxChunkBits + 1];
+        this.fillingSlabs = new int[maxChunkBits + 1];
+        this.fillingOffsets = new int[maxChunkBits + 1];
+        Arrays.fill(fillingOffsets, slabSize);
+        for (int bits = MIN_CHUNK_BITS; bits <= maxChunkBits; bits++) {
+            freeChunks[bits] = new LongStack();
+        }
+    }
+    
+    /**
+     * @return a handle for the stored message, {@link #NO_SPACE} if the
+     *         budget does not stretch to it, or {@link #TOO_LARGE} if it
+     *         never will
+     */
+    public long store(String routingKey, BasicProperties properties, byte[] body) {
+        return store(routingKey, properties, body, 0);
+    }
+    
+    /**
+     * Stores one of several messages which are to be held all together or
+     * not at all.
+     *
+     * @param alongside
+     *            how many of the others have been stored already; if the
+     *            store holds nothing else and there is still no room,
+     *            {@link #TOO_LARGE} is returned
+     */
+    public long store(String routingKey, BasicProperties properties, byte[] body, int alongside) {
+        byte[] record = codec.encode(routingKey, properties, body);
+        long handle = allocate(LENGTH_BYTES + record.length, LENGTH_BYTES + CompactMessageCodec.plainSize(record), alongside);
+        if (handle == NO_SPACE || handle == TOO_LARGE) {
+            codec.release(CompactMessageCodec.templateNumber(record));
+            return handle;
+        }
+        ByteBuffer slab = slab(handle);
+        synchronized (slab) {
+            slab.position(offset(handle));
+            slab.putInt(record.length);
+            slab.put(record);
+        }
+        return handle;
+    }
+    
+    public Message read(long handle) {
+        ByteBuffer slab = slab(handle);
+        byte[] record;
+        synchronized (slab) {
+            slab.position(offset(handle));
+            record = new byte[slab.getInt()];
+            slab.get(record);
+        }
+        return codec.decode(record);
+    }
+    
+    public synchronized void release(long handle) {
+        int slabIndex = slabIndex(handle);
+        int chunkBits = slabChunkBits[slabIndex];
+        ByteBuffer slab = slabs.get(slabIndex);
+        synchronized (slab) {
+            int offset = offset(handle) + LENGTH_BYTES;
+            codec.release(CompactMessageCodec.templateNumber(slab, offset));
+            plainBytes -= footprint(LENGTH_BYTES + CompactMessageCodec.plainSize(slab, offset));
+        }
+        if (chunkBits == DEDICATED) {
+            slabs.set(slabIndex, null);
+            allocatedBytes -= slab.capacity();
+            usedBytes -= slab.capacity();
+            freeSlabIndices.push(slabIndex);
+        } else {
+            freeChunks[chunkBits].push(handle);
+            usedBytes -= 1 << chunkBits;
+            --slabCounts[slabIndex];
+        }
+        --count;
+    }
+    
+    /**
+     * @return the bytes of memory the record takes up, including the slack at
+     *         the end of its chunk
+     */
+    public synchronized int getSize(long handle) {
+        int slabIndex = slabIndex(handle);
+        int chunkBits = slabChunkBits[slabIndex];
+        return chunkBits == DEDICATED ? slabs.get(slabIndex).capacity() : 1 << chunkBits;
+    }
+    
+    public long getBudgetBytes() {
+        return budget;
+    }
+    
+    /**
+     * @return the bytes of direct memory taken from the budget so far
+     */
+    public synchronized long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+    
+    /**
+     * @return the bytes of allocated memory holding live records, including
+     *         the slack at the end of each chunk
+     */
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+    
+    /**
+     * @return the bytes of memory the live records would hold if their
+     *         properties weren't shared and their bodies weren't compressed,
+     *         to compare with {@link #getUsedBytes()}
+     */
+    public synchronized long getPlainBytes() {
+        return plainBytes;
+    }
+    
+    public synchronized int getCount() {
+        return count;
+    }
+    
+    private synchronized long allocate(int size, int plainSize, int alongside) {
+        long handle;
+        if (size > slabSize) {
+            if (allocatedBytes + size > budget && !reclaim(size)) {
+                return count == alongside ? TOO_LARGE : NO_SPACE;
+            }
+            int slabIndex = addSlab(ByteBuffer.allocateDirect(size), DEDICATED);
+            usedBytes += size;
+            handle = handle(slabIndex, 0);
+        } else {
+            int chunkBits = chunkBits(size);
+            LongStack free = freeChunks[chunkBits];
+            if (!free.isEmpty()) {
+                handle = free.pop();
+            } else {
+                if (fillingOffsets[chunkBits] == slabSize) {
+                    if (allocatedBytes + slabSize > budget && !reclaim(slabSize)) {
+                        return count == alongside ? TOO_LARGE : NO_SPACE;
+                    }
+                    fillingSlabs[chunkBits] = addSlab(ByteBuffer.allocateDirect(slabSize), chunkBits);
+                    fillingOffsets[chunkBits] = 0;
+                }
+                handle = handle(fillingSlabs[chunkBits], fillingOffsets[chunkBits]);
+                fillingOffsets[chunkBits] += 1 << chunkBits;
+            }
+            usedBytes += 1 << chunkBits;
+            ++slabCounts[slabIndex(handle)];
+        }
+        plainBytes += footprint(plainSize);
+        ++count;
+        return handle;
+    }
+    
+    /**
+     * Gives every empty chunk slab back to the budget, dropping its chunks
+     * from the free lists.
+     *
+     * @return whether there is now room for the given number of bytes
+     */
+    private boolean reclaim(int size) {
+        boolean[] reclaimed = null;
+        for (int slabIndex = 0; slabIndex < slabs.size(); slabIndex++) {
+            int chunkBits = slabChunkBits[slabIndex];
+            if (slabs.get(slabIndex) == null || chunkBits == DEDICATED || slabCounts[slabIndex] != 0) {
+                continue;
+            }
+            if (reclaimed == null) {
+                reclaimed = new boolean[slabs.size()];
+            }
+            reclaimed[slabIndex] = true;
+            allocatedBytes -= slabs.get(slabIndex).capacity();
+            slabs.set(slabIndex, null);
+            freeSlabIndices.push(slabIndex);
+            if (fillingSlabs[chunkBits] == slabIndex) {
+                fillingOffsets[chunkBits] = slabSize;
+            }
+        }
+        if (reclaimed != null) {
+            for (int chunkBits = MIN_CHUNK_BITS; chunkBits <= maxChunkBits; chunkBits++) {
+                freeChunks[chunkBits].removeFrom(reclaimed);
+            }
+        }
+        return allocatedBytes + size <= budget;
+    }
+    
+    private int addSlab(ByteBuffer slab, int chunkBits) {
+        int slabIndex;
+        if (freeSlabIndices.isEmpty()) {
+            slabIndex = slabs.size();
+            slabs.add(slab);
+            if (slabIndex == slabChunkBits.length) {
+                slabChunkBits = Arrays.copyOf(slabChunkBits, slabIndex * 2);
+                slabCounts = Arrays.copyOf(slabCounts, slabIndex * 2);
+            }
+        } else {
+            slabIndex = (int) freeSlabIndices.pop();
+            slabs.set(slabIndex, slab);
+        }
+        slabChunkBits[slabIndex] = chunkBits;
+        slabCounts[slabIndex] = 0;
+        allocatedBytes += slab.capacity();
+        return slabIndex;
+    }
+    
+    private synchronized ByteBuffer slab(long handle) {
+        return slabs.get(slabIndex(handle));
+    }
+    
+    private int footprint(int size) {
+        return size > slabSize ? size : 1 << chunkBits(size);
+    }
+    
+    private int chunkBits(int size) {
+        return Math.max(MIN_CHUNK_BITS, 32 - Integer.numberOfLeadingZeros(size - 1));
+    }
+    
+    private static long handle(int slabIndex, int offset) {
+        return ((long) slabIndex << 32) | offset;
+    }
+    
+    private static int slabIndex(long handle) {
+        return (int) (handle >>> 32);
+    }
+    
+    private static int offset(long handle) {
+        return (int) handle;
+    }
+    
+    private static final class LongStack {
+        
+        private long[] values = new long[16];
+        private int size;
+        
+        public boolean isEmpty() {
+            return size == 0;
+        }
+        
+        public void push(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+        
+        public long pop() {
+            return values[--size];
+        }
+        
+        /**
+         * Removes every handle into one of the given slabs.
+         */
+        public void removeFrom(boolean[] slabIndices) {
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                int slabIndex = slabIndex(values[i]);
+                if (slabIndex >= slabIndices.length || !slabIndices[slabIndex]) {
+                    values[kept++] = values[i];
+                }
+            }
+            size = kept;
+        }
+        
+    }
+    
+}
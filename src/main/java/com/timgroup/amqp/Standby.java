@@ -0,0 +1,206 @@
+package com.timgroup.amqp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+
+/**
+ * Holds a route in reserve for an active instance elsewhere, staging replicas
+ * of the messages pending there, as its {@link Replicator} announces them,
+ * without consuming from the inbound queue. When the active instance hands
+ * over, or its heartbeats stop for the failover timeout, the standby takes
+ * over: it schedules the replicas, starts consuming, and starts replicating
+ * in turn.
+ *
+ * The replicas are what make the takeover quick. The broker only redelivers
+ * the active instance's messages once it notices the connection has gone,
+ * and then all at once, to be received and scheduled afresh; the replicas
+ * are already in the store, and can be published on time in the meantime.
+ * As the originals turn up, each takes the place of its replica if that is
+ * still pending, and is dropped if it has already been published.
+ *
+ * A standby which is cut off from an active instance which is still running
+ * takes over all the same, and until one of them is stopped, messages may be
+ * published twice.
+ *
+ * The standby remembers the IDs of the last few messages settled before it
+ * had a replica of them, and drops a replica which turns up late for one of
+ * them, rather than keeping it for good.
+ */
+public class Standby implements Closeable {
+    
+    public static final long DEFAULT_FAILOVER_TIMEOUT_MILLIS = 3000;
+    public static final int SETTLED_MEMORY = 10000;
+    
+    private final Replicator replicator;
+    private final Receiver receiver;
+    private final Controller controller;
+    private final Transmitter transmitter;
+    private final long failoverTimeoutMillis;
+    private ScheduledExecutorService executor;
+    private ScheduledFuture<?> check;
+    private String consumerTag;
+    private boolean active;
+    private boolean closed;
+    private volatile long lastHeard;
+    private final Set<String> settledUnstaged = Collections.newSetFromMap(new LinkedHashMap<String, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > SETTLED_MEMORY;
+        }
+    });
+    
+    /**
+     * @param replicator
+     *            of the route, whose channel the standby consumes replicas
+     *            on, and which it starts once it has taken over
+     * @param controller
+     *            of the route, or null if there isn't one
+     * @param failoverTimeoutMillis
+     *            how long to go without hearing from the active instance
+     *            before taking over
+     */
+    public Standby(Replicator replicator, Receiver receiver, Controller controller, Transmitter transmitter, long failoverTimeoutMillis) {
+        this.replicator = replicator;
+        this.receiver = receiver;
+        this.controller = controller;
+        this.transmitter = transmitter;
+        this.failoverTimeoutMillis = failoverTimeoutMillis;
+    }
+    
+    /**
+     * @return whether the standby has taken over
+     */
+    public synchronized boolean isActive() {
+        return active;
+    }
+    
+    /**
+     * Binds a queue of its own to the replication exchange, and starts
+     * staging replicas and watching for heartbeats.
+     *
+     * @param executor
+     *            to check for heartbeats on, and then to send them on
+     */
+    public synchronized void start(ScheduledExecutorService executor) throws IOException {
+        if (consumerTag != null || active) {
+            return;
+        }
+        this.executor = executor;
+        lastHeard = System.currentTimeMillis();
+        String queueName = replicator.getChannel().queueDeclare().getQueue();
+        replicator.getChannel().queueBind(queueName, replicator.getExchangeName(), replicator.getRouteName());
+        consumerTag = replicator.getChannel().basicConsume(queueName, true, new DefaultConsumer(replicator.getChannel()) {
+            @Override
+            public void handleDelivery(String consumerTag, Envelope envelope, BasicProperties properties, byte[] body) throws IOException {
+                handle(properties, body);
+            }
+        });
+        long interval = Math.max(1, failoverTimeoutMillis / 4);
+        check = executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                if (System.currentTimeMillis() - lastHeard > failoverTimeoutMillis) {
+                    takeOver("heard nothing from the active instance for " + failoverTimeoutMillis + " ms");
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+    
+    private void handle(BasicProperties properties, byte[] body) {
+        lastHeard = System.currentTimeMillis();
+        Map<String, Object> headers = properties.getHeaders();
+        Object op = headers != null ? headers.get(Replicator.OP_HEADER) : null;
+        if (op == null) {
+            return;
+        }
+        if (Replicator.SCHEDULED.equals(op.toString())) {
+            Map<String, Object> originalHeaders = new HashMap<String, Object>(headers);
+            originalHeaders.remove(Replicator.OP_HEADER);
+            Object routingKey = originalHeaders.remove(Replicator.ROUTING_KEY_HEADER);
+            Object deliveryTime = originalHeaders.remove(Replicator.DELIVERY_TIME_HEADER);
+            if (routingKey == null || !(deliveryTime instanceof Number) || properties.getMessageId() == null) {
+                return;
+            }
+            if (settledUnstaged.remove(properties.getMessageId())) {
+                return;
+            }
+            // if the store is full, the replica is dropped, and the original
+            // is scheduled when it is redelivered after a takeover
+            transmitter.stage(routingKey.toString(), properties.builder().headers(originalHeaders).build(), body, ((Number) deliveryTime).longValue());
+        } else if (Replicator.SETTLED.equals(op.toString())) {
+            if (properties.getMessageId() != null && !transmitter.unstage(properties.getMessageId())) {
+                settledUnstaged.add(properties.getMessageId());
+            }
+        } else if (Replicator.HANDOVER.equals(op.toString())) {
+            takeOver("the active instance handed over");
+        }
+    }
+    
+    /**
+     * Stops staging, schedules the staged replicas, and starts consuming
+     * and replicating, unless the standby has already taken over or been
+     * closed.
+     */
+    public void takeOver(String reason) {
+        synchronized (this) {
+            if (active || closed) {
+                return;
+            }
+            active = true;
+            if (check != null) {
+                check.cancel(false);
+            }
+        }
+        try {
+            if (consumerTag != null) {
+                replicator.getChannel().basicCancel(consumerTag);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        int promoted = transmitter.promote();
+        System.err.println("taking over " + replicator.getRouteName() + " with " + promoted + " replicas, as " + reason);
+        try {
+            if (controller != null) {
+                controller.start();
+            }
+            receiver.start();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        transmitter.setReplicator(replicator);
+        replicator.start(executor);
+    }
+    
+    /**
+     * Stops staging, if the standby hasn't taken over. Once it has, the
+     * route is closed like any other.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (active || consumerTag == null) {
+                return;
+            }
+            check.cancel(false);
+        }
+        replicator.getChannel().basicCancel(consumerTag);
+    }
+    
+}
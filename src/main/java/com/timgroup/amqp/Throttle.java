@@ -0,0 +1,182 @@
+package com.timgroup.amqp;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.rabbitmq.client.BlockedListener;
+
+/**
+ * Slows down or stops consumption when the outbound side can't keep up, so
+ * that pending work doesn't pile up on the heap while the broker is refusing
+ * or dawdling over our publishes.
+ *
+ * Two things are watched: connection.blocked notifications, which the broker
+ * sends when a memory or disk alarm goes off, and the publish backlog, the
+ * number of due messages waiting for a publisher. While the connection is
+ * blocked, or the backlog is at the stop limit, every receiver stops
+ * consuming. While the backlog is at the slow limit, receivers consume with a
+ * smaller prefetch. Each state is held until the backlog has fallen well
+ * below the limit which brought it on, so that we don't flap.
+ *
+ * The client calls blocked listeners on the thread which reads from the
+ * connection, which also reads the replies to the synchronous calls that
+ * throttling a receiver makes, such as basic.qos and basic.cancel; so a
+ * notification is only noted there, and acted on by the executor the
+ * throttle was started on, and the listener methods take no lock which a
+ * check might be holding.
+ */
+public class Throttle implements BlockedListener {
+    
+    public enum State {
+        /** consuming with the configured prefetch */
+        OPEN,
+        /** consuming with the throttled prefetch */
+        SLOWED,
+        /** not consuming at all */
+        STOPPED
+    }
+    
+    public static final int DEFAULT_SLOW_BACKLOG = 1024;
+    public static final int DEFAULT_STOP_BACKLOG = 8192;
+    public static final long DEFAULT_CHECK_MILLIS = 10;
+    
+    private final PublisherPool publishers;
+    private final int slowBacklog;
+    private final int stopBacklog;
+    private final List<Receiver> receivers = new CopyOnWriteArrayList<Receiver>();
+    private final Runnable check = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                check();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    };
+    private volatile ScheduledExecutorService executor;
+    private volatile String blockedReason;
+    private State state = State.OPEN;
+    private long stateChangeCount;
+    
+    /**
+     * @param slowBacklog
+     *            the publish backlog at which to lower the prefetch
+     * @param stopBacklog
+     *            the publish backlog at which to stop consuming
+     */
+    public Throttle(PublisherPool publishers, int slowBacklog, int stopBacklog) {
+        if (slowBacklog > stopBacklog) {
+            throw new IllegalArgumentException("slow backlog " + slowBacklog + " is above stop backlog " + stopBacklog);
+        }
+        this.publishers = publishers;
+        this.slowBacklog = slowBacklog;
+        this.stopBacklog = stopBacklog;
+    }
+    
+    /**
+     * Checks the backlog every so often on the given executor.
+     */
+    public synchronized void start(ScheduledExecutorService executor, long checkMillis) {
+        this.executor = executor;
+        executor.scheduleWithFixedDelay(check, checkMillis, checkMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Throttles the receiver along with the others, starting with the
+     * current state.
+     */
+    public synchronized void add(Receiver receiver) {
+        receivers.add(receiver);
+        receiver.setThrottleState(state);
+    }
+    
+    public synchronized State getState() {
+        return state;
+    }
+    
+    public boolean isBlocked() {
+        return blockedReason != null;
+    }
+    
+    /**
+     * @return why the broker blocked the connection, or null if it isn't
+     *         blocked
+     */
+    public String getBlockedReason() {
+        return blockedReason;
+    }
+    
+    /**
+     * @return how many times the state has changed
+     */
+    public synchronized long getStateChangeCount() {
+        return stateChangeCount;
+    }
+    
+    /**
+     * Takes no lock, since a check may be holding the throttle's while it
+     * waits for replies which only this thread can read.
+     */
+    @Override
+    public void handleBlocked(String reason) {
+        blockedReason = reason;
+        checkSoon();
+    }
+    
+    @Override
+    public void handleUnblocked() {
+        blockedReason = null;
+        checkSoon();
+    }
+    
+    /**
+     * Checks on the executor, if the throttle has been started; otherwise,
+     * the first scheduled check will do.
+     */
+    private void checkSoon() {
+        if (executor != null) {
+            try {
+                executor.execute(check);
+            } catch (RejectedExecutionException e) {
+                // shutting down
+            }
+        }
+    }
+    
+    /**
+     * Measures the publish backlog, and throttles the receivers to suit; and
+     * lets each receiver whose prefetch has been cut consume again once it
+     * has room.
+     */
+    public synchronized void check() {
+        int backlog = publishers.getBacklog();
+        State newState;
+        if (blockedReason != null || backlog >= stopBacklog || (state == State.STOPPED && backlog > slowBacklog)) {
+            newState = State.STOPPED;
+        } else if (backlog >= slowBacklog || (state != State.OPEN && backlog > slowBacklog / 2)) {
+            newState = State.SLOWED;
+        } else {
+            newState = State.OPEN;
+        }
+        if (newState != state) {
+            state = newState;
+            stateChangeCount++;
+            for (Receiver receiver : receivers) {
+                receiver.setThrottleState(newState);
+            }
+        }
+        for (Receiver receiver : receivers) {
+            try {
+                receiver.checkRoom();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+    
+}
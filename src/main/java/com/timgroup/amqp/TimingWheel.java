@@ -0,0 +1,323 @@
+package com.timgroup.amqp;
+
+import java.util.Arrays;
+
+/**
+ * A hierarchical timing wheel with millisecond ticks, in the style of the
+ * Linux kernel timer wheel. There are six levels of 64 slots each, so the
+ * wheel spans 2^36 ms (a bit over two years); anything further out than that
+ * waits on an overflow list and is re-filed when the wheel comes round.
+ *
+ * Entries live in a pool of parallel primitive arrays and are threaded onto
+ * the slots as doubly-linked lists of pool indices, so adding, cancelling and
+ * expiring an entry are all O(1) and allocate nothing once the pool has grown
+ * to the working set. Each level keeps a bitmap of its occupied slots, which
+ * lets the wheel jump straight over idle stretches rather than ticking
+ * through them. Each level also keeps a count and a total weight of its
+ * entries; since an entry sits on the finest level whose span covers its
+ * deadline, that is a cheap breakdown of what is pending by how soon it is
+ * due.
+ *
+ * Not thread-safe; {@link TimingWheelScheduler} serialises access to it.
+ */
+final class TimingWheel<T> {
+    
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 6;
+    private static final int WHEEL_BITS = SLOT_BITS * LEVELS;
+    private static final int OVERFLOW = LEVELS * SLOTS;
+    private static final int NIL = -1;
+    
+    private final int[] heads = new int[OVERFLOW + 1];
+    private final int[] tails = new int[OVERFLOW + 1];
+    private final long[] occupied = new long[LEVELS];
+    private final long[] levelCounts = new long[LEVELS + 1];
+    private final long[] levelWeights = new long[LEVELS + 1];
+    
+    private long[] deadlines;
+    private int[] next;
+    private int[] previous;
+    private int[] lists;
+    private int[] generations;
+    private int[] weights;
+    private Object[] items;
+    private int free;
+    private int size;
+    
+    private long now;
+    
+    public TimingWheel(long startTime, int initialCapacity) {
+        Arrays.fill(heads, NIL);
+        Arrays.fill(tails, NIL);
+        deadlines = new long[0];
+        next = new int[0];
+        previous = new int[0];
+        lists = new int[0];
+        generations = new int[0];
+        weights = new int[0];
+        items = new Object[0];
+        free = NIL;
+        grow(Math.max(initialCapacity, 16));
+        now = startTime;
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    public boolean isEmpty() {
+        return size == 0;
+    }
+    
+    public long currentTime() {
+        return now;
+    }
+    
+    public long add(T item, long deadline) {
+        return add(item, deadline, 0);
+    }
+    
+    /**
+     * @param weight
+     *            what the entry counts for in {@link #backlog()}
+     * @return a handle which stays valid until the entry expires or is
+     *         cancelled; it is never negative, so that a wrapping
+     *         scheduler may use negative ones for its own
+     */
+    public long add(T item, long deadline, int weight) {
+        if (free == NIL) {
+            grow(deadlines.length * 2);
+        }
+        int entry = free;
+        free = next[entry];
+        deadlines[entry] = deadline;
+        weights[entry] = weight;
+        items[entry] = item;
+        link(entry, listFor(deadline));
+        ++size;
+        return handle(entry);
+    }
+    
+    /**
+     * @return the cancelled item, or null if the handle is stale
+     */
+    public T cancel(long handle) {
+        int entry = (int) handle;
+        if (entry < 0 || entry >= lists.length || lists[entry] == NIL || generations[entry] != (int) (handle >>> 32)) {
+            return null;
+        }
+        T item = item(entry);
+        unlink(entry);
+        release(entry);
+        return item;
+    }
+    
+    public long deadline(long handle) {
+        int entry = (int) handle;
+        if (entry < 0 || entry >= lists.length || lists[entry] == NIL || generations[entry] != (int) (handle >>> 32)) {
+            return Long.MIN_VALUE;
+        }
+        return deadlines[entry];
+    }
+    
+    /**
+     * The earliest time at which {@link #advance} will have something to do.
+     * That may be an expiry, or only the re-filing of a coarse slot into finer
+     * ones.
+     *
+     * @return the time, or {@link Long#MAX_VALUE} if the wheel is empty
+     */
+    public long nextEventTime() {
+        long bits = occupied[0] & (-1L << (now & SLOT_MASK));
+        if (bits != 0) {
+            return (now & ~SLOT_MASK) | Long.numberOfTrailingZeros(bits);
+        }
+        for (int level = 1; level < LEVELS; level++) {
+            int shift = SLOT_BITS * level;
+            int index = (int) ((now >>> shift) & SLOT_MASK);
+            if (index < SLOT_MASK) {
+                bits = occupied[level] & (-1L << (index + 1));
+                if (bits != 0) {
+                    long base = (now >>> (shift + SLOT_BITS)) << (shift + SLOT_BITS);
+                    return base | ((long) Long.numberOfTrailingZeros(bits) << shift);
+                }
+            }
+        }
+        if (heads[OVERFLOW] != NIL) {
+            return ((now >>> WHEEL_BITS) + 1) << WHEEL_BITS;
+        }
+        return Long.MAX_VALUE;
+    }
+    
+    /**
+     * Moves the wheel on to the given time, removing due entries and putting
+     * their items into the given array, in deadline order. Stops early if the
+     * array fills up; the remaining due entries are returned by the next call.
+     *
+     * @return the number of items put into the array
+     */
+    public int advance(long time, Object[] expired) {
+        int count = 0;
+        while (count < expired.length) {
+            long event = nextEventTime();
+            if (event > time) {
+                if (time > now) {
+                    now = time;
+                }
+                break;
+            }
+            if (event > now) {
+                now = event;
+                cascade();
+            }
+            int list = (int) (now & SLOT_MASK);
+            while (count < expired.length && heads[list] != NIL) {
+                int entry = heads[list];
+                expired[count++] = items[entry];
+                unlink(entry);
+                release(entry);
+            }
+        }
+        return count;
+    }
+    
+    /**
+     * Empties the wheel, putting the items into the given array in no
+     * particular order. Stops early if the array fills up.
+     *
+     * @return the number of items put into the array
+     */
+    public int drain(Object[] drained) {
+        int count = 0;
+        for (int list = 0; list <= OVERFLOW && count < drained.length; list++) {
+            while (count < drained.length && heads[list] != NIL) {
+                int entry = heads[list];
+                drained[count++] = items[entry];
+                unlink(entry);
+                release(entry);
+            }
+        }
+        return count;
+    }
+    
+    /**
+     * Breaks the pending entries down by level. The horizon of a level is the
+     * span of the level, so an entry in it is due within that much of the
+     * wheel's current time.
+     */
+    public Backlog backlog() {
+        long[] horizons = new long[LEVELS + 1];
+        for (int level = 0; level < LEVELS; level++) {
+            horizons[level] = 1L << (SLOT_BITS * (level + 1));
+        }
+        horizons[LEVELS] = Long.MAX_VALUE;
+        return new Backlog(horizons, levelCounts.clone(), levelWeights.clone());
+    }
+    
+    private void cascade() {
+        if ((now & ((1L << WHEEL_BITS) - 1)) == 0) {
+            refile(OVERFLOW);
+        }
+        for (int level = LEVELS - 1; level > 0; level--) {
+            int shift = SLOT_BITS * level;
+            if ((now & ((1L << shift) - 1)) == 0) {
+                refile(level * SLOTS + (int) ((now >>> shift) & SLOT_MASK));
+            }
+        }
+    }
+    
+    private void refile(int list) {
+        int entry = heads[list];
+        while (entry != NIL) {
+            int following = next[entry];
+            unlink(entry);
+            link(entry, listFor(deadlines[entry]));
+            entry = following;
+        }
+    }
+    
+    private int listFor(long deadline) {
+        long due = Math.max(deadline, now);
+        for (int level = 0; level < LEVELS; level++) {
+            int shift = SLOT_BITS * (level + 1);
+            if ((due >>> shift) == (now >>> shift)) {
+                return level * SLOTS + (int) ((due >>> (SLOT_BITS * level)) & SLOT_MASK);
+            }
+        }
+        return OVERFLOW;
+    }
+    
+    private void link(int entry, int list) {
+        lists[entry] = list;
+        levelCounts[list >>> SLOT_BITS]++;
+        levelWeights[list >>> SLOT_BITS] += weights[entry];
+        next[entry] = NIL;
+        previous[entry] = tails[list];
+        if (tails[list] != NIL) {
+            next[tails[list]] = entry;
+        } else {
+            heads[list] = entry;
+            if (list != OVERFLOW) {
+                occupied[list >>> SLOT_BITS] |= 1L << (list & SLOT_MASK);
+            }
+        }
+        tails[list] = entry;
+    }
+    
+    private void unlink(int entry) {
+        int list = lists[entry];
+        if (previous[entry] != NIL) {
+            next[previous[entry]] = next[entry];
+        } else {
+            heads[list] = next[entry];
+        }
+        if (next[entry] != NIL) {
+            previous[next[entry]] = previous[entry];
+        } else {
+            tails[list] = previous[entry];
+        }
+        if (heads[list] == NIL && list != OVERFLOW) {
+            occupied[list >>> SLOT_BITS] &= ~(1L << (list & SLOT_MASK));
+        }
+        levelCounts[list >>> SLOT_BITS]--;
+        levelWeights[list >>> SLOT_BITS] -= weights[entry];
+        lists[entry] = NIL;
+    }
+    
+    private void release(int entry) {
+        items[entry] = null;
+        // generations wrap at 31 bits, so that handles never go negative
+        generations[entry] = (generations[entry] + 1) & Integer.MAX_VALUE;
+        next[entry] = free;
+        free = entry;
+        --size;
+    }
+    
+    private long handle(int entry) {
+        return ((long) generations[entry] << 32) | entry;
+    }
+    
+    @SuppressWarnings("unchecked")
+    private T item(int entry) {
+        return (T) items[entry];
+    }
+    
+    private void grow(int capacity) {
+        int oldCapacity = deadlines.length;
+        deadlines = Arrays.copyOf(deadlines, capacity);
+        next = Arrays.copyOf(next, capacity);
+        previous = Arrays.copyOf(previous, capacity);
+        lists = Arrays.copyOf(lists, capacity);
+        generations = Arrays.copyOf(generations, capacity);
+        weights = Arrays.copyOf(weights, capacity);
+        items = Arrays.copyOf(items, capacity);
+        for (int entry = capacity - 1; entry >= oldCapacity; entry--) {
+            lists[entry] = NIL;
+            next[entry] = free;
+            free = entry;
+        }
+    }
+    
+}
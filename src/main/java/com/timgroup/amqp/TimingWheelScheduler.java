@@ -0,0 +1,253 @@
+package com.timgroup.amqp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Drives a {@link TimingWheel} from a single thread. Expired items are handed
+ * to the handler outside the lock, in batches, so that a slow handler never
+ * holds up scheduling.
+ *
+ * By default, the thread goes by {@link System#currentTimeMillis()} and waits
+ * with an ordinary timed park, so items come out up to a millisecond or so
+ * late, plus however long the OS takes to wake the thread. Given a
+ * {@link Clock}, the scheduler works to the microsecond instead: it parks
+ * until shortly before the next item is due, then spins out the rest of the
+ * wait. The spin window adapts to how late parks have been waking up, up to
+ * a maximum, so the cost is up to that much busy CPU for each millisecond in
+ * which something falls due.
+ */
+public class TimingWheelScheduler<T> implements Scheduler<T>, Runnable {
+    
+    public static final long DEFAULT_MAX_SPIN_MICROS = 500;
+    
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int BATCH_SIZE = 256;
+    private static final long MIN_SPIN_NANOS = 20000;
+    
+    private final TimingWheel<T> wheel;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final Object[] batch = new Object[BATCH_SIZE];
+    private final Thread thread;
+    private final Clock clock;
+    private final long maxSpinNanos;
+    private Handler<? super T> handler;
+    private long wakeTime = Long.MAX_VALUE;
+    private volatile boolean woken;
+    private long overshootNanos;
+    private long spinNanos;
+    private boolean shutdown;
+    
+    public TimingWheelScheduler() {
+        this(null, 0);
+    }
+    
+    /**
+     * @param clock
+     *            the clock to release items by, to the microsecond, or null
+     *            to go by the millisecond wall clock
+     * @param maxSpinMicros
+     *            the longest to spin waiting for an item to fall due
+     */
+    public TimingWheelScheduler(Clock clock, long maxSpinMicros) {
+        this.clock = clock;
+        this.maxSpinNanos = TimeUnit.MICROSECONDS.toNanos(maxSpinMicros);
+        this.spinNanos = Math.min(MIN_SPIN_NANOS, maxSpinNanos);
+        this.wheel = new TimingWheel<T>(currentTimeMillis(), INITIAL_CAPACITY);
+        this.thread = new Thread(this, "scheduler");
+    }
+    
+    @Override
+    public void start(Handler<? super T> handler) {
+        this.handler = handler;
+        thread.start();
+    }
+    
+    @Override
+    public long schedule(T item, long deliveryTime, int weight) {
+        lock.lock();
+        try {
+            if (shutdown) {
+                throw new RejectedExecutionException("scheduler has been shut down");
+            }
+            long handle = wheel.add(item, deliveryTime, weight);
+            if (deliveryTime < wakeTime) {
+                woken = true;
+                changed.signal();
+            }
+            return handle;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    @Override
+    public T cancel(long handle) {
+        lock.lock();
+        try {
+            return wheel.cancel(handle);
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return wheel.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    @Override
+    public Backlog getBacklog() {
+        lock.lock();
+        try {
+            return wheel.backlog();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    @Override
+    public void run() {
+        lock.lock();
+        try {
+            while (true) {
+                long time = currentTimeMillis();
+                int count = wheel.advance(time, batch);
+                if (count > 0) {
+                    lock.unlock();
+                    try {
+                        dispatch(count);
+                    } finally {
+                        lock.lock();
+                    }
+                    continue;
+                }
+                if (shutdown && wheel.isEmpty()) {
+                    return;
+                }
+                long nextEventTime = wheel.nextEventTime();
+                wakeTime = nextEventTime;
+                try {
+                    if (nextEventTime == Long.MAX_VALUE) {
+                        changed.await();
+                    } else if (clock == null) {
+                        changed.await(nextEventTime - time, TimeUnit.MILLISECONDS);
+                    } else {
+                        awaitPrecisely(nextEventTime);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    wakeTime = Long.MAX_VALUE;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    private long currentTimeMillis() {
+        return clock != null ? clock.currentTimeMillis() : System.currentTimeMillis();
+    }
+    
+    /**
+     * Parks until the spin window before the event, or spins out the wait if
+     * it is already within the window. Either way, returns early if an
+     * earlier item is scheduled or the scheduler is shut down.
+     */
+    private void awaitPrecisely(long eventTime) throws InterruptedException {
+        long deadline = clock.nanoTimeAt(eventTime);
+        long remaining = deadline - System.nanoTime();
+        if (remaining > spinNanos) {
+            long overshoot = -changed.awaitNanos(remaining - spinNanos);
+            if (overshoot >= 0) {
+                overshootNanos += (overshoot - overshootNanos) / 8;
+                spinNanos = Math.min(maxSpinNanos, Math.max(MIN_SPIN_NANOS, overshootNanos * 2));
+            }
+            return;
+        }
+        woken = false;
+        lock.unlock();
+        try {
+            while (!woken && System.nanoTime() - deadline < 0) {
+                // spin
+            }
+        } finally {
+            lock.lock();
+        }
+    }
+    
+    @SuppressWarnings("unchecked")
+    private void dispatch(int count) {
+        for (int i = 0; i < count; i++) {
+            T item = (T) batch[i];
+            batch[i] = null;
+            try {
+                handler.expired(item);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+    
+    @Override
+    public void shutdown() {
+        lock.lock();
+        try {
+            shutdown = true;
+            woken = true;
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<T> shutdownNow() {
+        lock.lock();
+        try {
+            shutdown = true;
+            List<T> remaining = new ArrayList<T>(wheel.size());
+            Object[] drained = new Object[BATCH_SIZE];
+            int count;
+            while ((count = wheel.drain(drained)) > 0) {
+                for (int i = 0; i < count; i++) {
+                    remaining.add((T) drained[i]);
+                }
+            }
+            woken = true;
+            changed.signal();
+            return remaining;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * A timeout of under a millisecond doesn't wait at all, rather than
+     * forever, as a join of zero would.
+     */
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        if (thread.getState() == Thread.State.NEW) {
+            return true;
+        }
+        long timeoutMillis = unit.toMillis(timeout);
+        if (timeoutMillis > 0) {
+            thread.join(timeoutMillis);
+        }
+        return !thread.isAlive();
+    }
+    
+}
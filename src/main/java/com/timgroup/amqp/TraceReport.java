@@ -0,0 +1,263 @@
+package com.timgroup.amqp;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.QueueingConsumer;
+import com.rabbitmq.client.QueueingConsumer.Delivery;
+
+/**
+ * Breaks down the lateness of traced messages by stage, from the headers a
+ * {@link Tracer} put on them:
+ *
+ * <ul>
+ * <li>arrival: how late the message already was when it was received, which
+ * is time spent upstream, or waiting in the inbound queue</li>
+ * <li>scheduler: from when it was due, or received, if later, until the
+ * scheduler released it</li>
+ * <li>publish: from then until it was handed to the channel, which is time
+ * waiting for a publisher</li>
+ * <li>delivery: from then until the report consumed it, which is time in the
+ * broker, and in the queue it was read from</li>
+ * </ul>
+ *
+ * There are figures for all the messages, and for each shard and instance.
+ *
+ * Run with the path of a configuration file, whose uri setting says where
+ * the broker is, and the name of a queue bound to the outbound exchange, to
+ * consume traced messages from it until it has been idle for a second, and
+ * optionally the path of a dump file to append the traces to; or with just
+ * the path of a dump file, to report on that. Messages consumed from the
+ * queue are acknowledged, so it should be a queue of its own. The dump file
+ * has a trace a line, with the shard, the instance, and then the times, in
+ * microseconds since the epoch, it was received, due, released, published
+ * and consumed, separated by tabs.
+ */
+public class TraceReport {
+    
+    private static final long IDLE_MILLIS = 1000;
+    
+    public static void main(String... args) throws Exception {
+        TraceReport report = new TraceReport();
+        if (args.length == 1) {
+            report.readDump(args[0]);
+        } else if (args.length == 2 || args.length == 3) {
+            Configuration configuration = Configuration.load(args[0]);
+            ConnectionFactory factory = new ConnectionFactory();
+            factory.setUri(configuration.getString("uri"));
+            Connection connection = factory.newConnection();
+            try {
+                report.consume(connection.createChannel(), args[1], args.length == 3 ? args[2] : null);
+            } finally {
+                connection.close();
+            }
+        } else {
+            System.err.println("usage: TraceReport <config file> <queue> [<dump file>] | TraceReport <dump file>");
+            System.exit(1);
+        }
+        report.print(System.out);
+    }
+    
+    /**
+     * When one message passed each stage, in microseconds since the epoch.
+     * The consume time is zero if it isn't known.
+     */
+    public static final class Trace {
+        final String shard;
+        final String instance;
+        final long received;
+        final long scheduled;
+        final long dequeued;
+        final long published;
+        final long consumed;
+        
+        Trace(String shard, String instance, long received, long scheduled, long dequeued, long published, long consumed) {
+            this.shard = shard;
+            this.instance = instance;
+            this.received = received;
+            this.scheduled = scheduled;
+            this.dequeued = dequeued;
+            this.published = published;
+            this.consumed = consumed;
+        }
+        
+        /**
+         * @return the trace in the properties of a message consumed at the
+         *         given time, or null if it wasn't traced
+         */
+        public static Trace of(BasicProperties properties, long consumed) {
+            Map<String, Object> headers = properties.getHeaders();
+            if (headers == null || !(headers.get(Tracer.PUBLISHED_HEADER) instanceof Number)) {
+                return null;
+            }
+            return new Trace(String.valueOf(headers.get(Tracer.SHARD_HEADER)), String.valueOf(headers.get(Tracer.INSTANCE_HEADER)),
+                    micros(headers, Tracer.RECEIVED_HEADER), micros(headers, Tracer.SCHEDULED_HEADER), micros(headers, Tracer.DEQUEUED_HEADER), micros(headers, Tracer.PUBLISHED_HEADER), consumed);
+        }
+        
+        private static long micros(Map<String, Object> headers, String name) {
+            Object value = headers.get(name);
+            return value instanceof Number ? ((Number) value).longValue() : 0;
+        }
+        
+        /**
+         * @return the trace in a line of a dump file, or null if it isn't one
+         */
+        public static Trace parse(String line) {
+            String[] fields = line.split("\t");
+            if (fields.length != 7) {
+                return null;
+            }
+            long[] times = new long[5];
+            for (int i = 0; i < times.length; i++) {
+                times[i] = DeliveryTimes.parseMillis(fields[i + 2]);
+                if (times[i] == DeliveryTimes.UNDECODABLE) {
+                    return null;
+                }
+            }
+            return new Trace(fields[0], fields[1], times[0], times[1], times[2], times[3], times[4]);
+        }
+        
+        public String format() {
+            return shard + "\t" + instance + "\t" + received + "\t" + scheduled + "\t" + dequeued + "\t" + published + "\t" + consumed;
+        }
+    }
+    
+    private static final String[] STAGES = {"arrival", "scheduler", "publish", "delivery", "total"};
+    
+    /**
+     * Stands for the delivery stage of a trace which wasn't consumed live.
+     */
+    private static final long MISSING = Long.MIN_VALUE;
+    
+    private final Map<String, List<long[]>> stagesByGroup = new TreeMap<String, List<long[]>>();
+    private int skipped;
+    
+    public void add(Trace trace) {
+        long due = Math.max(trace.scheduled, trace.received);
+        long end = trace.consumed != 0 ? trace.consumed : trace.published;
+        long[] stages = {Math.max(0, trace.received - trace.scheduled), trace.dequeued - due, trace.published - trace.dequeued, trace.consumed != 0 ? trace.consumed - trace.published : MISSING, end - trace.scheduled};
+        group("all").add(stages);
+        group("shard " + trace.shard + " on " + trace.instance).add(stages);
+    }
+    
+    private List<long[]> group(String name) {
+        List<long[]> group = stagesByGroup.get(name);
+        if (group == null) {
+            group = new ArrayList<long[]>();
+            stagesByGroup.put(name, group);
+        }
+        return group;
+    }
+    
+    public int getCount() {
+        List<long[]> all = stagesByGroup.get("all");
+        return all != null ? all.size() : 0;
+    }
+    
+    public void readDump(String path) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(path));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Trace trace = Trace.parse(line);
+                if (trace != null) {
+                    add(trace);
+                } else {
+                    skipped++;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+    
+    /**
+     * Consumes from the queue until nothing has turned up for a second.
+     *
+     * @param dumpPath
+     *            a file to append the traces to, or null
+     */
+    public void consume(Channel channel, String queueName, String dumpPath) throws IOException, InterruptedException {
+        Writer dump = dumpPath != null ? new FileWriter(dumpPath, true) : null;
+        try {
+            QueueingConsumer consumer = new QueueingConsumer(channel);
+            String consumerTag = channel.basicConsume(queueName, true, consumer);
+            Delivery delivery;
+            while ((delivery = consumer.nextDelivery(IDLE_MILLIS)) != null) {
+                Trace trace = Trace.of(delivery.getProperties(), Clock.SYSTEM.currentTimeMicros());
+                if (trace == null) {
+                    skipped++;
+                    continue;
+                }
+                add(trace);
+                if (dump != null) {
+                    dump.write(trace.format() + "\n");
+                }
+            }
+            channel.basicCancel(consumerTag);
+        } finally {
+            if (dump != null) {
+                dump.close();
+            }
+        }
+    }
+    
+    /**
+     * Prints the median, 99th percentile and maximum of each stage, in
+     * milliseconds, for each group of traces.
+     */
+    public void print(PrintStream out) {
+        out.println(getCount() + " traces, " + skipped + " messages or lines skipped");
+        for (Map.Entry<String, List<long[]>> group : stagesByGroup.entrySet()) {
+            out.println();
+            out.println(group.getKey() + " (" + group.getValue().size() + ")");
+            out.println(String.format("  %-10s %10s %10s %10s", "stage", "p50 ms", "p99 ms", "max ms"));
+            for (int stage = 0; stage < STAGES.length; stage++) {
+                long[] values = values(group.getValue(), stage);
+                if (values.length == 0) {
+                    continue;
+                }
+                out.println(String.format("  %-10s %10.3f %10.3f %10.3f", STAGES[stage], percentile(values, 0.5) / 1000.0, percentile(values, 0.99) / 1000.0, values[values.length - 1] / 1000.0));
+            }
+        }
+    }
+    
+    /**
+     * @return the sorted values of the stage, leaving out the traces which
+     *         don't have it
+     */
+    long[] values(String group, String stage) {
+        return values(stagesByGroup.get(group), Arrays.asList(STAGES).indexOf(stage));
+    }
+    
+    private static long[] values(List<long[]> traces, int stage) {
+        long[] values = new long[traces.size()];
+        int count = 0;
+        for (long[] stages : traces) {
+            if (stages[stage] != MISSING) {
+                values[count++] = stages[stage];
+            }
+        }
+        values = Arrays.copyOf(values, count);
+        Arrays.sort(values);
+        return values;
+    }
+    
+    private static long percentile(long[] sorted, double percentile) {
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(percentile * sorted.length) - 1)];
+    }
+    
+}
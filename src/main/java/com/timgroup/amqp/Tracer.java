@@ -0,0 +1,85 @@
+package com.timgroup.amqp;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * Stamps a sample of messages with when they passed each stage on the way
+ * through, so that lateness seen downstream can be put down to the right
+ * stage by {@link TraceReport}. A traced message gets headers, on top of its
+ * own, saying when it was received and was due, which are kept with it while
+ * it is pending, and when the scheduler released it and when it was handed
+ * to the channel to publish, which are added as it goes out; and which shard
+ * and instance repeated it. Times are in microseconds since the epoch.
+ *
+ * Sampling is by count rather than at random, so that deciding costs an
+ * increment, and a message which isn't traced is no different from before.
+ */
+public class Tracer {
+    
+    public static final String RECEIVED_HEADER = "x-wai7-trace-received";
+    public static final String SCHEDULED_HEADER = "x-wai7-trace-scheduled";
+    public static final String DEQUEUED_HEADER = "x-wai7-trace-dequeued";
+    public static final String PUBLISHED_HEADER = "x-wai7-trace-published";
+    public static final String SHARD_HEADER = "x-wai7-trace-shard";
+    public static final String INSTANCE_HEADER = "x-wai7-trace-instance";
+    
+    private final long interval;
+    private final String shard;
+    private final String instance;
+    private final AtomicLong count = new AtomicLong();
+    
+    /**
+     * @param sampleRate
+     *            the fraction of messages to trace, from 0 to 1
+     * @param shard
+     *            what to call the route messages are repeated by, such as
+     *            its inbound queue
+     * @param instance
+     *            what to call this instance of the daemon
+     */
+    public Tracer(double sampleRate, String shard, String instance) {
+        this.interval = sampleRate > 0 ? Math.max(1, Math.round(1 / sampleRate)) : 0;
+        this.shard = shard;
+        this.instance = instance;
+    }
+    
+    /**
+     * @return whether to trace the next message
+     */
+    public boolean sample() {
+        return interval != 0 && count.getAndIncrement() % interval == 0;
+    }
+    
+    /**
+     * @return the properties, with the receive time, the delivery time, the
+     *         shard and the instance added
+     */
+    public BasicProperties received(BasicProperties properties, long deliveryTime) {
+        Map<String, Object> headers = copyHeaders(properties);
+        headers.put(RECEIVED_HEADER, Clock.SYSTEM.currentTimeMicros());
+        headers.put(SCHEDULED_HEADER, deliveryTime * 1000);
+        headers.put(SHARD_HEADER, shard);
+        headers.put(INSTANCE_HEADER, instance);
+        return properties.builder().headers(headers).build();
+    }
+    
+    /**
+     * @return the properties, with the release time, and the current time as
+     *         the publish time, added
+     */
+    public static BasicProperties published(BasicProperties properties, long dequeuedMicros) {
+        Map<String, Object> headers = copyHeaders(properties);
+        headers.put(DEQUEUED_HEADER, dequeuedMicros);
+        headers.put(PUBLISHED_HEADER, Clock.SYSTEM.currentTimeMicros());
+        return properties.builder().headers(headers).build();
+    }
+    
+    private static Map<String, Object> copyHeaders(BasicProperties properties) {
+        return properties.getHeaders() != null ? new HashMap<String, Object>(properties.getHeaders()) : new HashMap<String, Object>();
+    }
+    
+}
@@ -2,55 +2,956 @@ package com.timgroup.amqp;
 
 import java.io.Closeable;
 import java.io.IOException;
-import java.util.concurrent.Callable;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.rabbitmq.client.AMQP.BasicProperties;
 import com.rabbitmq.client.Channel;
 
+/**
+ * Takes messages from one inbound queue, holds them until they are due, and
+ * publishes them to one outbound exchange, on an {@link Engine} which it may
+ * share with other transmitters. The content of pending messages is held in
+ * the transmitter's own store, so one busy inbound queue can't starve the
+ * others of memory, and deliveries are settled on the transmitter's own
+ * acknowledger.
+ */
 public class Transmitter implements Closeable {
     
-    private final Channel channel;
+    public static final long DEFAULT_STORE_BUDGET = 256L << 20;
+    
+    /**
+     * Once the store has filled up, it must drain to this fraction of its
+     * budget before we ask for more messages, so that we don't flap.
+     */
+    private static final double RESTORE_THRESHOLD = 0.75;
+    
+    private final Engine engine;
+    private final boolean ownsEngine;
+    private final PublisherPool publishers;
+    private final Acknowledger acknowledger;
     private final String queueName;
-    private final ScheduledExecutorService executor;
+    private final Scheduler<PendingMessage> scheduler;
+    private final SlabStore store;
+    private final Metrics metrics;
+    private final Journal journal;
+    private final MessageIndex<PendingMessage> index;
+    private final AtomicBoolean full = new AtomicBoolean();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final Publisher.Settler settler = new Publisher.Settler() {
+        @Override
+        public void confirmed(long deliveryTag) throws IOException {
+            metrics.confirmed();
+            if (deliveryTag < 0) {
+                journal.delivered(~deliveryTag);
+            } else {
+                settle(deliveryTag, true);
+            }
+        }
+        
+        @Override
+        public void rejected(long deliveryTag) throws IOException {
+            metrics.rejected();
+            if (deliveryTag >= 0) {
+                settle(deliveryTag, false);
+            }
+        }
+    };
+    
+    /**
+     * A batch envelope whose entries are pending, with how many of them are
+     * still to be settled, and whether any were refused or rejected, in
+     * which case the envelope is handed back rather than acknowledged.
+     */
+    private static final class Batch {
+        final AtomicInteger remaining;
+        volatile boolean refused;
+        
+        Batch(int entryCount) {
+            remaining = new AtomicInteger(entryCount + 1);
+        }
+    }
+    
+    /**
+     * The batch envelopes with entries pending, by delivery tag.
+     */
+    private final ConcurrentMap<Long, Batch> batches = new ConcurrentHashMap<Long, Batch>();
+    private volatile CapacityListener capacityListener;
+    private volatile Shaper shaper;
+    private volatile boolean deduplicating;
+    private volatile Replicator replicator;
+    private volatile Tracer tracer;
+    /**
+     * When traced messages were released by the scheduler, until they are
+     * published.
+     */
+    private final ConcurrentMap<PendingMessage, Long> dequeueTimes = new ConcurrentHashMap<PendingMessage, Long>();
+    /**
+     * Replicas of the messages pending on the active instance, while this one
+     * is a standby, and then the IDs of the replicas published since it took
+     * over, which the originals are matched up with as the broker redelivers
+     * them. Both are guarded by the index.
+     */
+    private MessageIndex<PendingMessage> staged;
+    private Set<String> publishedReplicas;
+    
+    /**
+     * Publishes on the same channel as messages are consumed from, with a
+     * single publisher.
+     */
+    public Transmitter(Channel channel, String queueName) throws IOException {
+        this(singlePublisher(channel), queueName, new TimingWheelScheduler<PendingMessage>(), new SlabStore(DEFAULT_STORE_BUDGET));
+    }
     
-    public Transmitter(Channel channel, String queueName) {
-        this.channel = channel;
+    private static PublisherPool singlePublisher(Channel channel) throws IOException {
+        Acknowledger acknowledger = new Acknowledger(channel);
+        return new PublisherPool(acknowledger, Collections.singletonList(new Publisher(channel, acknowledger, Publisher.DEFAULT_MAX_IN_FLIGHT)));
+    }
+    
+    public Transmitter(PublisherPool publishers, String queueName, Scheduler<PendingMessage> scheduler, SlabStore store) {
+        this(publishers, queueName, scheduler, store, new Metrics());
+    }
+    
+    public Transmitter(PublisherPool publishers, String queueName, Scheduler<PendingMessage> scheduler, SlabStore store, Metrics metrics) {
+        this(publishers, queueName, scheduler, store, metrics, null);
+    }
+    
+    /**
+     * Runs on an engine of its own, made of the given publishers and
+     * scheduler, and settles deliveries with the publishers' acknowledger.
+     *
+     * @param journal
+     *            to take custody of messages in, or null to hold them in the
+     *            store, with their deliveries unacknowledged, until they are
+     *            published. Entries left in it by an earlier run are
+     *            scheduled straight away.
+     */
+    public Transmitter(PublisherPool publishers, String queueName, Scheduler<PendingMessage> scheduler, SlabStore store, Metrics metrics, Journal journal) {
+        this(new Engine(scheduler, publishers), true, publishers.getAcknowledger(), queueName, store, metrics, journal, false);
+    }
+    
+    /**
+     * Runs on a shared engine, which must already have been started, and
+     * must be closed before this is.
+     *
+     * @param acknowledger
+     *            for the channel messages are consumed from
+     */
+    public Transmitter(Engine engine, Acknowledger acknowledger, String queueName, SlabStore store, Metrics metrics, Journal journal) {
+        this(engine, false, acknowledger, queueName, store, metrics, journal, false);
+    }
+    
+    /**
+     * @param cancellable
+     *            whether to index pending messages by message ID, so that
+     *            they can be {@link #cancel cancelled} and
+     *            {@link #replace replaced}
+     */
+    public Transmitter(Engine engine, Acknowledger acknowledger, String queueName, SlabStore store, Metrics metrics, Journal journal, boolean cancellable) {
+        this(engine, false, acknowledger, queueName, store, metrics, journal, cancellable);
+    }
+    
+    private Transmitter(Engine engine, boolean ownsEngine, Acknowledger acknowledger, String queueName, SlabStore store, Metrics metrics, Journal journal, boolean cancellable) {
+        this.engine = engine;
+        this.ownsEngine = ownsEngine;
+        this.publishers = engine.getPublishers();
+        this.acknowledger = acknowledger;
         this.queueName = queueName;
-        this.executor = Executors.newSingleThreadScheduledExecutor();
+        this.scheduler = engine.getScheduler();
+        this.store = store;
+        this.metrics = metrics;
+        this.journal = journal;
+        this.index = cancellable ? new MessageIndex<PendingMessage>() : null;
+        if (ownsEngine) {
+            engine.start();
+        }
+        if (journal != null) {
+            journal.replay(new Journal.Visitor() {
+                @Override
+                public void replayed(long handle, String routingKey, long deliveryTime, int size) {
+                    String messageId = index != null ? Transmitter.this.journal.read(handle).properties.getMessageId() : null;
+                    schedule(new PendingMessage(Transmitter.this, ~handle, handle, publishers.stripeFor(routingKey), deliveryTime, 0, messageId), size);
+                }
+            });
+        }
     }
     
+    /**
+     * @return the channel of the first publisher
+     */
     public Channel getChannel() {
-        return channel;
+        return publishers.getPublishers().get(0).getChannel();
+    }
+    
+    public PublisherPool getPublishers() {
+        return publishers;
+    }
+    
+    public Engine getEngine() {
+        return engine;
+    }
+    
+    public Acknowledger getAcknowledger() {
+        return acknowledger;
+    }
+    
+    /**
+     * @return how to settle the delivery of a message published on this
+     *         transmitter's behalf
+     */
+    public Publisher.Settler getSettler() {
+        return settler;
     }
     
     public String getQueueName() {
         return queueName;
     }
     
-    public void transmit(final String routingKey, final long deliveryTag, final BasicProperties properties, final byte[] body, long delay) {
-        Callable<Void> command = new Callable<Void>() {
+    public int getPendingCount() {
+        return pendingCount.get();
+    }
+    
+    public SlabStore getStore() {
+        return store;
+    }
+    
+    /**
+     * @return the journal messages are taken into custody in, or null if they
+     *         aren't
+     */
+    public Journal getJournal() {
+        return journal;
+    }
+    
+    /**
+     * @return the pending messages by how soon they are due, weighed by the
+     *         bytes they take up in the store, for the whole engine
+     */
+    public Backlog getBacklog() {
+        return scheduler.getBacklog();
+    }
+    
+    public Metrics getMetrics() {
+        return metrics;
+    }
+    
+    public void setCapacityListener(CapacityListener capacityListener) {
+        this.capacityListener = capacityListener;
+    }
+    
+    /**
+     * @param shaper
+     *            to spread out bursts of messages falling due at once, or
+     *            null to publish everything as soon as it is due
+     */
+    public void setShaper(Shaper shaper) {
+        this.shaper = shaper;
+    }
+    
+    /**
+     * @param deduplicating
+     *            whether to drop a message, acknowledging its delivery, if a
+     *            message with the same message ID is already pending; only
+     *            has an effect if the transmitter is cancellable
+     */
+    public void setDeduplicating(boolean deduplicating) {
+        this.deduplicating = deduplicating;
+    }
+    
+    /**
+     * @param replicator
+     *            to tell a standby about messages as they are scheduled and
+     *            settled, or null not to
+     */
+    public void setReplicator(Replicator replicator) {
+        this.replicator = replicator;
+    }
+    
+    /**
+     * @param tracer
+     *            to stamp a sample of messages with timings, or null not to
+     */
+    public void setTracer(Tracer tracer) {
+        this.tracer = tracer;
+    }
+    
+    /**
+     * @return how many pending messages can be cancelled by message ID
+     */
+    public int getIndexedCount() {
+        if (index == null) {
+            return 0;
+        }
+        synchronized (index) {
+            return index.size();
+        }
+    }
+    
+    /**
+     * @return how many replicas are staged, waiting for a takeover
+     */
+    public int getStagedCount() {
+        if (index == null) {
+            return 0;
+        }
+        synchronized (index) {
+            return staged != null ? staged.size() : 0;
+        }
+    }
+    
+    /**
+     * @see Engine#setShutdownGraceMillis
+     */
+    public void setShutdownGraceMillis(long shutdownGraceMillis) {
+        engine.setShutdownGraceMillis(shutdownGraceMillis);
+    }
+    
+    /**
+     * @param deliveryTime
+     *            when to publish the message, as a wall-clock time; it is
+     *            kept as it is, rather than as a delay, so that it doesn't
+     *            shift with however long the message took to get here
+     * @return false if the message could not be accepted because the store is
+     *         full or we are shutting down; the caller is responsible for
+     *         handing it back
+     * @throws IllegalArgumentException
+     *             if the message is too large for the store to hold even
+     *             with nothing else in it
+     */
+    public boolean transmit(String routingKey, long deliveryTag, BasicProperties properties, byte[] body, long deliveryTime) {
+        String messageId = index != null ? properties.getMessageId() : null;
+        if (messageId != null && isRedundant(messageId)) {
+            try {
+                acknowledger.ack(deliveryTag);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return true;
+        }
+        return transmit(routingKey, deliveryTag, properties, body, deliveryTime, messageId);
+    }
+    
+    /**
+     * Transmits every entry of a batch envelope. The envelope's delivery is
+     * acknowledged once every entry has been published, or, in custody
+     * mode, once they are all in the journal. The entries are all stored
+     * before any is scheduled, so if the store can't hold them all, none is
+     * taken; but if one is refused by the broker, or we shut down before
+     * they are all out, the envelope is handed back, and the entries already
+     * published will be published again when it is redelivered.
+     *
+     * @return false if the entries could not be accepted; the caller is
+     *         responsible for handing the envelope back
+     * @throws IllegalArgumentException
+     *             if the entries are too large for the store to hold even
+     *             with nothing else in it
+     */
+    public boolean transmitBatch(long deliveryTag, List<BatchEnvelope.Entry> entries) {
+        metrics.batched(entries.size());
+        List<BatchEnvelope.Entry> accepted = new ArrayList<BatchEnvelope.Entry>(entries.size());
+        for (BatchEnvelope.Entry entry : entries) {
+            String messageId = messageId(entry.properties);
+            if (messageId == null || !isRedundant(messageId)) {
+                accepted.add(entry);
+            }
+        }
+        if (accepted.isEmpty()) {
+            return ack(deliveryTag);
+        }
+        int count = accepted.size();
+        BasicProperties[] properties = new BasicProperties[count];
+        int[] flags = new int[count];
+        Tracer tracer = this.tracer;
+        for (int i = 0; i < count; i++) {
+            BatchEnvelope.Entry entry = accepted.get(i);
+            properties[i] = entry.properties;
+            flags[i] = flags(entry.properties);
+            if (tracer != null && tracer.sample()) {
+                properties[i] = tracer.received(entry.properties, entry.deliveryTime);
+                flags[i] |= PendingMessage.TRACED;
+            }
+        }
+        return journal != null ? takeCustody(deliveryTag, accepted, properties, flags) : transmitBatch(deliveryTag, accepted, properties, flags);
+    }
+    
+    private boolean transmitBatch(long deliveryTag, List<BatchEnvelope.Entry> entries, BasicProperties[] properties, int[] flags) {
+        long[] handles = new long[entries.size()];
+        for (int i = 0; i < handles.length; i++) {
+            BatchEnvelope.Entry entry = entries.get(i);
+            handles[i] = store.store(entry.routingKey, properties[i], entry.body, i);
+            if (handles[i] == SlabStore.NO_SPACE || handles[i] == SlabStore.TOO_LARGE) {
+                for (int j = 0; j < i; j++) {
+                    store.release(handles[j]);
+                }
+                if (handles[i] == SlabStore.TOO_LARGE) {
+                    throw new IllegalArgumentException("batch envelope of " + handles.length + " entries is too large for the store");
+                }
+                exhausted();
+                return false;
+            }
+        }
+        Batch batch = new Batch(handles.length);
+        batches.put(deliveryTag, batch);
+        for (int i = 0; i < handles.length; i++) {
+            BatchEnvelope.Entry entry = entries.get(i);
+            String messageId = messageId(entry.properties);
+            scheduled(entry.routingKey, properties[i], entry.body, entry.deliveryTime, messageId);
+            try {
+                schedule(new PendingMessage(this, deliveryTag, handles[i], publishers.stripeFor(entry.routingKey), entry.deliveryTime, flags[i], messageId), store.getSize(handles[i]));
+                metrics.scheduled();
+            } catch (RejectedExecutionException e) {
+                store.release(handles[i]);
+                settled(messageId);
+                batch.refused = true;
+                batch.remaining.decrementAndGet();
+            }
+        }
+        try {
+            countDown(deliveryTag, batch);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return true;
+    }
+    
+    /**
+     * Appends every entry to the journal before scheduling any, and takes
+     * back the ones already appended if one can't be. The journal
+     * acknowledges the envelope once its last entry is on disk, by which
+     * time the rest are too.
+     */
+    private boolean takeCustody(long deliveryTag, List<BatchEnvelope.Entry> entries, BasicProperties[] properties, int[] flags) {
+        long[] handles = new long[entries.size()];
+        for (int i = 0; i < handles.length; i++) {
+            BatchEnvelope.Entry entry = entries.get(i);
+            try {
+                handles[i] = journal.append(entry.routingKey, properties[i], entry.body, entry.deliveryTime, i == handles.length - 1 ? deliveryTag : Journal.NO_DELIVERY);
+            } catch (IOException e) {
+                e.printStackTrace();
+                for (int j = 0; j < i; j++) {
+                    journal.delivered(handles[j]);
+                }
+                return false;
+            }
+        }
+        for (int i = 0; i < handles.length; i++) {
+            BatchEnvelope.Entry entry = entries.get(i);
+            String messageId = messageId(entry.properties);
+            scheduled(entry.routingKey, properties[i], entry.body, entry.deliveryTime, messageId);
+            try {
+                schedule(new PendingMessage(this, ~handles[i], handles[i], publishers.stripeFor(entry.routingKey), entry.deliveryTime, flags[i], messageId), journal.getSize(handles[i]));
+                metrics.scheduled();
+            } catch (RejectedExecutionException e) {
+                // in the journal, to be published after the next replay
+            }
+        }
+        return true;
+    }
+    
+    private String messageId(BasicProperties properties) {
+        return index != null ? properties.getMessageId() : null;
+    }
+    
+    private boolean ack(long deliveryTag) {
+        try {
+            acknowledger.ack(deliveryTag);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return true;
+    }
+    
+    /**
+     * @return whether a message with the given ID can be dropped, because
+     *         its replica has already been published after a takeover, or
+     *         because a message with the same ID is pending and we are
+     *         deduplicating
+     */
+    private boolean isRedundant(String messageId) {
+        if (supersedeReplica(messageId)) {
+            metrics.replicaDuplicate();
+            return true;
+        }
+        if (deduplicating && isIndexed(messageId)) {
+            metrics.deduplicated();
+            return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Settles the delivery of a message, or of one entry of a batch envelope,
+     * once it has been published, or cancelled, or if it has been rejected.
+     */
+    private void settle(long deliveryTag, boolean confirmed) throws IOException {
+        Batch batch = batches.isEmpty() ? null : batches.get(deliveryTag);
+        if (batch != null) {
+            if (!confirmed) {
+                batch.refused = true;
+            }
+            countDown(deliveryTag, batch);
+        } else if (confirmed) {
+            acknowledger.ack(deliveryTag);
+        } else {
+            acknowledger.requeue(deliveryTag);
+        }
+    }
+    
+    private void countDown(long deliveryTag, Batch batch) throws IOException {
+        if (batch.remaining.decrementAndGet() != 0) {
+            return;
+        }
+        batches.remove(deliveryTag);
+        if (batch.refused) {
+            acknowledger.requeue(deliveryTag);
+        } else {
+            acknowledger.ack(deliveryTag);
+        }
+    }
+    
+    /**
+     * Cancels the pending message with the same message ID, if there is one,
+     * and transmits this one in its place. If the old message has already
+     * been published, this one is transmitted all the same.
+     *
+     * @return as for {@link #transmit}
+     */
+    public boolean replace(String routingKey, long deliveryTag, BasicProperties properties, byte[] body, long deliveryTime) throws IOException {
+        String messageId = properties.getMessageId();
+        if (messageId != null) {
+            cancel(messageId);
+        }
+        return transmit(routingKey, deliveryTag, properties, body, deliveryTime, messageId);
+    }
+    
+    /**
+     * Takes the pending message with the given message ID out of the
+     * scheduler, and settles its delivery without publishing it. This takes
+     * the same time however many messages are pending.
+     *
+     * @return false if there is no such message, or it is already being
+     *         published
+     */
+    public boolean cancel(String messageId) throws IOException {
+        if (index == null) {
+            throw new IllegalStateException("messages to " + queueName + " are not indexed by message ID");
+        }
+        PendingMessage pendingMessage;
+        synchronized (index) {
+            pendingMessage = index.get(messageId);
+            if (pendingMessage == null || scheduler.cancel(index.getHandle(messageId)) == null) {
+                metrics.cancelMissed();
+                return false;
+            }
+            index.remove(messageId, pendingMessage);
+        }
+        pendingCount.decrementAndGet();
+        if (pendingMessage.deliveryTag < 0) {
+            journal.delivered(pendingMessage.handle);
+        } else {
+            release(pendingMessage.handle);
+            if ((pendingMessage.flags & PendingMessage.REPLICA) == 0) {
+                settle(pendingMessage.deliveryTag, true);
+            }
+        }
+        settled(messageId);
+        metrics.cancelled();
+        return true;
+    }
+    
+    /**
+     * Holds a replica of a message pending on the active instance, without
+     * scheduling it, so that it can be published on time if this instance
+     * takes over. A replica with the same message ID as one already staged
+     * takes its place.
+     *
+     * @return false if the store is full
+     */
+    public boolean stage(String routingKey, BasicProperties properties, byte[] body, long deliveryTime) {
+        String messageId = properties.getMessageId();
+        if (index == null || messageId == null) {
+            throw new IllegalStateException("replicas of messages to " + queueName + " can't be indexed by message ID");
+        }
+        long handle = store.store(routingKey, properties, body);
+        if (handle == SlabStore.NO_SPACE || handle == SlabStore.TOO_LARGE) {
+            return false;
+        }
+        PendingMessage replica = new PendingMessage(this, 0, handle, publishers.stripeFor(routingKey), deliveryTime, flags(properties) | PendingMessage.REPLICA, messageId);
+        PendingMessage replaced;
+        synchronized (index) {
+            if (staged == null) {
+                staged = new MessageIndex<PendingMessage>();
+            }
+            replaced = staged.get(messageId);
+            staged.put(messageId, replica, handle);
+        }
+        if (replaced != null) {
+            release(replaced.handle);
+        }
+        return true;
+    }
+    
+    /**
+     * Drops the staged replica with the given message ID, as the active
+     * instance has settled the original.
+     *
+     * @return false if there was no such replica
+     */
+    public boolean unstage(String messageId) {
+        PendingMessage replica;
+        synchronized (index) {
+            replica = staged != null ? staged.get(messageId) : null;
+            if (replica == null) {
+                return false;
+            }
+            staged.remove(messageId, replica);
+        }
+        release(replica.handle);
+        return true;
+    }
+    
+    /**
+     * Schedules all the staged replicas, as this instance is taking over.
+     * From now on, an original redelivered by the broker takes the place of
+     * its replica, if that is still pending, and is dropped if it has already
+     * been published.
+     *
+     * @return how many replicas were scheduled
+     */
+    public int promote() {
+        List<PendingMessage> replicas;
+        synchronized (index) {
+            replicas = staged != null ? staged.clear() : Collections.<PendingMessage> emptyList();
+            staged = null;
+            publishedReplicas = new HashSet<String>();
+        }
+        int promoted = 0;
+        for (PendingMessage replica : replicas) {
+            try {
+                schedule(replica, store.getSize(replica.handle));
+                promoted++;
+            } catch (RejectedExecutionException e) {
+                store.release(replica.handle);
+            }
+        }
+        return promoted;
+    }
+    
+    /**
+     * Matches a message redelivered after a takeover up with its replica. If
+     * the replica is still pending, it is dropped in favour of the original;
+     * if it has been published, or is being published, the original is to be
+     * dropped.
+     *
+     * @return true if the original is to be dropped
+     */
+    private boolean supersedeReplica(String messageId) {
+        PendingMessage replica;
+        synchronized (index) {
+            if (publishedReplicas == null) {
+                return false;
+            }
+            replica = index.get(messageId);
+            if (publishedReplicas.remove(messageId)) {
+                replica = null;
+            } else if (replica == null || (replica.flags & PendingMessage.REPLICA) == 0) {
+                return false;
+            } else if (scheduler.cancel(index.getHandle(messageId)) == null) {
+                replica = null;
+            } else {
+                index.remove(messageId, replica);
+            }
+        }
+        if (replica != null) {
+            pendingCount.decrementAndGet();
+            release(replica.handle);
+            return false;
+        }
+        return true;
+    }
+    
+    private void settled(String messageId) {
+        Replicator replicator = this.replicator;
+        if (replicator != null && messageId != null) {
+            replicator.settled(messageId);
+        }
+    }
+    
+    private boolean isIndexed(String messageId) {
+        synchronized (index) {
+            return index.get(messageId) != null;
+        }
+    }
+    
+    private boolean transmit(String routingKey, long deliveryTag, BasicProperties properties, byte[] body, long deliveryTime, String messageId) {
+        int flags = flags(properties);
+        Tracer tracer = this.tracer;
+        if (tracer != null && tracer.sample()) {
+            properties = tracer.received(properties, deliveryTime);
+            flags |= PendingMessage.TRACED;
+        }
+        if (journal != null) {
+            return takeCustody(routingKey, deliveryTag, properties, body, deliveryTime, flags, messageId);
+        }
+        long handle = store.store(routingKey, properties, body);
+        if (handle == SlabStore.TOO_LARGE) {
+            throw new IllegalArgumentException("message of " + body.length + " bytes is too large for the store");
+        }
+        if (handle == SlabStore.NO_SPACE) {
+            exhausted();
+            return false;
+        }
+        // the scheduled record goes first, since the message may be settled as soon as it is scheduled
+        scheduled(routingKey, properties, body, deliveryTime, messageId);
+        try {
+            schedule(new PendingMessage(this, deliveryTag, handle, publishers.stripeFor(routingKey), deliveryTime, flags, messageId), store.getSize(handle));
+        } catch (RejectedExecutionException e) {
+            store.release(handle);
+            settled(messageId);
+            return false;
+        }
+        metrics.scheduled();
+        return true;
+    }
+    
+    /**
+     * Appends the message to the journal, which acknowledges the delivery once
+     * the entry is on disk. Once it is in the journal, the message is ours
+     * even if we are shutting down; it is then published after the next
+     * replay.
+     */
+    private boolean takeCustody(String routingKey, long deliveryTag, BasicProperties properties, byte[] body, long deliveryTime, int flags, String messageId) {
+        long handle;
+        try {
+            handle = journal.append(routingKey, properties, body, deliveryTime, deliveryTag);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        scheduled(routingKey, properties, body, deliveryTime, messageId);
+        try {
+            schedule(new PendingMessage(this, ~handle, handle, publishers.stripeFor(routingKey), deliveryTime, flags, messageId), journal.getSize(handle));
+        } catch (RejectedExecutionException e) {
+            return true;
+        }
+        metrics.scheduled();
+        return true;
+    }
+    
+    private void scheduled(String routingKey, BasicProperties properties, byte[] body, long deliveryTime, String messageId) {
+        Replicator replicator = this.replicator;
+        if (replicator != null && messageId != null) {
+            replicator.scheduled(routingKey, properties, body, deliveryTime);
+        }
+    }
+    
+    private static int flags(BasicProperties properties) {
+        return Shaper.isStrict(properties) ? PendingMessage.STRICT : 0;
+    }
+    
+    private void schedule(PendingMessage pendingMessage, int size) {
+        pendingCount.incrementAndGet();
+        try {
+            schedule(pendingMessage, pendingMessage.deliveryTime, size, null);
+        } catch (RejectedExecutionException e) {
+            pendingCount.decrementAndGet();
+            throw e;
+        }
+    }
+    
+    /**
+     * Schedules the message, and, if it has a message ID, indexes it by that,
+     * in place of the message it stands in for, if that is still indexed.
+     * The scheduler and the index are updated together, so that the message
+     * can't be published and taken out of the index before it is put in.
+     */
+    private void schedule(PendingMessage pendingMessage, long time, int size, PendingMessage standingInFor) {
+        if (pendingMessage.messageId == null) {
+            scheduler.schedule(pendingMessage, time, size);
+            return;
+        }
+        synchronized (index) {
+            long handle = scheduler.schedule(pendingMessage, time, size);
+            if (standingInFor == null || index.get(pendingMessage.messageId) == standingInFor) {
+                index.put(pendingMessage.messageId, pendingMessage, handle);
+            }
+        }
+    }
+    
+    /**
+     * Takes the message out of the index, as it is about to be published or
+     * dropped, unless another message has taken its place there. A replica
+     * about to be published is remembered, so that the original can be
+     * dropped when it is redelivered.
+     */
+    private void unindex(PendingMessage pendingMessage, boolean publishing) {
+        if (pendingMessage.messageId != null) {
+            synchronized (index) {
+                index.remove(pendingMessage.messageId, pendingMessage);
+                if (publishing && (pendingMessage.flags & PendingMessage.REPLICA) != 0) {
+                    publishedReplicas.add(pendingMessage.messageId);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Passes a message which has just fallen due through the shaper, if
+     * there is one, and puts it back in the scheduler if the shaper holds it
+     * back.
+     *
+     * @return true if the message has been held back, and shouldn't be
+     *         published yet
+     */
+    boolean shape(PendingMessage pendingMessage) {
+        Shaper shaper = this.shaper;
+        if (shaper == null || (pendingMessage.flags & (PendingMessage.STRICT | PendingMessage.SHAPED)) != 0) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        long releaseTime = shaper.release(now);
+        metrics.spread(releaseTime - now);
+        if (releaseTime <= now) {
+            return false;
+        }
+        int size = pendingMessage.deliveryTag < 0 ? journal.getSize(pendingMessage.handle) : store.getSize(pendingMessage.handle);
+        try {
+            schedule(pendingMessage.shaped(), releaseTime, size, pendingMessage);
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Notes when a traced message was released by the scheduler, on its way
+     * to a publisher.
+     */
+    void dequeued(PendingMessage pendingMessage) {
+        if ((pendingMessage.flags & PendingMessage.TRACED) != 0) {
+            dequeueTimes.put(pendingMessage, Clock.SYSTEM.currentTimeMicros());
+        }
+    }
+    
+    void publish(PendingMessage pendingMessage, Publisher publisher) throws IOException {
+        pendingCount.decrementAndGet();
+        unindex(pendingMessage, true);
+        settled(pendingMessage.messageId);
+        if (pendingMessage.deliveryTag < 0) {
+            publish(journal.read(pendingMessage.handle), pendingMessage, publisher);
+            return;
+        }
+        try {
+            publish(store.read(pendingMessage.handle), pendingMessage, publisher);
+        } finally {
+            release(pendingMessage.handle);
+        }
+    }
+    
+    private void release(long handle) {
+        store.release(handle);
+        if (full.get()) {
+            checkCapacity();
+        }
+    }
+    
+    /**
+     * Tells the capacity listener the store is full. If the store has emptied
+     * in the meantime, there is nothing left to release, and so nothing else
+     * to tell it otherwise, so that is checked here.
+     */
+    private void exhausted() {
+        synchronized (full) {
+            if (full.compareAndSet(false, true) && capacityListener != null) {
+                capacityListener.capacityExhausted();
+            }
+        }
+        if (store.getCount() == 0) {
+            checkCapacity();
+        }
+    }
+    
+    private void checkCapacity() {
+        synchronized (full) {
+            if (store.getUsedBytes() <= store.getBudgetBytes() * RESTORE_THRESHOLD && full.compareAndSet(true, false) && capacityListener != null) {
+                capacityListener.capacityRestored();
+            }
+        }
+    }
+    
+    private void publish(Message message, PendingMessage pendingMessage, Publisher publisher) throws IOException {
+        long nowMicros = Clock.SYSTEM.currentTimeMicros();
+        long lateMicros = nowMicros - pendingMessage.deliveryTime * 1000;
+        BasicProperties properties = message.properties;
+        if ((pendingMessage.flags & PendingMessage.TRACED) != 0) {
+            Long dequeuedMicros = dequeueTimes.remove(pendingMessage);
+            properties = Tracer.published(properties, dequeuedMicros != null ? dequeuedMicros : lateMicros + pendingMessage.deliveryTime * 1000);
+        }
+        Publisher.Settler settler = (pendingMessage.flags & PendingMessage.REPLICA) != 0 ? replicaSettler(pendingMessage.messageId) : this.settler;
+        metrics.publishTook(publisher.publish(queueName, message.routingKey, properties, message.body, settler, pendingMessage.deliveryTag));
+        metrics.published(lateMicros, nowMicros - pendingMessage.readyTime * 1000);
+    }
+    
+    /**
+     * A replica has no delivery to settle; if it is rejected, it is
+     * forgotten, so that the original is published when it is redelivered.
+     */
+    private Publisher.Settler replicaSettler(final String messageId) {
+        return new Publisher.Settler() {
+            @Override
+            public void confirmed(long deliveryTag) {
+                metrics.confirmed();
+            }
+            
             @Override
-            public Void call() throws IOException {
-                channel.basicPublish(queueName, routingKey, properties, body);
-                channel.basicAck(deliveryTag, false);
-                return null;
+            public void rejected(long deliveryTag) {
+                metrics.rejected();
+                synchronized (index) {
+                    publishedReplicas.remove(messageId);
+                }
             }
         };
-        
-        executor.schedule(command, delay, TimeUnit.MILLISECONDS);
     }
     
+    /**
+     * Lets go of a message the engine gave up on while shutting down. Its
+     * delivery is left unsettled, or, if it is in custody, its entry stays in
+     * the journal.
+     */
+    void abandon(PendingMessage pendingMessage) {
+        pendingCount.decrementAndGet();
+        unindex(pendingMessage, false);
+        dequeueTimes.remove(pendingMessage);
+        if (pendingMessage.deliveryTag >= 0) {
+            store.release(pendingMessage.handle);
+        }
+    }
+    
+    /**
+     * Closes the engine, if it is the transmitter's own, which publishes
+     * messages as they fall due for the grace period, drops the rest, and
+     * waits for the confirms of what was published; then sends the acks. The
+     * dropped messages are left unsettled, for the caller to hand back to the
+     * broker with {@link Acknowledger#requeueAll}, or by closing the channel.
+     * Messages in custody stay in the journal instead.
+     */
     @Override
     public void close() throws IOException {
-        executor.shutdown();
-        try {
-            executor.awaitTermination(1, TimeUnit.MINUTES);
-        } catch (InterruptedException e) {
-            throw new IOException("interrupted while waiting for executor to terminate", e);
+        if (ownsEngine) {
+            engine.close();
+        }
+        if (journal != null) {
+            journal.close();
         }
+        acknowledger.close();
     }
     
 }
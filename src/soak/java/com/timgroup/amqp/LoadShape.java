@@ -0,0 +1,69 @@
+package com.timgroup.amqp;
+
+import java.util.Random;
+
+/**
+ * The ways the soak test can spread out the messages it sends, in arrival and
+ * in delivery time.
+ */
+public enum LoadShape {
+    
+    /**
+     * A steady stream, due at times spread evenly over the spread.
+     */
+    UNIFORM,
+    
+    /**
+     * Each second's messages arrive all together in its first tenth, due at
+     * times spread evenly over the spread.
+     */
+    BURSTY {
+        @Override
+        public long arrivals(long rate, long elapsedMillis) {
+            long seconds = elapsedMillis / 1000;
+            long burstMillis = Math.min(elapsedMillis % 1000, 100);
+            return seconds * rate + rate * burstMillis / 100;
+        }
+    },
+    
+    /**
+     * A steady stream, all due at the next whole multiple of the spread, as
+     * with messages for the top of the hour.
+     */
+    INSTANT {
+        @Override
+        public long deliveryTime(long now, long spread, Random random) {
+            return (now / spread + 1) * spread;
+        }
+    },
+    
+    /**
+     * A steady stream, of which a tenth is due within the spread and the rest
+     * up to ten spreads ahead.
+     */
+    FAR_FUTURE {
+        @Override
+        public long deliveryTime(long now, long spread, Random random) {
+            if (random.nextInt(10) == 0) {
+                return super.deliveryTime(now, spread, random);
+            }
+            return now + spread + (long) (random.nextDouble() * 9 * spread);
+        }
+    };
+    
+    public static LoadShape named(String name) {
+        return valueOf(name.toUpperCase().replace('-', '_'));
+    }
+    
+    /**
+     * @return how many messages should have been sent by the given time
+     */
+    public long arrivals(long rate, long elapsedMillis) {
+        return rate * elapsedMillis / 1000;
+    }
+    
+    public long deliveryTime(long now, long spread, Random random) {
+        return now + (long) (random.nextDouble() * spread);
+    }
+    
+}
@@ -0,0 +1,186 @@
+package com.timgroup.amqp;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+
+/**
+ * A long-running load test of the whole daemon against the in-memory broker.
+ * It sends scheduled messages at a controlled rate in one of the
+ * {@link LoadShape}s, and records how late they are repeated, how many are
+ * repeated each second and how much heap is in use, in histograms which are
+ * summarised as it goes and printed in full at the end.
+ *
+ * Arguments are name=value settings, optionally after the path of a
+ * properties file to read first. As well as the daemon's own settings, it
+ * takes shape, rate (messages per second), durationSeconds, spreadMillis (how
+ * far ahead messages are due), bodyBytes, routingKeys and reportSeconds.
+ */
+public class Soak {
+    
+    public static void main(String... args) throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("inboundQueueName", "inbound");
+        properties.setProperty("outboundQueueName", "outbound");
+        for (String arg : args) {
+            if (arg.contains("=")) {
+                properties.setProperty(arg.substring(0, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+            } else {
+                Reader reader = new FileReader(arg);
+                try {
+                    properties.load(reader);
+                } finally {
+                    reader.close();
+                }
+            }
+        }
+        new Soak(new Configuration(properties)).run();
+        System.exit(0);
+    }
+    
+    private final FakeBroker broker = new FakeBroker();
+    private final Configuration configuration;
+    private final LoadShape shape;
+    private final long rate;
+    private final long durationMillis;
+    private final long spreadMillis;
+    private final byte[] body;
+    private final String[] routingKeys;
+    private final Recorder lateness = new Recorder(3);
+    private final Histogram totalLateness = new Histogram(3);
+    private final Histogram throughput = new Histogram(3);
+    private final Histogram heapUsed = new Histogram(3);
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong early = new AtomicLong();
+    private Application application;
+    private long startTime;
+    private long lastDelivered;
+    
+    public Soak(Configuration configuration) {
+        this.configuration = configuration;
+        this.shape = LoadShape.named(configuration.getString("shape", "uniform"));
+        this.rate = configuration.getLong("rate", 10000);
+        this.durationMillis = configuration.getLong("durationSeconds", 600) * 1000;
+        this.spreadMillis = configuration.getLong("spreadMillis", 60000);
+        this.body = new byte[configuration.getInt("bodyBytes", 256)];
+        this.routingKeys = new String[configuration.getInt("routingKeys", 100)];
+        for (int i = 0; i < routingKeys.length; i++) {
+            routingKeys[i] = "key-" + i;
+        }
+    }
+    
+    public void run() throws Exception {
+        List<String> inboundQueueNames = Application.inboundQueueNames(configuration);
+        Channel channel = broker.newConnection(null).createChannel();
+        for (String inboundQueueName : inboundQueueNames) {
+            channel.queueDeclare(inboundQueueName, true, false, false, null);
+        }
+        String outboundQueueName = configuration.getString("outboundQueueName");
+        channel.exchangeDeclare(outboundQueueName, "fanout", true, false, null);
+        channel.queueDeclare(outboundQueueName, true, false, false, null);
+        channel.queueBind(outboundQueueName, outboundQueueName, "");
+        channel.basicConsume(outboundQueueName, true, new DefaultConsumer(channel) {
+            @Override
+            public void handleDelivery(String consumerTag, Envelope envelope, BasicProperties properties, byte[] body) {
+                long late = System.currentTimeMillis() - ((Number) properties.getHeaders().get(Receiver.SCHEDULED_DELIVERY_HEADER)).longValue();
+                if (late < 0) {
+                    early.incrementAndGet();
+                } else {
+                    lateness.recordValue(late);
+                }
+                delivered.incrementAndGet();
+            }
+        });
+        
+        application = Application.create(broker.connectionFactory(), configuration);
+        application.start();
+        System.out.printf("soaking with %s load at %d messages/s for %d s, spread over %d ms, into %d shard(s)%n", shape, rate, durationMillis / 1000, spreadMillis, inboundQueueNames.size());
+        
+        startTime = System.currentTimeMillis();
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+        final long reportSeconds = configuration.getLong("reportSeconds", 10);
+        sampler.scheduleAtFixedRate(new Runnable() {
+            private long seconds;
+            
+            @Override
+            public void run() {
+                sample();
+                if (++seconds % reportSeconds == 0) {
+                    report();
+                }
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+        
+        send(channel, inboundQueueNames);
+        
+        sampler.shutdown();
+        sampler.awaitTermination(1, TimeUnit.MINUTES);
+        summarise();
+    }
+    
+    private void send(Channel channel, List<String> inboundQueueNames) throws IOException, InterruptedException {
+        Random random = new Random();
+        long elapsed;
+        while ((elapsed = System.currentTimeMillis() - startTime) < durationMillis) {
+            long due = shape.arrivals(rate, elapsed);
+            while (sent.get() < due) {
+                long now = System.currentTimeMillis();
+                String routingKey = routingKeys[random.nextInt(routingKeys.length)];
+                String inboundQueueName = inboundQueueNames.get(Shard.partitionFor(routingKey, inboundQueueNames.size()));
+                BasicProperties properties = new BasicProperties.Builder().headers(Collections.<String, Object> singletonMap(Receiver.SCHEDULED_DELIVERY_HEADER, shape.deliveryTime(now, spreadMillis, random))).build();
+                channel.basicPublish("", inboundQueueName, properties, body);
+                sent.incrementAndGet();
+            }
+            Thread.sleep(1);
+        }
+    }
+    
+    private synchronized void sample() {
+        long deliveredNow = delivered.get();
+        throughput.recordValue(deliveredNow - lastDelivered);
+        lastDelivered = deliveredNow;
+        Runtime runtime = Runtime.getRuntime();
+        heapUsed.recordValue((runtime.totalMemory() - runtime.freeMemory()) >> 20);
+    }
+    
+    private synchronized void report() {
+        Histogram interval = lateness.getIntervalHistogram();
+        totalLateness.add(interval);
+        int pending = 0;
+        for (Shard shard : application.getShards()) {
+            pending += shard.getTransmitter().getPendingCount();
+        }
+        System.out.printf("%6d s: sent %d, repeated %d (%d early), pending %d; lateness ms p50 %d, p99 %d, p99.9 %d, max %d; peak heap %d MB%n",
+                          (System.currentTimeMillis() - startTime) / 1000, sent.get(), delivered.get(), early.get(), pending,
+                          interval.getValueAtPercentile(50), interval.getValueAtPercentile(99), interval.getValueAtPercentile(99.9), interval.getMaxValue(),
+                          heapUsed.getMaxValue());
+    }
+    
+    private synchronized void summarise() {
+        totalLateness.add(lateness.getIntervalHistogram());
+        System.out.printf("%nlateness (ms), %d messages, %d early:%n", totalLateness.getTotalCount(), early.get());
+        totalLateness.outputPercentileDistribution(System.out, 1.0);
+        System.out.printf("%nrepeated per second:%n");
+        throughput.outputPercentileDistribution(System.out, 1.0);
+        System.out.printf("%nheap used (MB), sampled every second:%n");
+        heapUsed.outputPercentileDistribution(System.out, 1.0);
+    }
+    
+}
@@ -0,0 +1,119 @@
+package com.timgroup.amqp;
+
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class AcknowledgerTest {
+    
+    private final RecordingChannel recorder = new RecordingChannel();
+    private final Acknowledger acknowledger = new Acknowledger(recorder.channel, 10000, 1000000);
+    
+    @After
+    public void closeAcknowledger() throws Exception {
+        acknowledger.close();
+    }
+    
+    @Test
+    public void aContiguousRunOfDeliveriesIsAcknowledgedWithOneMultipleAck() throws Exception {
+        acknowledger.ack(2);
+        acknowledger.ack(1);
+        acknowledger.ack(3);
+        
+        acknowledger.flush();
+        
+        assertEquals(Arrays.asList("basicAck[3, true]"), recorder.callsTo("basicAck"));
+    }
+    
+    @Test
+    public void aMultipleAckNeverReachesPastAPendingDelivery() throws Exception {
+        acknowledger.ack(1);
+        acknowledger.ack(2);
+        acknowledger.ack(4);
+        acknowledger.ack(5);
+        
+        acknowledger.flush();
+        
+        assertEquals(Arrays.asList("basicAck[2, true]", "basicAck[4, false]", "basicAck[5, false]"), recorder.callsTo("basicAck"));
+    }
+    
+    @Test
+    public void theWatermarkMovesOverDeliveriesAcknowledgedIndividually() throws Exception {
+        acknowledger.ack(2);
+        acknowledger.flush();
+        acknowledger.ack(1);
+        acknowledger.ack(3);
+        acknowledger.flush();
+        
+        assertEquals(Arrays.asList("basicAck[2, false]", "basicAck[3, true]"), recorder.callsTo("basicAck"));
+        assertEquals(0, acknowledger.getWindow());
+    }
+    
+    @Test
+    public void aRequeuedDeliveryIsNackedAtOnceAndDoesNotHoldUpTheWatermark() throws Exception {
+        acknowledger.requeue(1);
+        acknowledger.ack(2);
+        acknowledger.flush();
+        
+        assertEquals(Arrays.asList("basicNack[1, false, true]"), recorder.callsTo("basicNack"));
+        assertEquals(Arrays.asList("basicAck[2, true]"), recorder.callsTo("basicAck"));
+    }
+    
+    @Test
+    public void acknowledgementsAreFlushedOnceABatchHasBuiltUp() throws Exception {
+        Acknowledger batchingAcknowledger = new Acknowledger(recorder.channel, 2, 1000000);
+        try {
+            batchingAcknowledger.ack(1);
+            assertEquals(0, recorder.callsTo("basicAck").size());
+            batchingAcknowledger.ack(2);
+            assertEquals(Arrays.asList("basicAck[2, true]"), recorder.callsTo("basicAck"));
+        } finally {
+            batchingAcknowledger.close();
+        }
+    }
+    
+    @Test
+    public void theStateWindowGrowsPastItsInitialSize() throws Exception {
+        for (long tag = 2; tag <= 5000; tag++) {
+            acknowledger.ack(tag);
+        }
+        acknowledger.ack(1);
+        acknowledger.flush();
+        
+        assertEquals(Arrays.asList("basicAck[5000, true]"), recorder.callsTo("basicAck"));
+    }
+    
+    @Test
+    public void oneLongPendingDeliveryOnlyHoldsBackOneRunOfSettledOnes() throws Exception {
+        for (long tag = 2; tag <= 100000; tag++) {
+            acknowledger.ack(tag);
+            if (tag % 1000 == 0) {
+                acknowledger.flush();
+            }
+        }
+        
+        assertEquals(1, acknowledger.getSettledRunCount());
+        assertEquals(100000, acknowledger.getWindow());
+        acknowledger.ack(1);
+        acknowledger.flush();
+        assertEquals(0, acknowledger.getSettledRunCount());
+        assertEquals(0, acknowledger.getWindow());
+    }
+    
+    @Test
+    public void requeuingAllSendsHeldBackAcksAndThenOneMultipleNackUpToTheLastUnsettledDelivery() throws Exception {
+        acknowledger.ack(1);
+        acknowledger.ack(3);
+        acknowledger.ack(5);
+        
+        acknowledger.requeueAll(5);
+        acknowledger.ack(4);
+        
+        assertEquals(Arrays.asList("basicAck[1, true]", "basicAck[3, false]", "basicAck[5, false]"), recorder.callsTo("basicAck"));
+        assertEquals(Arrays.asList("basicNack[4, true, true]"), recorder.callsTo("basicNack"));
+    }
+    
+}
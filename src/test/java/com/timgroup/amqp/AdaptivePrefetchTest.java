@@ -0,0 +1,90 @@
+package com.timgroup.amqp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class AdaptivePrefetchTest {
+    
+    private final Acknowledger acknowledger = new Acknowledger(new RecordingChannel().channel);
+    private final Metrics metrics = new Metrics();
+    private PublisherPool publishers;
+    private Transmitter transmitter;
+    private Receiver receiver;
+    
+    @Before
+    public void setUp() throws Exception {
+        List<Publisher> publisherList = new ArrayList<Publisher>();
+        publisherList.add(new Publisher(new RecordingChannel().channel, acknowledger));
+        publishers = new PublisherPool(acknowledger, publisherList);
+        transmitter = new Transmitter(new Engine(new TimingWheelScheduler<PendingMessage>(), publishers), acknowledger, "outbound", new SlabStore(1 << 20), metrics, null);
+        receiver = new Receiver(new RecordingChannel().channel, "inbound", transmitter);
+    }
+    
+    @Test
+    public void thePrefetchDoublesUpToTheMaximumWhileAllIsWell() throws Exception {
+        AdaptivePrefetch prefetch = new AdaptivePrefetch(receiver, transmitter, 10, 100, 50, 4);
+        assertEquals(10, receiver.getEffectivePrefetchCount());
+        
+        int[] expected = {20, 40, 80, 100, 100};
+        for (int count : expected) {
+            metrics.published(1000);
+            prefetch.check();
+            assertEquals(count, prefetch.getPrefetchCount());
+            assertEquals(count, receiver.getEffectivePrefetchCount());
+        }
+    }
+    
+    @Test
+    public void latenessHalvesThePrefetchAfterWhichItOnlyGrowsByATenth() throws Exception {
+        AdaptivePrefetch prefetch = new AdaptivePrefetch(receiver, transmitter, 10, 1000, 50, 4);
+        for (int i = 0; i < 4; i++) {
+            prefetch.check();
+        }
+        assertEquals(160, prefetch.getPrefetchCount());
+        
+        metrics.published(10000);
+        metrics.published(200000);
+        prefetch.check();
+        assertEquals(80, prefetch.getPrefetchCount());
+        assertEquals(1, prefetch.getDecreaseCount());
+        
+        metrics.published(10000);
+        prefetch.check();
+        assertEquals(88, prefetch.getPrefetchCount());
+        prefetch.check();
+        assertEquals(96, receiver.getEffectivePrefetchCount());
+    }
+    
+    @Test
+    public void messagesWhichWereOverdueBeforeTheyArrivedDoNotCutThePrefetch() throws Exception {
+        AdaptivePrefetch prefetch = new AdaptivePrefetch(receiver, transmitter, 10, 1000, 50, 4);
+        
+        metrics.published(10000000, 1000);
+        prefetch.check();
+        assertEquals(20, prefetch.getPrefetchCount());
+        metrics.published(10000000, 100000);
+        prefetch.check();
+        assertEquals(10, prefetch.getPrefetchCount());
+    }
+    
+    @Test
+    public void aPublishBacklogCutsThePrefetchNoLowerThanTheMinimum() throws Exception {
+        AdaptivePrefetch prefetch = new AdaptivePrefetch(receiver, transmitter, 10, 1000, 50, 4);
+        prefetch.check();
+        for (long tag = 0; tag < 5; tag++) {
+            publishers.dispatch(new PendingMessage(null, tag, 0, 0, 0));
+        }
+        
+        prefetch.check();
+        assertEquals(10, prefetch.getPrefetchCount());
+        prefetch.check();
+        assertEquals(10, prefetch.getPrefetchCount());
+        assertEquals(2, prefetch.getDecreaseCount());
+    }
+    
+}
@@ -6,7 +6,10 @@ import java.util.Properties;
 
 import org.junit.Test;
 
+import com.rabbitmq.client.ConnectionFactory;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
 
 public class ApplicationTest extends IntegrationTestBase {
     
@@ -35,4 +38,64 @@ public class ApplicationTest extends IntegrationTestBase {
         }
     }
     
+    @Test
+    public void applicationCreatesAShardForEachInboundPartition() throws Exception {
+        String secondInboundQueueName = randomise("inbound");
+        testChannel.queueDeclare(secondInboundQueueName, false, false, true, null);
+        File configFile = File.createTempFile("wai7", ".properties");
+        configFile.deleteOnExit();
+        Properties properties = new Properties();
+        properties.setProperty("uri", TEST_BROKER_URI);
+        properties.setProperty("inboundQueueNames", inboundQueueName + "," + secondInboundQueueName);
+        properties.setProperty("outboundQueueName", outboundQueueName);
+        properties.store(new FileWriter(configFile), null);
+        
+        Application application = Application.create(configFile.getPath());
+        
+        try {
+            assertEquals(2, application.getShards().size());
+            assertEquals(inboundQueueName, application.getShards().get(0).getReceiver().getQueueName());
+            assertEquals(secondInboundQueueName, application.getShards().get(1).getReceiver().getQueueName());
+            assertNotSame(application.getShards().get(0).getConnection(), application.getShards().get(1).getConnection());
+        } finally {
+            application.close();
+        }
+    }
+    
+    @Test
+    public void applicationsInClusterModeShareThePartitionsBetweenThem() throws Exception {
+        String secondInboundQueueName = randomise("inbound");
+        testChannel.queueDeclare(secondInboundQueueName, false, false, true, null);
+        Properties properties = new Properties();
+        properties.setProperty("uri", TEST_BROKER_URI);
+        properties.setProperty("inboundQueueNames", inboundQueueName + "," + secondInboundQueueName);
+        properties.setProperty("outboundQueueName", outboundQueueName);
+        properties.setProperty("clusterExchange", randomise("cluster"));
+        properties.setProperty("clusterHeartbeatMillis", "50");
+        ConnectionFactory factory = new ConnectionFactory();
+        factory.setUri(TEST_BROKER_URI);
+        
+        properties.setProperty("clusterNodeId", "first");
+        Application first = Application.create(factory, new Configuration(properties));
+        properties.setProperty("clusterNodeId", "second");
+        Application second = Application.create(factory, new Configuration(properties));
+        
+        try {
+            first.start();
+            second.start();
+            long giveUpTime = System.currentTimeMillis() + 5000;
+            while (first.getShards().size() + second.getShards().size() < 2 && System.currentTimeMillis() < giveUpTime) {
+                Thread.sleep(10);
+            }
+            assertEquals(2, first.getShards().size() + second.getShards().size());
+            assertEquals(2, first.getCluster().getMembers().size());
+            for (Shard shard : first.getShards()) {
+                assertEquals("first", Cluster.ownerOf(shard.getReceiver().getQueueName(), first.getCluster().getMembers()));
+            }
+        } finally {
+            first.close();
+            second.close();
+        }
+    }
+    
 }
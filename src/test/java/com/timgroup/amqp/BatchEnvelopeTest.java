@@ -0,0 +1,52 @@
+package com.timgroup.amqp;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class BatchEnvelopeTest {
+    
+    @Test
+    public void entriesSurviveARoundTripWithTheirOwnTimesKeysPropertiesAndBodies() throws Exception {
+        BasicProperties properties = new BasicProperties.Builder().messageId("a").headers(Collections.<String, Object> singletonMap("x", 1)).build();
+        byte[] encoded = BatchEnvelope.encode(Arrays.asList(new BatchEnvelope.Entry(1000, "one", properties, new byte[] {1, 2}), new BatchEnvelope.Entry(2000, "two", null, new byte[0])));
+        
+        List<BatchEnvelope.Entry> entries = BatchEnvelope.decode(encoded);
+        
+        assertEquals(2, entries.size());
+        assertEquals(1000, entries.get(0).deliveryTime);
+        assertEquals("one", entries.get(0).routingKey);
+        assertEquals("a", entries.get(0).properties.getMessageId());
+        assertEquals(1, entries.get(0).properties.getHeaders().get("x"));
+        assertArrayEquals(new byte[] {1, 2}, entries.get(0).body);
+        assertEquals(2000, entries.get(1).deliveryTime);
+        assertEquals("two", entries.get(1).routingKey);
+        assertArrayEquals(new byte[0], entries.get(1).body);
+        assertEquals(0, BatchEnvelope.decode(BatchEnvelope.encode(Collections.<BatchEnvelope.Entry> emptyList())).size());
+    }
+    
+    @Test
+    public void anythingButAWholeEnvelopeIsRefused() throws Exception {
+        byte[] encoded = BatchEnvelope.encode(Arrays.asList(new BatchEnvelope.Entry(1000, "one", null, new byte[] {1, 2, 3})));
+        byte[] wrongVersion = encoded.clone();
+        wrongVersion[0] = 2;
+        byte[][] malformed = {new byte[0], wrongVersion, Arrays.copyOf(encoded, encoded.length - 1), Arrays.copyOf(encoded, encoded.length + 1), {1, 0x7f, 0, 0, 0}};
+        for (byte[] body : malformed) {
+            try {
+                BatchEnvelope.decode(body);
+                fail("decoded " + Arrays.toString(body));
+            } catch (IOException expected) {
+            }
+        }
+    }
+    
+}
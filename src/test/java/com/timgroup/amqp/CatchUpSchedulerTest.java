@@ -0,0 +1,142 @@
+package com.timgroup.amqp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CatchUpSchedulerTest {
+    
+    private final List<Long> expired = new ArrayList<Long>();
+    private CatchUpScheduler<Long> scheduler;
+    
+    private void start(double ratePerSecond) {
+        scheduler = new CatchUpScheduler<Long>(new TimingWheelScheduler<Long>(), ratePerSecond, 1000);
+        start();
+    }
+    
+    private void start() {
+        scheduler.start(new Scheduler.Handler<Long>() {
+            @Override
+            public void expired(Long item) {
+                synchronized (expired) {
+                    expired.add(item);
+                    expired.notifyAll();
+                }
+            }
+        });
+    }
+    
+    @After
+    public void tearDown() throws Exception {
+        scheduler.shutdown();
+    }
+    
+    @Test
+    public void overdueItemsAreReleasedInOrderOfDueTime() throws Exception {
+        scheduler = new CatchUpScheduler<Long>(new TimingWheelScheduler<Long>(), 1000, 1000);
+        long now = System.currentTimeMillis();
+        scheduler.schedule(3L, now - 5000, 0);
+        scheduler.schedule(1L, now - 9000, 0);
+        scheduler.schedule(4L, now - 5000, 0);
+        scheduler.schedule(2L, now - 7000, 0);
+        
+        start();
+        
+        assertEquals(Arrays.asList(1L, 2L, 3L, 4L), awaitExpired(4, 5000));
+    }
+    
+    @Test
+    public void itemsCanBeCancelledFromTheLaneAndFromTheUnderlyingScheduler() throws Exception {
+        scheduler = new CatchUpScheduler<Long>(new TimingWheelScheduler<Long>(), 1000, 1000);
+        long now = System.currentTimeMillis();
+        scheduler.schedule(1L, now - 9000, 0);
+        long overdue = scheduler.schedule(2L, now - 7000, 0);
+        scheduler.schedule(3L, now - 5000, 0);
+        long onTime = scheduler.schedule(4L, now + 50, 0);
+        scheduler.schedule(5L, now + 60, 0);
+        
+        assertEquals(Long.valueOf(2L), scheduler.cancel(overdue));
+        assertEquals(Long.valueOf(4L), scheduler.cancel(onTime));
+        assertNull(scheduler.cancel(overdue));
+        start();
+        
+        assertEquals(Arrays.asList(1L, 3L, 5L), awaitExpired(3, 5000));
+        assertEquals(0, scheduler.size());
+    }
+    
+    @Test
+    public void cancellingFromALongLaneLeavesTheRestInOrderAndStaleHandlesMiss() throws Exception {
+        scheduler = new CatchUpScheduler<Long>(new TimingWheelScheduler<Long>(), 1000000, 1000);
+        long now = System.currentTimeMillis();
+        long[] handles = new long[2000];
+        for (int i = 0; i < handles.length; i++) {
+            handles[i] = scheduler.schedule((long) i, now - 5000 - (i * 7919L) % handles.length, 0);
+        }
+        for (int i = 1; i < handles.length; i += 2) {
+            assertEquals(Long.valueOf(i), scheduler.cancel(handles[i]));
+        }
+        scheduler.schedule(-1L, now - 100000, 0);
+        for (int i = 1; i < handles.length; i += 2) {
+            assertNull(scheduler.cancel(handles[i]));
+        }
+        assertEquals(handles.length / 2 + 1, scheduler.getOverdueCount());
+        start();
+        
+        List<Long> released = awaitExpired(handles.length / 2 + 1, 5000);
+        assertEquals(handles.length / 2 + 1, released.size());
+        assertEquals(Long.valueOf(-1L), released.get(0));
+        for (int i = 2; i < released.size(); i++) {
+            long item = released.get(i);
+            long previous = released.get(i - 1);
+            assertEquals(0, item % 2);
+            assertTrue(item + " released after " + previous, (item * 7919L) % handles.length <= (previous * 7919L) % handles.length);
+        }
+    }
+    
+    @Test
+    public void overdueItemsAreReleasedNoFasterThanTheRate() throws Exception {
+        start(100);
+        long now = System.currentTimeMillis();
+        long startTime = System.nanoTime();
+        for (long i = 0; i < 51; i++) {
+            scheduler.schedule(i, now - 5000, 0);
+        }
+        
+        awaitExpired(51, 5000);
+        
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime) >= 450);
+    }
+    
+    @Test
+    public void anItemDueNowIsNotHeldUpByTheOverdueBacklog() throws Exception {
+        start(10);
+        long now = System.currentTimeMillis();
+        for (long i = 0; i < 100; i++) {
+            scheduler.schedule(i, now - 5000, 0);
+        }
+        scheduler.schedule(-1L, now + 50, 0);
+        
+        assertTrue(awaitExpired(3, 1000).contains(-1L));
+        assertTrue(scheduler.getOverdueCount() > 90);
+        assertTrue(scheduler.getEstimatedDrainMillis() > 9000);
+    }
+    
+    private List<Long> awaitExpired(int count, long timeoutMillis) throws InterruptedException {
+        long giveUpTime = System.currentTimeMillis() + timeoutMillis;
+        synchronized (expired) {
+            while (expired.size() < count && System.currentTimeMillis() < giveUpTime) {
+                expired.wait(giveUpTime - System.currentTimeMillis());
+            }
+            return new ArrayList<Long>(expired);
+        }
+    }
+    
+}
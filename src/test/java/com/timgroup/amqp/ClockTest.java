@@ -0,0 +1,57 @@
+package com.timgroup.amqp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ClockTest {
+    
+    private static final class SteppableClock extends Clock {
+        volatile long offsetMillis;
+        
+        @Override
+        long wallTimeMillis() {
+            return System.currentTimeMillis() + offsetMillis;
+        }
+    }
+    
+    @Test
+    public void readsTheWallClockToWithinAMillisecond() {
+        Clock clock = new Clock();
+        
+        long before = System.currentTimeMillis();
+        long time = clock.currentTimeMillis();
+        long after = System.currentTimeMillis();
+        
+        assertTrue(time + " is not between " + before + " and " + after, time >= before - 1 && time <= after + 1);
+        assertEquals(0, clock.getCorrectionCount());
+    }
+    
+    @Test
+    public void theNanoTimeAtAGivenTimeIsWhenTheClockReachesIt() {
+        Clock clock = new Clock();
+        long time = clock.currentTimeMillis() + 5;
+        
+        long deadline = clock.nanoTimeAt(time);
+        while (System.nanoTime() < deadline) {
+            // spin
+        }
+        
+        long reached = clock.currentTimeMillis();
+        assertTrue(reached + " is not just after " + time, reached >= time && reached <= time + 50);
+    }
+    
+    @Test
+    public void reanchorsWhenTheWallClockIsStepped() {
+        SteppableClock clock = new SteppableClock();
+        long time = clock.currentTimeMillis();
+        
+        clock.offsetMillis = 3600000;
+        long stepped = clock.currentTimeMillis();
+        
+        assertTrue(stepped + " does not follow the step from " + time, stepped >= time + 3600000 && stepped <= time + 3600000 + 100);
+        assertEquals(1, clock.getCorrectionCount());
+    }
+    
+}
@@ -0,0 +1,293 @@
+package com.timgroup.amqp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.QueueingConsumer;
+import com.rabbitmq.client.QueueingConsumer.Delivery;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class ClusterTest {
+    
+    private static final int PARTITIONS = 6;
+    
+    private final FakeBroker broker = new FakeBroker();
+    private final List<Application> applications = new ArrayList<Application>();
+    private Channel testChannel;
+    private QueueingConsumer outbound;
+    
+    @Before
+    public void setUp() throws Exception {
+        testChannel = broker.newConnection(null).createChannel();
+        for (int partition = 0; partition < PARTITIONS; partition++) {
+            testChannel.queueDeclare("inbound-" + partition, true, false, false, null);
+        }
+        testChannel.exchangeDeclare("outbound", "fanout", true, false, null);
+        testChannel.queueDeclare("outbound", true, false, false, null);
+        testChannel.queueBind("outbound", "outbound", "");
+        outbound = new QueueingConsumer(testChannel);
+        testChannel.basicConsume("outbound", true, outbound);
+    }
+    
+    @After
+    public void tearDown() throws Exception {
+        for (Application application : applications) {
+            application.close();
+        }
+    }
+    
+    private Application startNode(String nodeId) throws Exception {
+        return startNode(nodeId, 1);
+    }
+    
+    private Application startNode(String nodeId, int clusterSize) throws Exception {
+        return startNode(nodeId, clusterSize, PARTITIONS / clusterSize);
+    }
+    
+    private Application startNode(String nodeId, int clusterSize, int clusterOvercommit) throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("clusterSize", String.valueOf(clusterSize));
+        properties.setProperty("clusterOvercommit", String.valueOf(clusterOvercommit));
+        properties.setProperty("inboundQueuePattern", "inbound-%d");
+        properties.setProperty("shardCount", String.valueOf(PARTITIONS));
+        properties.setProperty("outboundQueueName", "outbound");
+        properties.setProperty("clusterExchange", "cluster");
+        properties.setProperty("clusterNodeId", nodeId);
+        properties.setProperty("clusterHeartbeatMillis", "20");
+        properties.setProperty("clusterMemberTimeoutMillis", "200");
+        properties.setProperty("shutdownGraceMillis", "0");
+        Application application = Application.create(broker.connectionFactory(), new Configuration(properties));
+        applications.add(application);
+        application.start();
+        return application;
+    }
+    
+    private static Set<String> partitionsOf(Application application) {
+        Set<String> partitions = new HashSet<String>();
+        for (Shard shard : application.getShards()) {
+            partitions.add(shard.getReceiver().getQueueName());
+        }
+        return partitions;
+    }
+    
+    private void awaitAssignment(Application... members) throws Exception {
+        awaitAssignment(PARTITIONS, 0, members);
+    }
+    
+    /**
+     * Waits for every partition to be held by exactly the member it belongs
+     * to, as the given members see it, when each has room for the given
+     * number and the overcommit.
+     */
+    private void awaitAssignment(int maxHeld, int overcommit, Application... members) throws Exception {
+        List<String> partitions = new ArrayList<String>();
+        for (int partition = 0; partition < PARTITIONS; partition++) {
+            partitions.add("inbound-" + partition);
+        }
+        List<String> memberIds = new ArrayList<String>();
+        for (Application member : members) {
+            memberIds.add(member.getCluster().getNodeId());
+        }
+        Map<String, String> owners = Cluster.assign(partitions, memberIds, maxHeld, overcommit);
+        long giveUpTime = System.currentTimeMillis() + 3000;
+        while (true) {
+            boolean settled = true;
+            for (Application member : members) {
+                Set<String> expected = new HashSet<String>();
+                for (String partition : partitions) {
+                    if (member.getCluster().getNodeId().equals(owners.get(partition))) {
+                        expected.add(partition);
+                    }
+                }
+                settled &= expected.equals(partitionsOf(member)) && expected.equals(member.getCluster().getHeldPartitions());
+            }
+            if (settled) {
+                return;
+            }
+            assertTrue("partitions were not assigned", System.currentTimeMillis() < giveUpTime);
+            Thread.sleep(10);
+        }
+    }
+    
+    @Test
+    public void eachPartitionGoesToOneMemberAndOnlyTheAffectedOnesMoveWhenTheMembershipChanges() {
+        List<String> members = new ArrayList<String>(Arrays.asList("a", "b", "c"));
+        Map<String, String> owners = new HashMap<String, String>();
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (int partition = 0; partition < 3000; partition++) {
+            String owner = Cluster.ownerOf("inbound-" + partition, members);
+            owners.put("inbound-" + partition, owner);
+            counts.put(owner, counts.containsKey(owner) ? counts.get(owner) + 1 : 1);
+        }
+        for (String member : members) {
+            assertTrue(counts.toString(), counts.get(member) > 800);
+        }
+        
+        members.add("d");
+        Collections.shuffle(members);
+        for (Map.Entry<String, String> entry : owners.entrySet()) {
+            String owner = Cluster.ownerOf(entry.getKey(), members);
+            assertTrue(owner.equals(entry.getValue()) || owner.equals("d"));
+        }
+        members.remove("a");
+        for (Map.Entry<String, String> entry : owners.entrySet()) {
+            String owner = Cluster.ownerOf(entry.getKey(), members);
+            assertTrue(owner.equals(entry.getValue()) || entry.getValue().equals("a") || owner.equals("d"));
+        }
+    }
+    
+    @Test
+    public void noMemberIsAssignedMorePartitionsThanItHasRoomFor() {
+        List<String> partitions = new ArrayList<String>();
+        for (int partition = 0; partition < PARTITIONS; partition++) {
+            partitions.add("inbound-" + partition);
+        }
+        
+        Map<String, String> owners = Cluster.assign(partitions, Arrays.asList("a", "b", "c"), 2);
+        assertEquals(PARTITIONS, owners.size());
+        for (String member : Arrays.asList("a", "b", "c")) {
+            assertEquals(2, Collections.frequency(owners.values(), member));
+        }
+        owners = Cluster.assign(partitions, Arrays.asList("a", "b"), 2);
+        assertEquals(4, owners.size());
+        assertEquals(owners, Cluster.assign(partitions, Arrays.asList("b", "a"), 2));
+        for (String partition : partitions) {
+            assertEquals(Cluster.ownerOf(partition, Arrays.asList("a", "b")), Cluster.assign(partitions, Arrays.asList("a", "b"), PARTITIONS).get(partition));
+        }
+    }
+    
+    @Test
+    public void partitionsNoMemberHasRoomForGoToMembersWithRoomForThemWithTheOvercommit() {
+        List<String> partitions = new ArrayList<String>();
+        for (int partition = 0; partition < PARTITIONS; partition++) {
+            partitions.add("inbound-" + partition);
+        }
+        
+        Map<String, String> withinBudget = Cluster.assign(partitions, Arrays.asList("a", "b"), 2);
+        Map<String, String> owners = Cluster.assign(partitions, Arrays.asList("a", "b"), 2, 1);
+        assertEquals(PARTITIONS, owners.size());
+        for (String member : Arrays.asList("a", "b")) {
+            assertEquals(3, Collections.frequency(owners.values(), member));
+        }
+        for (Map.Entry<String, String> entry : withinBudget.entrySet()) {
+            assertEquals(entry.getValue(), owners.get(entry.getKey()));
+        }
+        assertEquals(owners, Cluster.assign(partitions, Arrays.asList("b", "a"), 2, 1));
+        assertEquals(Cluster.assign(partitions, Arrays.asList("a", "b", "c"), 2), Cluster.assign(partitions, Arrays.asList("a", "b", "c"), 2, 1));
+        assertEquals(4, Cluster.assign(partitions, Arrays.asList("a"), 2, 2).size());
+    }
+    
+    @Test
+    public void aMemberLeftOnItsOwnOnlyHoldsThePartitionsItHasTheBudgetFor() throws Exception {
+        Application only = startNode("only", 2, 0);
+        long giveUpTime = System.currentTimeMillis() + 3000;
+        while (only.getShards().size() < PARTITIONS / 2 && System.currentTimeMillis() < giveUpTime) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(100);
+        
+        assertEquals(PARTITIONS / 2, only.getShards().size());
+        assertEquals(PARTITIONS / 2, only.getCluster().getHeldPartitions().size());
+        assertEquals(PARTITIONS / 2, only.getCluster().getUnassignedCount());
+    }
+    
+    @Test
+    public void whenAMemberLeavesAClusterSizedForEveryMemberTheOthersTakeOverItsPartitionsWithTheOvercommit() throws Exception {
+        Application first = startNode("first", 3);
+        Application second = startNode("second", 3);
+        Application third = startNode("third", 3);
+        awaitAssignment(PARTITIONS / 3, PARTITIONS / 3, first, second, third);
+        
+        applications.remove(third);
+        third.close();
+        awaitAssignment(PARTITIONS / 3, PARTITIONS / 3, first, second);
+        assertEquals(PARTITIONS, partitionsOf(first).size() + partitionsOf(second).size());
+        assertEquals(0, first.getCluster().getUnassignedCount());
+        assertEquals(0, second.getCluster().getUnassignedCount());
+        
+        for (int partition = 0; partition < PARTITIONS; partition++) {
+            testChannel.basicPublish("", "inbound-" + partition, new BasicProperties(), new byte[] {(byte) partition});
+        }
+        Set<Byte> repeated = new HashSet<Byte>();
+        for (int i = 0; i < PARTITIONS; i++) {
+            Delivery delivery = outbound.nextDelivery(2000);
+            assertNotNull("message " + i + " was not repeated", delivery);
+            repeated.add(delivery.getBody()[0]);
+        }
+        assertEquals(PARTITIONS, repeated.size());
+    }
+    
+    @Test
+    public void membersShareThePartitionsAndTakeOverThoseOfAMemberWhichLeaves() throws Exception {
+        Application first = startNode("first");
+        Application second = startNode("second");
+        awaitAssignment(first, second);
+        assertEquals(PARTITIONS, partitionsOf(first).size() + partitionsOf(second).size());
+        
+        long deliveryTime = System.currentTimeMillis() + 100;
+        for (int partition = 0; partition < PARTITIONS; partition++) {
+            BasicProperties scheduled = new BasicProperties.Builder().headers(Collections.<String, Object> singletonMap(Receiver.SCHEDULED_DELIVERY_HEADER, deliveryTime)).build();
+            testChannel.basicPublish("", "inbound-" + partition, scheduled, new byte[] {(byte) partition});
+        }
+        Set<Byte> repeated = new HashSet<Byte>();
+        for (int i = 0; i < PARTITIONS; i++) {
+            Delivery delivery = outbound.nextDelivery(2000);
+            assertNotNull("message " + i + " was not repeated", delivery);
+            repeated.add(delivery.getBody()[0]);
+        }
+        assertEquals(PARTITIONS, repeated.size());
+        
+        applications.remove(second);
+        second.close();
+        awaitAssignment(first);
+        assertEquals(PARTITIONS, partitionsOf(first).size());
+        
+        testChannel.basicPublish("", "inbound-0", new BasicProperties(), new byte[] {42});
+        Delivery delivery = outbound.nextDelivery(2000);
+        assertNotNull("message was not repeated after the takeover", delivery);
+        assertArrayEquals(new byte[] {42}, delivery.getBody());
+    }
+    
+    @Test
+    public void aMemberWhichJoinsIsHandedItsPartitionsWithWhatIsPendingOnThem() throws Exception {
+        Application first = startNode("first");
+        awaitAssignment(first);
+        long deliveryTime = System.currentTimeMillis() + 1000;
+        for (int partition = 0; partition < PARTITIONS; partition++) {
+            BasicProperties scheduled = new BasicProperties.Builder().headers(Collections.<String, Object> singletonMap(Receiver.SCHEDULED_DELIVERY_HEADER, deliveryTime)).build();
+            testChannel.basicPublish("", "inbound-" + partition, scheduled, new byte[] {(byte) partition});
+        }
+        
+        Application second = startNode("second");
+        awaitAssignment(first, second);
+        
+        Set<Byte> repeated = new HashSet<Byte>();
+        for (int i = 0; i < PARTITIONS; i++) {
+            Delivery delivery = outbound.nextDelivery(3000);
+            assertNotNull("message " + i + " was not repeated", delivery);
+            assertTrue("message was repeated early", System.currentTimeMillis() >= deliveryTime);
+            repeated.add(delivery.getBody()[0]);
+        }
+        assertEquals(PARTITIONS, repeated.size());
+        assertEquals(null, outbound.nextDelivery(100));
+        assertTrue(partitionsOf(second).size() > 0);
+    }
+    
+}
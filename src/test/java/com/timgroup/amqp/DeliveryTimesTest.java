@@ -0,0 +1,68 @@
+package com.timgroup.amqp;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.rabbitmq.client.impl.LongStringHelper;
+
+import static org.junit.Assert.assertEquals;
+
+public class DeliveryTimesTest {
+    
+    private static final long NOW = 1393666200000L;
+    
+    private static long decode(String headerName, Object value) {
+        return DeliveryTimes.decode(Collections.<String, Object> singletonMap(headerName, value), NOW);
+    }
+    
+    @Test
+    public void decodesTheDeliveryTimeInAnyNumericTypeOrAsATimestamp() {
+        assertEquals(1393666200250L, decode(Receiver.SCHEDULED_DELIVERY_HEADER, 1393666200250L));
+        assertEquals(1393666200L, decode(Receiver.SCHEDULED_DELIVERY_HEADER, 1393666200));
+        assertEquals(1393666200250L, decode(Receiver.SCHEDULED_DELIVERY_HEADER, 1393666200250.0));
+        assertEquals(1393666200000L, decode(Receiver.SCHEDULED_DELIVERY_HEADER, new Date(1393666200000L)));
+    }
+    
+    @Test
+    public void decodesTheDeliveryTimeAsADecimalOrIso8601String() {
+        assertEquals(1393666200250L, decode(Receiver.SCHEDULED_DELIVERY_HEADER, "1393666200250"));
+        assertEquals(1393666200250L, decode(Receiver.SCHEDULED_DELIVERY_HEADER, LongStringHelper.asLongString(" 1393666200250 ")));
+        assertEquals(1393666200250L, decode(Receiver.SCHEDULED_DELIVERY_HEADER, "2014-03-01T09:30:00.250Z"));
+        assertEquals(1393666200250L, decode(Receiver.SCHEDULED_DELIVERY_HEADER, LongStringHelper.asLongString("2014-03-01T10:30:00.25+01:00")));
+        assertEquals(1393666200000L, decode(Receiver.SCHEDULED_DELIVERY_HEADER, "2014-03-01 04:00:00-0530"));
+        assertEquals(951782400000L, decode(Receiver.SCHEDULED_DELIVERY_HEADER, "2000-02-29T00:00:00Z"));
+        assertEquals(-86400000L, decode(Receiver.SCHEDULED_DELIVERY_HEADER, "1969-12-31T00:00:00Z"));
+    }
+    
+    @Test
+    public void aDelayIsCountedFromNowUnlessThereIsADeliveryTime() {
+        assertEquals(NOW + 5000, decode(Receiver.SCHEDULED_DELAY_HEADER, 5000));
+        assertEquals(NOW + 5000, decode(Receiver.SCHEDULED_DELAY_HEADER, "5000"));
+        Map<String, Object> both = new HashMap<String, Object>();
+        both.put(Receiver.SCHEDULED_DELIVERY_HEADER, 1L);
+        both.put(Receiver.SCHEDULED_DELAY_HEADER, 5000);
+        assertEquals(1L, DeliveryTimes.decode(both, NOW));
+    }
+    
+    @Test
+    public void aMessageWithNeitherHeaderIsDueNow() {
+        assertEquals(NOW, DeliveryTimes.decode(null, NOW));
+        assertEquals(NOW, decode("other", "nonsense"));
+    }
+    
+    @Test
+    public void anythingElseIsUndecodable() {
+        String[] nonsense = {"", " ", "-", "soon", "12:00", "1393666200250ms", "12345678901234567890", "2014-03-01T09:30:00", "2014-02-29T09:30:00Z", "2014-03-01T24:00:00Z", "2014-03-01T09:30:00.Z", "2014-03-01T09:30:00Z junk", "2014-03-01T09:30:00+1"};
+        for (String value : nonsense) {
+            assertEquals(value, DeliveryTimes.UNDECODABLE, decode(Receiver.SCHEDULED_DELIVERY_HEADER, value));
+        }
+        assertEquals(DeliveryTimes.UNDECODABLE, decode(Receiver.SCHEDULED_DELIVERY_HEADER, true));
+        assertEquals(DeliveryTimes.UNDECODABLE, decode(Receiver.SCHEDULED_DELIVERY_HEADER, new byte[8]));
+        assertEquals(DeliveryTimes.UNDECODABLE, decode(Receiver.SCHEDULED_DELAY_HEADER, "2014-03-01T09:30:00Z"));
+    }
+    
+}
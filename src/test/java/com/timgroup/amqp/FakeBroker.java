@@ -0,0 +1,872 @@
+package com.timgroup.amqp;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.AlreadyClosedException;
+import com.rabbitmq.client.BlockedListener;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.GetResponse;
+import com.rabbitmq.client.impl.AMQImpl;
+
+/**
+ * An in-memory stand-in for a broker, good enough to run the daemon against
+ * without a real one. It has the default exchange, fanout and direct
+ * exchanges, queues with consumers, prefetch limits, which, as on RabbitMQ
+ * 3.3 and later, are fixed for each consumer when it starts, acks, nacks and
+ * requeueing, exclusive consumers, publisher confirms, queues with a
+ * message TTL which dead-letter to another exchange, as the holding queues
+ * need, and connection.blocked notifications, though a blocked connection
+ * can still publish.
+ *
+ * It doesn't attempt the rest: topic and headers exchanges, per-message
+ * expiration, transactions and mandatory publishing are not supported, and
+ * header values come out exactly as they went in, rather than with strings
+ * turned into LongStrings. A channel error is thrown as an IOException from
+ * the call which caused it, rather than closing the channel.
+ *
+ * Everything is done under one lock. Consumer callbacks run on the
+ * connection's consumer executor and confirms and blocked notifications on a
+ * reader thread of its own, as with a real connection, so the lock is never
+ * held while client code runs. A real connection's reader thread also reads
+ * the replies to synchronous calls, so one made from a confirm or blocked
+ * callback never returns; with {@link #setStrictReaderThread} set, such a
+ * call fails, and is counted, instead of going through.
+ */
+public class FakeBroker {
+    
+    private static final long NO_TTL = -1;
+    
+    private final Map<String, Exchange> exchanges = new HashMap<String, Exchange>();
+    private final Map<String, MessageQueue> queues = new HashMap<String, MessageQueue>();
+    private final Set<FakeChannel> channels = new HashSet<FakeChannel>();
+    private final List<FakeConnection> connections = new ArrayList<FakeConnection>();
+    private ScheduledExecutorService expiryTimer;
+    private int nextGeneratedName;
+    private boolean strictReaderThread;
+    private int readerThreadDeadlockCount;
+    
+    private static final Set<String> SYNCHRONOUS_METHODS = new HashSet<String>(Arrays.asList("basicConsume", "basicCancel", "basicQos", "basicGet", "confirmSelect",
+            "exchangeDeclare", "exchangeDelete", "queueDeclare", "queueBind", "queueDelete", "queuePurge"));
+    
+    /**
+     * @return a connection factory whose connections are to this broker
+     */
+    public ConnectionFactory connectionFactory() {
+        return new ConnectionFactory() {
+            @Override
+            public Connection newConnection() {
+                return FakeBroker.this.newConnection(null);
+            }
+            
+            @Override
+            public Connection newConnection(ExecutorService consumerThreads) {
+                return FakeBroker.this.newConnection(consumerThreads);
+            }
+        };
+    }
+    
+    /**
+     * @param consumerThreads
+     *            the executor to run consumer callbacks on, or null for a
+     *            thread of the connection's own
+     */
+    public Connection newConnection(ExecutorService consumerThreads) {
+        FakeConnection connection = new FakeConnection(consumerThreads);
+        synchronized (this) {
+            connections.add(connection);
+        }
+        return connection.connection;
+    }
+    
+    /**
+     * Tells every connection's blocked listeners that the broker has raised
+     * a resource alarm, as with connection.blocked.
+     */
+    public synchronized void block(String reason) {
+        for (FakeConnection connection : connections) {
+            connection.blocked(reason);
+        }
+    }
+    
+    /**
+     * @param strictReaderThread
+     *            whether to fail synchronous calls made on a connection's
+     *            reader thread, as they would deadlock a real connection
+     */
+    public synchronized void setStrictReaderThread(boolean strictReaderThread) {
+        this.strictReaderThread = strictReaderThread;
+    }
+    
+    /**
+     * @return how many synchronous calls have been made on a reader thread
+     *         which would have deadlocked a real connection
+     */
+    public synchronized int getReaderThreadDeadlockCount() {
+        return readerThreadDeadlockCount;
+    }
+    
+    public synchronized void unblock() {
+        for (FakeConnection connection : connections) {
+            connection.blocked(null);
+        }
+    }
+    
+    public synchronized int getMessageCount(String queueName) throws IOException {
+        return queue(queueName).messages.size();
+    }
+    
+    /**
+     * @return how many messages have ever been put on the queue
+     */
+    public synchronized long getEnqueuedCount(String queueName) throws IOException {
+        return queue(queueName).enqueuedCount;
+    }
+    
+    /**
+     * @return how many messages have been delivered on any channel and not
+     *         yet settled
+     */
+    public synchronized int getUnackedCount() {
+        int count = 0;
+        for (FakeChannel channel : channels) {
+            count += channel.unacked.size();
+        }
+        return count;
+    }
+    
+    private MessageQueue queue(String queueName) throws IOException {
+        MessageQueue queue = queues.get(queueName);
+        if (queue == null) {
+            throw new IOException("NOT_FOUND - no queue '" + queueName + "'");
+        }
+        return queue;
+    }
+    
+    private Exchange exchange(String exchangeName) throws IOException {
+        Exchange exchange = exchanges.get(exchangeName);
+        if (exchange == null) {
+            throw new IOException("NOT_FOUND - no exchange '" + exchangeName + "'");
+        }
+        return exchange;
+    }
+    
+    private void declareExchange(String exchangeName, String type) throws IOException {
+        Exchange exchange = exchanges.get(exchangeName);
+        if (exchange == null) {
+            if (!type.equals("fanout") && !type.equals("direct")) {
+                throw new IOException("exchange type " + type + " is not supported");
+            }
+            exchanges.put(exchangeName, new Exchange(type));
+        } else if (!exchange.type.equals(type)) {
+            throw new IOException("PRECONDITION_FAILED - exchange '" + exchangeName + "' is of type " + exchange.type);
+        }
+    }
+    
+    private MessageQueue declareQueue(String queueName, Map<String, Object> arguments) {
+        if (queueName.isEmpty()) {
+            queueName = "amq.gen-" + ++nextGeneratedName;
+        }
+        MessageQueue queue = queues.get(queueName);
+        if (queue == null) {
+            queue = new MessageQueue(queueName);
+            if (arguments != null && arguments.get("x-message-ttl") != null) {
+                queue.ttl = ((Number) arguments.get("x-message-ttl")).longValue();
+            }
+            if (arguments != null && arguments.get("x-dead-letter-exchange") != null) {
+                queue.deadLetterExchange = arguments.get("x-dead-letter-exchange").toString();
+            }
+            queues.put(queueName, queue);
+        }
+        return queue;
+    }
+    
+    private void deleteQueue(String queueName) {
+        MessageQueue queue = queues.remove(queueName);
+        if (queue == null) {
+            return;
+        }
+        for (Exchange exchange : exchanges.values()) {
+            for (Iterator<Binding> bindings = exchange.bindings.iterator(); bindings.hasNext();) {
+                if (bindings.next().queue == queue) {
+                    bindings.remove();
+                }
+            }
+        }
+        for (final Subscription subscription : new ArrayList<Subscription>(queue.subscriptions)) {
+            subscription.channel.subscriptions.remove(subscription.consumerTag);
+            subscription.channel.connection.dispatch(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        subscription.consumer.handleCancel(subscription.consumerTag);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+        }
+    }
+    
+    private List<MessageQueue> route(String exchangeName, String routingKey) throws IOException {
+        if (exchangeName.isEmpty()) {
+            MessageQueue queue = queues.get(routingKey);
+            return queue != null ? Collections.singletonList(queue) : Collections.<MessageQueue> emptyList();
+        }
+        Exchange exchange = exchange(exchangeName);
+        List<MessageQueue> destinations = new ArrayList<MessageQueue>();
+        for (Binding binding : exchange.bindings) {
+            if ((exchange.type.equals("fanout") || binding.routingKey.equals(routingKey)) && !destinations.contains(binding.queue)) {
+                destinations.add(binding.queue);
+            }
+        }
+        return destinations;
+    }
+    
+    private void enqueue(MessageQueue queue, StoredMessage message) {
+        if (queue.ttl != NO_TTL) {
+            message.expiryTime = System.currentTimeMillis() + queue.ttl;
+            scheduleExpiry(queue, queue.ttl);
+        }
+        queue.messages.addLast(message);
+        ++queue.enqueuedCount;
+        pump(queue);
+    }
+    
+    private void scheduleExpiry(final MessageQueue queue, long delay) {
+        if (expiryTimer == null) {
+            expiryTimer = Executors.newSingleThreadScheduledExecutor(daemonThreads("fake-broker-expiry"));
+        }
+        expiryTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                expire(queue);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Dead-letters expired messages from the head of the queue. As with a real
+     * broker, messages which are out with a consumer don't expire.
+     */
+    private synchronized void expire(MessageQueue queue) {
+        if (queues.get(queue.name) != queue) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        while (!queue.messages.isEmpty() && queue.messages.peekFirst().expiryTime <= now) {
+            deadLetter(queue, queue.messages.pollFirst(), "expired");
+        }
+    }
+    
+    /**
+     * Republishes a message to its queue's dead-letter exchange, if it has
+     * one, or else drops it.
+     */
+    private void deadLetter(MessageQueue queue, StoredMessage message, String reason) {
+        if (queue.deadLetterExchange == null || !exchanges.containsKey(queue.deadLetterExchange)) {
+            return;
+        }
+        try {
+            for (MessageQueue destination : route(queue.deadLetterExchange, message.routingKey)) {
+                enqueue(destination, new StoredMessage(queue.deadLetterExchange, message.routingKey, markDead(message, queue, reason), message.body));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+    
+    private static BasicProperties markDead(StoredMessage message, MessageQueue queue, String reason) {
+        Map<String, Object> death = new HashMap<String, Object>();
+        death.put("reason", reason);
+        death.put("queue", queue.name);
+        death.put("time", new Date());
+        death.put("exchange", message.exchange);
+        death.put("routing-keys", Collections.singletonList(message.routingKey));
+        Map<String, Object> headers = message.properties.getHeaders() != null ? new HashMap<String, Object>(message.properties.getHeaders()) : new HashMap<String, Object>();
+        List<Object> deaths = new ArrayList<Object>();
+        deaths.add(death);
+        if (headers.get("x-death") instanceof List) {
+            deaths.addAll((List<?>) headers.get("x-death"));
+        }
+        headers.put("x-death", deaths);
+        return message.properties.builder().headers(headers).build();
+    }
+    
+    private void pump(MessageQueue queue) {
+        while (!queue.messages.isEmpty()) {
+            Subscription subscription = queue.nextReadySubscription();
+            if (subscription == null) {
+                return;
+            }
+            subscription.channel.deliver(subscription, queue.messages.pollFirst());
+        }
+    }
+    
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+    
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+    
+    private static final class Exchange {
+        private final String type;
+        private final List<Binding> bindings = new ArrayList<Binding>();
+        
+        private Exchange(String type) {
+            this.type = type;
+        }
+    }
+    
+    private static final class Binding {
+        private final MessageQueue queue;
+        private final String routingKey;
+        
+        private Binding(MessageQueue queue, String routingKey) {
+            this.queue = queue;
+            this.routingKey = routingKey;
+        }
+    }
+    
+    private static final class MessageQueue {
+        private final String name;
+        private final Deque<StoredMessage> messages = new ArrayDeque<StoredMessage>();
+        private final List<Subscription> subscriptions = new ArrayList<Subscription>();
+        private long ttl = NO_TTL;
+        private String deadLetterExchange;
+        private long enqueuedCount;
+        private int nextSubscription;
+        
+        private MessageQueue(String name) {
+            this.name = name;
+        }
+        
+        private boolean isExclusivelyConsumed() {
+            return subscriptions.size() == 1 && subscriptions.get(0).exclusive;
+        }
+        
+        /**
+         * Round-robins between the consumers with room under their prefetch
+         * limit.
+         */
+        private Subscription nextReadySubscription() {
+            for (int i = 0; i < subscriptions.size(); i++) {
+                Subscription subscription = subscriptions.get((nextSubscription + i) % subscriptions.size());
+                if (subscription.autoAck || subscription.hasRoom()) {
+                    nextSubscription = (nextSubscription + i + 1) % subscriptions.size();
+                    return subscription;
+                }
+            }
+            return null;
+        }
+    }
+    
+    private static final class StoredMessage {
+        private final String exchange;
+        private final String routingKey;
+        private final BasicProperties properties;
+        private final byte[] body;
+        private boolean redelivered;
+        private long expiryTime;
+        
+        private StoredMessage(String exchange, String routingKey, BasicProperties properties, byte[] body) {
+            this.exchange = exchange;
+            this.routingKey = routingKey;
+            this.properties = properties;
+            this.body = body;
+        }
+    }
+    
+    private static final class Subscription {
+        private final FakeChannel channel;
+        private final MessageQueue queue;
+        private final String consumerTag;
+        private final Consumer consumer;
+        private final boolean autoAck;
+        private final boolean exclusive;
+        private final int prefetchCount;
+        private int unackedCount;
+        
+        private Subscription(FakeChannel channel, MessageQueue queue, String consumerTag, Consumer consumer, boolean autoAck, boolean exclusive, int prefetchCount) {
+            this.channel = channel;
+            this.queue = queue;
+            this.consumerTag = consumerTag;
+            this.consumer = consumer;
+            this.autoAck = autoAck;
+            this.exclusive = exclusive;
+            this.prefetchCount = prefetchCount;
+        }
+        
+        private boolean hasRoom() {
+            return prefetchCount == 0 || unackedCount < prefetchCount;
+        }
+    }
+    
+    private static final class Unacked {
+        private final MessageQueue queue;
+        private final StoredMessage message;
+        private final Subscription subscription;
+        
+        /**
+         * @param subscription
+         *            the message was delivered to, or null if it was got
+         */
+        private Unacked(MessageQueue queue, StoredMessage message, Subscription subscription) {
+            this.queue = queue;
+            this.message = message;
+            this.subscription = subscription;
+        }
+    }
+    
+    private final class FakeConnection implements InvocationHandler {
+        
+        private final Connection connection = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] {Connection.class}, this);
+        private final ExecutorService consumerThreads;
+        private final boolean ownConsumerThread;
+        private volatile Thread readerThreadItself;
+        private final ExecutorService readerThread = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                readerThreadItself = daemonThreads("fake-broker-reader").newThread(runnable);
+                return readerThreadItself;
+            }
+        });
+        private final List<FakeChannel> openChannels = new ArrayList<FakeChannel>();
+        private final List<BlockedListener> blockedListeners = new ArrayList<BlockedListener>();
+        private int nextChannelNumber = 1;
+        private boolean open = true;
+        
+        private FakeConnection(ExecutorService consumerThreads) {
+            this.ownConsumerThread = consumerThreads == null;
+            this.consumerThreads = ownConsumerThread ? Executors.newSingleThreadExecutor(daemonThreads("fake-broker-consumer")) : consumerThreads;
+        }
+        
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            synchronized (FakeBroker.this) {
+                if (name.equals("createChannel")) {
+                    if (!open) {
+                        throw new AlreadyClosedException("connection is closed", connection);
+                    }
+                    FakeChannel channel = new FakeChannel(this, args != null ? (Integer) args[0] : nextChannelNumber++);
+                    openChannels.add(channel);
+                    channels.add(channel);
+                    return channel.channel;
+                } else if (name.equals("close") || name.equals("abort")) {
+                    close();
+                    return null;
+                } else if (name.equals("isOpen")) {
+                    return open;
+                } else if (name.equals("addBlockedListener")) {
+                    blockedListeners.add((BlockedListener) args[0]);
+                    return null;
+                } else if (name.equals("removeBlockedListener")) {
+                    return blockedListeners.remove(args[0]);
+                } else if (name.equals("clearBlockedListeners")) {
+                    blockedListeners.clear();
+                    return null;
+                }
+            }
+            if (name.equals("getAddress")) {
+                return InetAddress.getByName("localhost");
+            } else if (name.equals("getPort")) {
+                return ConnectionFactory.DEFAULT_AMQP_PORT;
+            } else if (name.equals("getClientProperties") || name.equals("getServerProperties")) {
+                return Collections.emptyMap();
+            } else if (name.equals("equals")) {
+                return proxy == args[0];
+            } else if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            } else if (name.equals("toString")) {
+                return "fake connection";
+            } else if (name.startsWith("get") || name.endsWith("ShutdownListener")) {
+                return defaultValue(method.getReturnType());
+            }
+            throw new UnsupportedOperationException(name);
+        }
+        
+        /**
+         * @param reason
+         *            why the connection is blocked, or null to unblock it
+         */
+        private void blocked(final String reason) {
+            if (!open) {
+                return;
+            }
+            for (final BlockedListener listener : blockedListeners) {
+                readerThread.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            if (reason != null) {
+                                listener.handleBlocked(reason);
+                            } else {
+                                listener.handleUnblocked();
+                            }
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                });
+            }
+        }
+        
+        private void close() {
+            if (!open) {
+                return;
+            }
+            open = false;
+            for (FakeChannel channel : new ArrayList<FakeChannel>(openChannels)) {
+                channel.close();
+            }
+            readerThread.shutdown();
+            if (ownConsumerThread) {
+                consumerThreads.shutdown();
+            }
+        }
+        
+        private void dispatch(Runnable callback) {
+            try {
+                consumerThreads.execute(callback);
+            } catch (RejectedExecutionException e) {
+                // the client has shut its consumer threads down, so it's past caring
+            }
+        }
+        
+        private void confirm(final List<ConfirmListener> listeners, final long sequenceNumber) {
+            try {
+                readerThread.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (ConfirmListener listener : listeners) {
+                            try {
+                                listener.handleAck(sequenceNumber, false);
+                            } catch (IOException e) {
+                                e.printStackTrace();
+                            }
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // the connection has closed, and the confirm with it
+            }
+        }
+        
+    }
+    
+    private final class FakeChannel implements InvocationHandler {
+        
+        private final Channel channel = (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(), new Class<?>[] {Channel.class}, this);
+        private final FakeConnection connection;
+        private final int channelNumber;
+        private final Map<String, Subscription> subscriptions = new LinkedHashMap<String, Subscription>();
+        private final LinkedHashMap<Long, Unacked> unacked = new LinkedHashMap<Long, Unacked>();
+        private final List<ConfirmListener> confirmListeners = new ArrayList<ConfirmListener>();
+        private boolean open = true;
+        private boolean confirming;
+        private long nextPublishSeqNo = 1;
+        private long nextDeliveryTag = 1;
+        private int nextConsumerTag = 1;
+        private int prefetchCount;
+        
+        private FakeChannel(FakeConnection connection, int channelNumber) {
+            this.connection = connection;
+            this.channelNumber = channelNumber;
+        }
+        
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("equals")) {
+                return proxy == args[0];
+            } else if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            } else if (name.equals("toString")) {
+                return "fake channel " + channelNumber;
+            } else if (name.equals("getConnection")) {
+                return connection.connection;
+            } else if (name.equals("getChannelNumber")) {
+                return channelNumber;
+            } else if (name.endsWith("ShutdownListener")) {
+                return null;
+            }
+            synchronized (FakeBroker.this) {
+                if (name.equals("isOpen")) {
+                    return open;
+                } else if (name.equals("close") || name.equals("abort")) {
+                    close();
+                    return null;
+                }
+                if (!open) {
+                    throw new AlreadyClosedException("channel is closed", channel);
+                }
+                if (strictReaderThread && Thread.currentThread() == connection.readerThreadItself && SYNCHRONOUS_METHODS.contains(name)) {
+                    readerThreadDeadlockCount++;
+                    throw new IllegalStateException(name + " called on the connection's reader thread, which would never read its reply");
+                }
+                return invokeOpen(name, method, args);
+            }
+        }
+        
+        private Object invokeOpen(String name, Method method, Object[] args) throws IOException {
+            if (name.equals("basicPublish")) {
+                publish((String) args[0], (String) args[1], (BasicProperties) args[args.length - 2], (byte[]) args[args.length - 1]);
+            } else if (name.equals("basicConsume")) {
+                boolean autoAck = args.length > 2 && (Boolean) args[1];
+                String consumerTag = args.length > 3 ? (String) args[2] : "";
+                boolean exclusive = args.length > 6 && (Boolean) args[4];
+                return consume((String) args[0], autoAck, consumerTag, exclusive, (Consumer) args[args.length - 1]);
+            } else if (name.equals("basicCancel")) {
+                cancel((String) args[0]);
+            } else if (name.equals("basicAck")) {
+                settle((Long) args[0], (Boolean) args[1], false, false);
+            } else if (name.equals("basicNack")) {
+                settle((Long) args[0], (Boolean) args[1], true, (Boolean) args[2]);
+            } else if (name.equals("basicReject")) {
+                settle((Long) args[0], false, true, (Boolean) args[1]);
+            } else if (name.equals("basicGet")) {
+                return get((String) args[0], (Boolean) args[1]);
+            } else if (name.equals("basicQos")) {
+                prefetchCount = (Integer) args[args.length == 1 ? 0 : 1];
+                pumpSubscribedQueues();
+            } else if (name.equals("confirmSelect")) {
+                confirming = true;
+            } else if (name.equals("getNextPublishSeqNo")) {
+                return confirming ? nextPublishSeqNo : 0L;
+            } else if (name.equals("addConfirmListener")) {
+                confirmListeners.add((ConfirmListener) args[0]);
+            } else if (name.equals("removeConfirmListener")) {
+                return confirmListeners.remove(args[0]);
+            } else if (name.equals("exchangeDeclare")) {
+                declareExchange((String) args[0], (String) args[1]);
+            } else if (name.equals("exchangeDelete")) {
+                exchanges.remove(args[0]);
+            } else if (name.equals("queueDeclare")) {
+                @SuppressWarnings("unchecked")
+                Map<String, Object> arguments = args == null ? null : (Map<String, Object>) args[4];
+                MessageQueue queue = declareQueue(args == null ? "" : (String) args[0], arguments);
+                return new AMQImpl.Queue.DeclareOk(queue.name, queue.messages.size(), queue.subscriptions.size());
+            } else if (name.equals("queueBind")) {
+                exchange((String) args[1]).bindings.add(new Binding(queue((String) args[0]), (String) args[2]));
+            } else if (name.equals("queueDelete")) {
+                deleteQueue((String) args[0]);
+            } else if (name.equals("queuePurge")) {
+                queue((String) args[0]).messages.clear();
+            } else {
+                throw new UnsupportedOperationException(name);
+            }
+            return defaultValue(method.getReturnType());
+        }
+        
+        private void publish(String exchangeName, String routingKey, BasicProperties properties, byte[] body) throws IOException {
+            List<MessageQueue> destinations = route(exchangeName, routingKey);
+            for (MessageQueue queue : destinations) {
+                enqueue(queue, new StoredMessage(exchangeName, routingKey, properties != null ? properties : new BasicProperties(), body.clone()));
+            }
+            if (confirming) {
+                connection.confirm(new ArrayList<ConfirmListener>(confirmListeners), nextPublishSeqNo++);
+            }
+        }
+        
+        private String consume(String queueName, boolean autoAck, String consumerTag, boolean exclusive, final Consumer consumer) throws IOException {
+            MessageQueue queue = queue(queueName);
+            if (queue.isExclusivelyConsumed() || (exclusive && !queue.subscriptions.isEmpty())) {
+                throw new IOException("ACCESS_REFUSED - queue '" + queueName + "' in exclusive use");
+            }
+            final String tag = consumerTag.isEmpty() ? "amq.ctag-" + channelNumber + "-" + nextConsumerTag++ : consumerTag;
+            Subscription subscription = new Subscription(this, queue, tag, consumer, autoAck, exclusive, prefetchCount);
+            subscriptions.put(tag, subscription);
+            queue.subscriptions.add(subscription);
+            connection.dispatch(new Runnable() {
+                @Override
+                public void run() {
+                    consumer.handleConsumeOk(tag);
+                }
+            });
+            pump(queue);
+            return tag;
+        }
+        
+        private void cancel(final String consumerTag) throws IOException {
+            final Subscription subscription = subscriptions.remove(consumerTag);
+            if (subscription == null) {
+                throw new IOException("NOT_FOUND - unknown consumer tag '" + consumerTag + "'");
+            }
+            subscription.queue.subscriptions.remove(subscription);
+            connection.dispatch(new Runnable() {
+                @Override
+                public void run() {
+                    subscription.consumer.handleCancelOk(consumerTag);
+                }
+            });
+        }
+        
+        private void deliver(final Subscription subscription, final StoredMessage message) {
+            long deliveryTag = nextDeliveryTag++;
+            if (!subscription.autoAck) {
+                unacked.put(deliveryTag, new Unacked(subscription.queue, message, subscription));
+                subscription.unackedCount++;
+            }
+            final Envelope envelope = new Envelope(deliveryTag, message.redelivered, message.exchange, message.routingKey);
+            connection.dispatch(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        subscription.consumer.handleDelivery(subscription.consumerTag, envelope, message.properties, message.body);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+        }
+        
+        private GetResponse get(String queueName, boolean autoAck) throws IOException {
+            MessageQueue queue = queue(queueName);
+            StoredMessage message = queue.messages.pollFirst();
+            if (message == null) {
+                return null;
+            }
+            long deliveryTag = nextDeliveryTag++;
+            if (!autoAck) {
+                unacked.put(deliveryTag, new Unacked(queue, message, null));
+            }
+            return new GetResponse(new Envelope(deliveryTag, message.redelivered, message.exchange, message.routingKey), message.properties, message.body, queue.messages.size());
+        }
+        
+        /**
+         * @param rejected
+         *            whether the messages were nacked or rejected rather than
+         *            acked, so that, unless they are requeued, they are
+         *            dead-lettered
+         */
+        private void settle(long deliveryTag, boolean multiple, boolean rejected, boolean requeue) throws IOException {
+            List<Unacked> settled = new ArrayList<Unacked>();
+            if (multiple) {
+                for (Iterator<Map.Entry<Long, Unacked>> entries = unacked.entrySet().iterator(); entries.hasNext();) {
+                    Map.Entry<Long, Unacked> entry = entries.next();
+                    if (entry.getKey() <= deliveryTag) {
+                        settled.add(entry.getValue());
+                        entries.remove();
+                    }
+                }
+            } else if (unacked.containsKey(deliveryTag)) {
+                settled.add(unacked.remove(deliveryTag));
+            }
+            if (settled.isEmpty()) {
+                throw new IOException("PRECONDITION_FAILED - unknown delivery tag " + deliveryTag);
+            }
+            for (Unacked entry : settled) {
+                if (entry.subscription != null) {
+                    entry.subscription.unackedCount--;
+                }
+            }
+            if (requeue) {
+                requeue(settled);
+            } else if (rejected) {
+                for (Unacked entry : settled) {
+                    if (queues.get(entry.queue.name) == entry.queue) {
+                        deadLetter(entry.queue, entry.message, "rejected");
+                    }
+                }
+            }
+            pumpSubscribedQueues();
+        }
+        
+        /**
+         * Puts the messages back at the head of their queues, in their
+         * original order.
+         */
+        private void requeue(List<Unacked> settled) {
+            Set<MessageQueue> requeuedTo = new HashSet<MessageQueue>();
+            for (int i = settled.size() - 1; i >= 0; i--) {
+                Unacked entry = settled.get(i);
+                if (queues.get(entry.queue.name) != entry.queue) {
+                    continue;
+                }
+                entry.message.redelivered = true;
+                entry.queue.messages.addFirst(entry.message);
+                if (entry.queue.ttl != NO_TTL) {
+                    scheduleExpiry(entry.queue, Math.max(0, entry.message.expiryTime - System.currentTimeMillis()));
+                }
+                requeuedTo.add(entry.queue);
+            }
+            for (MessageQueue queue : requeuedTo) {
+                pump(queue);
+            }
+        }
+        
+        private void pumpSubscribedQueues() {
+            for (Subscription subscription : new ArrayList<Subscription>(subscriptions.values())) {
+                pump(subscription.queue);
+            }
+        }
+        
+        /**
+         * Cancels the channel's consumers and requeues everything it hadn't
+         * settled, as a broker does when a channel goes away.
+         */
+        private void close() {
+            if (!open) {
+                return;
+            }
+            open = false;
+            for (Subscription subscription : subscriptions.values()) {
+                subscription.queue.subscriptions.remove(subscription);
+            }
+            subscriptions.clear();
+            requeue(new ArrayList<Unacked>(unacked.values()));
+            unacked.clear();
+            connection.openChannels.remove(this);
+            channels.remove(this);
+        }
+        
+    }
+    
+}
@@ -0,0 +1,41 @@
+package com.timgroup.amqp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class HistogramTest {
+    
+    private final Histogram histogram = new Histogram(1, 10, 100);
+    
+    @Test
+    public void valuesAreCountedInTheFirstBucketTheyDoNotExceed() throws Exception {
+        histogram.record(1);
+        histogram.record(2);
+        histogram.record(10);
+        histogram.record(1000);
+        histogram.record(-5);
+        
+        assertEquals(2, histogram.getCount(0));
+        assertEquals(2, histogram.getCount(1));
+        assertEquals(0, histogram.getCount(2));
+        assertEquals(1, histogram.getCount(3));
+        assertEquals(5, histogram.getCount());
+        assertEquals(1013, histogram.getSum());
+        assertEquals(1000, histogram.getMax());
+    }
+    
+    @Test
+    public void percentilesAreTheBoundsOfTheirBuckets() throws Exception {
+        for (int i = 0; i < 98; i++) {
+            histogram.record(5);
+        }
+        histogram.record(50);
+        histogram.record(5000);
+        
+        assertEquals(10, histogram.getPercentile(50));
+        assertEquals(100, histogram.getPercentile(99));
+        assertEquals(5000, histogram.getPercentile(100));
+    }
+    
+}
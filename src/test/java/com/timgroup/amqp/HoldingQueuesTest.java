@@ -0,0 +1,84 @@
+package com.timgroup.amqp;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.GetResponse;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class HoldingQueuesTest extends RepeatTestBase {
+    
+    private static final long HORIZON = 500;
+    private static final long TTL = 1000;
+    
+    private HoldingQueues holdingQueues;
+    
+    private Receiver newParkingTransceiver() throws IOException {
+        Transmitter transmitter = new Transmitter(appChannel, outboundQueueName);
+        holdingQueues = new HoldingQueues(appChannel, transmitter.getPublishers(), inboundQueueName, HORIZON, TTL);
+        holdingQueues.declare();
+        return new Receiver(appChannel, inboundQueueName, transmitter, holdingQueues);
+    }
+    
+    @After
+    public void deleteHoldingQueues() throws IOException {
+        if (holdingQueues != null) {
+            holdingQueues.delete();
+        }
+    }
+    
+    @Test
+    public void aMessageDueBeyondTheHorizonIsParkedOnAHoldingQueue() throws Exception {
+        newParkingTransceiver().start();
+        
+        long scheduledDeliveryTime = System.currentTimeMillis() + 2000;
+        BasicProperties propertiesWithScheduledDeliveryHeader = new BasicProperties.Builder().headers(singleHeader(Receiver.SCHEDULED_DELIVERY_HEADER, scheduledDeliveryTime)).build();
+        testChannel.basicPublish(inboundQueueName, "", propertiesWithScheduledDeliveryHeader, EMPTY_BODY);
+        
+        assertNotNull(basicConsumeOnce(testChannel, inboundQueueName + ".hold." + TTL, 1, TimeUnit.SECONDS));
+    }
+    
+    @Test
+    public void aParkedMessageIsRepeatedAtTheAppointedTimeWithItsOriginalBodyAndMetadata() throws Exception {
+        newParkingTransceiver().start();
+        
+        byte[] body = randomise("message").getBytes();
+        String routingKey = randomise("routing key");
+        BasicProperties properties = randomiseProperties().builder().expiration(null).build();
+        long scheduledDeliveryTime = System.currentTimeMillis() + 2000;
+        Map<String, Object> headers = new HashMap<String, Object>(properties.getHeaders());
+        headers.put(Receiver.SCHEDULED_DELIVERY_HEADER, scheduledDeliveryTime);
+        BasicProperties propertiesWithScheduledDeliveryHeader = properties.builder().headers(headers).build();
+        testChannel.basicPublish(inboundQueueName, routingKey, propertiesWithScheduledDeliveryHeader, body);
+        
+        GetResponse response = basicConsumeOnce(testChannel, outboundQueueName, 3, TimeUnit.SECONDS);
+        long actualDeliveryTime = System.currentTimeMillis();
+        
+        assertDeliveredSoonAfter("the", scheduledDeliveryTime, actualDeliveryTime);
+        assertArrayEquals(body, response.getBody());
+        assertEquals(routingKey, response.getEnvelope().getRoutingKey());
+        assertPropertiesEquals(propertiesWithScheduledDeliveryHeader, response.getProps());
+    }
+    
+    @Test(expected = TimeoutException.class)
+    public void aMessageDueWithinTheHorizonIsNotParked() throws Exception {
+        newParkingTransceiver().start();
+        
+        long scheduledDeliveryTime = System.currentTimeMillis() + 1000;
+        BasicProperties propertiesWithScheduledDeliveryHeader = new BasicProperties.Builder().headers(singleHeader(Receiver.SCHEDULED_DELIVERY_HEADER, scheduledDeliveryTime)).build();
+        testChannel.basicPublish(inboundQueueName, "", propertiesWithScheduledDeliveryHeader, EMPTY_BODY);
+        
+        basicConsumeOnce(testChannel, inboundQueueName + ".hold." + TTL, 500, TimeUnit.MILLISECONDS);
+    }
+    
+}
@@ -0,0 +1,707 @@
+package com.timgroup.amqp;
+
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Scanner;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.QueueingConsumer;
+import com.rabbitmq.client.QueueingConsumer.Delivery;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The whole daemon, run against the in-memory broker.
+ */
+public class InMemoryRepeatTest {
+    
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+    
+    private final FakeBroker broker = new FakeBroker();
+    private final Properties properties = new Properties();
+    private Channel testChannel;
+    private QueueingConsumer outbound;
+    private Application application;
+    
+    @Before
+    public void setUp() throws Exception {
+        testChannel = broker.newConnection(null).createChannel();
+        testChannel.queueDeclare("inbound", true, false, false, null);
+        testChannel.exchangeDeclare("outbound", "fanout", true, false, null);
+        testChannel.queueDeclare("outbound", true, false, false, null);
+        testChannel.queueBind("outbound", "outbound", "");
+        outbound = new QueueingConsumer(testChannel);
+        testChannel.basicConsume("outbound", true, outbound);
+        properties.setProperty("inboundQueueName", "inbound");
+        properties.setProperty("outboundQueueName", "outbound");
+    }
+    
+    @After
+    public void tearDown() throws Exception {
+        if (application != null) {
+            application.close();
+        }
+    }
+    
+    private void startApplication() throws Exception {
+        application = Application.create(broker.connectionFactory(), new Configuration(properties));
+        application.start();
+    }
+    
+    private void sendScheduled(String routingKey, long deliveryTime, byte[] body) throws Exception {
+        BasicProperties scheduled = new BasicProperties.Builder().headers(Collections.<String, Object> singletonMap(Receiver.SCHEDULED_DELIVERY_HEADER, deliveryTime)).build();
+        testChannel.basicPublish("", "inbound", scheduled, body);
+    }
+    
+    @Test
+    public void closingPublishesWhatIsDueWithinTheGracePeriodAndHandsTheRestBackQuickly() throws Exception {
+        properties.setProperty("shutdownGraceMillis", "200");
+        startApplication();
+        sendScheduled("key", System.currentTimeMillis() + 50, new byte[] {1});
+        sendScheduled("key", System.currentTimeMillis() + 60000, new byte[] {2});
+        long giveUpTime = System.currentTimeMillis() + 1000;
+        while (application.getTransmitter().getPendingCount() < 2 && System.currentTimeMillis() < giveUpTime) {
+            Thread.sleep(5);
+        }
+        
+        long startTime = System.currentTimeMillis();
+        application.close();
+        long closeTime = System.currentTimeMillis() - startTime;
+        application = null;
+        
+        assertTrue("close took " + closeTime + " ms", closeTime < 1000);
+        Delivery delivery = outbound.nextDelivery(100);
+        assertNotNull("message due within the grace period was not repeated", delivery);
+        assertArrayEquals(new byte[] {1}, delivery.getBody());
+        assertEquals(1, broker.getMessageCount("inbound"));
+        assertEquals(0, broker.getUnackedCount());
+    }
+    
+    @Test
+    public void withNoGracePeriodClosingHandsEverythingBackStraightAway() throws Exception {
+        properties.setProperty("shutdownGraceMillis", "0");
+        startApplication();
+        sendScheduled("key", System.currentTimeMillis() + 60000, new byte[] {1});
+        long giveUpTime = System.currentTimeMillis() + 1000;
+        while (application.getTransmitter().getPendingCount() < 1 && System.currentTimeMillis() < giveUpTime) {
+            Thread.sleep(5);
+        }
+        
+        long startTime = System.currentTimeMillis();
+        application.close();
+        long closeTime = System.currentTimeMillis() - startTime;
+        application = null;
+        
+        assertTrue("close took " + closeTime + " ms", closeTime < 1000);
+        assertEquals(1, broker.getMessageCount("inbound"));
+        assertEquals(0, broker.getUnackedCount());
+    }
+    
+    @Test
+    public void aScheduledMessageIsRepeatedAtItsDeliveryTimeAndItsDeliveryAcknowledged() throws Exception {
+        startApplication();
+        long deliveryTime = System.currentTimeMillis() + 200;
+        
+        sendScheduled("key", deliveryTime, new byte[] {1, 2, 3});
+        Delivery delivery = outbound.nextDelivery(2000);
+        long actualDeliveryTime = System.currentTimeMillis();
+        
+        assertNotNull("message was not repeated", delivery);
+        assertTrue("message was repeated early", actualDeliveryTime >= deliveryTime);
+        assertTrue("message was repeated late", actualDeliveryTime <= deliveryTime + 100);
+        assertArrayEquals(new byte[] {1, 2, 3}, delivery.getBody());
+        assertEquals(deliveryTime, delivery.getProperties().getHeaders().get(Receiver.SCHEDULED_DELIVERY_HEADER));
+        
+        long giveUpTime = System.currentTimeMillis() + 1000;
+        while (broker.getUnackedCount() > 0 && System.currentTimeMillis() < giveUpTime) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, broker.getUnackedCount());
+        assertEquals(0, broker.getMessageCount("inbound"));
+    }
+    
+    @Test
+    public void inPrecisionModeMessagesAreTypicallyPublishedWithinAMillisecondOfTheirDeliveryTime() throws Exception {
+        properties.setProperty("precisionRelease", "true");
+        startApplication();
+        long deliveryTime = System.currentTimeMillis() + 200;
+        
+        for (byte i = 0; i < 20; i++) {
+            sendScheduled("key", deliveryTime + i * 7, new byte[] {i});
+        }
+        for (int i = 0; i < 20; i++) {
+            assertNotNull("message " + i + " was not repeated", outbound.nextDelivery(2000));
+        }
+        
+        Histogram lateness = application.getTransmitter().getMetrics().getLateness();
+        long giveUpTime = System.currentTimeMillis() + 1000;
+        while (lateness.getCount() < 20 && System.currentTimeMillis() < giveUpTime) {
+            Thread.sleep(5);
+        }
+        assertEquals(20, lateness.getCount());
+        assertTrue("median lateness was " + lateness.getPercentile(50) + " us", lateness.getPercentile(50) <= 1000);
+    }
+    
+    @Test
+    public void inCustodyModeADeliveryIsAcknowledgedAtOnceAndTheMessageRepeatedAfterARestart() throws Exception {
+        properties.setProperty("journalDirectory", folder.getRoot().getPath());
+        startApplication();
+        long deliveryTime = System.currentTimeMillis() + 500;
+        
+        sendScheduled("key", deliveryTime, new byte[] {1, 2, 3});
+        long giveUpTime = System.currentTimeMillis() + 1000;
+        while ((application.getTransmitter().getPendingCount() == 0 || broker.getUnackedCount() > 0) && System.currentTimeMillis() < giveUpTime) {
+            Thread.sleep(5);
+        }
+        assertEquals(0, broker.getUnackedCount());
+        application.close();
+        assertEquals(0, broker.getMessageCount("inbound"));
+        startApplication();
+        Delivery delivery = outbound.nextDelivery(2000);
+        long actualDeliveryTime = System.currentTimeMillis();
+        
+        assertNotNull("message was not repeated", delivery);
+        assertTrue("message was repeated early", actualDeliveryTime >= deliveryTime);
+        assertTrue("message was repeated late", actualDeliveryTime <= deliveryTime + 100);
+        assertArrayEquals(new byte[] {1, 2, 3}, delivery.getBody());
+    }
+    
+    @Test
+    public void aMessageDueBeyondTheHorizonIsParkedOnAHoldingQueueAndStillRepeatedOnTime() throws Exception {
+        properties.setProperty("horizonMillis", "100");
+        properties.setProperty("holdingQueueTtls", "200");
+        startApplication();
+        long deliveryTime = System.currentTimeMillis() + 600;
+        
+        sendScheduled("key", deliveryTime, new byte[] {4, 5, 6});
+        Delivery delivery = outbound.nextDelivery(2000);
+        long actualDeliveryTime = System.currentTimeMillis();
+        
+        assertNotNull("message was not repeated", delivery);
+        assertTrue("message was never parked", broker.getEnqueuedCount("inbound.hold.200") > 0);
+        assertTrue("message was repeated early", actualDeliveryTime >= deliveryTime);
+        assertTrue("message was repeated late", actualDeliveryTime <= deliveryTime + 100);
+        assertEquals(Collections.singletonMap(Receiver.SCHEDULED_DELIVERY_HEADER, deliveryTime), delivery.getProperties().getHeaders());
+    }
+    
+    @Test
+    public void routesSharingOneEngineEachRepeatTheirOwnInboundQueueToTheirOwnExchange() throws Exception {
+        testChannel.queueDeclare("inbound-b", true, false, false, null);
+        testChannel.exchangeDeclare("outbound-b", "fanout", true, false, null);
+        testChannel.queueDeclare("outbound-b", true, false, false, null);
+        testChannel.queueBind("outbound-b", "outbound-b", "");
+        QueueingConsumer outboundB = new QueueingConsumer(testChannel);
+        testChannel.basicConsume("outbound-b", true, outboundB);
+        properties.setProperty("routes", "a, b");
+        properties.setProperty("route.a.inboundQueueName", "inbound");
+        properties.setProperty("route.b.inboundQueueName", "inbound-b");
+        properties.setProperty("route.b.outboundQueueName", "outbound-b");
+        startApplication();
+        
+        sendScheduled("key", System.currentTimeMillis() + 100, new byte[] {1});
+        BasicProperties scheduled = new BasicProperties.Builder().headers(Collections.<String, Object> singletonMap(Receiver.SCHEDULED_DELIVERY_HEADER, System.currentTimeMillis() + 100)).build();
+        testChannel.basicPublish("", "inbound-b", scheduled, new byte[] {2});
+        Delivery delivery = outbound.nextDelivery(2000);
+        Delivery deliveryB = outboundB.nextDelivery(2000);
+        
+        assertEquals(1, application.getShards().size());
+        assertEquals(2, application.getShards().get(0).getRoutes().size());
+        assertNotNull("message on the first route was not repeated", delivery);
+        assertArrayEquals(new byte[] {1}, delivery.getBody());
+        assertNotNull("message on the second route was not repeated", deliveryB);
+        assertArrayEquals(new byte[] {2}, deliveryB.getBody());
+        long giveUpTime = System.currentTimeMillis() + 1000;
+        while (broker.getUnackedCount() > 0 && System.currentTimeMillis() < giveUpTime) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, broker.getUnackedCount());
+        assertEquals(1, application.getShards().get(0).getRoutes().get(1).getTransmitter().getMetrics().getConfirmedCount());
+    }
+    
+    @Test
+    public void consumptionStopsWhileTheBrokerHasTheConnectionBlocked() throws Exception {
+        broker.setStrictReaderThread(true);
+        startApplication();
+        broker.block("low on memory");
+        long giveUpTime = System.currentTimeMillis() + 1000;
+        while (application.getReceiver().getThrottleState() != Throttle.State.STOPPED && System.currentTimeMillis() < giveUpTime) {
+            Thread.sleep(5);
+        }
+        
+        sendScheduled("key", System.currentTimeMillis(), new byte[] {1});
+        assertEquals(null, outbound.nextDelivery(200));
+        assertEquals(1, broker.getMessageCount("inbound"));
+        broker.unblock();
+        
+        assertNotNull("message was not repeated once the connection was unblocked", outbound.nextDelivery(2000));
+        assertEquals(Throttle.State.OPEN, application.getReceiver().getThrottleState());
+        assertEquals(0, broker.getReaderThreadDeadlockCount());
+    }
+    
+    @Test
+    public void messagesFallingDueAtOnceAreSpreadOutInOrderButAStrictOneIsNot() throws Exception {
+        properties.setProperty("shapingRate", "20");
+        startApplication();
+        long deliveryTime = System.currentTimeMillis() + 200;
+        for (byte i = 0; i < 4; i++) {
+            sendScheduled("key", deliveryTime + i, new byte[] {i});
+        }
+        Map<String, Object> strictHeaders = new HashMap<String, Object>();
+        strictHeaders.put(Receiver.SCHEDULED_DELIVERY_HEADER, deliveryTime + 1);
+        strictHeaders.put(Shaper.STRICT_DELIVERY_HEADER, true);
+        testChannel.basicPublish("", "inbound", new BasicProperties.Builder().headers(strictHeaders).build(), new byte[] {9});
+        
+        long[] arrivals = new long[5];
+        byte[] bodies = new byte[5];
+        for (int i = 0; i < 5; i++) {
+            Delivery delivery = outbound.nextDelivery(2000);
+            assertNotNull("message " + i + " was not repeated", delivery);
+            arrivals[i] = System.currentTimeMillis();
+            bodies[i] = delivery.getBody()[0];
+        }
+        
+        assertArrayEquals(new byte[] {0, 9, 1, 2, 3}, bodies);
+        assertTrue("strict message was held back", arrivals[1] <= deliveryTime + 100);
+        assertTrue("burst was not spread out", arrivals[4] - deliveryTime >= 150);
+        assertEquals(4, application.getTransmitter().getMetrics().getSpread().getCount());
+    }
+    
+    private void sendWithId(String queueName, String messageId, long deliveryTime, byte[] body, String command) throws Exception {
+        Map<String, Object> headers = new HashMap<String, Object>();
+        headers.put(Receiver.SCHEDULED_DELIVERY_HEADER, deliveryTime);
+        if (command != null) {
+            headers.put(Controller.CONTROL_HEADER, command);
+        }
+        testChannel.basicPublish("", queueName, new BasicProperties.Builder().messageId(messageId).headers(headers).build(), body);
+    }
+    
+    @Test
+    public void pendingMessagesCanBeCancelledAndReplacedByMessageIdThroughTheControlQueue() throws Exception {
+        testChannel.queueDeclare("control", true, false, false, null);
+        properties.setProperty("controlQueueName", "control");
+        startApplication();
+        long deliveryTime = System.currentTimeMillis() + 300;
+        sendWithId("inbound", "a", deliveryTime, new byte[] {1}, null);
+        sendWithId("inbound", "b", deliveryTime, new byte[] {2}, null);
+        sendWithId("inbound", "c", deliveryTime, new byte[] {3}, null);
+        long giveUpTime = System.currentTimeMillis() + 1000;
+        while (application.getTransmitter().getPendingCount() < 3 && System.currentTimeMillis() < giveUpTime) {
+            Thread.sleep(5);
+        }
+        
+        sendWithId("control", "b", deliveryTime, new byte[0], Controller.CANCEL);
+        sendWithId("control", "c", deliveryTime - 200, new byte[] {4}, Controller.REPLACE);
+        sendWithId("control", "d", deliveryTime, new byte[0], Controller.CANCEL);
+        
+        Delivery replacement = outbound.nextDelivery(2000);
+        assertNotNull("replacement was not repeated", replacement);
+        assertArrayEquals(new byte[] {4}, replacement.getBody());
+        assertTrue(System.currentTimeMillis() < deliveryTime);
+        assertEquals(null, replacement.getProperties().getHeaders().get(Controller.CONTROL_HEADER));
+        Delivery survivor = outbound.nextDelivery(2000);
+        assertNotNull("uncancelled message was not repeated", survivor);
+        assertArrayEquals(new byte[] {1}, survivor.getBody());
+        assertEquals(null, outbound.nextDelivery(200));
+        
+        giveUpTime = System.currentTimeMillis() + 1000;
+        while (broker.getUnackedCount() > 0 && System.currentTimeMillis() < giveUpTime) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, broker.getUnackedCount());
+        Metrics metrics = application.getTransmitter().getMetrics();
+        assertEquals(2, metrics.getCancelledCount());
+        assertEquals(1, metrics.getCancelMissCount());
+        assertEquals(0, application.getTransmitter().getIndexedCount());
+    }
+    
+    @Test
+    public void aMessageWhoseIdIsAlreadyPendingIsDroppedWhenDeduplicating() throws Exception {
+        testChannel.queueDeclare("control", true, false, false, null);
+        properties.setProperty("controlQueueName", "control");
+        properties.setProperty("deduplicateMessageIds", "true");
+        startApplication();
+        long deliveryTime = System.currentTimeMillis() + 200;
+        
+        sendWithId("inbound", "a", deliveryTime, new byte[] {1}, null);
+        sendWithId("inbound", "a", deliveryTime, new byte[] {2}, null);
+        
+        Delivery delivery = outbound.nextDelivery(2000);
+        assertNotNull("message was not repeated", delivery);
+        assertArrayEquals(new byte[] {1}, delivery.getBody());
+        assertEquals(null, outbound.nextDelivery(200));
+        assertEquals(1, application.getTransmitter().getMetrics().getDeduplicatedCount());
+    }
+    
+    @Test
+    public void aStandbyTakesOverThePendingMessagesOfAnActiveInstanceWhichDies() throws Exception {
+        properties.setProperty("replicationExchange", "replication");
+        properties.setProperty("replicationHeartbeatMillis", "50");
+        properties.setProperty("failoverTimeoutMillis", "200");
+        Application active = Application.create(broker.connectionFactory(), new Configuration(properties));
+        active.start();
+        properties.setProperty("standby", "true");
+        startApplication();
+        Transmitter standby = application.getTransmitter();
+        long deliveryTime = System.currentTimeMillis() + 600;
+        try {
+            sendWithId("inbound", "a", deliveryTime, new byte[] {1}, null);
+            sendWithId("inbound", "b", deliveryTime + 1, new byte[] {2}, null);
+            sendWithId("inbound", "c", deliveryTime + 2, new byte[] {3}, null);
+            long giveUpTime = System.currentTimeMillis() + 1000;
+            while (standby.getStagedCount() < 3 && System.currentTimeMillis() < giveUpTime) {
+                Thread.sleep(5);
+            }
+            assertEquals(3, standby.getStagedCount());
+            assertEquals(0, standby.getPendingCount());
+            
+            active.getShards().get(0).getConnection().close();
+            
+            for (int i = 1; i <= 3; i++) {
+                Delivery delivery = outbound.nextDelivery(2000);
+                assertNotNull("message " + i + " was not repeated", delivery);
+                assertArrayEquals(new byte[] {(byte) i}, delivery.getBody());
+            }
+            assertEquals(null, outbound.nextDelivery(300));
+        } finally {
+            Application.closeQuietly(active);
+        }
+        assertTrue(application.getShards().get(0).getRoutes().get(0).getStandby().isActive());
+        assertEquals(0, standby.getStagedCount());
+        assertEquals(0, broker.getMessageCount("inbound"));
+        assertEquals(0, broker.getUnackedCount());
+    }
+    
+    @Test
+    public void aNewPrefetchTakesEffectOnAConsumerWhichIsAlreadyRunning() throws Exception {
+        properties.setProperty("prefetchCount", "1");
+        startApplication();
+        for (int i = 0; i < 20; i++) {
+            sendScheduled("", System.currentTimeMillis() + 60000, new byte[] {(byte) i});
+        }
+        awaitPendingCount(1);
+        Thread.sleep(50);
+        assertEquals(1, application.getTransmitter().getPendingCount());
+        
+        application.getReceiver().setPrefetchCount(3);
+        awaitPendingCount(3);
+        Thread.sleep(50);
+        
+        assertEquals(3, application.getTransmitter().getPendingCount());
+        assertEquals(3, broker.getUnackedCount());
+    }
+    
+    @Test
+    public void cuttingThePrefetchHoldsOffConsumingUntilTheDeliveriesAlreadyTakenAreSettled() throws Exception {
+        properties.setProperty("prefetchCount", "10");
+        startApplication();
+        long soon = System.currentTimeMillis() + 500;
+        for (int i = 0; i < 10; i++) {
+            sendScheduled("", soon, new byte[] {(byte) i});
+        }
+        for (int i = 10; i < 30; i++) {
+            sendScheduled("", System.currentTimeMillis() + 60000, new byte[] {(byte) i});
+        }
+        awaitPendingCount(10);
+        
+        application.getReceiver().setPrefetchCount(5);
+        Thread.sleep(100);
+        assertEquals(10, broker.getUnackedCount());
+        for (int i = 0; i < 10; i++) {
+            assertNotNull("message " + i + " was not repeated", outbound.nextDelivery(2000));
+        }
+        awaitPendingCount(5);
+        Thread.sleep(100);
+        assertEquals(5, broker.getUnackedCount());
+        
+        application.getReceiver().setPrefetchCount(2);
+        Thread.sleep(100);
+        assertEquals(5, broker.getUnackedCount());
+        
+        application.getReceiver().setPrefetchCount(8);
+        awaitPendingCount(8);
+        Thread.sleep(100);
+        assertEquals(8, broker.getUnackedCount());
+    }
+    
+    private void awaitPendingCount(int count) throws InterruptedException {
+        long giveUpTime = System.currentTimeMillis() + 2000;
+        while (application.getTransmitter().getPendingCount() < count && System.currentTimeMillis() < giveUpTime) {
+            Thread.sleep(5);
+        }
+    }
+    
+    @Test
+    public void aStandbyDropsAReplicaWhichTurnsUpAfterItsMessageWasSettled() throws Exception {
+        properties.setProperty("replicationExchange", "replication");
+        properties.setProperty("standby", "true");
+        startApplication();
+        Transmitter standby = application.getTransmitter();
+        
+        testChannel.basicPublish("replication", "inbound", replicaRecord(Replicator.SETTLED, "a"), new byte[0]);
+        testChannel.basicPublish("replication", "inbound", replicaRecord(Replicator.SCHEDULED, "a"), new byte[] {1});
+        testChannel.basicPublish("replication", "inbound", replicaRecord(Replicator.SCHEDULED, "b"), new byte[] {2});
+        long giveUpTime = System.currentTimeMillis() + 1000;
+        while (standby.getStagedCount() < 1 && System.currentTimeMillis() < giveUpTime) {
+            Thread.sleep(5);
+        }
+        
+        assertEquals(1, standby.getStagedCount());
+        testChannel.basicPublish("replication", "inbound", replicaRecord(Replicator.SETTLED, "b"), new byte[0]);
+        giveUpTime = System.currentTimeMillis() + 1000;
+        while (standby.getStagedCount() > 0 && System.currentTimeMillis() < giveUpTime) {
+            Thread.sleep(5);
+        }
+        assertEquals(0, standby.getStagedCount());
+    }
+    
+    private static BasicProperties replicaRecord(String op, String messageId) {
+        Map<String, Object> headers = new HashMap<String, Object>();
+        headers.put(Replicator.OP_HEADER, op);
+        headers.put(Replicator.ROUTING_KEY_HEADER, "outbound");
+        headers.put(Replicator.DELIVERY_TIME_HEADER, System.currentTimeMillis() + 60000);
+        return new BasicProperties.Builder().messageId(messageId).headers(headers).build();
+    }
+    
+    @Test
+    public void messagesWithAnUndecodableDeliveryTimeAreQuarantinedAndTheRestDecodedFromStrings() throws Exception {
+        testChannel.exchangeDeclare("quarantine", "fanout", true, false, null);
+        testChannel.queueDeclare("quarantined", true, false, false, null);
+        testChannel.queueBind("quarantined", "quarantine", "");
+        QueueingConsumer quarantined = new QueueingConsumer(testChannel);
+        testChannel.basicConsume("quarantined", true, quarantined);
+        properties.setProperty("quarantineExchange", "quarantine");
+        startApplication();
+        
+        testChannel.basicPublish("", "inbound", new BasicProperties.Builder().headers(Collections.<String, Object> singletonMap(Receiver.SCHEDULED_DELIVERY_HEADER, "next tuesday")).build(), new byte[] {1});
+        testChannel.basicPublish("", "inbound", new BasicProperties.Builder().headers(Collections.<String, Object> singletonMap(Receiver.SCHEDULED_DELIVERY_HEADER, String.valueOf(System.currentTimeMillis() + 100))).build(), new byte[] {2});
+        testChannel.basicPublish("", "inbound", new BasicProperties.Builder().headers(Collections.<String, Object> singletonMap(Receiver.SCHEDULED_DELAY_HEADER, "200")).build(), new byte[] {3});
+        
+        Delivery poison = quarantined.nextDelivery(2000);
+        assertNotNull("message was not quarantined", poison);
+        assertArrayEquals(new byte[] {1}, poison.getBody());
+        assertEquals("next tuesday", poison.getProperties().getHeaders().get(Receiver.SCHEDULED_DELIVERY_HEADER).toString());
+        assertNotNull(poison.getProperties().getHeaders().get(Quarantine.REASON_HEADER));
+        for (int i = 2; i <= 3; i++) {
+            Delivery delivery = outbound.nextDelivery(2000);
+            assertNotNull("message " + i + " was not repeated", delivery);
+            assertArrayEquals(new byte[] {(byte) i}, delivery.getBody());
+        }
+        
+        long giveUpTime = System.currentTimeMillis() + 1000;
+        while (broker.getUnackedCount() > 0 && System.currentTimeMillis() < giveUpTime) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, broker.getUnackedCount());
+        assertEquals(1, application.getTransmitter().getMetrics().getQuarantinedCount());
+    }
+    
+    @Test
+    public void twoApplicationsInOneJvmRepeatingTheSameQueueEachRegisterTheirShardsMBean() throws Exception {
+        startApplication();
+        Application other = Application.create(broker.connectionFactory(), new Configuration(properties));
+        try {
+            other.start();
+            
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            assertTrue(server.isRegistered(new ObjectName("com.timgroup.amqp:type=Shard,application=" + application.getNumber() + ",name=\"inbound\"")));
+            assertTrue(server.isRegistered(new ObjectName("com.timgroup.amqp:type=Shard,application=" + other.getNumber() + ",name=\"inbound\"")));
+        } finally {
+            other.close();
+        }
+    }
+    
+    @Test
+    public void aControlQueueCannotBeCombinedWithParkingOnHoldingQueues() throws Exception {
+        testChannel.queueDeclare("control", true, false, false, null);
+        properties.setProperty("controlQueueName", "control");
+        properties.setProperty("horizonMillis", "100");
+        try {
+            startApplication();
+            fail("parked messages would have been out of reach of the control queue");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+    
+    @Test
+    public void withoutAQuarantineMessagesWithAnUndecodableDeliveryTimeAreRejectedToTheDeadLetterExchange() throws Exception {
+        testChannel.exchangeDeclare("dead", "fanout", true, false, null);
+        testChannel.queueDeclare("dead", true, false, false, null);
+        testChannel.queueBind("dead", "dead", "");
+        QueueingConsumer dead = new QueueingConsumer(testChannel);
+        testChannel.basicConsume("dead", true, dead);
+        testChannel.queueDeclare("inbound-with-dead-letters", true, false, false, Collections.<String, Object> singletonMap("x-dead-letter-exchange", "dead"));
+        properties.setProperty("inboundQueueName", "inbound-with-dead-letters");
+        startApplication();
+        
+        testChannel.basicPublish("", "inbound-with-dead-letters", new BasicProperties.Builder().headers(Collections.<String, Object> singletonMap(Receiver.SCHEDULED_DELIVERY_HEADER, "next tuesday")).build(), new byte[] {1});
+        
+        Delivery poison = dead.nextDelivery(2000);
+        assertNotNull("message was not dead-lettered", poison);
+        assertArrayEquals(new byte[] {1}, poison.getBody());
+        assertEquals("next tuesday", poison.getProperties().getHeaders().get(Receiver.SCHEDULED_DELIVERY_HEADER).toString());
+        assertEquals(0, broker.getUnackedCount());
+        assertEquals(0, broker.getMessageCount("inbound-with-dead-letters"));
+        assertEquals(1, application.getTransmitter().getMetrics().getQuarantinedCount());
+    }
+    
+    @Test
+    public void tracedMessagesAreStampedWithTheTimeTheyPassedEachStage() throws Exception {
+        properties.setProperty("traceSampleRate", "0.5");
+        properties.setProperty("instanceId", "test");
+        startApplication();
+        long deliveryTime = System.currentTimeMillis() + 100;
+        for (int i = 0; i < 4; i++) {
+            sendScheduled("", deliveryTime, new byte[] {(byte) i});
+        }
+        
+        TraceReport report = new TraceReport();
+        int traced = 0;
+        for (int i = 0; i < 4; i++) {
+            Delivery delivery = outbound.nextDelivery(2000);
+            assertNotNull("message " + i + " was not repeated", delivery);
+            Map<String, Object> headers = delivery.getProperties().getHeaders();
+            assertEquals(deliveryTime, headers.get(Receiver.SCHEDULED_DELIVERY_HEADER));
+            TraceReport.Trace trace = TraceReport.Trace.of(delivery.getProperties(), Clock.SYSTEM.currentTimeMicros());
+            if (trace == null) {
+                assertEquals(1, headers.size());
+                continue;
+            }
+            traced++;
+            report.add(trace);
+            assertEquals(deliveryTime * 1000, headers.get(Tracer.SCHEDULED_HEADER));
+            assertEquals("inbound", headers.get(Tracer.SHARD_HEADER));
+            assertEquals("test", headers.get(Tracer.INSTANCE_HEADER));
+            assertTrue(trace.received < trace.scheduled);
+            assertTrue(trace.scheduled <= trace.dequeued + 1000);
+            assertTrue(trace.dequeued <= trace.published);
+        }
+        assertEquals(2, traced);
+        assertEquals(2, report.getCount());
+    }
+    
+    @Test
+    public void eachEntryOfABatchIsRepeatedAtItsOwnTimeAndTheEnvelopeAcknowledgedOnceAllAre() throws Exception {
+        startApplication();
+        long now = System.currentTimeMillis();
+        List<BatchEnvelope.Entry> entries = new ArrayList<BatchEnvelope.Entry>();
+        entries.add(new BatchEnvelope.Entry(now + 300, "late", new BasicProperties.Builder().messageId("3").build(), new byte[] {3}));
+        entries.add(new BatchEnvelope.Entry(now + 100, "early", new BasicProperties.Builder().messageId("1").build(), new byte[] {1}));
+        entries.add(new BatchEnvelope.Entry(now + 200, "middle", new BasicProperties.Builder().messageId("2").build(), new byte[] {2}));
+        testChannel.basicPublish("", "inbound", new BasicProperties.Builder().contentType(BatchEnvelope.CONTENT_TYPE).build(), BatchEnvelope.encode(entries));
+        
+        String[] routingKeys = {"early", "middle", "late"};
+        for (int i = 1; i <= 3; i++) {
+            Delivery delivery = outbound.nextDelivery(2000);
+            assertNotNull("entry " + i + " was not repeated", delivery);
+            assertTrue("entry " + i + " was repeated early", System.currentTimeMillis() >= now + i * 100);
+            assertArrayEquals(new byte[] {(byte) i}, delivery.getBody());
+            assertEquals(routingKeys[i - 1], delivery.getEnvelope().getRoutingKey());
+            assertEquals(String.valueOf(i), delivery.getProperties().getMessageId());
+            if (i < 3) {
+                assertEquals(1, broker.getUnackedCount());
+            }
+        }
+        
+        long giveUpTime = System.currentTimeMillis() + 1000;
+        while (broker.getUnackedCount() > 0 && System.currentTimeMillis() < giveUpTime) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, broker.getUnackedCount());
+        assertEquals(0, broker.getMessageCount("inbound"));
+        assertEquals(3, application.getTransmitter().getMetrics().getBatchEntryCount());
+    }
+    
+    @Test
+    public void aBatchTooLargeForTheStoreIsQuarantinedWholeRatherThanPartlyRepeated() throws Exception {
+        testChannel.exchangeDeclare("quarantine", "fanout", true, false, null);
+        testChannel.queueDeclare("quarantined", true, false, false, null);
+        testChannel.queueBind("quarantined", "quarantine", "");
+        QueueingConsumer quarantined = new QueueingConsumer(testChannel);
+        testChannel.basicConsume("quarantined", true, quarantined);
+        properties.setProperty("quarantineExchange", "quarantine");
+        properties.setProperty("storeBudgetBytes", String.valueOf(SlabStore.DEFAULT_SLAB_SIZE));
+        startApplication();
+        Random random = new Random();
+        List<BatchEnvelope.Entry> entries = new ArrayList<BatchEnvelope.Entry>();
+        for (int i = 0; i < 3; i++) {
+            byte[] body = new byte[SlabStore.DEFAULT_SLAB_SIZE / 2];
+            random.nextBytes(body);
+            entries.add(new BatchEnvelope.Entry(System.currentTimeMillis(), "key", new BasicProperties(), body));
+        }
+        testChannel.basicPublish("", "inbound", new BasicProperties.Builder().contentType(BatchEnvelope.CONTENT_TYPE).build(), BatchEnvelope.encode(entries));
+        
+        assertNotNull("batch was not quarantined", quarantined.nextDelivery(2000));
+        assertEquals(null, outbound.nextDelivery(200));
+        assertEquals(0, application.getTransmitter().getStore().getCount());
+        assertEquals(0, broker.getUnackedCount());
+        assertEquals(0, broker.getMessageCount("inbound"));
+    }
+    
+    @Test
+    public void metricsAreServedInThePrometheusTextFormat() throws Exception {
+        properties.setProperty("metricsPort", "0");
+        startApplication();
+        
+        sendScheduled("key", System.currentTimeMillis(), new byte[] {7});
+        assertNotNull("message was not repeated", outbound.nextDelivery(2000));
+        
+        URLConnection connection = new URL("http://localhost:" + application.getMetricsServer().getPort() + "/metrics").openConnection();
+        String metrics = new Scanner(connection.getInputStream(), "UTF-8").useDelimiter("\\A").next();
+        assertEquals(MetricsServer.CONTENT_TYPE, connection.getContentType());
+        assertTrue(metrics, metrics.contains("wai7_received_total{shard=\"inbound\"} 1\n"));
+        assertTrue(metrics, metrics.contains("wai7_published_total{shard=\"inbound\"} 1\n"));
+        assertTrue(metrics, metrics.contains("wai7_lateness_seconds_count{shard=\"inbound\"} 1\n"));
+        assertTrue(metrics, metrics.contains("wai7_pending_messages{shard=\"inbound\",due_within=\"0.064\"} 0\n"));
+    }
+    
+    @Test
+    public void theFiguresOfAnEngineSharedByRoutesAreServedOnceRatherThanForEachRoute() throws Exception {
+        testChannel.queueDeclare("inbound-b", true, false, false, null);
+        properties.setProperty("routes", "a, b");
+        properties.setProperty("route.a.inboundQueueName", "inbound");
+        properties.setProperty("route.b.inboundQueueName", "inbound-b");
+        properties.setProperty("catchUpRate", "1000");
+        properties.setProperty("metricsPort", "0");
+        startApplication();
+        sendScheduled("key", System.currentTimeMillis() + 60000, new byte[] {1});
+        long giveUpTime = System.currentTimeMillis() + 1000;
+        while (application.getTransmitter().getPendingCount() < 1 && System.currentTimeMillis() < giveUpTime) {
+            Thread.sleep(5);
+        }
+        
+        String metrics = application.getMetricsServer().render();
+        
+        assertTrue(metrics, metrics.contains("wai7_publish_backlog{shard=\"inbound\"} 0\n"));
+        assertTrue(metrics, metrics.contains("wai7_overdue_messages{shard=\"inbound\"} 0\n"));
+        assertTrue(metrics, metrics.contains("wai7_pending_messages{shard=\"inbound\",due_within=\"262.144\"} 1\n"));
+        assertTrue(metrics, metrics.contains("wai7_received_total{shard=\"inbound-b\"} 0\n"));
+        assertFalse(metrics, metrics.contains("wai7_publish_backlog{shard=\"inbound-b\"}"));
+        assertFalse(metrics, metrics.contains("wai7_overdue_messages{shard=\"inbound-b\"}"));
+        assertFalse(metrics, metrics.contains("wai7_pending_messages{shard=\"inbound-b\""));
+    }
+    
+}
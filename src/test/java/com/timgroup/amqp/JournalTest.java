@@ -0,0 +1,122 @@
+package com.timgroup.amqp;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class JournalTest {
+    
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+    
+    private final RecordingChannel recorder = new RecordingChannel();
+    private final Acknowledger acknowledger = new Acknowledger(recorder.channel, 10000, 1000000);
+    private final List<Journal> journals = new ArrayList<Journal>();
+    
+    @After
+    public void closeJournals() throws Exception {
+        for (Journal journal : journals) {
+            journal.close();
+        }
+        acknowledger.close();
+    }
+    
+    private Journal open(int segmentSize) throws Exception {
+        Journal journal = new Journal(folder.getRoot(), segmentSize, 1000000, acknowledger);
+        journals.add(journal);
+        return journal;
+    }
+    
+    private static List<String> replay(Journal journal) {
+        final List<String> replayed = new ArrayList<String>();
+        journal.replay(new Journal.Visitor() {
+            @Override
+            public void replayed(long handle, String routingKey, long deliveryTime, int size) {
+                replayed.add(routingKey + "@" + deliveryTime);
+            }
+        });
+        return replayed;
+    }
+    
+    @Test
+    public void deliveriesAreAcknowledgedOnceTheirEntriesAreCommitted() throws Exception {
+        Journal journal = open(Journal.DEFAULT_SEGMENT_SIZE);
+        journal.append("a", new BasicProperties(), new byte[] {1}, 1000, 1);
+        journal.append("b", new BasicProperties(), new byte[] {2}, 2000, 2);
+        acknowledger.flush();
+        assertEquals(Arrays.asList(), recorder.callsTo("basicAck"));
+        
+        journal.commit();
+        acknowledger.flush();
+        
+        assertEquals(Arrays.asList("basicAck[2, true]"), recorder.callsTo("basicAck"));
+    }
+    
+    @Test
+    public void entriesNotYetDeliveredAreReplayedAfterReopening() throws Exception {
+        Journal journal = open(Journal.DEFAULT_SEGMENT_SIZE);
+        journal.append("a", new BasicProperties(), new byte[] {1}, 1000, 1);
+        long delivered = journal.append("b", new BasicProperties(), new byte[] {2}, 2000, 2);
+        journal.append("c", new BasicProperties(), new byte[] {3}, 3000, 3);
+        journal.delivered(delivered);
+        journal.close();
+        
+        final Journal reopened = open(Journal.DEFAULT_SEGMENT_SIZE);
+        final List<byte[]> bodies = new ArrayList<byte[]>();
+        reopened.replay(new Journal.Visitor() {
+            @Override
+            public void replayed(long handle, String routingKey, long deliveryTime, int size) {
+                bodies.add(reopened.read(handle).body);
+            }
+        });
+        
+        assertEquals(2, bodies.size());
+        assertArrayEquals(new byte[] {1}, bodies.get(0));
+        assertArrayEquals(new byte[] {3}, bodies.get(1));
+        assertEquals(2, reopened.getLiveCount());
+    }
+    
+    @Test
+    public void aSegmentIsDeletedOnceEverythingInItHasBeenDelivered() throws Exception {
+        Journal journal = open(64);
+        long first = journal.append("a", new BasicProperties(), new byte[16], 1000, 1);
+        journal.append("b", new BasicProperties(), new byte[16], 2000, 2);
+        assertEquals(2, folder.getRoot().list().length);
+        
+        journal.delivered(first);
+        
+        assertEquals(1, folder.getRoot().list().length);
+        assertEquals(1, journal.getSegmentCount());
+    }
+    
+    @Test
+    public void aTornEntryAndEverythingAfterItAreNotReplayed() throws Exception {
+        Journal journal = open(Journal.DEFAULT_SEGMENT_SIZE);
+        journal.append("a", new BasicProperties(), new byte[] {1}, 1000, 1);
+        long torn = journal.append("b", new BasicProperties(), new byte[] {2}, 2000, 2);
+        journal.append("c", new BasicProperties(), new byte[] {3}, 3000, 3);
+        journal.close();
+        RandomAccessFile file = new RandomAccessFile(new File(folder.getRoot(), folder.getRoot().list()[0]), "rw");
+        try {
+            file.seek((int) torn + 8);
+            file.writeLong(2001);
+        } finally {
+            file.close();
+        }
+        
+        assertEquals(Arrays.asList("a@1000"), replay(open(Journal.DEFAULT_SEGMENT_SIZE)));
+    }
+    
+}
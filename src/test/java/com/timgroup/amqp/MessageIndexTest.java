@@ -0,0 +1,78 @@
+package com.timgroup.amqp;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MessageIndexTest {
+    
+    @Test
+    public void findsAnItemAndItsHandleByKey() {
+        MessageIndex<String> index = new MessageIndex<String>();
+        index.put("a", "first", 1);
+        index.put("b", "second", 2);
+        
+        assertEquals("first", index.get("a"));
+        assertEquals(2, index.getHandle("b"));
+        assertNull(index.get("c"));
+        assertEquals(2, index.size());
+    }
+    
+    @Test
+    public void aLaterItemTakesTheKeyOverAndIsNotRemovedInPlaceOfTheEarlierOne() {
+        MessageIndex<String> index = new MessageIndex<String>();
+        index.put("a", "first", 1);
+        index.put("a", "second", 2);
+        
+        assertFalse(index.remove("a", "first"));
+        assertEquals("second", index.get("a"));
+        assertTrue(index.remove("a", "second"));
+        assertNull(index.get("a"));
+        assertEquals(0, index.size());
+    }
+    
+    @Test
+    public void clearingHandsBackEveryItemAndLeavesTheIndexEmpty() {
+        MessageIndex<String> index = new MessageIndex<String>();
+        index.put("a", "first", 1);
+        index.put("b", "second", 2);
+        
+        List<String> cleared = index.clear();
+        Collections.sort(cleared);
+        
+        assertEquals(Arrays.asList("first", "second"), cleared);
+        assertNull(index.get("a"));
+        assertEquals(0, index.size());
+    }
+    
+    @Test
+    public void keepsEveryOtherKeyFindableAsKeysAreRemovedAndTheTableGrows() {
+        MessageIndex<Integer> index = new MessageIndex<Integer>(4);
+        Integer[] items = new Integer[1000];
+        for (int i = 0; i < 1000; i++) {
+            items[i] = new Integer(i);
+            index.put("message-" + i, items[i], i);
+        }
+        for (int i = 0; i < 1000; i += 3) {
+            assertTrue(index.remove("message-" + i, items[i]));
+        }
+        
+        for (int i = 0; i < 1000; i++) {
+            if (i % 3 == 0) {
+                assertNull(index.get("message-" + i));
+            } else {
+                assertEquals(items[i], index.get("message-" + i));
+                assertEquals(i, index.getHandle("message-" + i));
+            }
+        }
+        assertEquals(666, index.size());
+    }
+    
+}
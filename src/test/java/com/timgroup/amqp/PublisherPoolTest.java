@@ -0,0 +1,42 @@
+package com.timgroup.amqp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class PublisherPoolTest {
+    
+    private final Acknowledger acknowledger = new Acknowledger(new RecordingChannel().channel);
+    
+    @Test
+    public void messagesOnTheSameStripeArePublishedInOrderByTheSamePublisher() throws Exception {
+        final List<Publisher> publishers = new ArrayList<Publisher>();
+        for (int i = 0; i < 4; i++) {
+            publishers.add(new Publisher(new RecordingChannel().channel, acknowledger));
+        }
+        PublisherPool pool = new PublisherPool(acknowledger, publishers);
+        final List<String> published = Collections.synchronizedList(new ArrayList<String>());
+        pool.start(new PublisherPool.Handler() {
+            @Override
+            public void publish(PendingMessage message, Publisher publisher) throws IOException {
+                published.add(publishers.indexOf(publisher) + ":" + message.deliveryTag);
+            }
+        });
+        
+        int stripe = pool.stripeFor("routing key");
+        for (long deliveryTag = 1; deliveryTag <= 3; deliveryTag++) {
+            pool.dispatch(new PendingMessage(null, deliveryTag, 0, stripe, 0));
+        }
+        pool.close();
+        
+        assertEquals(Arrays.asList(stripe + ":1", stripe + ":2", stripe + ":3"), published);
+        assertEquals(stripe, pool.stripeFor("routing key"));
+    }
+    
+}
@@ -0,0 +1,115 @@
+package com.timgroup.amqp;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.rabbitmq.client.ShutdownSignalException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class PublisherTest {
+    
+    private static final byte[] EMPTY_BODY = {};
+    
+    private final RecordingChannel recorder = new RecordingChannel();
+    private final Acknowledger acknowledger = new Acknowledger(recorder.channel, 10000, 1000000);
+    
+    @After
+    public void closeAcknowledger() throws Exception {
+        acknowledger.close();
+    }
+    
+    @Test
+    public void aDeliveryIsOnlyAcknowledgedOnceItsRepeatIsConfirmed() throws Exception {
+        Publisher publisher = new Publisher(recorder.channel, acknowledger);
+        publisher.publish("exchange", "", null, EMPTY_BODY, 7);
+        acknowledger.flush();
+        assertEquals(0, recorder.callsTo("basicAck").size());
+        
+        publisher.handleAck(1, false);
+        acknowledger.flush();
+        
+        assertEquals(Arrays.asList("basicAck[7, false]"), recorder.callsTo("basicAck"));
+    }
+    
+    @Test
+    public void aMultipleConfirmSettlesEveryEarlierPublish() throws Exception {
+        Publisher publisher = new Publisher(recorder.channel, acknowledger);
+        publisher.publish("exchange", "", null, EMPTY_BODY, 1);
+        publisher.publish("exchange", "", null, EMPTY_BODY, 2);
+        publisher.publish("exchange", "", null, EMPTY_BODY, 3);
+        
+        publisher.handleAck(2, true);
+        acknowledger.flush();
+        
+        assertEquals(Arrays.asList("basicAck[2, true]"), recorder.callsTo("basicAck"));
+        assertEquals(1, publisher.getInFlightCount());
+    }
+    
+    @Test
+    public void aRejectedPublishIsRequeued() throws Exception {
+        Publisher publisher = new Publisher(recorder.channel, acknowledger);
+        publisher.publish("exchange", "", null, EMPTY_BODY, 1);
+        
+        publisher.handleNack(1, false);
+        
+        assertEquals(Arrays.asList("basicNack[1, false, true]"), recorder.callsTo("basicNack"));
+    }
+    
+    @Test(timeout = 1000)
+    public void publishingWaitsForRoomInTheWindow() throws Exception {
+        final Publisher publisher = new Publisher(recorder.channel, acknowledger, 1);
+        publisher.publish("exchange", "", null, EMPTY_BODY, 1);
+        
+        Thread confirmer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                    publisher.handleAck(1, false);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        confirmer.start();
+        publisher.publish("exchange", "", null, EMPTY_BODY, 2);
+        
+        assertEquals(2, recorder.callsTo("basicPublish").size());
+        assertEquals(1, publisher.getInFlightCount());
+    }
+    
+    @Test(timeout = 1000)
+    public void publishingFailsRatherThanWaitingForRoomOnceTheChannelHasShutDown() throws Exception {
+        final Publisher publisher = new Publisher(recorder.channel, acknowledger, 1);
+        publisher.publish("exchange", "", null, EMPTY_BODY, 1);
+        
+        Thread shutdown = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                publisher.shutdownCompleted(new ShutdownSignalException(false, false, null, recorder.channel));
+            }
+        };
+        shutdown.start();
+        try {
+            publisher.publish("exchange", "", null, EMPTY_BODY, 2);
+            fail("published on a channel which had shut down");
+        } catch (IOException e) {
+            // expected
+        }
+        
+        assertEquals(0, publisher.getInFlightCount());
+        assertEquals(Arrays.asList("basicNack[1, false, true]"), recorder.callsTo("basicNack"));
+        publisher.close();
+    }
+    
+}
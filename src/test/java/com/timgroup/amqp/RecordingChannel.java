@@ -0,0 +1,55 @@
+package com.timgroup.amqp;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.rabbitmq.client.Channel;
+
+/**
+ * A stand-in for a channel which just writes down the methods called on it.
+ * Publishing advances the publish sequence number, as it would in confirm
+ * mode; anything returning a value returns null, or zero.
+ */
+public class RecordingChannel implements InvocationHandler {
+    
+    public final Channel channel = (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(), new Class<?>[] {Channel.class}, this);
+    public final List<String> calls = new ArrayList<String>();
+    private long nextPublishSeqNo = 1;
+    
+    @Override
+    public synchronized Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.getName().equals("getNextPublishSeqNo")) {
+            return nextPublishSeqNo;
+        }
+        if (method.getName().equals("basicPublish")) {
+            ++nextPublishSeqNo;
+        }
+        if (method.getName().startsWith("basic")) {
+            calls.add(method.getName() + (args != null ? Arrays.asList(args).toString() : "[]"));
+        }
+        Class<?> returnType = method.getReturnType();
+        if (returnType == boolean.class) {
+            return false;
+        } else if (returnType == int.class) {
+            return 0;
+        } else if (returnType == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+    
+    public synchronized List<String> callsTo(String methodName) {
+        List<String> matching = new ArrayList<String>();
+        for (String call : calls) {
+            if (call.startsWith(methodName + "[")) {
+                matching.add(call);
+            }
+        }
+        return matching;
+    }
+    
+}
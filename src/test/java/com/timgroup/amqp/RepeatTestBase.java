@@ -1,5 +1,6 @@
 package com.timgroup.amqp;
 
+import java.io.IOException;
 import java.util.Collections;
 import java.util.Date;
 import java.util.Map;
@@ -13,7 +14,7 @@ public abstract class RepeatTestBase extends IntegrationTestBase {
     
     protected static final byte[] EMPTY_BODY = {};
     
-    protected Receiver newTransceiver() {
+    protected Receiver newTransceiver() throws IOException {
         return new Receiver(appChannel, inboundQueueName, new Transmitter(appChannel, outboundQueueName));
     }
     
@@ -0,0 +1,68 @@
+package com.timgroup.amqp;
+
+import java.util.Collections;
+
+import org.junit.Test;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ShaperTest {
+    
+    @Test
+    public void aBurstFallingDueAtOnceTakesSuccessiveSlotsOnceTheBucketIsEmpty() {
+        Shaper shaper = new Shaper(100, 2, 60000);
+        
+        assertEquals(1000, shaper.release(1000));
+        assertEquals(1000, shaper.release(1000));
+        assertEquals(1010, shaper.release(1000));
+        assertEquals(1020, shaper.release(1000));
+        assertEquals(1030, shaper.release(1000));
+    }
+    
+    @Test
+    public void theBucketRefillsWhileNothingFallsDue() {
+        Shaper shaper = new Shaper(100, 2, 60000);
+        shaper.release(1000);
+        shaper.release(1000);
+        shaper.release(1000);
+        
+        assertEquals(2000, shaper.release(2000));
+        assertEquals(2000, shaper.release(2000));
+        assertEquals(2010, shaper.release(2000));
+    }
+    
+    @Test
+    public void noMessageIsHeldBackLongerThanTheMaximumSpread() {
+        Shaper shaper = new Shaper(10, 1, 250);
+        
+        assertEquals(1000, shaper.release(1000));
+        assertEquals(1100, shaper.release(1000));
+        assertEquals(1200, shaper.release(1000));
+        assertEquals(1250, shaper.release(1000));
+        assertEquals(1250, shaper.release(1000));
+    }
+    
+    @Test
+    public void aBurstTooBigToSpreadOutDoesNotHoldUpTheTrafficAfterIt() {
+        Shaper shaper = new Shaper(10, 1, 250);
+        for (int i = 0; i < 1000; i++) {
+            shaper.release(1000);
+        }
+        
+        assertEquals(1350, shaper.release(1300));
+        assertEquals(2000, shaper.release(2000));
+        assertEquals(2100, shaper.release(2000));
+    }
+    
+    @Test
+    public void aMessageIsStrictOnlyIfItsStrictDeliveryHeaderIsTrue() {
+        assertTrue(Shaper.isStrict(new BasicProperties.Builder().headers(Collections.<String, Object> singletonMap(Shaper.STRICT_DELIVERY_HEADER, true)).build()));
+        assertFalse(Shaper.isStrict(new BasicProperties.Builder().headers(Collections.<String, Object> singletonMap(Shaper.STRICT_DELIVERY_HEADER, "yes")).build()));
+        assertFalse(Shaper.isStrict(new BasicProperties()));
+    }
+    
+}
@@ -0,0 +1,162 @@
+package com.timgroup.amqp;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.impl.LongStringHelper;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SlabStoreTest {
+    
+    private static final int SLAB_SIZE = 4096;
+    
+    @Test
+    public void aStoredMessageReadsBackIdentically() throws Exception {
+        SlabStore store = new SlabStore(SLAB_SIZE * 4, SLAB_SIZE);
+        BasicProperties properties = new BasicProperties.Builder().contentType("text/plain")
+                                                                  .headers(Collections.<String, Object>singletonMap("header name", LongStringHelper.asLongString("header value")))
+                                                                  .deliveryMode(2)
+                                                                  .messageId("message ID")
+                                                                  .timestamp(new Date(1226534400000L))
+                                                                  .build();
+        byte[] body = "message".getBytes();
+        
+        Message message = store.read(store.store("routing key", properties, body));
+        
+        assertEquals("routing key", message.routingKey);
+        assertEquals(properties.toString(), message.properties.toString());
+        assertArrayEquals(body, message.body);
+    }
+    
+    @Test
+    public void aMessageWithoutPropertiesReadsBackWithEmptyProperties() throws Exception {
+        SlabStore store = new SlabStore(SLAB_SIZE * 4, SLAB_SIZE);
+        
+        Message message = store.read(store.store("", null, new byte[0]));
+        
+        assertNull(message.properties.getHeaders());
+        assertEquals(0, message.body.length);
+    }
+    
+    @Test
+    public void aMessageBiggerThanASlabIsStoredOnItsOwn() throws Exception {
+        SlabStore store = new SlabStore(SLAB_SIZE * 4, SLAB_SIZE);
+        byte[] body = new byte[SLAB_SIZE * 2];
+        body[body.length - 1] = 42;
+        
+        long handle = store.store("", null, body);
+        
+        assertArrayEquals(body, store.read(handle).body);
+        store.release(handle);
+        assertEquals(0, store.getAllocatedBytes());
+    }
+    
+    @Test
+    public void theStoreRefusesMessagesBeyondItsBudgetUntilSomeAreReleased() throws Exception {
+        SlabStore store = new SlabStore(SLAB_SIZE, SLAB_SIZE);
+        byte[] body = new byte[1000];
+        
+        store.store("", null, body);
+        long second = store.store("", null, body);
+        store.store("", null, body);
+        long fourth = store.store("", null, body);
+        assertNotEquals(SlabStore.NO_SPACE, fourth);
+        assertEquals(SlabStore.NO_SPACE, store.store("", null, body));
+        assertEquals(SLAB_SIZE, store.getAllocatedBytes());
+        
+        store.release(second);
+        assertNotEquals(SlabStore.NO_SPACE, store.store("", null, body));
+        assertEquals(4, store.getCount());
+    }
+    
+    @Test
+    public void recordsWhichCouldNeverFitAreRefusedAsTooLarge() throws Exception {
+        SlabStore store = new SlabStore(SLAB_SIZE, SLAB_SIZE);
+        
+        assertEquals(SlabStore.TOO_LARGE, store.store("", null, new byte[SLAB_SIZE * 2]));
+        long first = store.store("", null, new byte[SLAB_SIZE / 2]);
+        assertEquals(SlabStore.TOO_LARGE, store.store("", null, new byte[SLAB_SIZE / 2], 1));
+        assertEquals(SlabStore.NO_SPACE, store.store("", null, new byte[SLAB_SIZE / 2]));
+        store.release(first);
+        assertEquals(0, store.getCount());
+    }
+    
+    @Test
+    public void anEmptiedSlabCanServeAnotherSizeOfRecord() throws Exception {
+        SlabStore store = new SlabStore(SLAB_SIZE * 2, SLAB_SIZE);
+        long[] small = new long[64];
+        for (int i = 0; i < small.length; i++) {
+            small[i] = store.store("", null, new byte[100]);
+            assertNotEquals(SlabStore.NO_SPACE, small[i]);
+        }
+        assertEquals(SLAB_SIZE * 2, store.getAllocatedBytes());
+        for (long handle : small) {
+            store.release(handle);
+        }
+        
+        long large = store.store("", null, new byte[2000]);
+        long larger = store.store("", null, new byte[3000]);
+        
+        assertNotEquals(SlabStore.NO_SPACE, large);
+        assertNotEquals(SlabStore.NO_SPACE, larger);
+        assertArrayEquals(new byte[2000], store.read(large).body);
+        assertEquals(SLAB_SIZE * 2, store.getAllocatedBytes());
+        store.release(large);
+        store.release(larger);
+        assertNotEquals(SlabStore.NO_SPACE, store.store("", null, new byte[100]));
+        assertEquals(1, store.getCount());
+    }
+    
+    @Test
+    public void messagesSharingPropertiesAndWithCompressedBodiesReadBackIdentically() throws Exception {
+        SlabStore store = new SlabStore(SLAB_SIZE * 16, SLAB_SIZE, 64);
+        byte[] body = new byte[1000];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) "{\"field\": 123}".charAt(i % 14);
+        }
+        Map<String, Object> headers = new HashMap<String, Object>();
+        headers.put("header name", LongStringHelper.asLongString("header value"));
+        long[] handles = new long[4];
+        for (int i = 0; i < handles.length; i++) {
+            headers.put(Receiver.SCHEDULED_DELIVERY_HEADER, 1226534400000L + i);
+            BasicProperties properties = new BasicProperties.Builder().contentType("application/json").appId("app").headers(headers).build();
+            handles[i] = store.store("routing key", properties, body);
+        }
+        
+        for (int i = 0; i < handles.length; i++) {
+            Message message = store.read(handles[i]);
+            assertEquals("routing key", message.routingKey);
+            assertEquals("application/json", message.properties.getContentType());
+            assertEquals("app", message.properties.getAppId());
+            assertEquals(1226534400000L + i, message.properties.getHeaders().get(Receiver.SCHEDULED_DELIVERY_HEADER));
+            assertEquals("header value", message.properties.getHeaders().get("header name").toString());
+            assertArrayEquals(body, message.body);
+        }
+        assertTrue("compacted to " + store.getUsedBytes() + " bytes from " + store.getPlainBytes(), store.getPlainBytes() >= store.getUsedBytes() * 4);
+    }
+    
+    @Test
+    public void releasingEveryMessageLetsGoOfTheirSharedProperties() throws Exception {
+        SlabStore store = new SlabStore(SLAB_SIZE * 4, SLAB_SIZE);
+        BasicProperties properties = new BasicProperties.Builder().contentType("text/plain").build();
+        long first = store.store("key", properties, new byte[10]);
+        long second = store.store("key", properties, new byte[10]);
+        
+        store.release(first);
+        store.release(second);
+        
+        assertEquals(0, store.getPlainBytes());
+        assertArrayEquals(new byte[10], store.read(store.store("key", properties, new byte[10])).body);
+    }
+    
+}
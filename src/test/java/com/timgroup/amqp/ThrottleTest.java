@@ -0,0 +1,122 @@
+package com.timgroup.amqp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ThrottleTest {
+    
+    private final Acknowledger acknowledger = new Acknowledger(new RecordingChannel().channel);
+    
+    private PublisherPool unstartedPool() throws Exception {
+        List<Publisher> publishers = new ArrayList<Publisher>();
+        publishers.add(new Publisher(new RecordingChannel().channel, acknowledger));
+        return new PublisherPool(acknowledger, publishers);
+    }
+    
+    private static void dispatch(PublisherPool pool, long fromTag, long toTag) throws Exception {
+        for (long tag = fromTag; tag < toTag; tag++) {
+            pool.dispatch(new PendingMessage(null, tag, 0, 0, 0));
+        }
+    }
+    
+    @Test
+    public void aGrowingBacklogSlowsAndThenStopsConsumptionWhichOnlyResumesOnceItHasDrainedWell() throws Exception {
+        PublisherPool pool = unstartedPool();
+        Throttle throttle = new Throttle(pool, 4, 8);
+        
+        dispatch(pool, 0, 4);
+        throttle.check();
+        assertEquals(Throttle.State.SLOWED, throttle.getState());
+        dispatch(pool, 4, 8);
+        throttle.check();
+        assertEquals(Throttle.State.STOPPED, throttle.getState());
+        
+        final CountDownLatch stuck = new CountDownLatch(1);
+        pool.start(new PublisherPool.Handler() {
+            @Override
+            public void publish(PendingMessage message, Publisher publisher) {
+                try {
+                    if (message.deliveryTag == 4) {
+                        stuck.await();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        while (pool.getBacklog() > 3) {
+            Thread.sleep(1);
+        }
+        throttle.check();
+        stuck.countDown();
+        pool.close();
+        
+        assertEquals(Throttle.State.SLOWED, throttle.getState());
+        assertEquals(3, throttle.getStateChangeCount());
+    }
+    
+    @Test
+    public void aBlockedConnectionStopsConsumptionUntilItIsUnblocked() throws Exception {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        Throttle throttle = new Throttle(unstartedPool(), 4, 8);
+        throttle.start(executor, 60000);
+        
+        throttle.handleBlocked("low on memory");
+        assertEquals("low on memory", throttle.getBlockedReason());
+        awaitState(throttle, Throttle.State.STOPPED);
+        throttle.handleUnblocked();
+        
+        awaitState(throttle, Throttle.State.OPEN);
+        executor.shutdown();
+    }
+    
+    @Test
+    public void aBlockedNotificationDoesNotWaitForACheckInProgress() throws Exception {
+        final Throttle throttle = new Throttle(unstartedPool(), 4, 8);
+        final CountDownLatch checking = new CountDownLatch(1);
+        final CountDownLatch notified = new CountDownLatch(1);
+        final AtomicBoolean notifiedDuringCheck = new AtomicBoolean();
+        Thread check = new Thread() {
+            @Override
+            public void run() {
+                // as a check does while a receiver waits for the reply to basic.qos
+                synchronized (throttle) {
+                    checking.countDown();
+                    try {
+                        notifiedDuringCheck.set(notified.await(2, TimeUnit.SECONDS));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        };
+        check.start();
+        checking.await();
+        
+        throttle.handleBlocked("low on memory");
+        throttle.handleUnblocked();
+        notified.countDown();
+        check.join();
+        
+        assertTrue(notifiedDuringCheck.get());
+    }
+    
+    private static void awaitState(Throttle throttle, Throttle.State state) throws InterruptedException {
+        long giveUpTime = System.currentTimeMillis() + 1000;
+        while (throttle.getState() != state && System.currentTimeMillis() < giveUpTime) {
+            Thread.sleep(1);
+        }
+        assertEquals(state, throttle.getState());
+    }
+    
+}
@@ -0,0 +1,128 @@
+package com.timgroup.amqp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TimingWheelTest {
+    
+    private static final long START_TIME = 1376000000000L;
+    
+    private final TimingWheel<Long> wheel = new TimingWheel<Long>(START_TIME, 4);
+    private final Object[] expired = new Object[64];
+    
+    @Test
+    public void anEntryExpiresExactlyAtItsDeadline() throws Exception {
+        wheel.add(1L, START_TIME + 5000);
+        
+        assertEquals(0, wheel.advance(START_TIME + 4999, expired));
+        assertEquals(1, wheel.advance(START_TIME + 5000, expired));
+        assertEquals(1L, expired[0]);
+        assertTrue(wheel.isEmpty());
+    }
+    
+    @Test
+    public void anEntryInThePastIsDueImmediately() throws Exception {
+        wheel.add(1L, START_TIME - 1000);
+        
+        assertEquals(START_TIME, wheel.nextEventTime());
+        assertEquals(1, wheel.advance(START_TIME, expired));
+    }
+    
+    @Test
+    public void aNearEntryIsNotHeldUpByAFarOne() throws Exception {
+        wheel.add(1L, START_TIME + 1000);
+        wheel.add(2L, START_TIME + 500);
+        wheel.add(3L, START_TIME);
+        
+        assertEquals(Arrays.<Object>asList(3L, 2L, 1L), advanceTo(START_TIME + 1000));
+    }
+    
+    @Test
+    public void entriesDueAtTheSameTimeExpireInTheOrderTheyWereAdded() throws Exception {
+        for (long i = 0; i < 10; i++) {
+            wheel.add(i, START_TIME + 100000);
+        }
+        
+        assertEquals(Arrays.<Object>asList(0L, 1L, 2L, 3L, 4L, 5L, 6L, 7L, 8L, 9L), advanceTo(START_TIME + 100000));
+    }
+    
+    @Test
+    public void aCancelledEntryDoesNotExpire() throws Exception {
+        long handle = wheel.add(1L, START_TIME + 10);
+        wheel.add(2L, START_TIME + 10);
+        
+        assertEquals(Long.valueOf(1L), wheel.cancel(handle));
+        assertNull(wheel.cancel(handle));
+        assertEquals(Arrays.<Object>asList(2L), advanceTo(START_TIME + 10));
+    }
+    
+    @Test
+    public void anEntryBeyondTheSpanOfTheWheelExpiresAtItsDeadline() throws Exception {
+        long deadline = START_TIME + (1L << 40) + 12345;
+        wheel.add(1L, deadline);
+        
+        assertEquals(0, wheel.advance(deadline - 1, expired));
+        assertEquals(1, wheel.advance(deadline, expired));
+    }
+    
+    @Test
+    public void randomEntriesExpireInDeadlineOrderAndNeverEarly() throws Exception {
+        Random random = new Random(42);
+        long[] deadlines = new long[10000];
+        for (int i = 0; i < deadlines.length; i++) {
+            deadlines[i] = START_TIME + (long) (Math.pow(random.nextDouble(), 4) * 100000000L);
+            wheel.add(deadlines[i], deadlines[i]);
+        }
+        Arrays.sort(deadlines);
+        
+        int expiredCount = 0;
+        long time = START_TIME;
+        while (!wheel.isEmpty()) {
+            time = wheel.nextEventTime();
+            int count = wheel.advance(time, expired);
+            for (int i = 0; i < count; i++) {
+                assertEquals(deadlines[expiredCount++], expired[i]);
+                assertEquals(time, expired[i]);
+            }
+        }
+        assertEquals(deadlines.length, expiredCount);
+    }
+    
+    @Test
+    public void theBacklogCountsAndWeighsEntriesByHowSoonTheyAreDue() throws Exception {
+        wheel.add(1L, START_TIME + 10, 100);
+        wheel.add(2L, START_TIME + 100000, 7);
+        
+        Backlog backlog = wheel.backlog();
+        assertEquals(64, backlog.getHorizonMillis(0));
+        assertEquals(1, backlog.getCount(0));
+        assertEquals(100, backlog.getWeight(0));
+        assertEquals(0, backlog.getCount(1));
+        assertEquals(1, backlog.getCount(2));
+        assertEquals(7, backlog.getWeight(2));
+        assertEquals(Long.MAX_VALUE, backlog.getHorizonMillis(backlog.getBandCount() - 1));
+        
+        wheel.advance(START_TIME + 10, expired);
+        
+        assertEquals(0, wheel.backlog().getCount(0));
+        assertEquals(0, wheel.backlog().getWeight(0));
+    }
+    
+    private List<Object> advanceTo(long time) {
+        List<Object> all = new ArrayList<Object>();
+        for (long t = wheel.currentTime(); t <= time; t++) {
+            int count = wheel.advance(t, expired);
+            all.addAll(Arrays.asList(expired).subList(0, count));
+        }
+        return all;
+    }
+    
+}
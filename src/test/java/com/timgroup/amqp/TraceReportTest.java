@@ -0,0 +1,54 @@
+package com.timgroup.amqp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TraceReportTest {
+    
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+    
+    @Test
+    public void breaksLatenessDownByStage() {
+        TraceReport report = new TraceReport();
+        report.add(new TraceReport.Trace("inbound", "a", 1000, 5000, 6000, 6500, 9500));
+        report.add(new TraceReport.Trace("inbound", "a", 8000, 5000, 9000, 9100, 0));
+        
+        assertArrayEquals(new long[] {0, 3000}, report.values("all", "arrival"));
+        assertArrayEquals(new long[] {1000, 1000}, report.values("all", "scheduler"));
+        assertArrayEquals(new long[] {100, 500}, report.values("all", "publish"));
+        assertArrayEquals(new long[] {3000}, report.values("all", "delivery"));
+        assertArrayEquals(new long[] {4100, 4500}, report.values("shard inbound on a", "total"));
+    }
+    
+    @Test
+    public void readsTracesBackFromADumpFileAndSkipsAnythingElse() throws Exception {
+        File dump = folder.newFile();
+        FileWriter writer = new FileWriter(dump);
+        writer.write(new TraceReport.Trace("inbound", "a", 1000, 5000, 6000, 6500, 9500).format() + "\n");
+        writer.write("not a trace\n");
+        writer.close();
+        
+        TraceReport report = new TraceReport();
+        report.readDump(dump.getPath());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        report.print(new PrintStream(out, true));
+        
+        assertEquals(1, report.getCount());
+        assertArrayEquals(new long[] {4500}, report.values("all", "total"));
+        assertTrue(out.toString(), out.toString().startsWith("1 traces, 1 messages or lines skipped"));
+        assertNull(TraceReport.Trace.parse("inbound\ta\t1\t2\t3\tfour\t5"));
+    }
+    
+}